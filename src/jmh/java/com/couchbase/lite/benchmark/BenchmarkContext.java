@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.Context;
+import com.couchbase.lite.NetworkReachabilityManager;
+import com.couchbase.lite.internal.database.DatabasePlatformSupport;
+import com.couchbase.lite.storage.SQLiteNativeLibrary;
+import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.storage.SQLiteStorageEngineBase;
+import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+import com.couchbase.lite.support.FileDirUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Minimal desktop Context for running benchmarks against a local embedded database.
+ * <p/>
+ * The native SQLite JNI library is loaded the same way the Java platform build loads it, so it
+ * must be on the benchmark classpath, or its path given with the
+ * com.couchbase.lite.lib.&lt;name&gt;.path system property.
+ */
+public class BenchmarkContext implements Context {
+
+    static {
+        SQLiteNativeLibrary.load();
+    }
+
+    private final File rootDirectory;
+    private NetworkReachabilityManager networkReachabilityManager;
+
+    public BenchmarkContext(File rootDirectory) {
+        this.rootDirectory = rootDirectory;
+    }
+
+    /**
+     * Creates a context whose files live in a new, empty temporary directory.
+     */
+    public static BenchmarkContext createTemporary(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs())
+            throw new IOException("Unable to create directory " + directory);
+        return new BenchmarkContext(directory);
+    }
+
+    /**
+     * Deletes the context's directory and everything in it.
+     */
+    public void delete() {
+        FileDirUtils.deleteRecursive(rootDirectory);
+    }
+
+    @Override
+    public File getFilesDir() {
+        return rootDirectory;
+    }
+
+    @Override
+    public File getTempDir() {
+        File tempDirectory = new File(rootDirectory, "temp");
+        tempDirectory.mkdirs();
+        return tempDirectory;
+    }
+
+    @Override
+    public void setNetworkReachabilityManager(NetworkReachabilityManager networkReachabilityManager) {
+        this.networkReachabilityManager = networkReachabilityManager;
+    }
+
+    @Override
+    public NetworkReachabilityManager getNetworkReachabilityManager() {
+        if (networkReachabilityManager == null) {
+            networkReachabilityManager = new NetworkReachabilityManager() {
+                @Override
+                public void startListening() {
+                }
+
+                @Override
+                public void stopListening() {
+                }
+
+                @Override
+                public boolean isOnline() {
+                    return true;
+                }
+            };
+        }
+        return networkReachabilityManager;
+    }
+
+    @Override
+    public SQLiteStorageEngineFactory getSQLiteStorageEngineFactory() {
+        return new SQLiteStorageEngineFactory() {
+            @Override
+            public SQLiteStorageEngine createStorageEngine() {
+                return new BenchmarkStorageEngine();
+            }
+        };
+    }
+
+    @Override
+    public String getUserAgent() {
+        return "CouchbaseLite/benchmark";
+    }
+
+    private static class BenchmarkStorageEngine extends SQLiteStorageEngineBase {
+        @Override
+        protected DatabasePlatformSupport getDatabasePlatformSupport() {
+            return new DatabasePlatformSupport() {
+                @Override
+                public boolean isMainThread() {
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        protected String getICUDatabasePath() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates the documents and attachment bodies used by the benchmarks.
+ */
+final class BenchmarkData {
+
+    private static final int FILL_BATCH_SIZE = 1000;
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns the properties of a document whose JSON is roughly 'size' bytes long.
+     */
+    static Map<String, Object> properties(int index, int size) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("type", "benchmark");
+        properties.put("index", index);
+        properties.put("name", "doc-" + index);
+        properties.put("body", randomString(new Random(index), Math.max(0, size - 64)));
+        return properties;
+    }
+
+    /**
+     * Returns 'size' bytes of pseudo-random data, so that blobs don't compress or deduplicate.
+     */
+    static byte[] bytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Adds 'count' documents of the given size to the database.
+     */
+    static void fill(Database database, int count, int docSize) throws CouchbaseLiteException {
+        for (int start = 0; start < count; start += FILL_BATCH_SIZE) {
+            int end = Math.min(count, start + FILL_BATCH_SIZE);
+            List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(end - start);
+            for (int i = start; i < end; i++)
+                batch.add(properties(i, docSize));
+            database.putDocuments(batch, null);
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        return new String(chars);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.BlobKey;
+import com.couchbase.lite.BlobStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlobStore.storeBlob (attachment writes), by attachment size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BlobStoreBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int attachmentSize;
+
+    private BenchmarkContext context;
+    private BlobStore blobStore;
+    private byte[] data;
+    private long counter;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = BenchmarkContext.createTemporary("blob-benchmark");
+        data = BenchmarkData.bytes(attachmentSize, 0);
+    }
+
+    /**
+     * Every iteration starts with an empty store, so that disk usage doesn't keep growing.
+     */
+    @Setup(Level.Iteration)
+    public void createBlobStore() throws Exception {
+        File directory = new File(context.getFilesDir(), "attachments");
+        blobStore = new BlobStore(context, directory.getPath(), null);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteBlobStore() {
+        blobStore.deleteBlobs();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.delete();
+    }
+
+    @Benchmark
+    public BlobKey storeBlob() {
+        // Identical blobs are only stored once, so make each one unique:
+        long value = counter++;
+        for (int i = 0; i < 8; i++)
+            data[i] = (byte) (value >>> (8 * i));
+        BlobKey key = new BlobKey();
+        blobStore.storeBlob(data, key);
+        return key;
+    }
+}
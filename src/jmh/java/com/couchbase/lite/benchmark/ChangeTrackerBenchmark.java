@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.replicator.ChangeTracker;
+import com.couchbase.lite.replicator.ChangeTrackerClient;
+import com.couchbase.lite.util.Log;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pulling 100,000 changes through the ChangeTracker from a local stand-in for the server's
+ * _changes feed: "longpoll" makes a request per batch of 50 changes, "continuous" streams them
+ * all through one connection. The continuous feed drops the connection halfway, so each run
+ * also covers resuming from the last sequence received. Reports the time per 100,000 changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChangeTrackerBenchmark {
+
+    private static final int CHANGE_COUNT = 100000;
+    private static final int HEARTBEAT_INTERVAL = 5000;
+    private static final Pattern SINCE = Pattern.compile("[?&]since=(\\d+)");
+    private static final Pattern LIMIT = Pattern.compile("[?&]limit=(\\d+)");
+
+    @Param({"longpoll", "continuous"})
+    public String feed;
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+
+    @Setup
+    public void setUp() throws IOException {
+        Log.enableLogging(Log.TAG, Log.WARN);
+        serverSocket = new ServerSocket(0);
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // closed by tearDown()
+                }
+            }
+        }, "ChangeTrackerBenchmark-server");
+        serverThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        serverThread.join();
+    }
+
+    @Benchmark
+    public int pullChanges() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] received = new int[1];
+        final ChangeTracker[] tracker = new ChangeTracker[1];
+        ChangeTrackerClient client = new ChangeTrackerClient() {
+            @Override
+            public HttpClient getHttpClient() {
+                return new DefaultHttpClient();
+            }
+
+            @Override
+            public void changeTrackerReceivedChange(Map<String, Object> change) {
+                if (++received[0] == CHANGE_COUNT)
+                    tracker[0].stop();
+            }
+
+            @Override
+            public void changeTrackerStopped(ChangeTracker tracker) {
+                done.countDown();
+            }
+
+            @Override
+            public void changeTrackerFinished(ChangeTracker tracker) {
+            }
+
+            @Override
+            public void changeTrackerCaughtUp() {
+            }
+        };
+        ChangeTracker.ChangeTrackerMode mode = feed.equals("continuous") ?
+                ChangeTracker.ChangeTrackerMode.Continuous : ChangeTracker.ChangeTrackerMode.LongPoll;
+        URL url = new URL("http://localhost:" + serverSocket.getLocalPort() + "/db");
+        tracker[0] = new ChangeTracker(url, mode, false, null, client);
+        tracker[0].start();
+        done.await();
+        if (received[0] != CHANGE_COUNT)
+            throw new IllegalStateException("Received " + received[0] + " changes");
+        return received[0];
+    }
+
+    // Answers one _changes request: a page of 'limit' changes for longpoll, or the changes up to
+    // CHANGE_COUNT for continuous, dropping the connection halfway through if starting below it.
+    private static void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = reader.readLine();
+            String header;
+            while ((header = reader.readLine()) != null && header.length() > 0) {
+            }
+            int since = intParam(SINCE, requestLine, 0);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nConnection: close\r\n\r\n"
+                    .getBytes("UTF-8"));
+            if (requestLine.contains("feed=continuous")) {
+                int end = since < CHANGE_COUNT / 2 ? CHANGE_COUNT / 2 : CHANGE_COUNT;
+                for (int seq = since + 1; seq <= end; seq++) {
+                    out.write(change(seq).getBytes("UTF-8"));
+                    out.write('\n');
+                    if (seq % HEARTBEAT_INTERVAL == 0)
+                        out.write('\n');
+                }
+            } else {
+                int end = Math.min(since + intParam(LIMIT, requestLine, CHANGE_COUNT), CHANGE_COUNT);
+                StringBuilder body = new StringBuilder("{\"results\":[");
+                for (int seq = since + 1; seq <= end; seq++) {
+                    if (seq > since + 1)
+                        body.append(',');
+                    body.append(change(seq));
+                }
+                body.append("],\"last_seq\":").append(end).append('}');
+                out.write(body.toString().getBytes("UTF-8"));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // the tracker stopped and closed the connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static String change(int seq) {
+        return "{\"seq\":" + seq + ",\"id\":\"doc-" + seq + "\",\"changes\":[{\"rev\":\"1-" +
+                Integer.toHexString(seq * 7919) + "\"}]}";
+    }
+
+    private static int intParam(Pattern pattern, String requestLine, int defaultValue) {
+        Matcher matcher = pattern.matcher(requestLine);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : defaultValue;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.ChangesOptions;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.RevisionList;
+import com.couchbase.lite.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SQLiteStore.changesSince, as used by the pusher and the _changes feed, over the whole database
+ * and over its most recent changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChangesBenchmark {
+
+    private static final int RECENT_CHANGES = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int docCount;
+
+    @Param({"100", "10000"})
+    public int docSize;
+
+    @Param({"false", "true"})
+    public boolean includeDocs;
+
+    private BenchmarkContext context;
+    private Manager manager;
+    private Database database;
+
+    @Setup
+    public void setUp() throws Exception {
+        Log.enableLogging(Log.TAG, Log.WARN);
+        context = BenchmarkContext.createTemporary("changes-benchmark");
+        manager = new Manager(context, null);
+        database = manager.getDatabase("benchmark");
+        BenchmarkData.fill(database, docCount, docSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    @Benchmark
+    public RevisionList allChanges() {
+        ChangesOptions options = new ChangesOptions(Integer.MAX_VALUE, includeDocs, true, true);
+        return database.changesSince(0, options, null, null);
+    }
+
+    @Benchmark
+    public RevisionList recentChanges() {
+        ChangesOptions options = new ChangesOptions(Integer.MAX_VALUE, includeDocs, true, true);
+        long since = Math.max(0, database.getLastSequenceNumber() - RECENT_CHANGES);
+        return database.changesSince(since, options, null, null);
+    }
+}
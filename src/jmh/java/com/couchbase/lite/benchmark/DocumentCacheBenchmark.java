@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.Cache;
+import com.couchbase.lite.support.WeakValueHashMap;
+import com.couchbase.lite.util.LruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Database.getDocument()'s cache lookups from many threads: the striped Cache versus the
+ * previous implementation (an LruCache plus a WeakValueHashMap), reproduced here as
+ * LegacyCache. Most lookups go to a hot set of documents that the application holds on to, the
+ * rest to documents that are only retained by the cache. Use -t to change the thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(16)
+public class DocumentCacheBenchmark {
+
+    private static final int HOT_DOCS = 1000;
+    private static final int COLD_DOCS = 100000;
+
+    @Param({"striped", "legacy"})
+    public String cache;
+
+    private DocCache<String, Object> docCache;
+    private String[] hotKeys;
+    private String[] coldKeys;
+    private Object[] hotDocs;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random(Thread.currentThread().getId());
+    }
+
+    @Setup
+    public void setUp() {
+        docCache = cache.equals("legacy") ?
+                new LegacyCache<String, Object>() : new StripedCache<String, Object>();
+        hotKeys = new String[HOT_DOCS];
+        hotDocs = new Object[HOT_DOCS];
+        for (int i = 0; i < HOT_DOCS; i++) {
+            hotKeys[i] = "hot-" + i;
+            hotDocs[i] = new Object();
+            docCache.put(hotKeys[i], hotDocs[i]);
+        }
+        coldKeys = new String[COLD_DOCS];
+        for (int i = 0; i < COLD_DOCS; i++)
+            coldKeys[i] = "cold-" + i;
+    }
+
+    @Benchmark
+    public Object getDocument(ThreadState state) {
+        int n = state.random.nextInt(100);
+        String key = n < 90 ? hotKeys[n * 11 % HOT_DOCS] : coldKeys[state.random.nextInt(COLD_DOCS)];
+        Object doc = docCache.get(key);
+        if (doc == null) {
+            doc = new Object();
+            docCache.put(key, doc);
+        }
+        return doc;
+    }
+
+    private interface DocCache<K, V> {
+        V get(K key);
+
+        void put(K key, V value);
+    }
+
+    private static class StripedCache<K, V> implements DocCache<K, V> {
+        private final Cache<K, V> cache = new Cache<K, V>();
+
+        public V get(K key) {
+            return cache.get(key);
+        }
+
+        public void put(K key, V value) {
+            cache.putIfAbsent(key, value);
+        }
+    }
+
+    /**
+     * The previous Cache. WeakValueHashMap isn't thread-safe, so its calls are synchronized
+     * here; LruCache synchronizes internally.
+     */
+    private static class LegacyCache<K, V> implements DocCache<K, V> {
+        private final LruCache<K, V> strongReferenceCache = new LruCache<K, V>(50);
+        private final WeakValueHashMap<K, V> weakReferenceCache = new WeakValueHashMap<K, V>();
+
+        public V get(K key) {
+            V value;
+            synchronized (weakReferenceCache) {
+                value = weakReferenceCache.get(key);
+            }
+            if (value != null && strongReferenceCache.get(key) == null)
+                strongReferenceCache.put(key, value);
+            return value;
+        }
+
+        public void put(K key, V value) {
+            strongReferenceCache.put(key, value);
+            synchronized (weakReferenceCache) {
+                weakReferenceCache.put(key, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.AsyncTask;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.LiveQuery;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
+import com.couchbase.lite.Mapper;
+import com.couchbase.lite.QueryEnumerator;
+import com.couchbase.lite.View;
+import com.couchbase.lite.metrics.Metrics;
+import com.couchbase.lite.util.Log;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LiveQueries over a view of 10,000 documents during 3,000 writes at a sustained 1,000 per
+ * second. Most writes add a document; every fifth renames one added earlier, often to another
+ * document's name, so rows move and keys tie. Besides the runs per second, reports the
+ * LiveQueries' refreshes per second as a JMH auxiliary counter. At the end of each iteration it
+ * prints the worst median and 99th percentile time from a change to the rows reflecting it, and
+ * the longest a no-op task waited on the Manager's work executor, which auxiliary counters can't
+ * report as they're normalized by the time.
+ * <p/>
+ * Each run fails if a LiveQuery's final rows, which it may have refreshed incrementally, differ
+ * from those of a full query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LiveQueryBenchmark {
+
+    private static final int DOC_COUNT = 10000;
+    private static final int DOC_SIZE = 100;
+    private static final int WRITE_COUNT = 3000;
+    private static final int WRITES_PER_SECOND = 1000;
+    private static final long PROBE_INTERVAL_MS = 10;
+    private static final int RENAME_EVERY = 5;
+    private static final long SETTLE_TIMEOUT_MS = 10000;
+
+    @Param({"0", "100"})
+    public long updateInterval;
+
+    @Param({"1", "8"})
+    public int liveQueryCount;
+
+    private BenchmarkContext context;
+    private Manager manager;
+    private Database database;
+    private View view;
+    private int nextIndex;
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Results {
+        public long refreshes;
+        private double lagP50Ms;
+        private double lagP99Ms;
+        private double maxWorkExecutorWaitMs;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            refreshes = 0;
+            lagP50Ms = 0;
+            lagP99Ms = 0;
+            maxWorkExecutorWaitMs = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void print() {
+            System.out.printf("lag p50 %.1f ms, p99 %.1f ms; max work executor wait %.1f ms%n",
+                    lagP50Ms, lagP99Ms, maxWorkExecutorWaitMs);
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Log.enableLogging(Log.TAG, Log.WARN);
+        context = BenchmarkContext.createTemporary("livequery-benchmark");
+        ManagerOptions options = new ManagerOptions();
+        options.setMetricsEnabled(true);
+        manager = new Manager(context, options);
+        database = manager.getDatabase("benchmark");
+        BenchmarkData.fill(database, DOC_COUNT, DOC_SIZE);
+        nextIndex = DOC_COUNT;
+        view = database.getView("byName");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("name"), document.get("index"));
+            }
+        }, "1");
+        view.updateIndex();
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    @Benchmark
+    public int sustainedWrites(Results results) throws Exception {
+        List<LiveQuery> liveQueries = new ArrayList<LiveQuery>(liveQueryCount);
+        for (int i = 0; i < liveQueryCount; i++) {
+            LiveQuery liveQuery = view.createQuery().toLiveQuery();
+            liveQuery.setUpdateInterval(updateInterval);
+            liveQuery.waitForRows();
+            liveQueries.add(liveQuery);
+        }
+        Metrics.reset();
+
+        Random random = new Random(nextIndex);
+        List<Document> added = new ArrayList<Document>();
+        long start = System.currentTimeMillis();
+        long nextProbe = start;
+        Future probe = null;
+        long probeSubmitted = 0;
+        double maxWaitMs = 0;
+        for (int i = 0; i < WRITE_COUNT; i++) {
+            if (i % RENAME_EVERY == RENAME_EVERY - 1) {
+                Document document = added.get(random.nextInt(added.size()));
+                Map<String, Object> properties =
+                        new HashMap<String, Object>(document.getProperties());
+                properties.put("name", "doc-" + random.nextInt(nextIndex));
+                document.putProperties(properties);
+            } else {
+                Document document = database.createDocument();
+                document.putProperties(BenchmarkData.properties(nextIndex++, DOC_SIZE));
+                added.add(document);
+            }
+
+            // Check how long a trivial task waits for the work executor:
+            long now = System.currentTimeMillis();
+            if (probe != null && probe.isDone()) {
+                probe = null;
+            } else if (probe != null) {
+                maxWaitMs = Math.max(maxWaitMs, now - probeSubmitted);
+            }
+            if (probe == null && now >= nextProbe) {
+                probeSubmitted = now;
+                probe = database.runAsync(new AsyncTask() {
+                    @Override
+                    public void run(Database database) {
+                    }
+                });
+                nextProbe = now + PROBE_INTERVAL_MS;
+            }
+
+            long due = start + (i + 1) * 1000L / WRITES_PER_SECOND;
+            if (due > now)
+                Thread.sleep(due - now);
+        }
+        if (probe != null) {
+            probe.get();
+            maxWaitMs = Math.max(maxWaitMs, System.currentTimeMillis() - probeSubmitted);
+        }
+
+        // Let the last refreshes finish before collecting the metrics:
+        Thread.sleep(Math.max(updateInterval, 100) * 2);
+        checkRows(liveQueries);
+        for (LiveQuery liveQuery : liveQueries)
+            liveQuery.stop();
+
+        Map<String, Object> metrics = manager.getMetricsSnapshot();
+        Object refreshes = metrics.get("livequery.refreshes");
+        results.refreshes += refreshes != null ? (Long) refreshes : 0;
+        Object lag = metrics.get("livequery.lag");
+        if (lag != null) {
+            results.lagP50Ms = Math.max(results.lagP50Ms, (Double) ((Map) lag).get("p50_ms"));
+            results.lagP99Ms = Math.max(results.lagP99Ms, (Double) ((Map) lag).get("p99_ms"));
+        }
+        results.maxWorkExecutorWaitMs = Math.max(results.maxWorkExecutorWaitMs, maxWaitMs);
+        return WRITE_COUNT;
+    }
+
+    // Fails unless every LiveQuery ends up with the rows of a full query, once it has caught up:
+    private void checkRows(List<LiveQuery> liveQueries) throws Exception {
+        QueryEnumerator expected = view.createQuery().run();
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        for (LiveQuery liveQuery : liveQueries) {
+            while (!expected.equals(liveQuery.getRows())) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IllegalStateException(
+                            "LiveQuery rows differ from a full query's: " + liveQuery);
+                Thread.sleep(PROBE_INTERVAL_MS);
+            }
+        }
+    }
+}
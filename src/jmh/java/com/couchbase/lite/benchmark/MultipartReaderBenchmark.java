@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.support.MultipartReader;
+import com.couchbase.lite.support.MultipartReaderDelegate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MultipartReader.appendData: parsing a multipart/related revision body with one attachment, as
+ * received by the puller, fed to the reader in network-sized chunks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultipartReaderBenchmark {
+
+    private static final String BOUNDARY = "0f1d9d9a7c7e4c3b8e2a6b5d4c3b2a19";
+    private static final String CONTENT_TYPE = "multipart/related; boundary=\"" + BOUNDARY + "\"";
+
+    @Param({"1024", "65536", "1048576"})
+    public int attachmentSize;
+
+    @Param({"4096", "65536"})
+    public int chunkSize;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(attachmentSize + 1024);
+        out.write(("--" + BOUNDARY + "\r\n" +
+                "Content-Type: application/json\r\n\r\n" +
+                "{\"_id\":\"doc\",\"_rev\":\"1-0123456789abcdef\",\"_attachments\":{\"att\":" +
+                "{\"follows\":true,\"length\":" + attachmentSize + "}}}" +
+                "\r\n--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: attachment; filename=\"att\"\r\n\r\n").getBytes("UTF-8"));
+        out.write(BenchmarkData.bytes(attachmentSize, 0));
+        out.write(("\r\n--" + BOUNDARY + "--").getBytes("UTF-8"));
+        body = out.toByteArray();
+    }
+
+    @Benchmark
+    public long appendData() {
+        final long[] length = new long[1];
+        MultipartReader reader = new MultipartReader(CONTENT_TYPE, new MultipartReaderDelegate() {
+            @Override
+            public void startedPart(Map<String, String> headers) {
+            }
+
+            @Override
+            public void appendToPart(byte[] data) {
+                length[0] += data.length;
+            }
+
+            @Override
+            public void appendToPart(byte[] data, int off, int len) {
+                length[0] += len;
+            }
+
+            @Override
+            public void finishedPart() {
+            }
+        });
+        for (int offset = 0; offset < body.length; offset += chunkSize)
+            reader.appendData(body, offset, Math.min(chunkSize, body.length - offset));
+        if (!reader.finished())
+            throw new IllegalStateException("Multipart body wasn't completely parsed");
+        return length[0];
+    }
+}
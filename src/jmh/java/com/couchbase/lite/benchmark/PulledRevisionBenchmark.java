@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.internal.RawRevision;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.RevisionUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a document received from _bulk_get into the history and JSON that forceInsert stores:
+ * parsing it into properties and re-serializing them, versus scanning it into a RawRevision.
+ * Run with "-prof gc" to compare allocation per document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PulledRevisionBenchmark {
+
+    private static final int HISTORY_LENGTH = 20;
+
+    @Param({"256", "4096", "65536"})
+    public int docSize;
+
+    private byte[] json;
+
+    @Setup
+    public void setUp() throws IOException {
+        Map<String, Object> properties = BenchmarkData.properties(1, docSize);
+        List<Object> tags = new ArrayList<Object>();
+        for (int i = 0; i < 8; i++) {
+            Map<String, Object> tag = new HashMap<String, Object>();
+            tag.put("name", "tag-" + i);
+            tag.put("weight", i * 0.5);
+            tags.add(tag);
+        }
+        properties.put("tags", tags);
+
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < HISTORY_LENGTH; i++)
+            ids.add(String.format("%032x", i * 7919L));
+        Map<String, Object> revisions = new HashMap<String, Object>();
+        revisions.put("start", HISTORY_LENGTH);
+        revisions.put("ids", ids);
+        properties.put("_id", "doc-1");
+        properties.put("_rev", HISTORY_LENGTH + "-" + ids.get(0));
+        properties.put("_revisions", revisions);
+        json = Manager.getObjectMapper().writeValueAsBytes(properties);
+    }
+
+    @Benchmark
+    public int parseProperties() throws IOException {
+        Map<String, Object> props = Manager.getObjectMapper().readValue(json, Map.class);
+        RevisionInternal rev = new RevisionInternal(props);
+        List<String> history = Database.parseCouchDBRevisionHistory(rev.getProperties());
+        return history.size() + RevisionUtils.asCanonicalJSON(rev).length;
+    }
+
+    @Benchmark
+    public int scanRawRevision() {
+        RawRevision rev = RawRevision.fromJSON(json, 0, json.length);
+        return rev.getHistory().size() + RevisionUtils.asCanonicalJSON(rev).length;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.ChangesOptions;
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.RevisionList;
+import com.couchbase.lite.SavedRevision;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.RevisionUtils;
+import com.couchbase.lite.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The local work PusherInternal does for each _revs_diff response: loading the body and the
+ * revision history of every revision the server is missing. "perRevision" is the previous
+ * loadRevisionBody() plus getRevisionHistoryDictStartingFromAnyAncestor() per revision,
+ * "batched" is loadRevisionBodies() plus getRevisionHistories() for the whole batch.
+ * Reports the average time per batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PushBatchBenchmark {
+
+    private static final int DOC_SIZE = 1000;
+
+    @Param({"100", "500"})
+    public int batchSize;
+
+    @Param({"1", "5"})
+    public int revisionsPerDoc;
+
+    @Param({"perRevision", "batched"})
+    public String mode;
+
+    private BenchmarkContext context;
+    private Manager manager;
+    private Database database;
+    private RevisionList changes;
+
+    @Setup
+    public void setUp() throws Exception {
+        Log.enableLogging(Log.TAG, Log.WARN);
+        context = BenchmarkContext.createTemporary("push-benchmark");
+        manager = new Manager(context, null);
+        database = manager.getDatabase("benchmark");
+
+        List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(batchSize);
+        for (int i = 0; i < batchSize; i++)
+            batch.add(BenchmarkData.properties(i, DOC_SIZE));
+        List<SavedRevision> revs = database.putDocuments(batch, null);
+        for (int generation = 1; generation < revisionsPerDoc; generation++) {
+            for (int i = 0; i < revs.size(); i++)
+                revs.set(i, revs.get(i).createRevision(BenchmarkData.properties(i, DOC_SIZE)));
+        }
+
+        ChangesOptions options = new ChangesOptions(Integer.MAX_VALUE, false, true, true);
+        changes = database.changesSince(0, options, null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> loadMissingRevisions() throws CouchbaseLiteException {
+        List<Map<String, Object>> histories = new ArrayList<Map<String, Object>>(changes.size());
+        if (mode.equals("batched")) {
+            database.loadRevisionBodies(changes);
+            Map<Long, List<RevisionInternal>> revHistories = database.getRevisionHistories(changes);
+            for (RevisionInternal rev : changes) {
+                rev.getProperties();
+                histories.add(RevisionUtils.makeRevisionHistoryDict(
+                        revHistories.get(rev.getSequence()), null));
+            }
+        } else {
+            for (RevisionInternal rev : changes) {
+                long sequence = rev.getSequence();
+                rev.setSequence(0);
+                rev.setBody(null);
+                RevisionInternal loadedRev = database.loadRevisionBody(rev);
+                loadedRev.getProperties();
+                histories.add(database.getRevisionHistoryDictStartingFromAnyAncestor(loadedRev, null));
+                rev.setSequence(sequence);
+            }
+        }
+        return histories;
+    }
+}
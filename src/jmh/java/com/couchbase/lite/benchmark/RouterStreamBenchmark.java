@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.BlobStore;
+import com.couchbase.lite.BlobStoreWriter;
+import com.couchbase.lite.router.BufferInputStream;
+import com.couchbase.lite.router.BufferOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A 100 MB body passed from a writing thread through BufferOutputStream/BufferInputStream, the
+ * streams the Router's URLConnection uses: "read" reads it into an array like a client of the
+ * connection, "blobWriter" hands it to a BlobStoreWriter like an attachment PUT. Reports the
+ * time per round trip; divide 100 MB by it for the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RouterStreamBenchmark {
+
+    private static final long BODY_SIZE = 100L * 1024 * 1024;
+
+    @Param({"1024", "65536"})
+    public int writeSize;
+
+    @Param({"read", "blobWriter"})
+    public String consumer;
+
+    private BenchmarkContext context;
+    private BlobStore blobStore;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = BenchmarkContext.createTemporary("router-stream-benchmark");
+        File directory = new File(context.getFilesDir(), "attachments");
+        blobStore = new BlobStore(context, directory.getPath(), null);
+        chunk = BenchmarkData.bytes(writeSize, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        blobStore.deleteBlobs();
+        context.delete();
+    }
+
+    @Benchmark
+    public long roundTrip() throws Exception {
+        final BufferOutputStream out = new BufferOutputStream();
+        BufferInputStream in = new BufferInputStream(out);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (long written = 0; written < BODY_SIZE; written += chunk.length)
+                        out.write(chunk, 0, chunk.length);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        writer.start();
+
+        long total = 0;
+        if (consumer.equals("blobWriter")) {
+            BlobStoreWriter blobWriter = new BlobStoreWriter(blobStore);
+            total = in.transferTo(blobWriter);
+            blobWriter.finish();
+            blobWriter.cancel();
+        } else {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) >= 0)
+                total += n;
+        }
+        writer.join();
+        return total;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.support.JsonCollator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JsonCollator's binary sort keys: encoding a view key when a row is emitted or a query is
+ * built, and comparing two encoded keys the way SQLite compares the sort_key column.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SortKeyBenchmark {
+
+    @Param({"string", "number", "array", "object"})
+    public String keyType;
+
+    private JsonCollator collator;
+    private Object key;
+    private byte[] sortKey;
+    private byte[] otherSortKey;
+
+    @Setup
+    public void setUp() {
+        collator = JsonCollator.getInstance(Locale.getDefault());
+        key = key(keyType, 12345);
+        sortKey = collator.sortKey(key);
+        otherSortKey = collator.sortKey(key(keyType, 12346));
+    }
+
+    private static Object key(String type, int index) {
+        if (type.equals("string"))
+            return "Document Name " + index;
+        if (type.equals("number"))
+            return index * 1.5;
+        if (type.equals("array"))
+            return Arrays.asList("customer-" + (index / 100), index, "Order " + index);
+        Map<String, Object> object = new HashMap<String, Object>();
+        object.put("name", "Document Name " + index);
+        object.put("index", index);
+        return object;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return collator.sortKey(key);
+    }
+
+    @Benchmark
+    public int compareSortKeys() {
+        return JsonCollator.compareSortKeys(sortKey, otherSortKey);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.SavedRevision;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Document insertion: SQLiteStore.add (local saves, one at a time and in bulk) and forceInsert
+ * (revisions pulled by the replicator), by document size and existing database size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StoreBenchmark {
+
+    private static final int BULK_SIZE = 100;
+
+    @Param({"100", "1000", "10000"})
+    public int docSize;
+
+    @Param({"0", "10000", "100000"})
+    public int existingDocs;
+
+    private BenchmarkContext context;
+    private Manager manager;
+    private Database database;
+    private int counter;
+
+    @Setup
+    public void setUp() throws Exception {
+        Log.enableLogging(Log.TAG, Log.WARN);
+        context = BenchmarkContext.createTemporary("store-benchmark");
+        manager = new Manager(context, null);
+        database = manager.getDatabase("benchmark");
+        BenchmarkData.fill(database, existingDocs, docSize);
+        counter = existingDocs;
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    @Benchmark
+    public SavedRevision putProperties() throws CouchbaseLiteException {
+        int index = counter++;
+        return database.getDocument("put-" + index)
+                .putProperties(BenchmarkData.properties(index, docSize));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public List<SavedRevision> putDocuments() throws CouchbaseLiteException {
+        List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(BULK_SIZE);
+        for (int i = 0; i < BULK_SIZE; i++)
+            batch.add(BenchmarkData.properties(counter++, docSize));
+        return database.putDocuments(batch, null);
+    }
+
+    @Benchmark
+    public void forceInsert() throws CouchbaseLiteException {
+        int index = counter++;
+        String docID = "pulled-" + index;
+        String revID = String.format("1-%032x", index);
+        Map<String, Object> properties = BenchmarkData.properties(index, docSize);
+        properties.put("_id", docID);
+        properties.put("_rev", revID);
+        RevisionInternal rev = new RevisionInternal(properties);
+        List<String> history = new ArrayList<String>(1);
+        history.add(revID);
+        database.forceInsert(rev, history, null);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.Mapper;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryEnumerator;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.View;
+import com.couchbase.lite.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * View indexing (SQLiteViewStore.updateIndexes) and querying (SQLiteViewStore.runQuery), by
+ * database size and document size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ViewBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int docCount;
+
+    @Param({"100", "10000"})
+    public int docSize;
+
+    private BenchmarkContext context;
+    private Manager manager;
+    private Database database;
+    private View view;
+
+    @Setup
+    public void setUp() throws Exception {
+        Log.enableLogging(Log.TAG, Log.WARN);
+        context = BenchmarkContext.createTemporary("view-benchmark");
+        manager = new Manager(context, null);
+        database = manager.getDatabase("benchmark");
+        BenchmarkData.fill(database, docCount, docSize);
+        view = database.getView("byName");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("name"), document.get("index"));
+            }
+        }, "1");
+        view.updateIndex();
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    /**
+     * Full rebuilds of the index; the index is dropped (outside the measurement) before each one.
+     */
+    @State(Scope.Thread)
+    public static class EmptyIndex {
+        @Setup(Level.Invocation)
+        public void deleteIndex(ViewBenchmark benchmark) {
+            benchmark.view.deleteIndex();
+        }
+    }
+
+    @Benchmark
+    public Status updateIndex(EmptyIndex emptyIndex) throws CouchbaseLiteException {
+        return view.updateIndex();
+    }
+
+    @Benchmark
+    public QueryEnumerator queryAll() throws CouchbaseLiteException {
+        Query query = view.createQuery();
+        query.setIndexUpdateMode(Query.IndexUpdateMode.NEVER);
+        return query.run();
+    }
+
+    @Benchmark
+    public QueryEnumerator queryPage() throws CouchbaseLiteException {
+        Query query = view.createQuery();
+        query.setIndexUpdateMode(Query.IndexUpdateMode.NEVER);
+        query.setStartKey("doc-" + (docCount / 2));
+        query.setLimit(PAGE_SIZE);
+        return query.run();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.benchmark;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
+import com.couchbase.lite.Mapper;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.View;
+import com.couchbase.lite.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full index rebuilds of two views with the serial indexer (viewIndexerThreadPoolSize 0) and the
+ * parallel one, whose map blocks run on the Manager's indexer pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ViewIndexerBenchmark {
+
+    private static final int DOC_COUNT = 10000;
+
+    @Param({"0", "2", "4"})
+    public int threadPoolSize;
+
+    @Param({"100", "10000"})
+    public int docSize;
+
+    private BenchmarkContext context;
+    private Manager manager;
+    private Database database;
+    private View byName;
+    private View byIndex;
+
+    @Setup
+    public void setUp() throws Exception {
+        Log.enableLogging(Log.TAG, Log.WARN);
+        context = BenchmarkContext.createTemporary("view-indexer-benchmark");
+        ManagerOptions options = new ManagerOptions();
+        options.setViewIndexerThreadPoolSize(threadPoolSize);
+        manager = new Manager(context, options);
+        database = manager.getDatabase("benchmark");
+        BenchmarkData.fill(database, DOC_COUNT, docSize);
+        byName = database.getView("benchmark/byName");
+        byName.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("name"), document.get("index"));
+            }
+        }, "1");
+        byIndex = database.getView("benchmark/byIndex");
+        byIndex.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("index"), null);
+            }
+        }, "1");
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    /**
+     * Both indexes are dropped (outside the measurement) before each rebuild.
+     */
+    @State(Scope.Thread)
+    public static class EmptyIndexes {
+        @Setup(Level.Invocation)
+        public void deleteIndexes(ViewIndexerBenchmark benchmark) {
+            benchmark.byName.deleteIndex();
+            benchmark.byIndex.deleteIndex();
+        }
+    }
+
+    @Benchmark
+    public Status updateIndexes(EmptyIndexes emptyIndexes) throws CouchbaseLiteException {
+        // Both views are in the "benchmark/" group, so they are indexed in the same pass:
+        return byName.updateIndex();
+    }
+}
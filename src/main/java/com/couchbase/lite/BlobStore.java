@@ -17,29 +17,57 @@
 
 package com.couchbase.lite;
 
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.support.FileDirUtils;
+import com.couchbase.lite.support.RangeInputStream;
 import com.couchbase.lite.support.action.Action;
 import com.couchbase.lite.support.action.ActionBlock;
 import com.couchbase.lite.support.action.ActionException;
+import com.couchbase.lite.support.action.AtomicAction;
+import com.couchbase.lite.support.security.ChunkedEncryptor;
+import com.couchbase.lite.support.security.SeekableDecryptingInputStream;
 import com.couchbase.lite.support.security.SymmetricKey;
 import com.couchbase.lite.support.security.SymmetricKeyException;
+import com.couchbase.lite.util.ArrayUtils;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.TextUtils;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -54,16 +82,38 @@ public class BlobStore {
     public static final String ENCRYPTION_ALGORITHM = "AES";
     public static final String ENCRYPTION_MARKER_FILENAME = "_encryption";
 
+    private static final String TEMP_DIR_NAME = "temp_attachments";
+    private static final String LAYOUT_MARKER_FILENAME = "_layout";
+    private static final String LAYOUT_SHARDED = "sharded-2";
+    private static final String INDEX_FILENAME = "_index";
+    private static final String REKEY_DIR_SUFFIX = ".rekey";
+    private static final String REKEY_JOURNAL_SUFFIX = ".rekey-journal";
+    private static final String REKEY_JOURNAL_HEADER = "CBLREKEY1";
+
+    private static final LatencyHistogram READ_TIME = Metrics.histogram("blobstore.read");
+    private static final LatencyHistogram WRITE_TIME = Metrics.histogram("blobstore.write");
+    private static final Counter BYTES_READ = Metrics.counter("blobstore.bytesRead");
+    private static final Counter BYTES_WRITTEN = Metrics.counter("blobstore.bytesWritten");
+
     private Context context;
     private String path;
     private SymmetricKey encryptionKey;
-    private BlobStore tempStore;
-
-    public BlobStore(Context context, String path, SymmetricKey encryptionKey) throws CouchbaseLiteException {
-        this(context, path, encryptionKey, false);
-    }
-
-    public BlobStore(Context context, String path, SymmetricKey encryptionKey, boolean autoMigrate)
+    private volatile boolean verifyOnRead = false;
+
+    // Number and total size of the blob files, maintained as blobs are added and deleted. The
+    // lock is held for reading while changing the blob files, and for writing while counting
+    // them with a directory scan, which is done when the counts aren't known.
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final AtomicInteger blobCount = new AtomicInteger();
+    private final AtomicLong blobDataSize = new AtomicLong();
+    private volatile boolean indexValid = false;
+    private volatile boolean indexSaved = false;
+
+    // Held while garbage collection checks a blob's modification time and deletes it, and while
+    // storing a blob that already exists refreshes its modification time:
+    private final Object gcLock = new Object();
+
+    public BlobStore(Context context, String path, SymmetricKey encryptionKey)
             throws CouchbaseLiteException {
         this.context = context;
         this.path = path;
@@ -73,20 +123,20 @@ public class BlobStore {
         if (directory.exists()) {
             if (!directory.isDirectory())
                 throw new CouchbaseLiteException("BlobStore: Blobstore is not a directory", Status.ATTACHMENT_ERROR);
+            if (!isSharded(directory))
+                migrateToShardedLayout(directory);
+            loadIndex();
             verifyExistingStore();
         } else {
             if (!directory.mkdirs()) {
                 Log.w(Log.TAG_DATABASE, "BlobStore: Unable to make directory: %s", directory);
                 throw new CouchbaseLiteException("Unable to create a blobstore", Status.ATTACHMENT_ERROR);
             }
+            markSharded(directory);
+            indexValid = true;
             if (encryptionKey != null)
                 markEncrypted(true);
         }
-
-        // migrate blobstore filenames.
-        if (autoMigrate) {
-            migrateBlobstoreFilenames(directory);
-        }
     }
 
     private void verifyExistingStore() throws CouchbaseLiteException {
@@ -152,7 +202,250 @@ public class BlobStore {
         }
     }
 
+    private static boolean isSharded(File directory) {
+        return new File(directory, LAYOUT_MARKER_FILENAME).exists();
+    }
+
+    private static void markSharded(File directory) throws CouchbaseLiteException {
+        try {
+            TextUtils.write(LAYOUT_SHARDED, new File(directory, LAYOUT_MARKER_FILENAME));
+        } catch (IOException e) {
+            Log.w(Log.TAG_DATABASE, "BlobStore: Unable to save the layout marker file into the blob store");
+            throw new CouchbaseLiteException(e, Status.ATTACHMENT_ERROR);
+        }
+    }
+
+    /**
+     * Moves the blob files of a store in the original layout, where they all were in the store
+     * directory, into the subdirectories named after the first two bytes of their keys (see
+     * getRawPathForKey()), upper-casing the file names of older stores on the way. The layout
+     * marker is only written once all the files have been moved, so if this is interrupted it
+     * continues the next time the store is opened.
+     */
+    private static void migrateToShardedLayout(File directory) throws CouchbaseLiteException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FILE_EXTENSION);
+            }
+        });
+        if (files != null && files.length > 0) {
+            Log.i(Log.TAG_DATABASE, "BlobStore: Moving %d blobs of %s into subdirectories",
+                    files.length, directory);
+            for (File file : files) {
+                String name = file.getName();
+                String hexKey = name.substring(0, name.length() - FILE_EXTENSION.length()).toUpperCase();
+                if (!isHexKey(hexKey))
+                    continue;
+                File dest = new File(directory, relativePathForHexKey(hexKey));
+                File shardDir = dest.getParentFile();
+                if (!shardDir.isDirectory() && !shardDir.mkdirs())
+                    throw new CouchbaseLiteException("Unable to create a blobstore directory",
+                            Status.ATTACHMENT_ERROR);
+                if (!file.renameTo(dest)) {
+                    // A blob stored under both a lower- and an upper-case name has the same
+                    // contents either way:
+                    if (!dest.exists() || !file.delete())
+                        throw new CouchbaseLiteException("Unable to move a blob into its directory",
+                                Status.ATTACHMENT_ERROR);
+                }
+            }
+        }
+        markSharded(directory);
+    }
+
+    /**
+     * The path of a blob file relative to the store directory: "AB/CD/ABCD....blob".
+     */
+    private static String relativePathForHexKey(String hexKey) {
+        return hexKey.substring(0, 2) + File.separator + hexKey.substring(2, 4) + File.separator +
+                hexKey + FILE_EXTENSION;
+    }
+
+    private static boolean isHexKey(String name) {
+        if (name.length() < 4)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lists the blob files of the store, by walking its two levels of subdirectories.
+     */
+    private List<File> blobFiles() {
+        List<File> result = new ArrayList<File>();
+        FileFilter shardFilter = new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.length() == 2 && isHexKey(name + name) && file.isDirectory();
+            }
+        };
+        FilenameFilter blobFilter = new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FILE_EXTENSION);
+            }
+        };
+        File[] shards = new File(path).listFiles(shardFilter);
+        if (shards == null)
+            return result;
+        for (File shard : shards) {
+            File[] subShards = shard.listFiles(shardFilter);
+            if (subShards == null)
+                continue;
+            for (File subShard : subShards) {
+                File[] blobs = subShard.listFiles(blobFilter);
+                if (blobs != null)
+                    result.addAll(Arrays.asList(blobs));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the blob count and size saved by close(). The index file is deleted once read, so
+     * that if the process dies before this store is closed, the next one scans the directory.
+     */
+    private void loadIndex() {
+        File indexFile = new File(path, INDEX_FILENAME);
+        if (!indexFile.exists())
+            return;
+        try {
+            String[] fields = TextUtils.read(indexFile).trim().split(" ");
+            blobCount.set(Integer.parseInt(fields[0]));
+            blobDataSize.set(Long.parseLong(fields[1]));
+            indexValid = true;
+        } catch (Exception e) {
+            Log.w(Log.TAG_DATABASE, "BlobStore: Unable to read the index file; will recount", e);
+        }
+        if (!indexFile.delete()) {
+            Log.w(Log.TAG_DATABASE, "BlobStore: Unable to delete the index file; will recount");
+            indexValid = false;
+        }
+    }
+
+    /**
+     * Must be called with the index lock held for reading, after adding or deleting a blob file.
+     */
+    private void updateIndex(int countDelta, long sizeDelta) {
+        if (indexSaved) {
+            // The saved index is out of date now:
+            indexSaved = false;
+            new File(path, INDEX_FILENAME).delete();
+        }
+        blobCount.addAndGet(countDelta);
+        blobDataSize.addAndGet(sizeDelta);
+    }
+
+    private void ensureIndex() {
+        if (indexValid)
+            return;
+        indexLock.writeLock().lock();
+        try {
+            if (indexValid)
+                return;
+            int count = 0;
+            long size = 0;
+            for (File blob : blobFiles()) {
+                count++;
+                size += blob.length();
+            }
+            blobCount.set(count);
+            blobDataSize.set(size);
+            indexValid = true;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    private void invalidateIndex() {
+        indexLock.writeLock().lock();
+        try {
+            indexValid = false;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * To be called after the store's directory has been replaced by another program or version
+     * of this library, e.g. by a database upgrade.
+     */
+    void directoryReplaced() throws CouchbaseLiteException {
+        File directory = new File(path);
+        if (!isSharded(directory))
+            migrateToShardedLayout(directory);
+        invalidateIndex();
+    }
+
+    /**
+     * Installs a finished temporary file of a BlobStoreWriter as the file of the blob.
+     */
+    boolean installBlobFile(File tempFile, BlobKey key) {
+        File dest = new File(getRawPathForKey(key));
+        File shardDir = dest.getParentFile();
+        if (!shardDir.isDirectory())
+            shardDir.mkdirs();
+        indexLock.readLock().lock();
+        try {
+            boolean existed = dest.exists();
+            if (!tempFile.renameTo(dest)) {
+                if (existed) {
+                    synchronized (gcLock) {
+                        dest.setLastModified(System.currentTimeMillis());
+                    }
+                }
+                return false;
+            }
+            if (!existed)
+                updateIndex(1, dest.length());
+            return true;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Saves the blob count and size, so that the next store opened on this directory doesn't
+     * have to scan it.
+     */
+    public void close() {
+        indexLock.writeLock().lock();
+        try {
+            if (!indexValid || !new File(path).isDirectory())
+                return;
+            TextUtils.write(blobCount.get() + " " + blobDataSize.get(),
+                    new File(path, INDEX_FILENAME));
+            indexSaved = true;
+        } catch (IOException e) {
+            Log.w(Log.TAG_DATABASE, "BlobStore: Unable to save the index file", e);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
     public Action actionToChangeEncryptionKey(final SymmetricKey newKey) {
+        return actionToChangeEncryptionKey(newKey, null, null, 1);
+    }
+
+    /**
+     * Returns an action that re-encrypts all the blobs with a new key (or decrypts them, if the
+     * key is null.) The blobs are copied into a new store by a pool of 'threadCount' worker
+     * threads, in the background while the steps of 'concurrentAction' (if not null) are
+     * performed, and the new store then replaces this one.
+     * <p/>
+     * Every copied blob is recorded in a journal, so if the process dies during the copy, the
+     * next action changing the key to the same new key only copies the remaining blobs.
+     * @param listener Notified after each blob is copied, on a worker thread; may be null.
+     */
+    public Action actionToChangeEncryptionKey(final SymmetricKey newKey,
+                                              Database.EncryptionKeyChangeListener listener,
+                                              AtomicAction concurrentAction,
+                                              int threadCount) {
         Action action = new Action();
 
         // Backup oldKey:
@@ -160,19 +453,12 @@ public class BlobStore {
 
         // Find all blob files:
         File directory = new File(path);
-        File[] files = null;
-        if (directory.exists() && directory.isDirectory()) {
-            files = directory.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(FILE_EXTENSION);
-                }
-            });
-        }
-        // Make final:
-        final File[] blobs = files;
+        List<File> files = blobFiles();
+
+        if (files.isEmpty()) {
+            if (concurrentAction != null)
+                action.add(concurrentAction);
 
-        if (blobs == null || blobs.length == 0) {
             // No blobs, so nothing to encrypt. Just add/remove the encryption marker file:
             action.add(
                 // Perform:
@@ -202,14 +488,14 @@ public class BlobStore {
             return action;
         }
 
-        // Create a new directory for the new blob store. Have to do this now, before starting the
-        // action, because farther down we create an action to move it...
-        File tempDir = new File (context.getTempDir(), Misc.CreateUUID());
-        final File tempStoreDir = tempDir.mkdirs() ? tempDir : null;
-        // Mark delete on exit (optional and work on Java only):
-        if (tempStoreDir != null)
-            tempStoreDir.deleteOnExit();
+        // The new store and its journal are next to this store, at fixed paths, so that a copy
+        // interrupted by a crash can be found and resumed:
+        final ReKeyJob job = new ReKeyJob(newKey, files.toArray(new File[files.size()]),
+                new File(directory.getParentFile(), directory.getName() + REKEY_DIR_SUFFIX),
+                new File(directory.getParentFile(), directory.getName() + REKEY_JOURNAL_SUFFIX),
+                listener, threadCount);
 
+        // Create (or reuse) the new store and its journal:
         action.add(
             // Perform:
             new ActionBlock() {
@@ -217,81 +503,72 @@ public class BlobStore {
                 public void execute() throws ActionException {
                     Log.i(Log.TAG_DATABASE, "BlobStore: " +
                             (newKey != null ? "encrypting" : "decrypting") + ' ' + path);
-                    if (tempStoreDir == null)
-                        throw  new ActionException("Cannot create a temporary directory");
+                    job.prepare();
                 }
             },
             // Backout:
             new ActionBlock() {
                 @Override
                 public void execute() throws ActionException {
-                    if (!FileDirUtils.deleteRecursive(tempStoreDir))
-                        throw new ActionException("Cannot delete a temporary directory " +
-                                tempStoreDir.getAbsolutePath());
+                    job.discard();
                 }
-            }, null
+            },
+            // Cleanup:
+            new ActionBlock() {
+                @Override
+                public void execute() throws ActionException {
+                    job.deleteJournal();
+                }
+            }
         );
 
-        // Create a new temporary BlobStore
-        action.add(new ActionBlock() {
-            @Override
-            public void execute() throws ActionException {
-                try {
-                    tempStore = new BlobStore(context, tempStoreDir.getAbsolutePath(), newKey);
-                    tempStore.markEncrypted(newKey != null);
-                } catch (CouchbaseLiteException e) {
-                    throw  new ActionException(e);
+        // Start copying my blobs into the new store (which will update their encryption):
+        action.add(
+            // Perform:
+            new ActionBlock() {
+                @Override
+                public void execute() throws ActionException {
+                    job.start();
                 }
-            }
-        }, null, null);
+            },
+            // Backout:
+            new ActionBlock() {
+                @Override
+                public void execute() throws ActionException {
+                    job.cancel();
+                }
+            }, null
+        );
+
+        // Let the other action run while the blobs are being copied:
+        if (concurrentAction != null)
+            action.add(concurrentAction);
 
-        // Copy each of my blobs into the new store (which will update its encryption):
+        // Wait for the copy to finish:
         action.add(new ActionBlock() {
             @Override
             public void execute() throws ActionException {
-                for (File blob : blobs) {
-                    InputStream readStream = null;
-                    BlobStoreWriter writer = null;
-                    try {
-                        Log.i(Log.TAG_DATABASE, "BlobStore: Copying " + blob);
-                        readStream = encryptionKey.decryptStream(new FileInputStream(blob));
-                        writer = new BlobStoreWriter(tempStore);
-                        writer.appendInputStream(readStream);
-                        writer.finish();
-                        writer.install();
-                    } catch (Exception e) {
-                        if (writer != null)
-                            writer.cancel();
-                        throw new ActionException(e);
-                    } finally {
-                        // Mark delete on exit (optional and work on Java only):
-                        if (writer != null)
-                            new File(tempStore.getRawPathForKey(writer.getBlobKey())).deleteOnExit();
-                        // Close readStream:
-                        try {
-                            if (readStream != null)
-                                readStream.close();
-                        } catch (IOException e) { }
-                    }
-                }
+                job.await();
             }
         }, null, null);
 
         // Replace the attachment dir with the new one:
-        action.add(Action.moveAndReplaceFile(tempStoreDir.getAbsolutePath(), path,
+        action.add(Action.moveAndReplaceFile(job.storeDir.getAbsolutePath(), path,
                 context.getTempDir().getAbsolutePath()));
 
-        // Finally update encryptionKey:
+        // Finally update encryptionKey (the blob sizes have changed too):
         action.add(
             new ActionBlock() {
                 @Override
                 public void execute() throws ActionException {
                     encryptionKey = newKey;
+                    invalidateIndex();
                 }
             }, new ActionBlock() {
                 @Override
                 public void execute() throws ActionException {
                     encryptionKey = oldKey;
+                    invalidateIndex();
                 }
             }, null
         );
@@ -303,25 +580,6 @@ public class BlobStore {
         actionToChangeEncryptionKey(newKey).run();
     }
 
-    protected static void migrateBlobstoreFilenames(File directory) {
-        if (directory == null || !directory.isDirectory())
-            return;
-
-        File[] files = directory.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(FILE_EXTENSION);
-            }
-        });
-
-        for (File file : files) {
-            String name = file.getName();
-            name = name.substring(0, name.indexOf(FILE_EXTENSION));
-            File dest = new File(directory, name.toUpperCase() + FILE_EXTENSION);
-            file.renameTo(dest);
-        }
-    }
-
     public static BlobKey keyForBlob(byte[] data) {
         MessageDigest md;
         try {
@@ -378,30 +636,7 @@ public class BlobStore {
 
     public String getRawPathForKey(BlobKey key) {
         String hexKey = BlobKey.convertToHex(key.getBytes());
-
-        String filename = path + File.separator + hexKey + FILE_EXTENSION;
-
-        // CBL Android/Java used to use lowercase hex string. But it was inconsistent with CBL iOS.
-        // We fixed it in BlobKey.covertToHex().
-        // In case user will migrate from older version of CBL to newer version, it causes filename
-        // mismatch by upper or lower case.
-        // As getRawPathForKey() method is called from many other functions, file mismatch check is
-        // added here.
-        File file = new File(filename);
-        if (!file.exists()) {
-            String lowercaseFilename = path + File.separator + hexKey.toLowerCase() + FILE_EXTENSION;
-            File lowercaseFile = new File(lowercaseFilename);
-            if (lowercaseFile.exists()) {
-                filename = lowercaseFilename;
-                Log.w(Log.TAG_DATABASE,
-                        "BlobStore: Found the older attachment blobstore file. Recommend to set auto migration:\n" +
-                                "\tManagerOptions options = new ManagerOptions();\n" +
-                                "\toptions.setAutoMigrateBlobStoreFilename(true);\n" +
-                                "\tManager manager = new Manager(..., options);\n"
-                );
-            }
-        }
-        return filename;
+        return path + File.separator + relativePathForHexKey(hexKey);
     }
 
     public long getSizeOfBlob(BlobKey key) {
@@ -414,8 +649,9 @@ public class BlobStore {
         if (!filename.endsWith(FILE_EXTENSION)) {
             return false;
         }
-        //trim off extension
-        String rest = filename.substring(path.length() + 1, filename.length() - FILE_EXTENSION.length());
+        //trim off directory and extension
+        String name = new File(filename).getName();
+        String rest = name.substring(0, name.length() - FILE_EXTENSION.length());
 
         outKey.setBytes(BlobKey.convertFromHex(rest));
 
@@ -429,21 +665,49 @@ public class BlobStore {
         return file.isFile() && file.exists();
     }
 
+    /**
+     * Whether blobForKey() recomputes the digest of unencrypted blobs and compares it to the key.
+     * Off by default: blobs are verified when they're installed, and findCorruptBlobs() checks the
+     * whole store. Blobs encrypted in the older single-stream format are always verified, since
+     * decrypting them with the wrong key can silently produce garbage; the chunked format
+     * authenticates every chunk as it's decrypted.
+     */
+    public boolean isVerifyOnRead() {
+        return verifyOnRead;
+    }
+
+    public void setVerifyOnRead(boolean verifyOnRead) {
+        this.verifyOnRead = verifyOnRead;
+    }
+
     public byte[] blobForKey(BlobKey key) {
         if (key == null)
             return null;
 
+        long start = Metrics.startTimer();
         String path = getRawPathForKey(key);
         File file = new File(path);
         byte[] blob = null;
         try {
-            blob = getBytesFromFile(file);
-            if (encryptionKey != null && blob != null)
-                blob = encryptionKey.decryptData(blob);
-            BlobKey decodedKey = BlobStore.keyForBlob(blob);
-            if (!key.equals(decodedKey)) {
-                Log.w(Log.TAG_DATABASE, "BlobStore: Attachment " + path + " decoded incorrectly!");
-                blob = null;
+            SymmetricKey encryptionKey = this.encryptionKey;
+            boolean verify = verifyOnRead;
+            if (encryptionKey != null && isChunkedFile(file)) {
+                blob = readChunkedFile(file, encryptionKey);
+            } else {
+                blob = getBytesFromFile(file);
+                if (encryptionKey != null && blob != null) {
+                    blob = encryptionKey.decryptData(blob);
+                    verify = true;
+                }
+            }
+            if (blob != null)
+                BYTES_READ.add(blob.length);
+            if (verify) {
+                BlobKey decodedKey = BlobStore.keyForBlob(blob);
+                if (!key.equals(decodedKey)) {
+                    Log.w(Log.TAG_DATABASE, "BlobStore: Attachment " + path + " decoded incorrectly!");
+                    blob = null;
+                }
             }
         } catch (OutOfMemoryError e) {
             blob = null;
@@ -454,6 +718,8 @@ public class BlobStore {
         } catch (SymmetricKeyException e) {
             blob = null;
             Log.e(Log.TAG_DATABASE, "BlobStore: Attachment " + path + " decoded incorrectly!", e);
+        } finally {
+            READ_TIME.recordSince(start);
         }
         return blob;
     }
@@ -463,14 +729,13 @@ public class BlobStore {
         File file = new File(path);
         if (file.canRead()) {
             try {
-                InputStream is = new FileInputStream(file);
-                if (encryptionKey != null)
-                    return encryptionKey.decryptStream(is);
-                else
-                    return is;
+                return openBlobFile(file);
             } catch (FileNotFoundException e) {
                 Log.e(Log.TAG_DATABASE, "BlobStore: Unexpected file not found in blob store", e);
                 return null;
+            } catch (IOException e) {
+                Log.e(Log.TAG_DATABASE, "BlobStore: Error reading file", e);
+                return null;
             } catch (SymmetricKeyException e) {
                 Log.e(Log.TAG_DATABASE, "BlobStore: Attachment stream " + path + " cannot be decoded!", e);
                 return null;
@@ -479,6 +744,449 @@ public class BlobStore {
         return null;
     }
 
+    /**
+     * Opens a blob file for reading its decoded contents. Encrypted blobs may be in the chunked
+     * format, which is decrypted by a SeekableDecryptingInputStream, or in the older format of a
+     * single AES-CBC stream.
+     */
+    private InputStream openBlobFile(File file) throws IOException, SymmetricKeyException {
+        SymmetricKey encryptionKey = this.encryptionKey;
+        FileInputStream is = new FileInputStream(file);
+        if (encryptionKey == null)
+            return is;
+        try {
+            if (isChunkedFile(is.getChannel()))
+                return encryptionKey.decryptChunkedStream(is.getChannel());
+            return encryptionKey.decryptStream(is);
+        } catch (IOException e) {
+            closeQuietly(is);
+            throw e;
+        } catch (SymmetricKeyException e) {
+            closeQuietly(is);
+            throw e;
+        }
+    }
+
+    private static boolean isChunkedFile(File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+            return isChunkedFile(is.getChannel());
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * Checks for the chunked format's header, without moving the channel's position.
+     */
+    private static boolean isChunkedFile(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(ChunkedEncryptor.MAGIC.length);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+        }
+        return ChunkedEncryptor.isChunked(magic.array(), magic.position());
+    }
+
+    private static byte[] readChunkedFile(File file, SymmetricKey encryptionKey)
+            throws IOException, SymmetricKeyException {
+        FileInputStream fis = new FileInputStream(file);
+        SeekableDecryptingInputStream is;
+        try {
+            is = encryptionKey.decryptChunkedStream(fis.getChannel());
+        } catch (SymmetricKeyException e) {
+            closeQuietly(fis);
+            throw e;
+        }
+        try {
+            if (is.length() > (long) Integer.MAX_VALUE)
+                throw new OutOfMemoryError("The file is too large to read into a byte array.");
+            byte[] bytes = new byte[(int) is.length()];
+            int offset = 0;
+            int numRead;
+            while (offset < bytes.length
+                    && (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
+                offset += numRead;
+            }
+            if (offset < bytes.length)
+                throw new IOException("Could not completely read file " + file.getName());
+            return bytes;
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * Returns a stream of 'length' bytes of the blob's decoded contents, starting at 'offset'.
+     * Unencrypted blobs, and encrypted ones in the chunked format, are read starting at the
+     * offset. Blobs in the older encrypted format have to be decrypted from the start, so the
+     * bytes before the offset are decrypted and skipped.
+     */
+    public InputStream blobStreamForKey(BlobKey key, long offset, long length) {
+        if (encryptionKey == null) {
+            FileChannel channel = blobChannelForKey(key);
+            if (channel == null)
+                return null;
+            try {
+                channel.position(offset);
+                return new RangeInputStream(Channels.newInputStream(channel), 0, length);
+            } catch (IOException e) {
+                Log.e(Log.TAG_DATABASE, "BlobStore: Error reading file", e);
+                closeQuietly(channel);
+                return null;
+            }
+        }
+        InputStream is = blobStreamForKey(key);
+        if (is == null)
+            return null;
+        try {
+            return new RangeInputStream(is, offset, length);
+        } catch (IOException e) {
+            Log.e(Log.TAG_DATABASE, "BlobStore: Error reading file", e);
+            closeQuietly(is);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a read-only FileChannel on an unencrypted blob, which can be handed to
+     * FileChannel.transferTo() to send it without copying it through the Java heap. Returns null
+     * if the blob doesn't exist or the store is encrypted. The caller must close the channel.
+     */
+    public FileChannel blobChannelForKey(BlobKey key) {
+        if (key == null || encryptionKey != null)
+            return null;
+        File file = new File(getRawPathForKey(key));
+        if (!file.canRead())
+            return null;
+        try {
+            return new FileInputStream(file).getChannel();
+        } catch (FileNotFoundException e) {
+            Log.e(Log.TAG_DATABASE, "BlobStore: Unexpected file not found in blob store", e);
+            return null;
+        }
+    }
+
+    /**
+     * Maps an unencrypted blob into memory and returns a read-only view of it. Returns null if
+     * the blob doesn't exist or the store is encrypted.
+     */
+    public ByteBuffer mappedBlobForKey(BlobKey key) {
+        FileChannel channel = blobChannelForKey(key);
+        if (channel == null)
+            return null;
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Log.e(Log.TAG_DATABASE, "BlobStore: Error mapping file", e);
+            return null;
+        } finally {
+            // the mapping remains valid after the channel is closed
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Checks the contents of every blob against its key, e.g. from a background task, instead of
+     * on every read. Returns the keys of the blobs that are corrupt or can't be read.
+     */
+    public Set<BlobKey> findCorruptBlobs() {
+        Set<BlobKey> corrupt = new HashSet<BlobKey>();
+        for (BlobKey key : allKeys()) {
+            if (!key.hasBlobKey())
+                continue; // not a blob, e.g. the encryption marker
+            InputStream is = blobStreamForKey(key);
+            if (is == null) {
+                corrupt.add(key);
+                continue;
+            }
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                byte[] buffer = new byte[65536];
+                int lenRead;
+                while ((lenRead = is.read(buffer)) > 0)
+                    md.update(buffer, 0, lenRead);
+                if (!key.equals(new BlobKey(md.digest()))) {
+                    Log.w(Log.TAG_DATABASE, "BlobStore: Attachment %s is corrupt", key);
+                    corrupt.add(key);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(Log.TAG_DATABASE, "BlobStore: Error, SHA-1 getDigest is unavailable.");
+                break;
+            } catch (IOException e) {
+                Log.w(Log.TAG_DATABASE, "BlobStore: Error reading attachment %s", e, key);
+                corrupt.add(key);
+            } finally {
+                closeQuietly(is);
+            }
+        }
+        return corrupt;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Copies the blobs of an encryption key change into the new store on a pool of worker
+     * threads, appending a line "source-name new-path new-length" to the journal for each blob
+     * copied. The journal starts with a line identifying the new key, so that a resumed copy
+     * never mixes blobs encrypted with different keys.
+     */
+    private class ReKeyJob {
+        private final SymmetricKey newKey;
+        private final File[] blobs;
+        private final File storeDir;
+        private final File journalFile;
+        private final Database.EncryptionKeyChangeListener listener;
+        private final int threadCount;
+
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        private Set<String> copiedNames = new HashSet<String>();
+        private BlobStore store;
+        private Writer journal;
+        private ExecutorService executor;
+        private long startTime;
+        private int blobsDone;
+        private long bytesDone;
+        private long bytesTotal;
+        private long bytesCopied;
+
+        ReKeyJob(SymmetricKey newKey, File[] blobs, File storeDir, File journalFile,
+                 Database.EncryptionKeyChangeListener listener, int threadCount) {
+            this.newKey = newKey;
+            this.blobs = blobs;
+            this.storeDir = storeDir;
+            this.journalFile = journalFile;
+            this.listener = listener;
+            this.threadCount = Math.max(1, threadCount);
+        }
+
+        void prepare() throws ActionException {
+            String header = REKEY_JOURNAL_HEADER + ' ' + keyFingerprint(newKey);
+            boolean resume = readJournal(header);
+            if (!resume) {
+                copiedNames.clear();
+                if (storeDir.exists() && !FileDirUtils.deleteRecursive(storeDir))
+                    throw new ActionException("Cannot delete a temporary directory " +
+                            storeDir.getAbsolutePath());
+                if (!storeDir.mkdirs())
+                    throw new ActionException("Cannot create a temporary directory");
+            } else {
+                // Temp files of the blobs that were being copied when the process died:
+                FileDirUtils.deleteRecursive(new File(storeDir, TEMP_DIR_NAME));
+            }
+            try {
+                store = new BlobStore(context, storeDir.getAbsolutePath(), newKey);
+                store.markEncrypted(newKey != null);
+                // The header is only written once the new store exists:
+                journal = new FileWriter(journalFile, resume);
+                // (When resuming, end a line the crash may have cut short:)
+                journal.write(resume ? "\n" : header + '\n');
+                journal.flush();
+            } catch (CouchbaseLiteException e) {
+                throw new ActionException(e);
+            } catch (IOException e) {
+                throw new ActionException("Cannot write the journal " +
+                        journalFile.getAbsolutePath(), e);
+            }
+        }
+
+        /**
+         * Reads the journal left by an interrupted copy to the same key, if any, into
+         * copiedNames. A blob only counts as copied if its new file has the recorded length.
+         */
+        private boolean readJournal(String header) {
+            if (!journalFile.exists() || !storeDir.isDirectory())
+                return false;
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(journalFile));
+                if (!header.equals(reader.readLine()))
+                    return false;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length != 3)
+                        continue;  // e.g. a line cut short by the crash
+                    try {
+                        File copy = new File(storeDir, fields[1]);
+                        if (copy.length() == Long.parseLong(fields[2]))
+                            copiedNames.add(fields[0]);
+                    } catch (NumberFormatException e) {
+                        // ignore the line
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(Log.TAG_DATABASE, "BlobStore: Cannot read the journal " + journalFile, e);
+                return false;
+            } finally {
+                if (reader != null)
+                    closeQuietly(reader);
+            }
+            Log.i(Log.TAG_DATABASE, "BlobStore: Resuming the copy into %s; %d blobs already copied",
+                    storeDir, copiedNames.size());
+            return true;
+        }
+
+        void start() {
+            final List<File> pending = new ArrayList<File>(blobs.length);
+            for (File blob : blobs) {
+                long length = blob.length();
+                bytesTotal += length;
+                if (copiedNames.contains(blob.getName())) {
+                    blobsDone++;
+                    bytesDone += length;
+                } else {
+                    pending.add(blob);
+                }
+            }
+            copiedNames = null;
+            startTime = System.nanoTime();
+
+            // Each worker takes the next pending blob until there are none left:
+            final AtomicInteger next = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                private int counter = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLBlobStoreReKey-" + (++counter));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            for (int i = 0; i < threadCount; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int index;
+                        while (!cancelled.get() && (index = next.getAndIncrement()) < pending.size()) {
+                            try {
+                                copy(pending.get(index));
+                            } catch (Exception e) {
+                                if (error.compareAndSet(null, e))
+                                    Log.e(Log.TAG_DATABASE, "BlobStore: Error copying " +
+                                            pending.get(index), e);
+                                cancelled.set(true);
+                            }
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+        }
+
+        private void copy(File blob) throws Exception {
+            InputStream readStream = null;
+            BlobStoreWriter writer = null;
+            try {
+                readStream = openBlobFile(blob);
+                writer = new BlobStoreWriter(store);
+                writer.appendInputStream(readStream);
+                writer.finish();
+                writer.install();
+            } catch (Exception e) {
+                if (writer != null)
+                    writer.cancel();
+                throw e;
+            } finally {
+                if (readStream != null)
+                    closeQuietly(readStream);
+            }
+            String copyPath = relativePathForHexKey(BlobKey.convertToHex(writer.getBlobKey().getBytes()));
+            long copyLength = new File(storeDir, copyPath).length();
+            synchronized (journal) {
+                journal.write(blob.getName() + ' ' + copyPath + ' ' + copyLength + '\n');
+                journal.flush();
+            }
+            copied(blob.length());
+        }
+
+        private synchronized void copied(long length) {
+            blobsDone++;
+            bytesDone += length;
+            bytesCopied += length;
+            if (listener != null) {
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                try {
+                    listener.progressChanged(blobsDone, blobs.length, bytesDone, bytesTotal,
+                            seconds > 0 ? bytesCopied / seconds : 0);
+                } catch (RuntimeException e) {
+                    Log.w(Log.TAG_DATABASE, "BlobStore: Exception in the key change listener", e);
+                }
+            }
+        }
+
+        void await() throws ActionException {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                cancel();
+                throw new ActionException("Interrupted while copying blobs", e);
+            }
+            closeJournal();
+            if (error.get() != null)
+                throw new ActionException("Cannot copy the blobs into the new store", error.get());
+            synchronized (this) {
+                Log.i(Log.TAG_DATABASE, "BlobStore: Copied %d bytes into %s in %.1f seconds",
+                        bytesCopied, storeDir, (System.nanoTime() - startTime) / 1e9);
+            }
+        }
+
+        void cancel() {
+            cancelled.set(true);
+            if (executor != null) {
+                executor.shutdownNow();
+                try {
+                    // Don't let the workers write into a directory that's being deleted:
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Log.w(Log.TAG_DATABASE, "BlobStore: Interrupted while cancelling the copy");
+                }
+            }
+            closeJournal();
+        }
+
+        void discard() throws ActionException {
+            closeJournal();
+            deleteJournal();
+            if (!FileDirUtils.deleteRecursive(storeDir))
+                throw new ActionException("Cannot delete a temporary directory " +
+                        storeDir.getAbsolutePath());
+        }
+
+        void deleteJournal() {
+            if (journalFile.exists() && !journalFile.delete())
+                Log.w(Log.TAG_DATABASE, "BlobStore: Cannot delete the journal " + journalFile);
+        }
+
+        private void closeJournal() {
+            if (journal != null) {
+                synchronized (journal) {
+                    closeQuietly(journal);
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies a key in a journal without revealing it.
+     */
+    private static String keyFingerprint(SymmetricKey key) {
+        if (key == null)
+            return "none";
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Misc.convertToHex(md.digest(key.getKey()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /*
     NO Usages: Should be removed:
     public boolean storeBlobStream(InputStream inputStream, BlobKey outKey) {
@@ -522,22 +1230,36 @@ public class BlobStore {
         String path = getRawPathForKey(outKey);
         File file = new File(path);
         if (file.canRead()) {
-            return true;
+            // Keep garbage collection from deleting the blob before it's referred to again:
+            synchronized (gcLock) {
+                file.setLastModified(System.currentTimeMillis());
+                if (file.exists())
+                    return true;
+            }
         }
 
         if (encryptionKey != null) {
             try {
-                data = encryptionKey.encryptData(data);
+                ChunkedEncryptor encryptor = encryptionKey.createChunkedEncryptor();
+                data = ArrayUtils.concat(encryptor.encrypt(data), encryptor.encrypt(null));
             } catch (SymmetricKeyException e) {
                 Log.w(Log.TAG_DATABASE, "BlobStore: Failed to encode data for " + path, e);
                 return false;
             }
         }
 
+        File shardDir = file.getParentFile();
+        if (!shardDir.isDirectory())
+            shardDir.mkdirs();
+
+        long start = Metrics.startTimer();
         FileOutputStream fos = null;
+        indexLock.readLock().lock();
         try {
             fos = new FileOutputStream(file);
             fos.write(data);
+            BYTES_WRITTEN.add(data.length);
+            updateIndex(1, data.length);
         } catch (FileNotFoundException e) {
             Log.e(Log.TAG_DATABASE, "BlobStore: Error opening file for output", e);
             return false;
@@ -552,6 +1274,8 @@ public class BlobStore {
                     // ignore
                 }
             }
+            indexLock.readLock().unlock();
+            WRITE_TIME.recordSince(start);
         }
         return true;
     }
@@ -591,12 +1315,7 @@ public class BlobStore {
 
     public Set<BlobKey> allKeys() {
         Set<BlobKey> result = new HashSet<BlobKey>();
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
-            if (attachment.isDirectory()) {
-                continue;
-            }
+        for (File attachment : blobFiles()) {
             BlobKey attachmentKey = new BlobKey();
             getKeyForFilename(attachmentKey, attachment.getPath());
             result.add(attachmentKey);
@@ -605,34 +1324,33 @@ public class BlobStore {
     }
 
     public int count() {
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        return contents.length;
+        ensureIndex();
+        return blobCount.get();
     }
 
     public long totalDataSize() {
-        long total = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
-            total += attachment.length();
-        }
-        return total;
+        ensureIndex();
+        return blobDataSize.get();
     }
 
     public int deleteBlobsExceptWithKeys(List<BlobKey> keysToKeep) {
         int numDeleted = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
+        Set<BlobKey> keys = new HashSet<BlobKey>(keysToKeep);
+        for (File attachment : blobFiles()) {
             BlobKey attachmentKey = new BlobKey();
             if (getKeyForFilename(attachmentKey, attachment.getPath())) {
-                if (!keysToKeep.contains(attachmentKey)) {
-                    boolean result = attachment.delete();
-                    if (result) {
-                        ++numDeleted;
-                    } else {
-                        Log.e(Log.TAG_DATABASE, "BlobStore: Error deleting attachment: %s", attachment);
+                if (!keys.contains(attachmentKey)) {
+                    indexLock.readLock().lock();
+                    try {
+                        long length = attachment.length();
+                        if (attachment.delete()) {
+                            updateIndex(-1, -length);
+                            ++numDeleted;
+                        } else {
+                            Log.e(Log.TAG_DATABASE, "BlobStore: Error deleting attachment: %s", attachment);
+                        }
+                    } finally {
+                        indexLock.readLock().unlock();
                     }
                 }
             }
@@ -640,6 +1358,33 @@ public class BlobStore {
         return numDeleted;
     }
 
+    /**
+     * Deletes a blob found to be garbage, unless its file has been modified since the given time
+     * (in milliseconds), which means the blob was stored again and may be referred to soon.
+     * Returns false if the blob was kept.
+     */
+    public boolean deleteBlobIfUnmodifiedSince(BlobKey key, long time) {
+        File file = new File(getRawPathForKey(key));
+        synchronized (gcLock) {
+            if (!file.exists())
+                return true;
+            if (file.lastModified() >= time)
+                return false;
+            indexLock.readLock().lock();
+            try {
+                long length = file.length();
+                if (!file.delete()) {
+                    Log.e(Log.TAG_DATABASE, "BlobStore: Error deleting attachment: %s", file);
+                    return false;
+                }
+                updateIndex(-1, -length);
+                return true;
+            } finally {
+                indexLock.readLock().unlock();
+            }
+        }
+    }
+
     public int deleteBlobs() {
         return deleteBlobsExceptWithKeys(new ArrayList<BlobKey>());
     }
@@ -662,7 +1407,7 @@ public class BlobStore {
 
     public File tempDir() {
         File directory = new File(path);
-        File tempDirectory = new File(directory, "temp_attachments");
+        File tempDirectory = new File(directory, TEMP_DIR_NAME);
 
         if (!tempDirectory.exists()) {
             tempDirectory.mkdirs();
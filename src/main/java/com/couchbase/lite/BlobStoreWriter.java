@@ -1,6 +1,7 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.support.Base64;
+import com.couchbase.lite.support.security.ChunkedEncryptor;
 import com.couchbase.lite.support.security.SymmetricKey;
 import com.couchbase.lite.support.security.SymmetricKeyException;
 import com.couchbase.lite.util.Log;
@@ -50,9 +51,9 @@ public class BlobStoreWriter {
     private File tempFile = null;
 
     /**
-     * An encryptor for encrypting the blob content.
+     * An encryptor for encrypting the blob content, in the seekable chunked format.
      */
-    private SymmetricKey.Encryptor encryptor = null;
+    private ChunkedEncryptor encryptor = null;
 
     public BlobStoreWriter(BlobStore store) {
         this.store = store;
@@ -71,13 +72,8 @@ public class BlobStoreWriter {
         }
 
         SymmetricKey encryptionKey = store.getEncryptionKey();
-        if (encryptionKey != null) {
-            try {
-                encryptor = encryptionKey.createEncryptor();
-            } catch (SymmetricKeyException e) {
-                throw new IllegalStateException(e);
-            }
-        }
+        if (encryptionKey != null)
+            encryptor = encryptionKey.createChunkedEncryptor();
     }
 
     private void openTempFile() throws IOException {
@@ -112,7 +108,7 @@ public class BlobStoreWriter {
     }
 
     void appendInputStream(InputStream inputStream) throws IOException, SymmetricKeyException {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[8192];
         int len;
         length = 0;
         try {
@@ -173,9 +169,7 @@ public class BlobStoreWriter {
         if (tempFile == null)
             return true;  // already installed
         // Move temp file to correct location in blob store:
-        String destPath = store.getRawPathForKey(blobKey);
-        File destPathFile = new File(destPath);
-        if (tempFile.renameTo(destPathFile))
+        if (store.installBlobFile(tempFile, blobKey))
             // If the move fails, assume it means a file with the same name already exists; in that
             // case it must have the identical contents, so we're still OK.
             tempFile = null;
@@ -1,8 +1,15 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
-import com.couchbase.lite.support.WeakValueHashMap;
-import com.couchbase.lite.util.LruCache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An in-memory object cache.
@@ -11,6 +18,16 @@ import com.couchbase.lite.util.LruCache;
  * and it keeps a certain number of recently-accessed objects with no external references.
  * It's intended for use by a parent resource, to cache its children.
  *
+ * The cache is safe to use from multiple threads. Lookups go through a ConcurrentHashMap and
+ * don't take any lock unless they have to re-retain an object. The retained objects are
+ * divided into segments by key, each with its own lock and its own share of the retain limit,
+ * and each segment evicts with the CLOCK algorithm (an approximation of LRU): a lookup sets the
+ * entry's 'referenced' bit, and eviction skips over, and clears, set bits.
+ *
+ * The retain limit is a number of objects, or with a Weigher, a total weight such as a number
+ * of bytes. Weights are re-estimated when the clock hand passes over an entry, so that objects
+ * that grew after they were added are eventually accounted for.
+ *
  * @exclude
  */
 @InterfaceAudience.Private
@@ -18,65 +35,309 @@ public class Cache<K,V> {
 
     private static final int DEFAULT_RETAIN_LIMIT = 50;
 
-    // how many items to retain strong references to
-    int retainLimit = DEFAULT_RETAIN_LIMIT;
+    // upper limit on the number of segments
+    private static final int MAX_SEGMENTS = 16;
+
+    // a segment should be able to retain at least this many objects
+    private static final int MIN_SEGMENT_RETAIN_LIMIT = 8;
+
+    /**
+     * Estimates the weight of a cached value, e.g. its approximate size in bytes.
+     */
+    public interface Weigher<K,V> {
+        int weigh(K key, V value);
+    }
+
+    // how many items (or how much weight) to retain strong references to
+    long retainLimit = DEFAULT_RETAIN_LIMIT;
+
+    private final Weigher<K,V> weigher;
 
-    // the underlying strong reference cache
-    private LruCache<K, V> strongReferenceCache;
+    // all entries whose values are still reachable, retained or not
+    private final ConcurrentHashMap<K, Entry<K,V>> entries;
 
-    // the underlying weak reference cache
-    private WeakValueHashMap<K, V> weakReferenceCache;
+    // entries whose values have been garbage collected
+    private final ReferenceQueue<V> referenceQueue = new ReferenceQueue<V>();
 
+    private final Segment<K,V>[] segments;
 
     public Cache() {
         this(DEFAULT_RETAIN_LIMIT);
     }
 
     public Cache(int retainLimit) {
+        this(retainLimit, null);
+    }
+
+    /**
+     * Creates a cache that retains values up to a total weight given by the weigher.
+     * If the weigher is null each value weighs 1, so the limit is a number of values.
+     */
+    public Cache(long retainLimit, Weigher<K,V> weigher) {
         this.retainLimit = retainLimit;
-        strongReferenceCache = new LruCache<K, V>(this.retainLimit);
-        weakReferenceCache = new WeakValueHashMap<K, V>();
+        this.weigher = weigher;
+
+        int nSegments = 1;
+        while (nSegments < Runtime.getRuntime().availableProcessors() && nSegments < MAX_SEGMENTS)
+            nSegments <<= 1;
+        long minSegmentLimit = weigher == null ? MIN_SEGMENT_RETAIN_LIMIT : 1;
+        while (nSegments > 1 && retainLimit / nSegments < minSegmentLimit)
+            nSegments >>= 1;
+
+        long segmentLimit = (retainLimit + nSegments - 1) / nSegments;
+        @SuppressWarnings("unchecked") // arrays of a generic type can't be created directly
+        Segment<K,V>[] segments = (Segment<K,V>[]) new Segment<?,?>[nSegments];
+        for (int i = 0; i < nSegments; i++)
+            segments[i] = new Segment<K,V>(segmentLimit, weigher);
+        this.segments = segments;
+        entries = new ConcurrentHashMap<K, Entry<K,V>>(64, 0.75f, nSegments);
     }
 
     public V put(K key, V value) {
-        strongReferenceCache.put(key, value);
-        weakReferenceCache.put(key, value);
+        expungeStaleEntries();
+        Entry<K,V> entry = new Entry<K,V>(key, value, referenceQueue);
+        Segment<K,V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<K,V> old = entries.put(key, entry);
+            if (old != null)
+                segment.release(old);
+            segment.retain(entry, value, weigh(key, value));
+        }
         return value;
     }
 
-    public V get(K key) {
-
-        V value = null;
-        if (weakReferenceCache.containsKey(key)) {
-            value = weakReferenceCache.get(key);
+    /**
+     * Adds the value unless a value with the same key is already cached.
+     *
+     * @return The value that is cached for the key after the call.
+     */
+    public V putIfAbsent(K key, V value) {
+        expungeStaleEntries();
+        Segment<K,V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<K,V> old = entries.get(key);
+            V existing = old != null ? old.get() : null;
+            if (existing != null) {
+                old.referenced = true;
+                if (!old.retained)
+                    segment.retain(old, existing, weigh(key, existing));
+                return existing;
+            }
+            Entry<K,V> entry = new Entry<K,V>(key, value, referenceQueue);
+            entries.put(key, entry);
+            if (old != null)
+                segment.release(old);
+            segment.retain(entry, value, weigh(key, value));
         }
+        return value;
+    }
 
-        if (value != null && strongReferenceCache.get(key) == null) {
-            strongReferenceCache.put(key, value);  // re-add doc to NSCache since it's recently used
+    public V get(K key) {
+        expungeStaleEntries();
+        Segment<K,V> segment = segmentFor(key);
+        Entry<K,V> entry = entries.get(key);
+        V value = entry != null ? entry.get() : null;
+        if (value == null) {
+            segment.misses.incrementAndGet();
+            return null;
+        }
+        segment.hits.incrementAndGet();
+        entry.referenced = true;
+        if (!entry.retained) {
+            // re-retain the value since it's recently used
+            synchronized (segment) {
+                if (!entry.retained && entries.get(key) == entry)
+                    segment.retain(entry, value, weigh(key, value));
+            }
         }
         return value;
     }
 
     public V remove(K key) {
-        V removedStrongValue = null;
-        V removedWeakValue = null;
-        removedStrongValue = strongReferenceCache.remove(key);
-        removedWeakValue = weakReferenceCache.remove(key);
-        if (removedStrongValue != null) {
-            return removedStrongValue;
+        Segment<K,V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<K,V> old = entries.remove(key);
+            if (old == null)
+                return null;
+            segment.release(old);
+            return old.get();
         }
-        if (removedWeakValue != null) {
-            return removedWeakValue;
-        }
-        return null;
     }
 
     public void clear() {
-        strongReferenceCache.evictAll();
-        weakReferenceCache.clear();
+        for (Segment<K,V> segment : segments) {
+            synchronized (segment) {
+                segment.releaseAll();
+                Iterator<Map.Entry<K, Entry<K,V>>> i = entries.entrySet().iterator();
+                while (i.hasNext()) {
+                    if (segmentFor(i.next().getKey()) == segment)
+                        i.remove();
+                }
+            }
+        }
     }
 
     public V resourceWithCacheKeyDontRecache(K key) {
-        return weakReferenceCache.get(key);
+        Entry<K,V> entry = entries.get(key);
+        return entry != null ? entry.get() : null;
+    }
+
+    /**
+     * The number of get() calls that found a value.
+     */
+    public long getHitCount() {
+        long count = 0;
+        for (Segment<K,V> segment : segments)
+            count += segment.hits.get();
+        return count;
+    }
+
+    /**
+     * The number of get() calls that didn't find a value.
+     */
+    public long getMissCount() {
+        long count = 0;
+        for (Segment<K,V> segment : segments)
+            count += segment.misses.get();
+        return count;
+    }
+
+    /**
+     * The number of values that stopped being retained to stay within the retain limit.
+     * (They remain in the cache for as long as something else references them.)
+     */
+    public long getEvictionCount() {
+        long count = 0;
+        for (Segment<K,V> segment : segments) {
+            synchronized (segment) {
+                count += segment.evictions;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The total weight of the retained values.
+     */
+    public long getRetainedWeight() {
+        long weight = 0;
+        for (Segment<K,V> segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cache{hits=%d, misses=%d, evictions=%d, retained=%d/%d}",
+                getHitCount(), getMissCount(), getEvictionCount(), getRetainedWeight(),
+                retainLimit);
+    }
+
+    private int weigh(K key, V value) {
+        return weigher == null ? 1 : Math.max(1, weigher.weigh(key, value));
+    }
+
+    private Segment<K,V> segmentFor(Object key) {
+        // Spread the hash bits, as HashMap does, so similar keys don't share a segment:
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends V> reference;
+        while ((reference = referenceQueue.poll()) != null) {
+            Entry<?,?> entry = (Entry<?,?>) reference;
+            entries.remove(entry.key, entry);
+        }
+    }
+
+    private static final class Entry<K,V> extends WeakReference<V> {
+        private final K key;
+
+        // strong reference to the value while it's retained; guarded by the segment
+        private V value;
+        private int weight;
+        private volatile boolean retained;
+
+        // set by lookups, cleared by the clock hand
+        private volatile boolean referenced;
+
+        private Entry(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    private static final class Segment<K,V> {
+        private final long retainLimit;
+        private final Weigher<K,V> weigher;
+        private final ArrayDeque<Entry<K,V>> clock = new ArrayDeque<Entry<K,V>>();
+        private long weight;
+        private long evictions;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        private Segment(long retainLimit, Weigher<K,V> weigher) {
+            this.retainLimit = retainLimit;
+            this.weigher = weigher;
+        }
+
+        // Called with the segment locked.
+        private void retain(Entry<K,V> entry, V value, int entryWeight) {
+            entry.value = value;
+            entry.weight = entryWeight;
+            entry.retained = true;
+            clock.addLast(entry);
+            weight += entryWeight;
+            evict();
+        }
+
+        // Called with the segment locked.
+        private void release(Entry<K,V> entry) {
+            if (entry.retained) {
+                clock.remove(entry);
+                unretain(entry);
+            }
+        }
+
+        // Called with the segment locked.
+        private void releaseAll() {
+            for (Entry<K,V> entry : clock)
+                unretain(entry);
+            clock.clear();
+        }
+
+        private void unretain(Entry<K,V> entry) {
+            weight -= entry.weight;
+            entry.value = null;
+            entry.weight = 0;
+            entry.retained = false;
+        }
+
+        // Called with the segment locked. Advances the clock hand until the segment is within
+        // its retain limit; every entry gets at most one second chance.
+        private void evict() {
+            int secondChances = clock.size();
+            while (weight > retainLimit && clock.size() > 1) {
+                Entry<K,V> entry = clock.pollFirst();
+                if (weigher != null) {
+                    int newWeight = Math.max(1, weigher.weigh(entry.key, entry.value));
+                    weight += newWeight - entry.weight;
+                    entry.weight = newWeight;
+                }
+                if (entry.referenced && secondChances-- > 0) {
+                    entry.referenced = false;
+                    clock.addLast(entry);
+                } else {
+                    unretain(entry);
+                    evictions++;
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.Gauge;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.Utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers a Database's change notifications to its ChangeListeners off the committing thread,
+ * used when ManagerOptions.isAsyncChangeNotifications() is set.
+ * <p/>
+ * Changes posted within the coalescing window are merged into one ChangeEvent. Each listener
+ * then has its own queue, drained in order by one of a small, fixed number of pool threads, so
+ * a slow listener holds up only its own notifications (and, while all the threads are busy, the
+ * start of other listeners'). A queue holds at most a fixed number of events; when it's full, new
+ * changes are appended to the last queued event instead, so a lagging listener gets fewer,
+ * larger events but never misses a change.
+ * <p/>
+ * Database.close() calls shutdown(), which waits for the listeners to be handed every change
+ * committed before the close, so no listener is called after close() returns (unless one runs
+ * longer than the shutdown timeout).
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class ChangeNotificationDispatcher {
+
+    public static final int DEFAULT_COALESCE_WINDOW_MS = 10;
+    public static final int DEFAULT_LISTENER_QUEUE_SIZE = 64;
+
+    // Upper bound on the threads calling listeners, however many listeners there are:
+    private static final int MAX_DELIVERY_THREADS = 4;
+
+    // The dispatcher whose listener the current thread is calling, if any:
+    private static final ThreadLocal<ChangeNotificationDispatcher> DELIVERING =
+            new ThreadLocal<ChangeNotificationDispatcher>();
+
+    // Events waiting in listener queues, across all databases:
+    private static final Gauge QUEUED = Metrics.gauge("database.notifications.queued");
+    // Events merged into a queued one because a listener's queue was full:
+    private static final Counter COALESCED = Metrics.counter("database.notifications.coalesced");
+    // Time from a change being posted to a listener being called with it:
+    private static final LatencyHistogram LAG = Metrics.histogram("database.notifications.lag");
+
+    private final Database database;
+    private final Set<Database.ChangeListener> listeners;
+    private final long coalesceWindowMs;
+    private final int listenerQueueSize;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService deliveryExecutor;
+
+    // Changes posted since the last flush, and when the first of them was posted:
+    private List<DocumentChange> pending = new ArrayList<DocumentChange>();
+    private boolean pendingExternal = false;
+    private long pendingSince = 0;
+    private final Map<Database.ChangeListener, ListenerQueue> queues =
+            new IdentityHashMap<Database.ChangeListener, ListenerQueue>();
+    private boolean shutdown = false;
+
+    ChangeNotificationDispatcher(Database database, Set<Database.ChangeListener> listeners,
+                                 long coalesceWindowMs, int listenerQueueSize) {
+        this.database = database;
+        this.listeners = listeners;
+        this.coalesceWindowMs = coalesceWindowMs > 0 ? coalesceWindowMs : 0;
+        this.listenerQueueSize = listenerQueueSize > 0 ? listenerQueueSize : DEFAULT_LISTENER_QUEUE_SIZE;
+        final String name = database.getName();
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CBLChangeNotifier-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer = timer;
+        // A few threads shared by all the listener queues; idle threads exit after a minute:
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_DELIVERY_THREADS));
+        ThreadPoolExecutor deliveryExecutor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int counter = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CBLChangeListener-" + name + "-" + (++counter));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        deliveryExecutor.allowCoreThreadTimeOut(true);
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * Queues the changes of a committed transaction for the listeners, and returns immediately.
+     */
+    void post(List<DocumentChange> changes, boolean isExternal) {
+        synchronized (this) {
+            if (shutdown)
+                return;
+            boolean schedule = pending.isEmpty();
+            if (schedule)
+                pendingSince = Metrics.startTimer();
+            pending.addAll(changes);
+            pendingExternal |= isExternal;
+            if (!schedule)
+                return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, coalesceWindowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers the pending changes, waits for the listener queues to be drained, then stops the
+     * dispatcher's threads. Changes posted afterwards are dropped. Called when the database is
+     * closed; if that happens inside a listener, this doesn't wait for that listener's own queue.
+     */
+    void shutdown() {
+        flush();
+        synchronized (this) {
+            shutdown = true;
+        }
+        timer.shutdown();
+        deliveryExecutor.shutdown();
+        if (DELIVERING.get() == this)
+            return;
+        try {
+            if (!deliveryExecutor.awaitTermination(Utils.DEFAULT_TIME_TO_WAIT_4_SHUTDOWN,
+                    TimeUnit.SECONDS))
+                Log.w(Database.TAG, "%s: change listeners still running after close", database);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Hands the changes posted during the window to every registered listener's queue. This
+    // doesn't wait for the listeners; it's synchronized so that events are queued in order.
+    private synchronized void flush() {
+        if (shutdown || pending.isEmpty())
+            return;
+        Database.ChangeEvent event = new Database.ChangeEvent(database, pendingExternal, pending);
+        long postedAt = pendingSince;
+        pending = new ArrayList<DocumentChange>();
+        pendingExternal = false;
+        List<Database.ChangeListener> targets;
+        synchronized (listeners) {
+            targets = new ArrayList<Database.ChangeListener>(listeners);
+        }
+        // Forget the queues of listeners that have been removed:
+        for (Iterator<Database.ChangeListener> i = queues.keySet().iterator(); i.hasNext(); ) {
+            if (!listeners.contains(i.next()))
+                i.remove();
+        }
+        for (Database.ChangeListener listener : targets) {
+            if (listener == null)
+                continue;
+            ListenerQueue queue = queues.get(listener);
+            if (queue == null) {
+                queue = new ListenerQueue(listener);
+                queues.put(listener, queue);
+            }
+            queue.add(event, postedAt);
+        }
+    }
+
+    /**
+     * The events waiting for one listener. At most one pool thread drains it at a time, so the
+     * listener gets its events in order and is never called concurrently.
+     */
+    private final class ListenerQueue implements Runnable {
+        private final Database.ChangeListener listener;
+        private final ArrayDeque<QueuedEvent> events = new ArrayDeque<QueuedEvent>();
+        private boolean draining = false;
+
+        ListenerQueue(Database.ChangeListener listener) {
+            this.listener = listener;
+        }
+
+        void add(Database.ChangeEvent event, long postedAt) {
+            synchronized (this) {
+                if (events.size() >= listenerQueueSize) {
+                    events.peekLast().merge(event);
+                    COALESCED.increment();
+                } else {
+                    events.addLast(new QueuedEvent(event, postedAt));
+                    QUEUED.add(1);
+                }
+                if (draining)
+                    return;
+                draining = true;
+            }
+            try {
+                deliveryExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The database has been closed.
+                synchronized (this) {
+                    QUEUED.add(-events.size());
+                    events.clear();
+                    draining = false;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                QueuedEvent queued;
+                synchronized (this) {
+                    queued = events.pollFirst();
+                    if (queued == null) {
+                        draining = false;
+                        return;
+                    }
+                    QUEUED.add(-1);
+                }
+                if (!listeners.contains(listener))
+                    continue;
+                LAG.recordSince(queued.postedAt);
+                DELIVERING.set(ChangeNotificationDispatcher.this);
+                try {
+                    listener.changed(queued.toEvent());
+                } catch (Exception ex) {
+                    // Implementation of ChangeListener might throw RuntimeException, ignore it.
+                    Log.e(Database.TAG, "%s got exception posting change notification: %s",
+                            ex, database, listener);
+                } finally {
+                    DELIVERING.remove();
+                }
+            }
+        }
+    }
+
+    // A queued event, which can absorb later events while it waits:
+    private static final class QueuedEvent {
+        private final Database.ChangeEvent first;
+        private final long postedAt;
+        private List<DocumentChange> changes;
+        private boolean isExternal;
+
+        QueuedEvent(Database.ChangeEvent event, long postedAt) {
+            this.first = event;
+            this.postedAt = postedAt;
+        }
+
+        void merge(Database.ChangeEvent event) {
+            if (changes == null) {
+                changes = new ArrayList<DocumentChange>(first.getChanges());
+                isExternal = first.isExternal();
+            }
+            changes.addAll(event.getChanges());
+            isExternal |= event.isExternal();
+        }
+
+        Database.ChangeEvent toEvent() {
+            if (changes == null)
+                return first;
+            return new Database.ChangeEvent(first.getSource(), isExternal, changes);
+        }
+    }
+}
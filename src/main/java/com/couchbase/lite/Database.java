@@ -21,11 +21,15 @@ import com.couchbase.lite.internal.AttachmentInternal;
 import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.replicator.Replication;
 import com.couchbase.lite.replicator.ReplicationState;
 import com.couchbase.lite.replicator.ReplicationStateTransition;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.store.EncryptableStore;
+import com.couchbase.lite.store.QueryRowIterator;
+import com.couchbase.lite.store.QueryRowListIterator;
 import com.couchbase.lite.store.StorageValidation;
 import com.couchbase.lite.store.Store;
 import com.couchbase.lite.store.StoreDelegate;
@@ -71,6 +75,15 @@ public class Database implements StoreDelegate {
     // When this many changes pile up in _changesToNotify, start removing their bodies to save RAM
     private static final int MANY_CHANGES_TO_NOTIFY = 5000;
 
+    private static final LatencyHistogram PUT_TIME = Metrics.histogram("store.add");
+    private static final LatencyHistogram FORCE_INSERT_TIME = Metrics.histogram("store.forceInsert");
+    private static final LatencyHistogram ALL_DOCS_TIME = Metrics.histogram("store.allDocs");
+
+    // Attachment garbage collection (see scheduleAttachmentGC()):
+    private static final int ATTACHMENT_GC_BATCH_SIZE = 500;
+    private static final long ATTACHMENT_GC_GRACE_PERIOD = 60 * 1000; // ms
+    private static final String ATTACHMENT_GC_SEEDED_INFO_KEY = "attachment_gc_seeded";
+
     private static final String DEFAULT_PBKDF2_KEY_SALT = "Salty McNaCl";
     private static final int DEFAULT_PBKDF2_KEY_ROUNDS = 64000;
 
@@ -90,6 +103,7 @@ public class Database implements StoreDelegate {
     private String path;
     private String name;
     final private AtomicBoolean open = new AtomicBoolean(false);
+    private final AtomicBoolean attachmentGCScheduled = new AtomicBoolean(false);
 
     private Map<String, View> views;
     private Map<String, String> viewDocTypes;
@@ -108,6 +122,8 @@ public class Database implements StoreDelegate {
     final private List<DocumentChange> changesToNotify;
     private boolean postingChangeNotifications;
     final private Object lockPostingChangeNotifications = new Object();
+    // Calls the change listeners off the committing thread, if the Manager is set up for that:
+    private ChangeNotificationDispatcher changeNotificationDispatcher;
     private long startTime;
 
     /**
@@ -142,7 +158,7 @@ public class Database implements StoreDelegate {
         this.startTime = System.currentTimeMillis();
         this.changeListeners = Collections.synchronizedSet(new HashSet<ChangeListener>());
         this.databaseListeners = Collections.synchronizedSet(new HashSet<DatabaseListener>());
-        this.docCache = new Cache<String, Document>();
+        this.docCache = createDocumentCache(manager);
         this.changesToNotify = Collections.synchronizedList(new ArrayList<DocumentChange>());
         this.activeReplicators = Collections.synchronizedSet(new HashSet());
         this.allReplicators = Collections.synchronizedSet(new HashSet());
@@ -241,12 +257,13 @@ public class Database implements StoreDelegate {
 
     /**
      * Compacts the database file by purging non-current JSON bodies, pruning revisions older than
-     * the maxRevTreeDepth, deleting unused attachment files, and vacuuming the SQLite database.
+     * the maxRevTreeDepth, and vacuuming the SQLite database. Attachment files that are no longer
+     * used are then deleted in the background.
      */
     @InterfaceAudience.Public
     public void compact() throws CouchbaseLiteException {
         store.compact();
-        garbageCollectAttachments();
+        scheduleAttachmentGC();
     }
 
     /**
@@ -263,6 +280,23 @@ public class Database implements StoreDelegate {
      */
     @InterfaceAudience.Public
     public void changeEncryptionKey(final Object newKeyOrPassword) throws CouchbaseLiteException {
+        changeEncryptionKey(newKeyOrPassword, null);
+    }
+
+    /**
+     * Changes the database's encryption key like changeEncryptionKey(Object), reporting the
+     * progress of re-encrypting the attachments to a listener.
+     *
+     * The attachments are re-encrypted by ManagerOptions.AttachmentReKeyThreadPoolSize threads
+     * while the database file is being re-encrypted. If the process dies in the middle, calling
+     * this again with the same key only re-encrypts the attachments that weren't done yet.
+     * @param listener Notified after each attachment is re-encrypted; may be null.
+     * @throws CouchbaseLiteException
+     */
+    @InterfaceAudience.Public
+    public void changeEncryptionKey(final Object newKeyOrPassword,
+                                    EncryptionKeyChangeListener listener)
+            throws CouchbaseLiteException {
         if (!(store instanceof EncryptableStore))
             throw new CouchbaseLiteException(Status.NOT_IMPLEMENTED);
 
@@ -270,9 +304,14 @@ public class Database implements StoreDelegate {
         if (newKeyOrPassword != null)
             newKey = createSymmetricKey(newKeyOrPassword);
 
+        Action storeAction = ((EncryptableStore) store).actionToChangeEncryptionKey(newKey);
+        if (storeAction == null)
+            throw new CouchbaseLiteException(Status.NOT_IMPLEMENTED);
+
         try {
-            Action action = ((EncryptableStore) store).actionToChangeEncryptionKey(newKey);
-            action.add(attachments.actionToChangeEncryptionKey(newKey));
+            // The attachments are copied in the background while the store action runs:
+            Action action = attachments.actionToChangeEncryptionKey(newKey, listener, storeAction,
+                    manager.getAttachmentReKeyThreadPoolSize());
             action.add(new ActionBlock() {
                 @Override
                 public void execute() throws ActionException {
@@ -374,11 +413,8 @@ public class Database implements StoreDelegate {
         }
         Document doc = docCache.get(documentId);
         if (doc == null) {
-            doc = new Document(this, documentId);
-            if (doc == null) {
-                return null;
-            }
-            docCache.put(documentId, doc);
+            // If another thread cached the same document meanwhile, use its instance:
+            doc = docCache.putIfAbsent(documentId, new Document(this, documentId));
         }
         return doc;
     }
@@ -638,13 +674,34 @@ public class Database implements StoreDelegate {
     ///////////////////////////////////////////////////////////////////////////
 
     /**
-     * A delegate that can be used to listen for Database changes.
+     * A delegate that can be used to listen for Database changes. It's called on the thread that
+     * committed the changes, or on a background thread if the Manager was created with
+     * ManagerOptions.setAsyncChangeNotifications(true). In that case close() waits for the
+     * listeners to be called with the changes made before it, so none is called after it returns.
      */
     @InterfaceAudience.Public
     public interface ChangeListener {
         void changed(ChangeEvent event);
     }
 
+    /**
+     * A delegate that can be used to follow the progress of changeEncryptionKey(). It's called
+     * on a background thread after each attachment is re-encrypted, one call at a time.
+     */
+    @InterfaceAudience.Public
+    public interface EncryptionKeyChangeListener {
+        /**
+         * @param attachmentsDone  number of attachments re-encrypted so far, including any
+         *                         done by an earlier interrupted attempt
+         * @param attachmentCount  total number of attachments
+         * @param bytesDone        size of the attachments re-encrypted so far
+         * @param byteCount        total size of the attachments
+         * @param bytesPerSecond   throughput of this attempt so far
+         */
+        void progressChanged(int attachmentsDone, int attachmentCount,
+                             long bytesDone, long byteCount, double bytesPerSecond);
+    }
+
     // ReplicationFilterCompiler -> ReplicationFilterCompiler.java
 
     // ReplicationFilter -> ReplicationFilter.java
@@ -1013,18 +1070,24 @@ public class Database implements StoreDelegate {
         void databaseClosing();
     }
 
-    // NOTE: router-only
+    // NOTE: used by the router and streaming QueryEnumerators
     @InterfaceAudience.Private
     public void addDatabaseListener(DatabaseListener listener) {
         databaseListeners.add(listener);
     }
 
-    // NOTE: router-only
+    // NOTE: used by the router and streaming QueryEnumerators
     @InterfaceAudience.Private
     public void removeDatabaseListener(DatabaseListener listener) {
         databaseListeners.remove(listener);
     }
 
+    // NOTE: used by tests
+    @InterfaceAudience.Private
+    /* package */ int getDatabaseListenerCount() {
+        return databaseListeners.size();
+    }
+
     /**
      * Get all the active replicators associated with this database.
      */
@@ -1182,15 +1245,8 @@ public class Database implements StoreDelegate {
         }
 
         try {
-            if (isBlobstoreMigrated() || !manager.isAutoMigrateBlobStoreFilename()) {
-                attachments = new BlobStore(manager.getContext(),
-                        getAttachmentStorePath(), encryptionKey, false);
-            } else {
-                attachments = new BlobStore(manager.getContext(),
-                        getAttachmentStorePath(), encryptionKey, true);
-                markBlobstoreMigrated();
-            }
-
+            attachments = new BlobStore(manager.getContext(), getAttachmentStorePath(),
+                    encryptionKey);
         } catch (IllegalArgumentException e) {
             Log.e(Database.TAG, "Could not initialize attachment store", e);
             store.close();
@@ -1214,6 +1270,14 @@ public class Database implements StoreDelegate {
                 upgrader.deleteSQLiteFiles();
             }
         }
+
+        // Blobs stored before the store kept track of attachment references may be garbage,
+        // so queue them all once:
+        if (store.getInfo(ATTACHMENT_GC_SEEDED_INFO_KEY) == null) {
+            store.queueAttachmentsForGC(attachments.allKeys());
+            store.setInfo(ATTACHMENT_GC_SEEDED_INFO_KEY, "1");
+        }
+        scheduleAttachmentGC();
     }
 
     /**
@@ -1257,10 +1321,13 @@ public class Database implements StoreDelegate {
             return false;
         }
 
+        // Listeners may remove themselves when they're told:
+        List<DatabaseListener> closingListeners;
         synchronized (databaseListeners) {
-            for (DatabaseListener listener : databaseListeners)
-                listener.databaseClosing();
+            closingListeners = new ArrayList<DatabaseListener>(databaseListeners);
         }
+        for (DatabaseListener listener : closingListeners)
+            listener.databaseClosing();
 
         if (views != null) {
             for (View view : views.values())
@@ -1294,14 +1361,33 @@ public class Database implements StoreDelegate {
         // Clear all replicators:
         allReplicators.clear();
 
+        // Deliver the last change notifications while the store is still open, and stop the
+        // dispatcher's threads. Not under lockPostingChangeNotifications, as a listener that
+        // writes to the database would need it:
+        ChangeNotificationDispatcher dispatcher;
+        synchronized (lockPostingChangeNotifications) {
+            dispatcher = changeNotificationDispatcher;
+        }
+        if (dispatcher != null)
+            dispatcher.shutdown();
+
         // Close Store:
         if (store != null)
             store.close();
         store = null;
 
+        // Save the attachment store's index:
+        if (attachments != null)
+            attachments.close();
+
         // Clear document cache:
         clearDocumentCache();
 
+        // Forget the change notification dispatcher (already shut down above):
+        synchronized (lockPostingChangeNotifications) {
+            changeNotificationDispatcher = null;
+        }
+
         // Forget database:
         manager.forgetDatabase(this);
 
@@ -1345,6 +1431,16 @@ public class Database implements StoreDelegate {
         return store.loadRevisionBody(rev);
     }
 
+    /**
+     * Loads the bodies of many revisions, whose sequences must be valid, with a single query.
+     * Revisions that aren't found are left with a null body.
+     * NOTE: This method is internal use only (from PusherInternal)
+     */
+    @InterfaceAudience.Private
+    public void loadRevisionBodies(List<RevisionInternal> revs) throws CouchbaseLiteException {
+        store.loadRevisionBodies(revs);
+    }
+
     /**
      * NOTE: This method is internal use only (from BulkDownloader and PullerInternal)
      */
@@ -1361,18 +1457,17 @@ public class Database implements StoreDelegate {
     @InterfaceAudience.Private
     public Map<String, Object> getRevisionHistoryDictStartingFromAnyAncestor(RevisionInternal rev,
                                                                              List<String> ancestorRevIDs) {
-        List<RevisionInternal> history = getRevisionHistory(rev);
-        // (this is in reverse order, newest..oldest
-        if (ancestorRevIDs != null && ancestorRevIDs.size() > 0) {
-            int n = history.size();
-            for (int i = 0; i < n; ++i) {
-                if (ancestorRevIDs.contains(history.get(i).getRevID())) {
-                    history = history.subList(0, i + 1);
-                    break;
-                }
-            }
-        }
-        return RevisionUtils.makeRevisionHistoryDict(history);
+        return RevisionUtils.makeRevisionHistoryDict(getRevisionHistory(rev), ancestorRevIDs);
+    }
+
+    /**
+     * Returns the histories of many revisions, whose sequences must be valid, keyed by sequence.
+     * Revisions that aren't found have no entry.
+     * NOTE: This method is internal use only (from PusherInternal)
+     */
+    @InterfaceAudience.Private
+    public Map<Long, List<RevisionInternal>> getRevisionHistories(List<RevisionInternal> revs) {
+        return store.getRevisionHistories(revs);
     }
 
     @InterfaceAudience.Private
@@ -1400,8 +1495,14 @@ public class Database implements StoreDelegate {
     public Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException {
 
         // For regular all-docs, let storage do it all:
-        if (options == null || options.getAllDocsMode() != Query.AllDocsMode.BY_SEQUENCE)
-            return store.getAllDocs(options);
+        if (options == null || options.getAllDocsMode() != Query.AllDocsMode.BY_SEQUENCE) {
+            long start = Metrics.startTimer();
+            try {
+                return store.getAllDocs(options);
+            } finally {
+                ALL_DOCS_TIME.recordSince(start);
+            }
+        }
 
         // For changes feed mode (kCBLBySequence) do more work here:
         if (options.isDescending()) {
@@ -1675,6 +1776,83 @@ public class Database implements StoreDelegate {
                 outStatus);
     }
 
+    /**
+     * Saves new revisions of many documents at once, in a single transaction. Change listeners
+     * get a single ChangeEvent for the whole batch once it has been committed.
+     * <p/>
+     * Each map contains the properties of a new revision, as for Document.putProperties(). Its
+     * "_id" names the document (a new ID is generated if it's missing), its "_rev" is the revision
+     * being replaced (missing for a new document), and "_deleted": true deletes the document.
+     * A document that can't be saved (e.g. because of a conflict or a failed validation) doesn't
+     * prevent the others from being saved.
+     *
+     * @param documents   The properties of the revisions to save.
+     * @param outStatuses If not null, receives the status of each document's save, in the same
+     *                    order as the documents.
+     * @return The saved revisions, in the same order as the documents, with null for each
+     * document that couldn't be saved.
+     * @throws CouchbaseLiteException if the transaction couldn't be committed.
+     */
+    @InterfaceAudience.Public
+    public List<SavedRevision> putDocuments(final List<Map<String, Object>> documents,
+                                            final List<Status> outStatuses)
+            throws CouchbaseLiteException {
+        final List<RevisionInternal> revs = new ArrayList<RevisionInternal>(documents.size());
+        final List<Status> statuses = new ArrayList<Status>(documents.size());
+        boolean committed = runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                for (Map<String, Object> properties : documents) {
+                    Status status = new Status(Status.OK);
+                    RevisionInternal rev = null;
+                    try {
+                        rev = putDocumentProperties(properties, status);
+                    } catch (CouchbaseLiteException e) {
+                        status = e.getCBLStatus();
+                    }
+                    if (rev == null && status.isSuccessful())
+                        status.setCode(Status.UNKNOWN);
+                    revs.add(rev);
+                    statuses.add(status);
+                }
+                return true;
+            }
+        });
+        if (!committed)
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+
+        Log.v(TAG, "--> saved %d documents in bulk", documents.size());
+        List<SavedRevision> result = new ArrayList<SavedRevision>(revs.size());
+        for (RevisionInternal rev : revs)
+            result.add(rev != null ? new SavedRevision(this, rev) : null);
+        if (outStatuses != null)
+            outStatuses.addAll(statuses);
+        return result;
+    }
+
+    /**
+     * Saves one document of a putDocuments() batch.
+     */
+    private RevisionInternal putDocumentProperties(Map<String, Object> properties,
+                                                   Status outStatus)
+            throws CouchbaseLiteException {
+        if (properties == null)
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        // The store adds _id and _rev to the properties it's given, so don't change the caller's:
+        properties = new HashMap<String, Object>(properties);
+        String docID = (String) properties.get("_id");
+        if (docID != null && !Document.isValidDocumentId(docID))
+            throw new CouchbaseLiteException(Status.BAD_ID);
+        String prevRevID = (String) properties.get("_rev");
+
+        // Process _attachments dict, converting Attachments to dicts:
+        Map<String, Object> attachments = (Map<String, Object>) properties.get("_attachments");
+        if (attachments != null && attachments.size() > 0)
+            properties.put("_attachments", Attachment.installAttachmentBodies(attachments, this));
+
+        return put(docID, properties, prevRevID, false, null, outStatus);
+    }
+
     public RevisionInternal put(String docID,
                                 Map<String, Object> properties,
                                 String prevRevID,
@@ -1718,14 +1896,20 @@ public class Database implements StoreDelegate {
             };
         }
 
-        RevisionInternal putRev = store.add(
-                docID,
-                prevRevID,
-                properties,
-                deleting,
-                allowConflict,
-                validationBlock,
-                outStatus);
+        long start = Metrics.startTimer();
+        RevisionInternal putRev;
+        try {
+            putRev = store.add(
+                    docID,
+                    prevRevID,
+                    properties,
+                    deleting,
+                    allowConflict,
+                    validationBlock,
+                    outStatus);
+        } finally {
+            PUT_TIME.recordSince(start);
+        }
 
         if (putRev != null)
             Log.v(TAG, "--> created %s", putRev);
@@ -1796,7 +1980,12 @@ public class Database implements StoreDelegate {
             };
         }
 
-        store.forceInsert(inRev, history, validationBlock, source);
+        long start = Metrics.startTimer();
+        try {
+            store.forceInsert(inRev, history, validationBlock, source);
+        } finally {
+            FORCE_INSERT_TIME.recordSince(start);
+        }
     }
 
     @InterfaceAudience.Private
@@ -1829,7 +2018,9 @@ public class Database implements StoreDelegate {
      */
     @InterfaceAudience.Private
     public Map<String, Object> purgeRevisions(final Map<String, List<String>> docsToRevs) {
-        return store.purgeRevisions(docsToRevs);
+        Map<String, Object> result = store.purgeRevisions(docsToRevs);
+        scheduleAttachmentGC();
+        return result;
     }
 
     @InterfaceAudience.Private
@@ -1896,6 +2087,30 @@ public class Database implements StoreDelegate {
         docCache.clear();
     }
 
+    /**
+     * The cache of recently used Document objects, for its statistics.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public Cache<String, Document> getDocumentCache() {
+        return docCache;
+    }
+
+    private static Cache<String, Document> createDocumentCache(Manager manager) {
+        long maxBytes = manager != null ? manager.getDocumentCacheMaxBytes() : 0;
+        if (maxBytes > 0) {
+            return new Cache<String, Document>(maxBytes, new Cache.Weigher<String, Document>() {
+                @Override
+                public int weigh(String docID, Document doc) {
+                    return doc.getEstimatedSize();
+                }
+            });
+        }
+        int size = manager != null ? manager.getDocumentCacheSize() : 0;
+        return size > 0 ? new Cache<String, Document>(size) : new Cache<String, Document>();
+    }
+
     /**
      * Returns the already-instantiated cached Document with the given ID,
      * or nil if none is yet cached.
@@ -1931,23 +2146,6 @@ public class Database implements StoreDelegate {
         return attachmentStorePath;
     }
 
-    private boolean isBlobstoreMigrated() {
-        Map<String, Object> props = getExistingLocalDocument("_blobstore");
-        if (props != null && props.containsKey("blobstoreMigrated"))
-            return (Boolean) props.get("blobstoreMigrated");
-        return false;
-    }
-
-    private void markBlobstoreMigrated() {
-        Map<String, Object> props = new HashMap<String, Object>();
-        props.put("blobstoreMigrated", true);
-        try {
-            putLocalDocument("_blobstore", props);
-        } catch (CouchbaseLiteException e) {
-            Log.e(Log.TAG_DATABASE, e.getMessage());
-        }
-    }
-
     protected String getPath() {
         return path;
     }
@@ -2052,24 +2250,7 @@ public class Database implements StoreDelegate {
             if (view == null) {
                 throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
             }
-            lastSequence = view.getLastSequenceIndexed();
-            if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
-                view.updateIndex();
-                lastSequence = view.getLastSequenceIndexed();
-            } else if (options.getStale() == Query.IndexUpdateMode.AFTER &&
-                    lastSequence < getLastSequenceNumber()) {
-
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            view.updateIndex();
-                        } catch (CouchbaseLiteException e) {
-                            Log.e(Database.TAG, "Error updating view index on background thread", e);
-                        }
-                    }
-                }).start();
-            }
+            lastSequence = updateViewForQuery(view, options);
             rows = view.query(options);
         } else {
             // nil view means query _all_docs
@@ -2088,6 +2269,64 @@ public class Database implements StoreDelegate {
         return rows;
     }
 
+    /**
+     * Same as queryViewNamed(), but returns an iterator that reads the result rows from the
+     * database as they're requested, instead of a list of all of them. The iterator holds a
+     * database connection until it's exhausted or closed.
+     */
+    protected QueryRowIterator queryViewNamedIterator(String viewName,
+                                                      QueryOptions options,
+                                                      List<Long> outLastSequence)
+            throws CouchbaseLiteException {
+
+        long lastSequence = 0;
+        QueryRowIterator rows = null;
+
+        if (viewName != null && viewName.length() > 0) {
+            final View view = getView(viewName);
+            if (view == null) {
+                throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
+            }
+            lastSequence = updateViewForQuery(view, options);
+            rows = view.queryIterator(options);
+        } else if (options.getAllDocsMode() != Query.AllDocsMode.BY_SEQUENCE) {
+            lastSequence = getLastSequenceNumber();
+            rows = store.getAllDocsIterator(options);
+        } else {
+            lastSequence = getLastSequenceNumber();
+            rows = new QueryRowListIterator((List<QueryRow>) getAllDocs(options).get("rows"));
+        }
+        outLastSequence.add(lastSequence);
+        return rows;
+    }
+
+    /**
+     * Updates the view's index before a query if the options' stale mode calls for it (or starts
+     * updating it in the background), and returns the last sequence the query will reflect.
+     */
+    private long updateViewForQuery(final View view, QueryOptions options)
+            throws CouchbaseLiteException {
+        long lastSequence = view.getLastSequenceIndexed();
+        if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
+            view.updateIndex();
+            lastSequence = view.getLastSequenceIndexed();
+        } else if (options.getStale() == Query.IndexUpdateMode.AFTER &&
+                lastSequence < getLastSequenceNumber()) {
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        view.updateIndex();
+                    } catch (CouchbaseLiteException e) {
+                        Log.e(Database.TAG, "Error updating view index on background thread", e);
+                    }
+                }
+            }).start();
+        }
+        return lastSequence;
+    }
+
     protected View makeAnonymousView() {
         for (int i = 0; true; ++i) {
             String name = String.format("anon%d", i);
@@ -2224,6 +2463,14 @@ public class Database implements StoreDelegate {
                         isExternal = true;
                 }
 
+                ChangeNotificationDispatcher dispatcher = getChangeNotificationDispatcher();
+                if (dispatcher != null) {
+                    // The listeners are called on the dispatcher's threads; don't wait for them.
+                    dispatcher.post(outgoingChanges, isExternal);
+                    posted = true;
+                    continue;
+                }
+
                 final ChangeEvent changeEvent = new ChangeEvent(this, isExternal, outgoingChanges);
                 synchronized (changeListeners) {
                     for (ChangeListener changeListener : changeListeners) {
@@ -2254,6 +2501,19 @@ public class Database implements StoreDelegate {
         }
     }
 
+    private ChangeNotificationDispatcher getChangeNotificationDispatcher() {
+        if (manager == null || !manager.isAsyncChangeNotifications())
+            return null;
+        synchronized (lockPostingChangeNotifications) {
+            if (changeNotificationDispatcher == null && open.get()) {
+                changeNotificationDispatcher = new ChangeNotificationDispatcher(this, changeListeners,
+                        manager.getChangeNotificationCoalesceWindowMs(),
+                        manager.getChangeNotificationQueueSize());
+            }
+            return changeNotificationDispatcher;
+        }
+    }
+
     // Database+Replication
 
     protected Replication getActiveReplicator(URL remote, boolean push) {
@@ -2336,16 +2596,59 @@ public class Database implements StoreDelegate {
         return docCache.resourceWithCacheKeyDontRecache(documentId);
     }
 
-    private boolean garbageCollectAttachments() throws CouchbaseLiteException {
-        Log.v(TAG, "Scanning database revisions for attachments...");
-        Set<BlobKey> keys = store.findAllAttachmentKeys();
-        if(keys == null)
+    /**
+     * Deletes the blobs of attachments that no revision refers to anymore, as found by the store,
+     * in batches on the manager's work executor. Blobs only become candidates a while after
+     * their last reference is gone, and are kept if they're stored again in the meantime.
+     */
+    private void scheduleAttachmentGC() {
+        if (!attachmentGCScheduled.compareAndSet(false, true))
+            return;
+        if (manager.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                boolean more = false;
+                try {
+                    more = collectAttachmentGarbage();
+                } catch (Exception e) {
+                    Log.w(TAG, "Error collecting unused attachments", e);
+                } finally {
+                    attachmentGCScheduled.set(false);
+                }
+                // Let other work run between batches:
+                if (more)
+                    scheduleAttachmentGC();
+            }
+        }) == null)
+            attachmentGCScheduled.set(false);
+    }
+
+    /**
+     * Collects one batch. Returns true if there may be more to collect.
+     */
+    private boolean collectAttachmentGarbage() throws CouchbaseLiteException {
+        Store store = this.store;
+        BlobStore attachments = this.attachments;
+        if (!open.get() || store == null || attachments == null)
             return false;
-        Log.v(TAG, "    ...found %d attachments", keys.size());
-        List<BlobKey> keysToKeep = new ArrayList<BlobKey>(keys);
-        int deleted = attachments.deleteBlobsExceptWithKeys(keysToKeep);
-        Log.v(TAG, "    ... deleted %d obsolete attachment files.", deleted);
-        return deleted >= 0;
+
+        long cutoff = System.currentTimeMillis() - ATTACHMENT_GC_GRACE_PERIOD;
+        List<BlobKey> candidates = store.findUnreferencedAttachments(ATTACHMENT_GC_BATCH_SIZE,
+                cutoff / 1000);
+        List<BlobKey> deleted = new ArrayList<BlobKey>(candidates.size());
+        List<BlobKey> kept = new ArrayList<BlobKey>();
+        for (BlobKey key : candidates) {
+            if (attachments.deleteBlobIfUnmodifiedSince(key, cutoff))
+                deleted.add(key);
+            else
+                kept.add(key);
+        }
+        store.removeAttachmentsFromGCQueue(deleted);
+        // Blobs that were stored again go to the back of the queue:
+        store.queueAttachmentsForGC(kept);
+        if (!candidates.isEmpty())
+            Log.v(TAG, "Deleted %d unused attachment files", deleted.size());
+        return candidates.size() == ATTACHMENT_GC_BATCH_SIZE;
     }
 
     ////////////////////////////////////////////////////////////////////////////
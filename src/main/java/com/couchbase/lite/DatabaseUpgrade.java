@@ -180,6 +180,14 @@ final public class DatabaseUpgrade {
             return false;
         }
 
+        // The old attachments dir has all the blobs in one directory:
+        try {
+            db.getAttachmentStore().directoryReplaced();
+        } catch (CouchbaseLiteException e) {
+            Log.w(TAG, "Upgrade failed: Couldn't move attachments: %s", e);
+            return false;
+        }
+
         return true;
     }
 
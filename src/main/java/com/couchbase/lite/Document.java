@@ -48,6 +48,15 @@ public class Document {
         this.documentId = documentId;
     }
 
+    /**
+     * A rough estimate of the memory used by this object and its current revision, if that's
+     * loaded, in bytes. Used to bound the database's document cache.
+     */
+    int getEstimatedSize() {
+        SavedRevision rev = currentRevision;
+        return 64 + 2 * documentId.length() + (rev != null ? rev.getEstimatedSize() : 0);
+    }
+
     @InterfaceAudience.Private
     public static boolean isValidDocumentId(String id) {
         // http://wiki.apache.org/couchdb/HTTP_Document_API#Documents
@@ -1,40 +1,85 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Query subclass that automatically refreshes the result rows every time the database changes.
  * All you need to do is use add a listener to observe changes.
+ * <p/>
+ * Changes that can't affect the rows are ignored: ones already reflected in the rows, and ones
+ * to documents whose "type" doesn't match the view's documentType and that have no rows. When
+ * a few documents of a map-only query have changed, only their rows are queried and merged into
+ * the previous ones, instead of re-running the whole query.
+ * <p/>
+ * Refreshes run on a thread pool shared by all the LiveQueries of the Manager, one at a time for
+ * each LiveQuery; changes made while a refresh is waiting or running are merged into the next
+ * one. setUpdateInterval() and setMaxStaleness() limit how often the rows are refreshed while
+ * the database is being changed continuously.
  */
 public final class LiveQuery extends Query implements Database.ChangeListener {
 
+    // Maximum number of changed documents whose rows are refreshed on their own; if more have
+    // changed, the whole query is re-run.
+    private static final int MAX_INCREMENTAL_DOC_COUNT = 50;
+
+    private static final Counter REFRESH_COUNT = Metrics.counter("livequery.refreshes");
+    // Time from the first change a refresh covers to the end of the refresh:
+    private static final LatencyHistogram REFRESH_LAG = Metrics.histogram("livequery.lag");
+
     private boolean observing;
     private QueryEnumerator rows;
     private List<ChangeListener> observers = new ArrayList<ChangeListener>();
     private Throwable lastError;
     private final AtomicBoolean runningState; // true == running, false == stopped
 
+    // The state below is guarded by 'this'.
+    // Documents changed since the rows were last refreshed:
+    private Set<String> changedDocIDs = new HashSet<String>();
+    // Whether the next refresh has to re-run the whole query:
+    private boolean fullRefreshNeeded = true;
+    // Whether a refresh is in flight, so the rows are about to be replaced:
+    private boolean refreshing;
+    // The rows reflect every change up to this sequence (the last full refresh):
+    private long rowsCompleteSequence;
+    // The sequence that the refresh in flight will bring rowsCompleteSequence up to, if any:
+    private long refreshCompleteSequence;
+    // IDs of the documents that have rows, computed when needed:
+    private Set<String> rowDocIDs;
+
+    private long updateInterval = 0;
+    private long maxStaleness = 0;
+    // Whether there are changes that no started refresh covers yet:
+    private boolean updatePending;
+    // Whether a refresh task is scheduled and hasn't started yet:
+    private boolean updateScheduled;
+    // When the first and last of the pending changes were made, and when the last refresh
+    // started, in milliseconds:
+    private long firstPendingTime;
+    private long lastChangeTime;
+    private long lastRefreshTime;
+
     /**
      * If a query is running and the user calls stop() on this query, the future
      * will be used in order to cancel the query in progress.
      */
     protected Future queryFuture;
 
-    /**
-     * If the update() method is called while a query is in progress, once it is
-     * finished it will be scheduled to re-run update().  This tracks the future
-     * related to that scheduled task.
-     */
-    protected Future rerunUpdateFuture;
-
     /**
      * Constructor
      */
@@ -86,6 +131,11 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
 
         if (!observing) {
             observing = true;
+            synchronized (this) {
+                // Changes made while stopped weren't tracked:
+                fullRefreshNeeded = true;
+                refreshing = false;
+            }
             getDatabase().addChangeListener(this);
             Log.v(Log.TAG_QUERY, "%s: start() is calling update()", this);
             update();
@@ -114,16 +164,55 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         // slight diversion from iOS version -- cancel the queryFuture
         // regardless of the willUpdate value, since there can be an update in flight
         // with willUpdate set to false.  was needed to make testLiveQueryStop() unit test pass.
-        if (queryFuture != null) {
-            boolean cancelled = queryFuture.cancel(true);
-            Log.v(Log.TAG_QUERY, "%s: cancelled queryFuture %s, returned: %s", this, queryFuture, cancelled);
+        synchronized (this) {
+            if (queryFuture != null) {
+                boolean cancelled = queryFuture.cancel(true);
+                Log.v(Log.TAG_QUERY, "%s: cancelled queryFuture %s, returned: %s", this, queryFuture, cancelled);
+            }
+            updatePending = false;
+            updateScheduled = false;
         }
 
-        if (rerunUpdateFuture != null) {
-            boolean cancelled = rerunUpdateFuture.cancel(true);
-            Log.d(Log.TAG_QUERY, "%s: cancelled rerunUpdateFuture %s, returned: %s", this, rerunUpdateFuture, cancelled);
-        }
+    }
+
+    /**
+     * Returns the minimum time between two refreshes of the rows, in milliseconds.
+     */
+    @InterfaceAudience.Public
+    public synchronized long getUpdateInterval() {
+        return updateInterval;
+    }
+
+    /**
+     * Sets the minimum time between two refreshes of the rows, in milliseconds. Changes made in
+     * the meantime are merged into the next refresh, so a database that is changed continuously
+     * gets its rows re-queried at most once per interval. The default, 0, refreshes the rows as
+     * soon as the previous refresh has finished.
+     */
+    @InterfaceAudience.Public
+    public synchronized void setUpdateInterval(long updateInterval) {
+        this.updateInterval = Math.max(updateInterval, 0);
+    }
 
+    /**
+     * Returns how long the rows may lag behind a change while refreshes are being debounced, in
+     * milliseconds.
+     */
+    @InterfaceAudience.Public
+    public synchronized long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Sets how long the rows may lag behind a change, in milliseconds, to debounce refreshes. If
+     * it's greater than the update interval, a refresh waits until no change has been made for
+     * the update interval, so that a burst of changes causes a single refresh, but doesn't start
+     * later than this after the first change it includes. By default it equals the update
+     * interval, so refreshes aren't debounced.
+     */
+    @InterfaceAudience.Public
+    public synchronized void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = Math.max(maxStaleness, 0);
     }
 
     /**
@@ -234,93 +323,263 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             return;
         }
 
-        if (queryFuture != null && !queryFuture.isCancelled() && !queryFuture.isDone()) {
-            // There is a already a query in flight, so leave it alone except to schedule something
-            // to run update() again once it finishes.
-            Log.d(Log.TAG_QUERY, "%s: already a query in flight, scheduling call to update() once it's done", LiveQuery.this);
-            if (rerunUpdateFuture != null && !rerunUpdateFuture.isCancelled() && !rerunUpdateFuture.isDone()) {
-                boolean cancelResult = rerunUpdateFuture.cancel(true);
-                Log.d(Log.TAG_QUERY, "%s: cancelled %s result: %s", LiveQuery.this, rerunUpdateFuture, cancelResult);
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!updatePending) {
+                updatePending = true;
+                firstPendingTime = now;
             }
-            rerunUpdateFuture = rerunUpdateAfterQueryFinishes(queryFuture);
-            Log.d(Log.TAG_QUERY, "%s: created new rerunUpdateFuture: %s", LiveQuery.this, rerunUpdateFuture);
-            return;
+            lastChangeTime = now;
+            // A refresh that is scheduled will include these changes; one in flight might not,
+            // so another is scheduled once it finishes.
+            if (updateScheduled || refreshing) {
+                Log.v(Log.TAG_QUERY, "%s: a refresh is already pending, merging update() into it", this);
+                return;
+            }
+            scheduleRefresh(now);
         }
+    }
 
-        // No query in flight, so kick one off
-        queryFuture = runAsyncInternal(new QueryCompleteListener() {
-            @Override
-            public void completed(QueryEnumerator rowsParam, Throwable error) {
-                if (error != null) {
-                    for (ChangeListener observer : observers) {
-                        observer.changed(new ChangeEvent(error));
-                    }
-                    lastError = error;
-                } else {
-
-                    if (runningState.get() == false) {
-                        Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
-                        return;
-                    }
-
-                    if (rowsParam != null && !rowsParam.equals(rows)) {
-                        setRows(rowsParam);
-                        for (ChangeListener observer : observers) {
-                            Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
-                            // TODO: LiveQuery.ChangeListener should not be fired for non-match?
-                            // https://github.com/couchbase/couchbase-lite-java-core/issues/648
-                            observer.changed(new ChangeEvent(LiveQuery.this, rows));
-                        }
-                    }
-                    lastError = null;
+    /**
+     * Schedules the refresh task on the Manager's LiveQuery thread pool, at the time given by
+     * nextRefreshTime(). Must be called with 'this' locked.
+     */
+    private void scheduleRefresh(long now) {
+        long delay = Math.max(nextRefreshTime() - now, 0);
+        try {
+            queryFuture = getDatabase().getManager().getLiveQueryExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runScheduledRefresh();
                 }
+            }, delay, TimeUnit.MILLISECONDS);
+            updateScheduled = true;
+            Log.d(Log.TAG_QUERY, "%s: scheduled a refresh in %d ms: %s", this, delay, queryFuture);
+        } catch (RejectedExecutionException e) {
+            Log.w(Log.TAG_QUERY, "%s: unable to schedule a refresh, the manager is closed", this);
+        }
+    }
+
+    /**
+     * The earliest time the pending changes can be refreshed: the update interval after the last
+     * refresh started (or right away, if that's past). If debouncing, also the update interval
+     * after the last change, but no later than the maximum staleness after the first change.
+     * The first rows are queried right away.
+     */
+    private long nextRefreshTime() {
+        if (rows == null)
+            return 0;
+        long intervalElapsed = lastRefreshTime + updateInterval;
+        if (maxStaleness <= updateInterval)
+            return intervalElapsed;
+        long debounced = Math.min(lastChangeTime + updateInterval, firstPendingTime + maxStaleness);
+        return Math.max(intervalElapsed, debounced);
+    }
+
+    private void runScheduledRefresh() {
+        long pendingSince;
+        synchronized (this) {
+            updateScheduled = false;
+            if (runningState.get() == false || !updatePending)
+                return;
+            long now = System.currentTimeMillis();
+            if (nextRefreshTime() > now) {
+                // Changes made since this was scheduled pushed the refresh back:
+                scheduleRefresh(now);
+                return;
             }
-        });
-        Log.d(Log.TAG_QUERY, "%s: update() created queryFuture: %s", this, queryFuture);
+            pendingSince = firstPendingTime;
+            updatePending = false;
+            lastRefreshTime = now;
+            refreshing = true;
+        }
 
+        QueryEnumerator newRows = null;
+        Throwable error = null;
+        try {
+            if (!getDatabase().isOpen()) {
+                throw new IllegalStateException("The database has been closed.");
+            }
+            newRows = refresh();
+        } catch (Throwable t) {
+            Log.e(Log.TAG_QUERY, "Exception caught in runScheduledRefresh", t);
+            error = t;
+        }
+        refreshCompleted(newRows, error);
+        REFRESH_COUNT.increment();
+        REFRESH_LAG.record((System.currentTimeMillis() - pendingSince) * 1000000L);
+
+        synchronized (this) {
+            // Refresh again if changes were made during this refresh:
+            if (updatePending && !updateScheduled && runningState.get())
+                scheduleRefresh(System.currentTimeMillis());
+        }
+    }
+
+    private void refreshCompleted(QueryEnumerator rowsParam, Throwable error) {
+        if (error != null) {
+            finishRefresh(null, false);
+            for (ChangeListener observer : observers) {
+                observer.changed(new ChangeEvent(error));
+            }
+            lastError = error;
+        } else {
+
+            if (runningState.get() == false) {
+                Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
+                finishRefresh(null, false);
+                return;
+            }
+
+            if (finishRefresh(rowsParam, true)) {
+                for (ChangeListener observer : observers) {
+                    Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
+                    observer.changed(new ChangeEvent(LiveQuery.this, rows));
+                }
+            }
+            lastError = null;
+        }
     }
 
     /**
-     * kick off async task that will wait until the query finishes, and after it
-     * does, it will run upate() again in case the current query in flight misses
-     * some of the recently added items.
+     * Re-runs the query, or only re-queries the rows of the changed documents if that's enough,
+     * and returns the new rows.
      */
-    private Future rerunUpdateAfterQueryFinishes(final Future queryFutureInProgress) {
-        if (queryFutureInProgress == null) {
-            throw new NullPointerException();
+    private QueryEnumerator refresh() throws CouchbaseLiteException {
+        Database database = getDatabase();
+        QueryOptions options = getQueryOptions();
+        QueryEnumerator previous;
+        Set<String> docIDs = null;
+        synchronized (this) {
+            previous = rows;
+            if (!fullRefreshNeeded && previous != null && canRefreshIncrementally(options))
+                docIDs = changedDocIDs;
+            changedDocIDs = new HashSet<String>();
+            fullRefreshNeeded = false;
+            refreshing = true;
         }
-        return getDatabase().getManager().runAsync(new Runnable() {
-            @Override
-            public void run() {
 
-                if (runningState.get() == false) {
-                    Log.v(Log.TAG_QUERY, "%s: rerunUpdateAfterQueryFinishes.run() fired, but running state == false.  Ignoring.", this);
-                    return;
-                }
+        String viewName = (getView() != null) ? getView().getName() : null;
+        List<Long> outSequence = new ArrayList<Long>();
+        if (docIDs == null) {
+            List<QueryRow> queryRows = database.queryViewNamed(viewName, options, outSequence);
+            long sequenceNumber = outSequence.get(0);
+            synchronized (this) {
+                refreshCompleteSequence = sequenceNumber;
+            }
+            return new QueryEnumerator(database, queryRows, sequenceNumber);
+        }
 
-                while (true) {
-                    try {
-                        queryFutureInProgress.get();
-                    } catch (InterruptedException e) {
-                        continue;
-                    } catch (CancellationException e) {
-                        // can safely ignore these
-                    } catch (ExecutionException e) {
-                        Log.e(Log.TAG_QUERY, "Got exception waiting for queryFutureInProgress to finish", e);
-                    }
-                    break;
-                }
+        if (docIDs.isEmpty())
+            return previous;
+        Log.v(Log.TAG_QUERY, "%s: refreshing the rows of %d changed docs", this, docIDs.size());
+        options.setDocIDs(docIDs);
+        List<QueryRow> changedRows = database.queryViewNamed(viewName, options, outSequence);
+        return new QueryEnumerator(database,
+                mergeRows(previous, docIDs, changedRows, getView().getKeyComparator(),
+                        options.isDescending()),
+                outSequence.get(0));
+    }
 
-                if (runningState.get() == false) {
-                    Log.v(Log.TAG_QUERY, "%s: queryFutureInProgress.get() done, but running state == false.", this);
-                    return;
-                }
+    /**
+     * Whether the rows can be refreshed by re-querying only those of the changed documents. The
+     * query has to be a map-only view query, with no skip or limit (a removed row could bring in
+     * another one), no explicit keys (their rows are in the order of the keys), and no prefix
+     * matching, on a view whose store can compare keys in the order of its queries.
+     */
+    private boolean canRefreshIncrementally(QueryOptions options) {
+        View view = getView();
+        return view != null && isMapOnlyQuery(options) && options.getSkip() == 0
+                && options.getLimit() == QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT
+                && (options.getKeys() == null || options.getKeys().isEmpty())
+                && view.getKeyComparator() != null
+                && options.getPrefixMatchLevel() == 0
+                && changedDocIDs.size() <= MAX_INCREMENTAL_DOC_COUNT;
+    }
+
+    private static boolean isMapOnlyQuery(QueryOptions options) {
+        return !options.isGroup() && options.getGroupLevel() == 0 && !options.isReduce();
+    }
 
-                update();
+    /**
+     * Replaces the rows of the changed documents with their new rows, inserted in key order.
+     */
+    private static List<QueryRow> mergeRows(QueryEnumerator previous, Set<String> docIDs,
+                                            List<QueryRow> changedRows,
+                                            Comparator<Object> keyComparator,
+                                            boolean descending) {
+        int count = previous.getCount();
+        List<QueryRow> merged = new ArrayList<QueryRow>(count + changedRows.size());
+        for (int i = 0; i < count; i++) {
+            QueryRow row = previous.getRow(i);
+            if (!docIDs.contains(row.getSourceDocumentId()))
+                merged.add(row);
+        }
+        for (QueryRow row : changedRows) {
+            // Binary search for the position after the rows that sort before or equal to it:
+            int low = 0, high = merged.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                QueryRow other = merged.get(mid);
+                int cmp = keyComparator.compare(other.getKey(), row.getKey());
+                if (cmp == 0)
+                    cmp = compareDocIDs(other.getSourceDocumentId(), row.getSourceDocumentId());
+                if (descending)
+                    cmp = -cmp;
+                if (cmp <= 0)
+                    low = mid + 1;
+                else
+                    high = mid;
             }
-        });
+            merged.add(low, row);
+        }
+        return merged;
+    }
+
+    /**
+     * Orders doc IDs the way the view query's "ORDER BY ..., docid" does: SQLite's BINARY
+     * collation compares their UTF-8 bytes, which is code point order. String.compareTo compares
+     * UTF-16 units instead, which puts characters above U+FFFF before U+E000-U+FFFF.
+     */
+    private static int compareDocIDs(String docID1, String docID2) {
+        int length = Math.min(docID1.length(), docID2.length());
+        for (int i = 0; i < length; i++) {
+            char c1 = docID1.charAt(i), c2 = docID2.charAt(i);
+            if (c1 != c2)
+                return codePointOrder(c1) - codePointOrder(c2);
+        }
+        return docID1.length() - docID2.length();
+    }
+
+    // Moves surrogates above the rest of the BMP, so UTF-16 units compare in code point order:
+    private static int codePointOrder(char c) {
+        if (c >= 0xE000)
+            return c - 0x800;
+        if (c >= 0xD800)
+            return c + 0x2000;
+        return c;
     }
 
+    /**
+     * Records the outcome of a refresh: the new rows if 'succeeded', or that the next refresh has
+     * to re-run the whole query. Returns true if the rows changed.
+     */
+    private synchronized boolean finishRefresh(QueryEnumerator newRows, boolean succeeded) {
+        refreshing = false;
+        long completeSequence = refreshCompleteSequence;
+        refreshCompleteSequence = 0;
+        if (!succeeded) {
+            fullRefreshNeeded = true;
+            return false;
+        }
+        if (completeSequence > 0)
+            rowsCompleteSequence = completeSequence;
+        if (newRows == null || newRows.equals(rows))
+            return false;
+        rows = newRows;
+        rowDocIDs = null;
+        return true;
+    }
 
     /**
      * @exclude
@@ -328,15 +587,58 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
     @Override
     @InterfaceAudience.Private
     public void changed(Database.ChangeEvent event) {
+        if (!noteChanges(event.getChanges())) {
+            Log.v(Log.TAG_QUERY, "%s: none of %d changes affect the rows", this,
+                    event.getChanges().size());
+            return;
+        }
         update();
     }
 
     /**
-     * @exclude
+     * Remembers the changed documents that may affect the rows, and returns whether there were
+     * any.
      */
-    @InterfaceAudience.Private
-    private synchronized void setRows(QueryEnumerator queryEnumerator) {
-        rows = queryEnumerator;
+    private synchronized boolean noteChanges(List<DocumentChange> changes) {
+        boolean relevant = false;
+        for (DocumentChange change : changes) {
+            if (!mayAffectRows(change))
+                continue;
+            relevant = true;
+            changedDocIDs.add(change.getDocumentId());
+        }
+        return relevant;
+    }
+
+    private boolean mayAffectRows(DocumentChange change) {
+        RevisionInternal rev = change.getAddedRevision();
+        if (rev.getSequence() > 0 && rev.getSequence() <= rowsCompleteSequence)
+            return false; // the rows were queried after this change
+        View view = getView();
+        String docType = (view != null) ? view.getDocumentType() : null;
+        if (docType == null || !change.isCurrentRevision())
+            return true; // (a new conflict changes the winning revision's _conflicts)
+        if (!rev.isDeleted()) {
+            Map<String, Object> properties = rev.getProperties();
+            if (properties == null || docType.equals(properties.get("type")))
+                return true;
+        }
+        // The view doesn't index the document's current revision. It only matters if an earlier
+        // revision of the document was indexed and is visible in the rows:
+        if (rev.getGeneration() == 1)
+            return false;
+        if (rows == null || refreshing || !isMapOnly() || getGroupLevel() > 0 || getSkip() > 0)
+            return true;
+        return getRowDocIDs().contains(change.getDocumentId());
+    }
+
+    private Set<String> getRowDocIDs() {
+        if (rowDocIDs == null) {
+            rowDocIDs = new HashSet<String>();
+            for (int i = 0; i < rows.getCount(); i++)
+                rowDocIDs.add(rows.getRow(i).getSourceDocumentId());
+        }
+        return rowDocIDs;
     }
 
     /**
@@ -344,6 +646,9 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
      */
     @InterfaceAudience.Public
     public void queryOptionsChanged() {
+        synchronized (this) {
+            fullRefreshNeeded = true;
+        }
         this.update();
     }
 }
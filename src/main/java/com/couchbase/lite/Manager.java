@@ -19,9 +19,11 @@ import com.couchbase.lite.auth.Authorizer;
 import com.couchbase.lite.auth.FacebookAuthorizer;
 import com.couchbase.lite.auth.PersonaAuthorizer;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.replicator.Replication;
 import com.couchbase.lite.support.FileDirUtils;
 import com.couchbase.lite.support.HttpClientFactory;
+import com.couchbase.lite.support.HttpConnectionPool;
 import com.couchbase.lite.support.Version;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.StreamUtils;
@@ -45,10 +47,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -78,7 +83,11 @@ public final class Manager {
     private Map<String, Object> encryptionKeys;
     private List<Replication> replications;
     private ScheduledExecutorService workExecutor;
+    private ExecutorService viewIndexerExecutor;
+    private ScheduledExecutorService liveQueryExecutor;
     private HttpClientFactory defaultHttpClientFactory;
+    private HttpConnectionPool httpConnectionPool;
+    private boolean closed; // keeps the lazily created pools from being re-created after close()
     private Context context;
     private String storageType;
 
@@ -121,6 +130,9 @@ public final class Manager {
         this.encryptionKeys = new HashMap<String, Object>();
         this.replications = new ArrayList<Replication>();
 
+        if (this.options.isMetricsEnabled())
+            Metrics.setEnabled(true);
+
         if (!directoryFile.exists()) {
             directoryFile.mkdirs();
         }
@@ -277,6 +289,20 @@ public final class Manager {
         if (workExecutor != null && !workExecutor.isShutdown()) {
             Utils.shutdownAndAwaitTermination(workExecutor);
         }
+        synchronized (this) {
+            closed = true;
+            if (viewIndexerExecutor != null && !viewIndexerExecutor.isShutdown()) {
+                Utils.shutdownAndAwaitTermination(viewIndexerExecutor);
+            }
+            viewIndexerExecutor = null;
+            if (liveQueryExecutor != null && !liveQueryExecutor.isShutdown()) {
+                Utils.shutdownAndAwaitTermination(liveQueryExecutor);
+            }
+            liveQueryExecutor = null;
+            if (httpConnectionPool != null)
+                httpConnectionPool.shutdown();
+            httpConnectionPool = null;
+        }
         Log.d(Database.TAG, "Closed " + this);
     }
 
@@ -736,6 +762,182 @@ public final class Manager {
         return this.options.getExecutorThreadPoolSize();
     }
 
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getViewIndexerThreadPoolSize() {
+        return this.options.getViewIndexerThreadPoolSize();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getPullerMaxConcurrentRequests() {
+        return this.options.getPullerMaxConcurrentRequests();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getAttachmentReKeyThreadPoolSize() {
+        int poolSize = this.options.getAttachmentReKeyThreadPoolSize();
+        if (poolSize <= 0)
+            poolSize = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+        return poolSize;
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getDocumentCacheSize() {
+        return this.options.getDocumentCacheSize();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public long getDocumentCacheMaxBytes() {
+        return this.options.getDocumentCacheMaxBytes();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean isAsyncChangeNotifications() {
+        return this.options.isAsyncChangeNotifications();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getChangeNotificationCoalesceWindowMs() {
+        int windowMs = this.options.getChangeNotificationCoalesceWindowMs();
+        if (windowMs == 0)
+            windowMs = ChangeNotificationDispatcher.DEFAULT_COALESCE_WINDOW_MS;
+        return Math.max(windowMs, 0);
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getChangeNotificationQueueSize() {
+        return this.options.getChangeNotificationQueueSize();
+    }
+
+    /**
+     * Returns the current values of the performance metrics: transaction, query, indexing,
+     * HTTP request and blob store timings, replicator state transitions and queue lengths.
+     * They're only collected if enabled with ManagerOptions.setMetricsEnabled().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public Map<String, Object> getMetricsSnapshot() {
+        return Metrics.snapshot();
+    }
+
+    /**
+     * Returns the thread pool that runs map blocks during view indexing, or null if the
+     * indexer is configured to run single-threaded or the manager is closed.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ExecutorService getViewIndexerExecutor() {
+        int poolSize = getViewIndexerThreadPoolSize();
+        if (poolSize <= 1 || closed)
+            return null;
+        if (viewIndexerExecutor == null) {
+            viewIndexerExecutor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                private int counter = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLViewIndexer-" + (++counter));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return viewIndexerExecutor;
+    }
+
+    /**
+     * Returns the thread pool, shared by all the LiveQueries, that refreshes their rows, creating
+     * it on first use. Refreshes run there rather than on the work executor, so that live queries
+     * over busy databases can't hold up other async work.
+     *
+     * @throws RejectedExecutionException if the manager is closed
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ScheduledExecutorService getLiveQueryExecutor() {
+        if (closed)
+            throw new RejectedExecutionException("Manager is closed");
+        if (liveQueryExecutor == null) {
+            int poolSize = this.options.getLiveQueryThreadPoolSize();
+            if (poolSize <= 0)
+                poolSize = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+            liveQueryExecutor = Executors.newScheduledThreadPool(poolSize, new ThreadFactory() {
+                private int counter = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLLiveQuery-" + (++counter));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return liveQueryExecutor;
+    }
+
+    /**
+     * Returns the pool of keep-alive HTTP connections shared by the replications, creating it
+     * on first use, or null once the manager is closed. Idle connections are closed
+     * periodically on the work executor.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized HttpConnectionPool getHttpConnectionPool() {
+        if (closed)
+            return null;
+        if (httpConnectionPool == null) {
+            int maxPerHost = options.getHttpMaxConnectionsPerHost();
+            if (maxPerHost <= 0)
+                maxPerHost = HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+            int maxTotal = options.getHttpMaxConnections();
+            if (maxTotal <= 0)
+                maxTotal = HttpConnectionPool.DEFAULT_MAX_CONNECTIONS;
+            int idleTimeout = options.getHttpConnectionIdleTimeoutSeconds();
+            if (idleTimeout <= 0)
+                idleTimeout = HttpConnectionPool.DEFAULT_IDLE_TIMEOUT_SECONDS;
+            final HttpConnectionPool pool = new HttpConnectionPool(maxPerHost, maxTotal, idleTimeout * 1000L);
+            synchronized (workExecutor) {
+                if (!workExecutor.isShutdown()) {
+                    // Check at half the timeout, so no connection stays idle much longer:
+                    long interval = Math.max(idleTimeout * 1000L / 2, 1000L);
+                    workExecutor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            pool.evictIdleConnections();
+                        }
+                    }, interval, interval, TimeUnit.MILLISECONDS);
+                }
+            }
+            httpConnectionPool = pool;
+        }
+        return httpConnectionPool;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Internal (protected or private) Methods
     ///////////////////////////////////////////////////////////////////////////
@@ -956,14 +1158,6 @@ public final class Manager {
         encryptionKeys.remove(db.getName());
     }
 
-    /**
-     * @exclude
-     */
-    @InterfaceAudience.Private
-    protected boolean isAutoMigrateBlobStoreFilename() {
-        return this.options.isAutoMigrateBlobStoreFilename();
-    }
-
     private static String OS = System.getProperty("os.name").toLowerCase();
 
     /**
@@ -26,7 +26,7 @@ public class ManagerOptions {
     private boolean readOnly = false;
 
     /**
-     * automatically migrate blobstore filename
+     * automatically migrate blobstore filename (no longer used)
      */
     private boolean autoMigrateBlobStoreFilename = false;
 
@@ -37,6 +37,90 @@ public class ManagerOptions {
      */
     private int executorThreadPoolSize = 0;
 
+    /**
+     * the number of worker threads used to run map blocks while updating view indexes.
+     * 0 or 1 keeps the original single-threaded indexer. Values above 1 require the
+     * registered map blocks to be thread-safe.
+     */
+    private int viewIndexerThreadPoolSize = 0;
+
+    /**
+     * the maximum number of download requests a pull replication keeps in flight. The puller
+     * adapts the actual number to the observed latency and throughput, up to this limit and to
+     * the executor thread pool size. 0 uses PullerInternal.MAX_OPEN_HTTP_CONNECTIONS.
+     */
+    private int pullerMaxConcurrentRequests = 0;
+
+    /**
+     * the number of worker threads used to re-encrypt attachments when a database's encryption
+     * key is changed. 0 uses one thread per available processor, up to 4.
+     */
+    private int attachmentReKeyThreadPoolSize = 0;
+
+    /**
+     * the number of threads shared by the LiveQueries to refresh their rows.
+     * 0 uses one thread per available processor, up to 4.
+     */
+    private int liveQueryThreadPoolSize = 0;
+
+    /**
+     * the number of recently used Document objects each database keeps in memory.
+     * 0 uses the default of 50.
+     */
+    private int documentCacheSize = 0;
+
+    /**
+     * if greater than 0, the document cache is bounded by the estimated memory used by the
+     * cached Document objects and their current revisions, in bytes, instead of by their number.
+     */
+    private long documentCacheMaxBytes = 0;
+
+    /**
+     * whether to collect performance metrics (see Manager.getMetricsSnapshot()). Metrics are
+     * process-wide, so enabling them for one Manager enables them for all.
+     */
+    private boolean metricsEnabled = false;
+
+    /**
+     * the maximum number of HTTP connections the replications keep open to the same host
+     * (scheme, host and port), including the ones held by continuous _changes feeds.
+     * 0 uses HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST.
+     */
+    private int httpMaxConnectionsPerHost = 0;
+
+    /**
+     * the maximum number of HTTP connections the replications keep open in total.
+     * 0 uses HttpConnectionPool.DEFAULT_MAX_CONNECTIONS.
+     */
+    private int httpMaxConnections = 0;
+
+    /**
+     * how long an idle pooled HTTP connection is kept open for reuse, in seconds.
+     * 0 uses HttpConnectionPool.DEFAULT_IDLE_TIMEOUT_SECONDS.
+     */
+    private int httpConnectionIdleTimeoutSeconds = 0;
+
+    /**
+     * whether database change listeners are called on a dispatcher thread instead of on the
+     * thread that committed the change. Writers then don't wait for the listeners, and the
+     * changes committed within changeNotificationCoalesceWindowMs are delivered as one event.
+     */
+    private boolean asyncChangeNotifications = false;
+
+    /**
+     * how long, in milliseconds, the async dispatcher collects changes before delivering them.
+     * 0 uses ChangeNotificationDispatcher.DEFAULT_COALESCE_WINDOW_MS; negative delivers them
+     * without waiting.
+     */
+    private int changeNotificationCoalesceWindowMs = 0;
+
+    /**
+     * the maximum number of events the async dispatcher queues for a listener that hasn't
+     * caught up; further changes are merged into the last queued event.
+     * 0 uses ChangeNotificationDispatcher.DEFAULT_LISTENER_QUEUE_SIZE.
+     */
+    private int changeNotificationQueueSize = 0;
+
     public ManagerOptions() {
     }
 
@@ -48,10 +132,19 @@ public class ManagerOptions {
         this.readOnly = readOnly;
     }
 
+    /**
+     * @deprecated Blob stores are always moved to the current layout, which upper-cases the
+     * names of their files, when they are opened; this option has no effect.
+     */
+    @Deprecated
     public boolean isAutoMigrateBlobStoreFilename() {
         return autoMigrateBlobStoreFilename;
     }
 
+    /**
+     * @deprecated This option has no effect; see isAutoMigrateBlobStoreFilename().
+     */
+    @Deprecated
     public void setAutoMigrateBlobStoreFilename(boolean autoMigrateBlobStoreFilename) {
         this.autoMigrateBlobStoreFilename = autoMigrateBlobStoreFilename;
     }
@@ -63,4 +156,108 @@ public class ManagerOptions {
     public void setExecutorThreadPoolSize(int executorThreadPoolSize) {
         this.executorThreadPoolSize = executorThreadPoolSize;
     }
+
+    public int getViewIndexerThreadPoolSize() {
+        return viewIndexerThreadPoolSize;
+    }
+
+    public void setViewIndexerThreadPoolSize(int viewIndexerThreadPoolSize) {
+        this.viewIndexerThreadPoolSize = viewIndexerThreadPoolSize;
+    }
+
+    public int getPullerMaxConcurrentRequests() {
+        return pullerMaxConcurrentRequests;
+    }
+
+    public void setPullerMaxConcurrentRequests(int pullerMaxConcurrentRequests) {
+        this.pullerMaxConcurrentRequests = pullerMaxConcurrentRequests;
+    }
+
+    public int getDocumentCacheSize() {
+        return documentCacheSize;
+    }
+
+    public void setDocumentCacheSize(int documentCacheSize) {
+        this.documentCacheSize = documentCacheSize;
+    }
+
+    public long getDocumentCacheMaxBytes() {
+        return documentCacheMaxBytes;
+    }
+
+    public void setDocumentCacheMaxBytes(long documentCacheMaxBytes) {
+        this.documentCacheMaxBytes = documentCacheMaxBytes;
+    }
+
+    public int getAttachmentReKeyThreadPoolSize() {
+        return attachmentReKeyThreadPoolSize;
+    }
+
+    public void setAttachmentReKeyThreadPoolSize(int attachmentReKeyThreadPoolSize) {
+        this.attachmentReKeyThreadPoolSize = attachmentReKeyThreadPoolSize;
+    }
+
+    public int getLiveQueryThreadPoolSize() {
+        return liveQueryThreadPoolSize;
+    }
+
+    public void setLiveQueryThreadPoolSize(int liveQueryThreadPoolSize) {
+        this.liveQueryThreadPoolSize = liveQueryThreadPoolSize;
+    }
+
+    public int getHttpMaxConnectionsPerHost() {
+        return httpMaxConnectionsPerHost;
+    }
+
+    public void setHttpMaxConnectionsPerHost(int httpMaxConnectionsPerHost) {
+        this.httpMaxConnectionsPerHost = httpMaxConnectionsPerHost;
+    }
+
+    public int getHttpMaxConnections() {
+        return httpMaxConnections;
+    }
+
+    public void setHttpMaxConnections(int httpMaxConnections) {
+        this.httpMaxConnections = httpMaxConnections;
+    }
+
+    public int getHttpConnectionIdleTimeoutSeconds() {
+        return httpConnectionIdleTimeoutSeconds;
+    }
+
+    public void setHttpConnectionIdleTimeoutSeconds(int httpConnectionIdleTimeoutSeconds) {
+        this.httpConnectionIdleTimeoutSeconds = httpConnectionIdleTimeoutSeconds;
+    }
+
+    public boolean isAsyncChangeNotifications() {
+        return asyncChangeNotifications;
+    }
+
+    public void setAsyncChangeNotifications(boolean asyncChangeNotifications) {
+        this.asyncChangeNotifications = asyncChangeNotifications;
+    }
+
+    public int getChangeNotificationCoalesceWindowMs() {
+        return changeNotificationCoalesceWindowMs;
+    }
+
+    public void setChangeNotificationCoalesceWindowMs(int changeNotificationCoalesceWindowMs) {
+        this.changeNotificationCoalesceWindowMs = changeNotificationCoalesceWindowMs;
+    }
+
+    public int getChangeNotificationQueueSize() {
+        return changeNotificationQueueSize;
+    }
+
+    public void setChangeNotificationQueueSize(int changeNotificationQueueSize) {
+        this.changeNotificationQueueSize = changeNotificationQueueSize;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
 }
\ No newline at end of file
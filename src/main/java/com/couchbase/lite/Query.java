@@ -1,6 +1,7 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.store.QueryRowIterator;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
@@ -169,6 +170,12 @@ public class Query {
      */
     private Predicate<QueryRow> postFilter;
 
+    /**
+     * If set to YES, run() returns an enumerator that reads the rows from the database while it's
+     * iterated, instead of loading all of them first. Such an enumerator is forward-only, has no
+     * count, and should be closed if it isn't read to the end. Default value is NO.
+     */
+    private boolean streaming;
 
     private long lastSequence;
 
@@ -222,6 +229,7 @@ public class Query {
         inclusiveStart = query.inclusiveStart;
         inclusiveEnd = query.inclusiveEnd;
         postFilter = query.postFilter;
+        streaming = query.streaming;
     }
 
     /**
@@ -422,6 +430,16 @@ public class Query {
         allDocsMode = (includeDeletedParam == true) ? AllDocsMode.INCLUDE_DELETED : AllDocsMode.ALL_DOCS;
     }
 
+    @InterfaceAudience.Public
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    @InterfaceAudience.Public
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     /**
      * Sends the query to the server and returns an enumerator over the result rows (Synchronous).
      * If the query fails, this method returns nil and sets the query's .error property.
@@ -430,6 +448,23 @@ public class Query {
     public QueryEnumerator run() throws CouchbaseLiteException {
         List<Long> outSequence = new ArrayList<Long>();
         String viewName = (view != null) ? view.getName() : null;
+        if (streaming) {
+            final String streamingViewName = viewName;
+            final QueryOptions options = getQueryOptions();
+            QueryRowIterator rows = database.queryViewNamedIterator(viewName, options,
+                    outSequence);
+            lastSequence = outSequence.get(0);
+            // If the enumerator has to start over, it reads the index as it is then:
+            options.setStale(IndexUpdateMode.NEVER);
+            QueryEnumerator.RowSource rowSource = new QueryEnumerator.RowSource() {
+                @Override
+                public QueryRowIterator open() throws CouchbaseLiteException {
+                    return database.queryViewNamedIterator(streamingViewName, options,
+                            new ArrayList<Long>());
+                }
+            };
+            return new QueryEnumerator(database, rowSource, rows, lastSequence);
+        }
         List<QueryRow> rows = database.queryViewNamed(viewName, getQueryOptions(), outSequence);
         lastSequence = outSequence.get(0);
         return new QueryEnumerator(database, rows, lastSequence);
@@ -503,7 +538,7 @@ public class Query {
     }
 
     @InterfaceAudience.Private
-    private QueryOptions getQueryOptions() {
+    /* package */ QueryOptions getQueryOptions() {
         QueryOptions queryOptions = new QueryOptions();
         queryOptions.setStartKey(getStartKey());
         queryOptions.setEndKey(getEndKey());
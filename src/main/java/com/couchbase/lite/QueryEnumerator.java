@@ -1,20 +1,94 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.store.QueryRowIterator;
+import com.couchbase.lite.util.Log;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 /**
  * An enumerator for Couchbase Lite View Query results.
+ * <p/>
+ * An enumerator returned by a streaming query reads its rows from the database a page at a time
+ * while it's being iterated, and holds a database cursor until the last row has been read, close()
+ * is called, the enumerator is garbage collected or the database is closed. Going back to rows before the current page (with reset()
+ * or getRow()) re-runs the query, and getCount() runs it once more to count the rows; both read
+ * the view's index as it is at that time.
  */
 public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
 
+    // Number of rows a streaming enumerator reads from the database at a time
+    private static final int STREAMING_PAGE_SIZE = 100;
+
+    /**
+     * Runs a streaming query again, for a streaming enumerator that has to go back to its start.
+     */
+    @InterfaceAudience.Private
+    /* package */ interface RowSource {
+        QueryRowIterator open() throws CouchbaseLiteException;
+    }
+
     private Database database;
     private List<QueryRow> rows;
     private int nextRow;
     private long sequenceNumber;
 
+    // State of a streaming enumerator; 'rows' holds its current page, which starts at 'firstRow'
+    private RowSource rowSource;
+    private QueryRowIterator source; // null when the enumerator has read all rows or is closed
+    private SourceGuard sourceGuard; // set while 'source' is
+    private int firstRow;
+    private int count = -1; // total number of rows, once known
+    private boolean closed;
+
+    // Guards of sources whose enumerators were garbage collected before closing them
+    private static final ReferenceQueue<QueryEnumerator> abandonedSources =
+            new ReferenceQueue<QueryEnumerator>();
+
+    /**
+     * Closes a streaming enumerator's source when the database closes. It only holds the
+     * enumerator weakly, so the database's listener set doesn't keep an abandoned enumerator
+     * alive; the source of one is closed once the guard has been queued and swept.
+     */
+    private static final class SourceGuard extends WeakReference<QueryEnumerator>
+            implements Database.DatabaseListener {
+        private final Database database;
+        private QueryRowIterator source;
+
+        SourceGuard(QueryEnumerator enumerator, QueryRowIterator source) {
+            super(enumerator, abandonedSources);
+            this.database = enumerator.database;
+            this.source = source;
+            database.addDatabaseListener(this);
+        }
+
+        @Override
+        public void databaseClosing() {
+            QueryEnumerator enumerator = get();
+            if (enumerator != null)
+                enumerator.close();
+            else
+                release();
+        }
+
+        void release() {
+            QueryRowIterator closing;
+            synchronized (this) {
+                closing = source;
+                source = null;
+            }
+            clear();
+            if (closing != null)
+                closing.close();
+            database.removeDatabaseListener(this);
+        }
+    }
+
     /**
      * Constructor
      */
@@ -30,14 +104,35 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
         }
     }
 
+    /**
+     * Constructor for a streaming enumerator, which takes ownership of the open row source.
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryEnumerator(Database database, RowSource rowSource, QueryRowIterator source,
+                                  long sequenceNumber) {
+        this.database = database;
+        this.rows = new ArrayList<QueryRow>(STREAMING_PAGE_SIZE);
+        this.sequenceNumber = sequenceNumber;
+        this.rowSource = rowSource;
+        setSource(source);
+    }
+
     /**
      * Constructor
      */
     @InterfaceAudience.Private
     /* package */ QueryEnumerator(QueryEnumerator other) {
         this.database = other.database;
-        this.rows = other.rows;
         this.sequenceNumber = other.sequenceNumber;
+        if (other.rowSource == null) {
+            this.rows = other.rows;
+        } else {
+            // A copy of a streaming enumerator reads the rows again from the start:
+            this.rows = new ArrayList<QueryRow>(STREAMING_PAGE_SIZE);
+            this.rowSource = other.rowSource;
+            this.count = other.count;
+            setSource(openSource());
+        }
     }
 
     /**
@@ -45,7 +140,18 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
      */
     @InterfaceAudience.Public
     public int getCount() {
-        return rows.size();
+        if (rowSource == null)
+            return rows.size();
+        synchronized (this) {
+            if (count < 0) {
+                QueryRowIterator counter = openSource();
+                int n = 0;
+                while (counter.nextRow() != null)
+                    n++;
+                count = n;
+            }
+            return count;
+        }
     }
 
     /**
@@ -63,6 +169,12 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public QueryRow next() {
+        if (rowSource != null) {
+            QueryRow row = streamingRow(nextRow);
+            if (row != null)
+                nextRow++;
+            return row;
+        }
         if (nextRow >= rows.size()) {
             return null;
         }
@@ -74,6 +186,12 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
      */
     @InterfaceAudience.Public
     public QueryRow getRow(int index) {
+        if (rowSource != null) {
+            QueryRow row = index >= 0 ? streamingRow(index) : null;
+            if (row == null)
+                throw new IndexOutOfBoundsException("No row at index " + index);
+            return row;
+        }
         return rows.get(index);
     }
 
@@ -93,6 +211,9 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
 
         QueryEnumerator that = (QueryEnumerator) o;
 
+        // Streaming enumerators only hold the current page of their rows:
+        if (rowSource != null || that.rowSource != null) return false;
+
         if (rows != null ? !rows.equals(that.rows) : that.rows != null) return false;
 
         return true;
@@ -104,6 +225,8 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public boolean hasNext() {
+        if (rowSource != null)
+            return streamingRow(nextRow) != null;
         return nextRow < rows.size();
     }
 
@@ -132,6 +255,81 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
         nextRow = 0;
     }
 
+    /**
+     * Releases the database cursor of a streaming enumerator that hasn't been read to the end.
+     * Afterwards it only returns the rows it has already read. Has no effect on other
+     * enumerators.
+     */
+    @InterfaceAudience.Public
+    public synchronized void close() {
+        closed = true;
+        setSource(null);
+    }
+
+    /**
+     * Returns the row of a streaming enumerator at the given index, or null if there is none,
+     * moving the current page there.
+     */
+    private synchronized QueryRow streamingRow(int index) {
+        if (index < firstRow && !closed) {
+            // Start over:
+            setSource(openSource());
+            rows.clear();
+            firstRow = 0;
+        }
+        while (index >= firstRow + rows.size() && source != null)
+            readPage();
+        if (index < firstRow || index >= firstRow + rows.size())
+            return null;
+        return rows.get(index - firstRow);
+    }
+
+    /**
+     * Replaces the current page of a streaming enumerator with the next one read from its source.
+     */
+    private void readPage() {
+        firstRow += rows.size();
+        rows.clear();
+        while (source != null && rows.size() < STREAMING_PAGE_SIZE) {
+            QueryRow row = source.nextRow();
+            if (row == null) {
+                // The source closes itself after its last row
+                count = firstRow + rows.size();
+                setSource(null);
+                break;
+            }
+            row.setDatabase(database);
+            rows.add(row);
+        }
+    }
+
+    private QueryRowIterator openSource() {
+        try {
+            return rowSource.open();
+        } catch (CouchbaseLiteException e) {
+            Log.e(Database.TAG, "Unable to re-run streaming query", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Closes the current source, if any, and keeps the database from closing under the new one:
+    private void setSource(QueryRowIterator newSource) {
+        closeAbandonedSources();
+        if (sourceGuard != null) {
+            sourceGuard.release();
+            sourceGuard = null;
+        }
+        source = newSource;
+        if (newSource != null)
+            sourceGuard = new SourceGuard(this, newSource);
+    }
+
+    private static void closeAbandonedSources() {
+        Reference<? extends QueryEnumerator> reference;
+        while ((reference = abandonedSources.poll()) != null)
+            ((SourceGuard) reference).release();
+    }
+
     @Override
     public Iterator<QueryRow> iterator() {
         return this;
@@ -17,6 +17,7 @@
 
 package com.couchbase.lite;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -51,6 +52,9 @@ public class QueryOptions {
 
     private Predicate<QueryRow> postFilter;
 
+    // If set, a regular view query only returns the rows emitted by these documents:
+    private Collection<String> docIDs;
+
     public Object getStartKey() {
         return startKey;
     }
@@ -211,6 +215,14 @@ public class QueryOptions {
         this.postFilter = postFilter;
     }
 
+    public Collection<String> getDocIDs() {
+        return docIDs;
+    }
+
+    public void setDocIDs(Collection<String> docIDs) {
+        this.docIDs = docIDs;
+    }
+
     @Override
     public String toString() {
         return "QueryOptions{" +
@@ -234,6 +246,7 @@ public class QueryOptions {
                 ", startKeyDocId='" + startKeyDocId + '\'' +
                 ", endKeyDocId='" + endKeyDocId + '\'' +
                 ", postFilter=" + postFilter +
+                ", docIDs=" + docIDs +
                 '}';
     }
 }
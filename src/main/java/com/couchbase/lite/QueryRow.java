@@ -3,6 +3,7 @@ package com.couchbase.lite;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.store.QueryRowStore;
+import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
@@ -55,6 +56,13 @@ public class QueryRow {
 
     private QueryRowStore queryRowStore;
 
+    /**
+     * Undecoded JSON of the key and value, for rows whose key and value are parsed on first
+     * access.
+     */
+    private JsonDocument keyDocument;
+    private JsonDocument valueDocument;
+
     private Database database;
 
     /**
@@ -80,6 +88,22 @@ public class QueryRow {
         this.queryRowStore = queryRowStore;
     }
 
+    /**
+     * Constructor for a row whose key and value are left as JSON until getKey() or getValue()
+     * is called.
+     */
+    @InterfaceAudience.Private
+    public QueryRow(String docID,
+                    long sequence,
+                    JsonDocument keyDocument,
+                    JsonDocument valueDocument,
+                    RevisionInternal docRevision,
+                    QueryRowStore queryRowStore) {
+        this(docID, sequence, (Object) null, (Object) null, docRevision, queryRowStore);
+        this.keyDocument = keyDocument;
+        this.valueDocument = valueDocument;
+    }
+
 
     protected Database getDatabase() {
         return database;
@@ -110,6 +134,10 @@ public class QueryRow {
      */
     @InterfaceAudience.Public
     public Object getKey() {
+        if (keyDocument != null) {
+            key = keyDocument.jsonObject();
+            keyDocument = null;
+        }
         return key;
     }
 
@@ -118,6 +146,10 @@ public class QueryRow {
      */
     @InterfaceAudience.Public
     public Object getValue() {
+        if (valueDocument != null) {
+            value = valueDocument.jsonObject();
+            valueDocument = null;
+        }
         return value;
     }
 
@@ -134,9 +166,9 @@ public class QueryRow {
         if (documentRevision != null)
             docID = documentRevision.getDocID();
         if (docID == null) {
-            if (value != null) {
-                if (value instanceof Map) {
-                    Map<String, Object> props = (Map<String, Object>) value;
+            if (getValue() != null) {
+                if (getValue() instanceof Map) {
+                    Map<String, Object> props = (Map<String, Object>) getValue();
                     docID = (String) props.get("_id");
                 }
             }
@@ -170,8 +202,8 @@ public class QueryRow {
         if (documentRevision != null)
             rev = documentRevision.getRevID();
         if (rev == null) {
-            if (value instanceof Map) {
-                Map<String, Object> mapValue = (Map<String, Object>) value;
+            if (getValue() instanceof Map) {
+                Map<String, Object> mapValue = (Map<String, Object>) getValue();
                 rev = (String) mapValue.get("_rev");
                 if (rev == null) {
                     rev = (String) mapValue.get("rev");
@@ -210,7 +242,7 @@ public class QueryRow {
     @InterfaceAudience.Public
     public List<SavedRevision> getConflictingRevisions() {
         Document doc = database.getDocument(sourceDocID);
-        Map<String, Object> valueTmp = (Map<String, Object>) value;
+        Map<String, Object> valueTmp = (Map<String, Object>) getValue();
         List<String> conflicts = (List<String>) valueTmp.get("_conflicts");
         if (conflicts == null) {
             conflicts = new ArrayList<String>();
@@ -245,13 +277,13 @@ public class QueryRow {
         QueryRow other = (QueryRow) object;
 
         if (database == other.database
-                && Utils.isEqual(key, other.getKey())
+                && Utils.isEqual(getKey(), other.getKey())
                 && Utils.isEqual(sourceDocID, other.getSourceDocumentId())
                 && Utils.isEqual(documentRevision, other.documentRevision)) {
             // If values were emitted, compare them. Otherwise we have nothing to go on so check
             // if _anything_ about the doc has changed (i.e. the sequences are different.)
-            if (value != null || other.getValue() != null) {
-                return value.equals(other.getValue());
+            if (getValue() != null || other.getValue() != null) {
+                return getValue().equals(other.getValue());
             } else {
                 return sequence == other.sequence;
             }
@@ -277,13 +309,13 @@ public class QueryRow {
     @InterfaceAudience.Private
     public Map<String, Object> asJSONDictionary() {
         Map<String, Object> result = new HashMap<String, Object>();
-        if (value != null || sourceDocID != null) {
-            result.put("key", key);
-            result.put("value", value);
+        if (getValue() != null || sourceDocID != null) {
+            result.put("key", getKey());
+            result.put("value", getValue());
             result.put("id", sourceDocID);
             result.put("doc", getDocumentProperties());
         } else {
-            result.put("key", key);
+            result.put("key", getKey());
             result.put("error", "not_found");
         }
         return result;
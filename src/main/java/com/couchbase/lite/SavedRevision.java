@@ -17,6 +17,7 @@
 
 package com.couchbase.lite;
 
+import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.util.Log;
@@ -69,6 +70,14 @@ public final class SavedRevision extends Revision {
         this.checkedProperties = true;
     }
 
+    /**
+     * A rough estimate of the memory used by this revision's loaded properties, in bytes.
+     */
+    int getEstimatedSize() {
+        Body body = revisionInternal.getBody();
+        return body != null ? body.getEstimatedSize() : 0;
+    }
+
 
     /**
      * Get the document this is a revision of
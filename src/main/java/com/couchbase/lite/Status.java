@@ -30,6 +30,7 @@ public class Status {
     public static final int OK = 200;
     public static final int CREATED = 201;
     public static final int ACCEPTED = 202;
+    public static final int PARTIAL_CONTENT = 206;
 
     public static final int NOT_MODIFIED = 304;
 
@@ -44,6 +45,7 @@ public class Status {
     public static final int GONE = 410;
     public static final int DUPLICATE = 412;                // Formally known as "Precondition Failed" (PRECONDITION_FAILED)
     public static final int UNSUPPORTED_TYPE = 415;
+    public static final int RANGE_NOT_SATISFIABLE = 416;
 
     public static final int INTERNAL_SERVER_ERROR = 500;
     public static final int NOT_IMPLEMENTED = 501;
@@ -98,6 +100,7 @@ public class Status {
         statusMap.put(OK,                       new HTTPStatus(200, "OK"));
         statusMap.put(CREATED,                  new HTTPStatus(201, "Created"));
         statusMap.put(ACCEPTED,                 new HTTPStatus(202, "Accepted"));
+        statusMap.put(PARTIAL_CONTENT,          new HTTPStatus(206, "Partial Content"));
         statusMap.put(NOT_MODIFIED,             new HTTPStatus(304, "Not Modified"));
         statusMap.put(INTERNAL_SERVER_ERROR,    new HTTPStatus(500, "Internal Server Error"));
         statusMap.put(NOT_IMPLEMENTED,          new HTTPStatus(501, "Not Implemented"));
@@ -114,6 +117,7 @@ public class Status {
         statusMap.put(GONE,                     new HTTPStatus(410, "gone"));
         statusMap.put(DUPLICATE,                new HTTPStatus(412, "file_exists"));
         statusMap.put(UNSUPPORTED_TYPE,         new HTTPStatus(415, "bad_content_type"));
+        statusMap.put(RANGE_NOT_SATISFIABLE,    new HTTPStatus(416, "requested_range_not_satisfiable"));
 
         // These are nonstandard status codes; map them to closest HTTP equivalents:
         statusMap.put(UNKNOWN,                  new HTTPStatus(500, "Internal error"));
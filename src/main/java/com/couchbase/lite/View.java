@@ -18,12 +18,17 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
+import com.couchbase.lite.store.QueryRowIterator;
+import com.couchbase.lite.store.QueryRowListIterator;
 import com.couchbase.lite.store.ViewStore;
 import com.couchbase.lite.store.ViewStoreDelegate;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +41,9 @@ public final class View implements ViewStoreDelegate {
         TDViewCollationUnicode, TDViewCollationRaw, TDViewCollationASCII
     }
 
+    private static final LatencyHistogram INDEX_TIME = Metrics.histogram("view.updateIndex");
+    private static final LatencyHistogram QUERY_TIME = Metrics.histogram("view.query");
+
     // Defined in CBLView.h
     private Database database;
     private String name;
@@ -167,6 +175,23 @@ public final class View implements ViewStoreDelegate {
         return setMapReduce(mapBlock, null, version);
     }
 
+    /**
+     * Enables a persisted cache of partial reductions for this view. Reduce queries over the whole
+     * key range (grouped or not) then combine cached block values through the reduce block's
+     * rereduce path, instead of re-reducing every row on each query. The reduce block must
+     * therefore handle rereduce=true correctly. Like the map block, this setting is not
+     * persistent and must be set at runtime; the cache is dropped when the view is indexed
+     * without it.
+     * <p/>
+     * The cache holds one reduction per block of about a thousand rows. An ungrouped query only
+     * re-reduces the blocks that changed, but a grouped query still reads the rows of every block
+     * that holds more than one group, so it helps most when groups are large.
+     */
+    @InterfaceAudience.Public
+    public void setReduceCacheEnabled(boolean enabled) {
+        viewStore.setReduceCacheEnabled(enabled);
+    }
+
     /**
      * Is the view's index currently out of date?
      */
@@ -276,6 +301,11 @@ public final class View implements ViewStoreDelegate {
         database = null;
     }
 
+    @InterfaceAudience.Private
+    public Comparator<Object> getKeyComparator() {
+        return viewStore.getKeyComparator();
+    }
+
     @InterfaceAudience.Private
     public void setCollation(TDViewCollation collation) {
         viewStore.setCollation(collation);
@@ -318,7 +348,12 @@ public final class View implements ViewStoreDelegate {
         for (View view : views) {
             storages.add(view.viewStore);
         }
-        return viewStore.updateIndexes(storages);
+        long start = Metrics.startTimer();
+        try {
+            return viewStore.updateIndexes(storages);
+        } finally {
+            INDEX_TIME.recordSince(start);
+        }
     }
 
     /**
@@ -350,12 +385,32 @@ public final class View implements ViewStoreDelegate {
      */
     @InterfaceAudience.Private
     public List<QueryRow> query(QueryOptions options) throws CouchbaseLiteException {
+        if (options == null)
+            options = new QueryOptions();
+        long start = Metrics.startTimer();
+        try {
+            if (groupOrReduce(options))
+                return viewStore.reducedQuery(options);
+            else
+                return viewStore.regularQuery(options);
+        } finally {
+            QUERY_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * Queries the view like query(), but returns an iterator that reads the rows from the index
+     * as they're requested. Reduced or grouped results are small, so they're computed up front.
+     * Does NOT first update the index.
+     */
+    @InterfaceAudience.Private
+    public QueryRowIterator queryIterator(QueryOptions options) throws CouchbaseLiteException {
         if (options == null)
             options = new QueryOptions();
         if (groupOrReduce(options))
-            return viewStore.reducedQuery(options);
+            return new QueryRowListIterator(viewStore.reducedQuery(options));
         else
-            return viewStore.regularQuery(options);
+            return viewStore.regularQueryIterator(options);
     }
 
     ///////////////////////////////////////////////////////////////////////////
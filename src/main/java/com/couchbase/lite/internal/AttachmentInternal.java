@@ -1,10 +1,12 @@
 package com.couchbase.lite.internal;
 
 import com.couchbase.lite.BlobKey;
+import com.couchbase.lite.BlobStore;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.support.Base64;
+import com.couchbase.lite.support.RangeInputStream;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
 
@@ -14,8 +16,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  * A simple container for attachment metadata.
@@ -193,10 +197,111 @@ public class AttachmentInternal {
         return data;
     }
 
+    /**
+     * Returns the decoded content as a stream. Attachments in the blob store are streamed from
+     * it rather than read into memory first.
+     */
     public InputStream getContentInputStream() {
+        if (data == null && database != null && hasBlobKey()) {
+            BlobStore store = database.getAttachmentStore();
+            InputStream is = store.blobStreamForKey(blobKey);
+            if (is != null) {
+                boolean gzipped = encoding == AttachmentEncoding.AttachmentEncodingGZIP;
+                if (!gzipped && store.isGZipped(blobKey)) {
+                    // special case, as in getContent()
+                    gzipped = true;
+                    encoding = AttachmentEncoding.AttachmentEncodingGZIP;
+                }
+                if (!gzipped)
+                    return is;
+                try {
+                    return new GZIPInputStream(is);
+                } catch (IOException e) {
+                    Log.w(Database.TAG, "Unable to decode attachment!", e);
+                    try {
+                        is.close();
+                    } catch (IOException ignored) {
+                    }
+                    return null;
+                }
+            }
+        }
         return new ByteArrayInputStream(getContent());
     }
 
+    /**
+     * Returns 'length' bytes of the decoded content as a stream, starting at 'offset'. Content that
+     * isn't compressed is read from that position in the blob store.
+     */
+    public InputStream getContentInputStream(long offset, long length) {
+        if (encoding == AttachmentEncoding.AttachmentEncodingNone &&
+                data == null && database != null && hasBlobKey()) {
+            BlobStore store = database.getAttachmentStore();
+            if (!store.isGZipped(blobKey))
+                return store.blobStreamForKey(blobKey, offset, length);
+        }
+        return rangeOf(getContentInputStream(), offset, length);
+    }
+
+    /**
+     * Returns the encoded content (i.e. gzipped, if the encoding is gzip) as a stream.
+     */
+    public InputStream getEncodedContentInputStream() {
+        if (data != null)
+            return new ByteArrayInputStream(data);
+        if (database == null || !hasBlobKey())
+            return null;
+        return database.getAttachmentStore().blobStreamForKey(blobKey);
+    }
+
+    /**
+     * Returns 'length' bytes of the encoded content as a stream, starting at 'offset'.
+     */
+    public InputStream getEncodedContentInputStream(long offset, long length) {
+        if (data == null && database != null && hasBlobKey())
+            return database.getAttachmentStore().blobStreamForKey(blobKey, offset, length);
+        return rangeOf(getEncodedContentInputStream(), offset, length);
+    }
+
+    private static InputStream rangeOf(InputStream is, long offset, long length) {
+        if (is == null)
+            return null;
+        try {
+            return new RangeInputStream(is, offset, length);
+        } catch (IOException e) {
+            Log.w(Database.TAG, "Unable to read attachment!", e);
+            try {
+                is.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns a FileChannel on the attachment's encoded content, i.e. as stored in the blob store
+     * (gzipped, if the encoding is gzip), or null if it isn't available that way: if the content
+     * is inline or the blob store is encrypted. The caller must close the channel.
+     */
+    public FileChannel getEncodedContentChannel() {
+        if (data != null || database == null || !hasBlobKey())
+            return null;
+        return database.getAttachmentStore().blobChannelForKey(blobKey);
+    }
+
+    /**
+     * Returns a FileChannel on the attachment's decoded content, or null if that isn't available
+     * without decoding (see getEncodedContentChannel().) The caller must close the channel.
+     */
+    public FileChannel getContentChannel() {
+        if (encoding != AttachmentEncoding.AttachmentEncodingNone)
+            return null;
+        if (data != null || database == null || !hasBlobKey() ||
+                database.getAttachmentStore().isGZipped(blobKey))
+            return null;
+        return getEncodedContentChannel();
+    }
+
     public URL getContentURL() throws MalformedURLException {
         String path = database.getAttachmentStore().getBlobPathForKey(blobKey);
         return path != null ? new File(path).toURI().toURL() : null;
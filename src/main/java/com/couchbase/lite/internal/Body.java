@@ -32,6 +32,7 @@ import java.util.Map;
 public class Body {
     private byte[] json;
     private Object object;
+    private Map<String, Object> metadata;
 
     public Body(byte[] json) {
         this.json = json;
@@ -45,6 +46,16 @@ public class Body {
         this.object = array;
     }
 
+    /**
+     * Creates a body from canonical JSON, i.e. JSON with the metadata properties removed.
+     * The metadata properties (_id, _rev, ...) are added to the object if and when the JSON is
+     * parsed, so a body that's only stored never has to be parsed at all.
+     */
+    public Body(byte[] json, Map<String, Object> metadata) {
+        this.json = json;
+        this.metadata = metadata;
+    }
+
     public Body(byte[] json, String docID, String revID, boolean deleted) {
 
         Map<String, Object> extra = new HashMap<String, Object>();
@@ -98,12 +109,19 @@ public class Body {
             throw new IllegalStateException("Both object and json are null for this body: " + this);
         }
         try {
-            object = Manager.getObjectMapper().readValue(json, Object.class);
+            object = parseJson();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private Object parseJson() throws IOException {
+        Object result = Manager.getObjectMapper().readValue(json, Object.class);
+        if (metadata != null && result instanceof Map)
+            ((Map<String, Object>) result).putAll(metadata);
+        return result;
+    }
+
     public boolean isValidJSON() {
         if (object == null) {
             boolean gotException = false;
@@ -111,7 +129,7 @@ public class Body {
                 throw new IllegalStateException("Both object and json are null for this body: " + this);
             }
             try {
-                object = Manager.getObjectMapper().readValue(json, Object.class);
+                object = parseJson();
             } catch (IOException e) {
             }
         }
@@ -171,4 +189,35 @@ public class Body {
     public Object getObject(String key) {
         return getProperties() != null ? getProperties().get(key) : null;
     }
+
+    /**
+     * A rough estimate of the heap used by this body, in bytes. It doesn't parse or serialize
+     * anything: it walks the object if there is one, or else goes by the length of the JSON.
+     */
+    public int getEstimatedSize() {
+        Object theObject = object;
+        if (theObject != null)
+            return estimateSize(theObject);
+        byte[] theJson = json;
+        // Parsed JSON takes roughly three times as much memory as its UTF-8 encoding:
+        return theJson != null ? 16 + 3 * theJson.length : 0;
+    }
+
+    private static int estimateSize(Object value) {
+        if (value instanceof String)
+            return 40 + 2 * ((String) value).length();
+        if (value instanceof Map) {
+            int size = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            return size;
+        }
+        if (value instanceof List) {
+            int size = 24;
+            for (Object item : (List<?>) value)
+                size += 8 + estimateSize(item);
+            return size;
+        }
+        return 16;
+    }
 }
@@ -0,0 +1,272 @@
+package com.couchbase.lite.internal;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.util.Log;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A revision received from a remote database, which keeps the JSON body as it came over the wire.
+ * <p/>
+ * The pull replicator used to parse every downloaded document into a Map, only for the store to
+ * serialize the Map back into JSON. A RawRevision is instead created by a streaming scan of the
+ * document's top-level properties: the metadata (_id, _rev, _deleted and _revisions) is
+ * extracted and the byte ranges of all other properties are copied into the canonical JSON
+ * that will be stored. The properties are only parsed if something asks for them, such as a
+ * validation function.
+ * <p/>
+ * Documents with _attachments aren't handled, since inserting them rewrites the attachment
+ * metadata; fromJSON() returns null for those, and the caller should parse them normally.
+ */
+public class RawRevision extends RevisionInternal {
+
+    private final byte[] canonicalJSON;
+    private final List<String> history;
+    private final String docType;
+
+    public RawRevision(String docID, String revID, boolean deleted,
+                       byte[] canonicalJSON, List<String> history, String docType) {
+        super(docID, revID, deleted);
+        this.canonicalJSON = canonicalJSON;
+        this.history = history;
+        this.docType = docType;
+
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("_id", docID);
+        metadata.put("_rev", revID);
+        if (deleted)
+            metadata.put("_deleted", true);
+        setBody(new Body(canonicalJSON, metadata));
+    }
+
+    /**
+     * The JSON to store: the document's properties without the metadata properties.
+     */
+    public byte[] getCanonicalJSON() {
+        return canonicalJSON;
+    }
+
+    /**
+     * The revision history from the _revisions property, in reverse chronological order.
+     */
+    public List<String> getHistory() {
+        return history;
+    }
+
+    /**
+     * The value of the document's "type" property, or null.
+     */
+    public String getDocType() {
+        return docType;
+    }
+
+    @Override
+    public Map<String, Object> getAttachments() {
+        // fromJSON() never creates a RawRevision for a document with attachments
+        return null;
+    }
+
+    @Override
+    public Object getObject(String key) {
+        if ("type".equals(key))
+            return docType;
+        return super.getObject(key);
+    }
+
+    @Override
+    public RevisionInternal copy() {
+        RawRevision rev = new RawRevision(getDocID(), getRevID(), isDeleted(),
+                canonicalJSON, history, docType);
+        rev.setSequence(getSequence());
+        return rev;
+    }
+
+    /**
+     * Scans a document's JSON as returned by GET or _bulk_get with revs=true.
+     *
+     * @return The revision, or null if the document can't be stored without parsing it (it has
+     * attachments or invalid metadata, or it is an error response rather than a document.)
+     */
+    public static RawRevision fromJSON(byte[] json, int offset, int length) {
+        JsonParser parser = null;
+        try {
+            parser = Manager.getObjectMapper().getFactory().createParser(json, offset, length);
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return null;
+
+            // Depending on the parser, byte offsets are relative to the array or to 'offset', so
+            // calibrate them against the position of the opening brace:
+            int start = offset;
+            while (start < offset + length && isWhitespace(json[start]))
+                start++;
+            if (tokenOffset(parser) < 0)
+                return null;  // not a byte-based parser
+            long delta = start - tokenOffset(parser);
+
+            String docID = null;
+            String revID = null;
+            boolean deleted = false;
+            String docType = null;
+            List<String> history = null;
+
+            // Start and end offsets of the properties to copy:
+            int[] ranges = new int[16];
+            int nRanges = 0;
+            int propertyStart = -1;  // start of the property being copied, if any
+            JsonToken token;
+            while (true) {
+                token = parser.nextToken();
+                if (propertyStart >= 0) {
+                    // The property being copied ends before this token and its preceding comma:
+                    int end = (int) (tokenOffset(parser) + delta);
+                    while (isWhitespace(json[end - 1]))
+                        end--;
+                    if (token == JsonToken.FIELD_NAME && json[end - 1] == ',')
+                        end--;
+                    while (isWhitespace(json[end - 1]))
+                        end--;
+                    if (nRanges == ranges.length)
+                        ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+                    ranges[nRanges++] = propertyStart;
+                    ranges[nRanges++] = end;
+                    propertyStart = -1;
+                }
+                if (token != JsonToken.FIELD_NAME)
+                    break;
+
+                String key = parser.getCurrentName();
+                // Older parsers may locate a field name at the comma before it:
+                int keyStart = (int) (tokenOffset(parser) + delta);
+                while (isWhitespace(json[keyStart]) || json[keyStart] == ',')
+                    keyStart++;
+                JsonToken value = parser.nextToken();
+                if (!key.startsWith("_") || key.equals("_removed")) {
+                    if (key.equals("type")) {
+                        if (value != JsonToken.VALUE_STRING)
+                            return null;
+                        docType = parser.getText();
+                    }
+                    propertyStart = keyStart;
+                    parser.skipChildren();
+                } else if (key.equals("_id")) {
+                    if (value != JsonToken.VALUE_STRING)
+                        return null;
+                    docID = parser.getText();
+                } else if (key.equals("_rev")) {
+                    if (value != JsonToken.VALUE_STRING)
+                        return null;
+                    revID = parser.getText();
+                } else if (key.equals("_deleted")) {
+                    deleted = (value == JsonToken.VALUE_TRUE);
+                } else if (key.equals("_revisions")) {
+                    if (value != JsonToken.START_OBJECT)
+                        return null;
+                    history = parseRevisions(parser);
+                    if (history == null)
+                        return null;
+                } else if (key.equals("_revs_info") || key.equals("_conflicts") ||
+                        key.equals("_deleted_conflicts") || key.equals("_local_seq")) {
+                    parser.skipChildren();
+                } else {
+                    // _attachments, or an invalid top-level key
+                    return null;
+                }
+            }
+            if (token != JsonToken.END_OBJECT || parser.nextToken() != null)
+                return null;
+            if (docID == null || revID == null)
+                return null;
+            if (history == null)
+                history = new ArrayList<String>();
+            return new RawRevision(docID, revID, deleted,
+                    copyRanges(json, ranges, nRanges), history, docType);
+        } catch (Exception e) {
+            // Let the regular parser report the error:
+            Log.v(Log.TAG_SYNC, "RawRevision: unable to scan document JSON: %s", e);
+            return null;
+        } finally {
+            if (parser != null) {
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a _revisions object ({"start": n, "ids": [...]}) into a list of revision IDs, the
+     * same way as Database.parseCouchDBRevisionHistory(). Returns null if it's malformed.
+     */
+    private static List<String> parseRevisions(JsonParser parser) throws IOException {
+        int start = -1;
+        List<String> ids = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (key.equals("start")) {
+                if (value != JsonToken.VALUE_NUMBER_INT)
+                    return null;
+                start = parser.getIntValue();
+            } else if (key.equals("ids")) {
+                if (value != JsonToken.START_ARRAY)
+                    return null;
+                ids = new ArrayList<String>();
+                while (parser.nextToken() == JsonToken.VALUE_STRING)
+                    ids.add(parser.getText());
+                if (parser.getCurrentToken() != JsonToken.END_ARRAY)
+                    return null;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (ids == null)
+            return new ArrayList<String>();
+        if (start >= 0) {
+            for (int i = 0; i < ids.size(); i++)
+                ids.set(i, Integer.toString(start--) + '-' + ids.get(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Copies the given property ranges of 'json' into a new JSON object.
+     */
+    private static byte[] copyRanges(byte[] json, int[] ranges, int nRanges) {
+        int length = 2 + Math.max(0, nRanges / 2 - 1);  // braces and commas
+        for (int i = 0; i < nRanges; i += 2)
+            length += ranges[i + 1] - ranges[i];
+        byte[] result = new byte[length];
+        int pos = 0;
+        result[pos++] = '{';
+        for (int i = 0; i < nRanges; i += 2) {
+            if (i > 0)
+                result[pos++] = ',';
+            int rangeLength = ranges[i + 1] - ranges[i];
+            System.arraycopy(json, ranges[i], result, pos, rangeLength);
+            pos += rangeLength;
+        }
+        result[pos] = '}';
+        return result;
+    }
+
+    // Jackson 2.5 reports offsets into byte input as character offsets, and later versions as
+    // byte offsets:
+    private static long tokenOffset(JsonParser parser) {
+        JsonLocation location = parser.getTokenLocation();
+        long offset = location.getByteOffset();
+        return offset >= 0 ? offset : location.getCharOffset();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
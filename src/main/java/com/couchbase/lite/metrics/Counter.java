@@ -0,0 +1,37 @@
+package com.couchbase.lite.metrics;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count of events, such as commits or bytes written. Obtained from Metrics.counter().
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public final class Counter {
+
+    private final AtomicLong value = new AtomicLong();
+
+    Counter() {
+    }
+
+    public void increment() {
+        if (Metrics.isEnabled())
+            value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        if (Metrics.isEnabled())
+            value.addAndGet(delta);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    void reset() {
+        value.set(0);
+    }
+}
@@ -0,0 +1,34 @@
+package com.couchbase.lite.metrics;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A current level, such as the number of objects waiting in queues. Unlike a Counter it's
+ * updated whether or not metrics are enabled, so that it's correct when they get enabled;
+ * updates should therefore be cheap and infrequent compared to the work they describe.
+ * Obtained from Metrics.gauge().
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public final class Gauge {
+
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge() {
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public void set(long newValue) {
+        value.set(newValue);
+    }
+
+    public long get() {
+        return value.get();
+    }
+}
@@ -0,0 +1,119 @@
+package com.couchbase.lite.metrics;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, with HDR-style log-linear buckets: every power of two
+ * is split into 16 linear sub-buckets, so any recorded value is known to within 1/16 (6.25%)
+ * over the whole range of a long, using a fixed array of counts. Recording is lock-free and
+ * doesn't allocate. Obtained from Metrics.histogram().
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Records the time elapsed since 'startNanos', a value returned by Metrics.startTimer().
+     * Does nothing if that was 0 (i.e. metrics were disabled when the timer was started.)
+     */
+    public void recordSince(long startNanos) {
+        if (startNanos != 0)
+            record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+        if (!Metrics.isEnabled())
+            return;
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The value at the given percentile (0-100), in nanoseconds. This is the highest value
+     * that falls into the same bucket, so it overestimates by less than 6.25%.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(bucketUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the count, and the mean, 50th/90th/99th percentiles and maximum in milliseconds.
+     */
+    public Map<String, Object> snapshot() {
+        long n = count.get();
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("count", n);
+        result.put("mean_ms", n > 0 ? millis(total.get() / n) : 0.0);
+        result.put("p50_ms", millis(getValueAtPercentile(50)));
+        result.put("p90_ms", millis(getValueAtPercentile(90)));
+        result.put("p99_ms", millis(getValueAtPercentile(99)));
+        result.put("max_ms", millis(max.get()));
+        return result;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
@@ -0,0 +1,123 @@
+package com.couchbase.lite.metrics;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The process-wide registry of performance metrics: counters, gauges and latency histograms.
+ * <p/>
+ * Metrics are disabled by default. Instrumented code keeps each metric in a static field, so
+ * recording doesn't look anything up or allocate, and while metrics are disabled recording
+ * costs a single volatile read. Timings are taken like this:
+ * <pre>
+ *   long start = Metrics.startTimer();  // 0 if disabled, so System.nanoTime() isn't called
+ *   ...
+ *   QUERY_TIME.recordSince(start);
+ * </pre>
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public final class Metrics {
+
+    private static volatile boolean enabled;
+
+    private static final ConcurrentMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Gauge> gauges =
+            new ConcurrentHashMap<String, Gauge>();
+    private static final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Returns the start time to pass to LatencyHistogram.recordSince(), or 0 if metrics are
+     * disabled.
+     */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if necessary.
+     */
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the gauge with the given name, creating it if necessary.
+     */
+    public static Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            Gauge newGauge = new Gauge();
+            gauge = gauges.putIfAbsent(name, newGauge);
+            if (gauge == null)
+                gauge = newGauge;
+        }
+        return gauge;
+    }
+
+    /**
+     * Returns the latency histogram with the given name, creating it if necessary.
+     */
+    public static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the current values of all metrics, sorted by name: counters and gauges as Longs,
+     * histograms as maps of their statistics (see LatencyHistogram.snapshot().)
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<String, Object>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+            result.put(entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+            result.put(entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            if (entry.getValue().getCount() > 0)
+                result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Resets all counters and histograms. Gauges are left alone since they track current state.
+     */
+    public static void reset() {
+        for (Counter counter : counters.values())
+            counter.reset();
+        for (LatencyHistogram histogram : histograms.values())
+            histogram.reset();
+    }
+}
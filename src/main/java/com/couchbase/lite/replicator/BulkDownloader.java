@@ -3,7 +3,9 @@ package com.couchbase.lite.replicator;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RawRevision;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.support.MultipartDocumentReader;
 import com.couchbase.lite.support.MultipartReader;
@@ -48,6 +50,7 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
     private MultipartReader _topReader;
     private MultipartDocumentReader _docReader;
     private BulkDownloaderDocumentBlock _onDocument;
+    private boolean _rawRevisionsEnabled;
 
     public BulkDownloader(ScheduledExecutorService workExecutor,
                           HttpClientFactory clientFactory,
@@ -72,6 +75,14 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
 
     }
 
+    /**
+     * If enabled, documents without attachments are passed to the document block's onRevision()
+     * as RawRevisions, whose JSON isn't parsed, instead of to onDocument() as properties.
+     */
+    public void setRawRevisionsEnabled(boolean rawRevisionsEnabled) {
+        _rawRevisionsEnabled = rawRevisionsEnabled;
+    }
+
     @Override
     public void run() {
         HttpClient httpClient = clientFactory.getHttpClient();
@@ -100,6 +111,7 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
 
     @Override
     protected void executeRequest(HttpClient httpClient, HttpUriRequest request) {
+        long start = Metrics.startTimer();
         Object fullBody = null;
         Throwable error = null;
         HttpResponse response = null;
@@ -110,6 +122,7 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
                 return;
             }
             response = httpClient.execute(request);
+            REQUEST_TIME.recordSince(start);
             try {
                 // add in cookies to global store
                 if (httpClient instanceof DefaultHttpClient) {
@@ -197,6 +210,7 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
             }
         } catch (Exception e) {
             Log.e(Log.TAG_REMOTE_REQUEST, "%s: executeRequest() Exception: ", e, this);
+            REQUEST_ERRORS.increment();
             error = e;
         } finally {
             Log.v(TAG, "%s: BulkDownloader finally block.  url: %s", this, url);
@@ -217,6 +231,7 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
         Log.v(TAG, "%s: Starting new document; headers =%s", this, headers);
         Log.v(TAG, "%s: Starting new document; ID=%s", this, headers.get("X-Doc-Id"));
         _docReader = new MultipartDocumentReader(db);
+        _docReader.setRawRevisionsEnabled(_rawRevisionsEnabled);
         _docReader.setHeaders(headers);
         _docReader.startedPart(headers);
     }
@@ -248,7 +263,10 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
         }
 
         _docReader.finish();
-        _onDocument.onDocument(_docReader.getDocumentProperties());
+        if (_docReader.getRawRevision() != null)
+            _onDocument.onRevision(_docReader.getRawRevision());
+        else
+            _onDocument.onDocument(_docReader.getDocumentProperties());
         _docReader = null;
     }
 
@@ -258,6 +276,8 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
     @InterfaceAudience.Private
     public interface BulkDownloaderDocumentBlock {
         public void onDocument(Map<String, Object> props);
+
+        public void onRevision(RawRevision rev);
     }
 
     private static Map<String, Object> helperMethod(List<RevisionInternal> revs, final Database database) {
@@ -11,6 +11,7 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
@@ -30,8 +31,10 @@ import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.protocol.HttpContext;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -53,6 +56,11 @@ import java.util.zip.GZIPInputStream;
 public class ChangeTracker implements Runnable {
     private static final int TIMEOUT_FOR_PAUSE = 5 * 1000; // 5 sec
 
+    // The type of a change object read from a streaming feed
+    private static final TypeReference<Map<String, Object>> CHANGE_TYPE =
+            new TypeReference<Map<String, Object>>() {
+            };
+
     private URL databaseURL;
     private Object lastSequenceID;
     private boolean continuous = false;  // is enclosing replication continuous?
@@ -84,7 +92,7 @@ public class ChangeTracker implements Runnable {
     public enum ChangeTrackerMode {
         OneShot,
         LongPoll,
-        Continuous  // does not work, do not use it.
+        Continuous
     }
 
     public ChangeTracker(URL databaseURL, ChangeTrackerMode mode, boolean includeConflicts,
@@ -246,16 +254,10 @@ public class ChangeTracker implements Runnable {
             return;
         }
 
-        if (mode == ChangeTrackerMode.Continuous) {
-            // there is a failing unit test for this, and from looking at the code the Replication
-            // object will never use Continuous mode anyway.  Explicitly prevent its use until
-            // it is demonstrated to actually work.
-            throw new RuntimeException("ChangeTracker does not correctly support continuous mode");
-        }
-
         HttpClient httpClient = client.getHttpClient();
         try {
             backoff = new ChangeTrackerBackoff();
+            addPreemptiveAuth(httpClient);
 
             while (running) {
                 startTime = System.currentTimeMillis();
@@ -280,45 +282,11 @@ public class ChangeTracker implements Runnable {
                 }
 
                 addRequestHeaders(request);
-
-                // Perform BASIC Authentication if needed
-                boolean isUrlBasedUserInfo = false;
-
-                // If the URL contains user info AND if this a DefaultHttpClient then preemptively set the auth credentials
-                String userInfo = url.getUserInfo();
-                if (userInfo != null) {
-                    isUrlBasedUserInfo = true;
-                } else {
-                    if (authenticator != null) {
-                        AuthenticatorImpl auth = (AuthenticatorImpl) authenticator;
-                        userInfo = auth.authUserInfo();
-                    }
-                }
-
-                if (userInfo != null) {
-                    if (userInfo.contains(":") && !":".equals(userInfo.trim())) {
-                        String[] userInfoElements = userInfo.split(":");
-                        String username = isUrlBasedUserInfo ? URIUtils.decode(userInfoElements[0]) : userInfoElements[0];
-                        String password = isUrlBasedUserInfo ? URIUtils.decode(userInfoElements[1]) : userInfoElements[1];
-                        final Credentials credentials = new UsernamePasswordCredentials(username, password);
-
-                        if (httpClient instanceof DefaultHttpClient) {
-                            DefaultHttpClient dhc = (DefaultHttpClient) httpClient;
-                            HttpRequestInterceptor preemptiveAuth = new HttpRequestInterceptor() {
-                                @Override
-                                public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
-                                    AuthState authState = (AuthState) context.getAttribute(ClientContext.TARGET_AUTH_STATE);
-                                    if (authState.getAuthScheme() == null) {
-                                        authState.setAuthScheme(new BasicScheme());
-                                        authState.setCredentials(credentials);
-                                    }
-                                }
-                            };
-                            dhc.addRequestInterceptor(preemptiveAuth, 0);
-                        }
-                    } else {
-                        Log.w(Log.TAG_CHANGE_TRACKER, "RemoteRequest Unable to parse user info, not setting credentials");
-                    }
+                if (mode == ChangeTrackerMode.Continuous) {
+                    // The server sends a newline every heartbeat, so a read that times out
+                    // well after that means the connection is dead:
+                    HttpConnectionParams.setSoTimeout(request.getParams(),
+                            (int) getHeartbeatMilliseconds() * 2);
                 }
 
                 try {
@@ -330,9 +298,10 @@ public class ChangeTracker implements Runnable {
                     StatusLine status = response.getStatusLine();
                     // In case response status is Error, ChangeTracker stops here
                     // except mode is LongPoll and error is transient.
+                    boolean polling = mode == ChangeTrackerMode.LongPoll ||
+                            mode == ChangeTrackerMode.Continuous;
                     if (status.getStatusCode() >= 300 &&
-                            ((mode == ChangeTrackerMode.LongPoll && !Utils.isTransientError(status)) ||
-                                    mode != ChangeTrackerMode.LongPoll)) {
+                            (!polling || !Utils.isTransientError(status))) {
                         Log.e(Log.TAG_CHANGE_TRACKER, "%s: Change tracker got error %d", this, status.getStatusCode());
                         this.error = new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
                         HttpEntity entity = response.getEntity();
@@ -355,9 +324,26 @@ public class ChangeTracker implements Runnable {
                                 inputStream = entity.getContent();
                                 // decompress if contentEncoding is gzip
                                 if (Utils.isGzip(entity))
-                                    inputStream = new GZIPInputStream(inputStream);
-
-                                if (mode == ChangeTrackerMode.LongPoll) {  // continuous replications
+                                    inputStream = new FeedGZIPInputStream(inputStream);
+
+                                if (mode == ChangeTrackerMode.Continuous) {  // continuous replications
+                                    int received = 0;
+                                    if (status.getStatusCode() < 300)
+                                        received = readContinuousFeed(inputStream);
+                                    long elapsed = (System.currentTimeMillis() - startTime) / 1000;
+                                    Log.v(Log.TAG_CHANGE_TRACKER, "%s: Continuous feed closed after %d sec and %d changes", this, elapsed, received);
+                                    if (received == 0 && elapsed >= 30) {
+                                        // Closed by a proxy while idle, as for longpoll below:
+                                        this.heartBeatSeconds = Math.min(this.heartBeatSeconds, (int) (elapsed * 0.75));
+                                    } else if (received == 0) {
+                                        // Closed right away; don't hammer the server:
+                                        backoff.sleepAppropriateAmountOfTime();
+                                        continue;
+                                    }
+                                    // Reconnect, resuming from the last sequence received:
+                                    backoff.resetBackoff();
+                                    continue;
+                                } else if (mode == ChangeTrackerMode.LongPoll) {
                                     // NOTE: 1. check content length, ObjectMapper().readValue() throws Exception if size is 0.
                                     // NOTE: 2. HttpEntity.getContentLength() returns the number of bytes of the content, or a negative number if unknown.
                                     // NOTE: 3. If Http Status is error, not parse response body
@@ -410,7 +396,7 @@ public class ChangeTracker implements Runnable {
                                     }
 
                                     while (jp.nextToken() == JsonToken.START_OBJECT) {
-                                        Map<String, Object> change = (Map) Manager.getObjectMapper().readValue(jp, Map.class);
+                                        Map<String, Object> change = Manager.getObjectMapper().readValue(jp, CHANGE_TYPE);
                                         if (!receivedChange(change)) {
                                             Log.w(Log.TAG_CHANGE_TRACKER, "Received unparseable change line from server: %s", change);
                                         }
@@ -428,7 +414,7 @@ public class ChangeTracker implements Runnable {
                                     client.changeTrackerCaughtUp();
 
                                     if (isContinuous()) {  // if enclosing replication is continuous
-                                        mode = ChangeTrackerMode.LongPoll;
+                                        mode = ChangeTrackerMode.Continuous;
                                     } else {
                                         Log.d(Log.TAG_CHANGE_TRACKER, "%s: Change tracker calling stop (OneShot)", this);
                                         client.changeTrackerFinished(this);
@@ -476,6 +462,147 @@ public class ChangeTracker implements Runnable {
         Log.v(Log.TAG_CHANGE_TRACKER, "%s: Change tracker run loop exiting", this);
     }
 
+    /**
+     * Reads the change objects of a feed=continuous response, one per line, until the server
+     * closes the connection or the tracker stops, and returns the number received. The client is
+     * told it's caught up whenever the parser has consumed everything the server has sent so
+     * far, i.e. when the server is waiting for new changes. A dropped connection just ends the
+     * feed; the caller reconnects with 'since' set to the last sequence received.
+     */
+    protected int readContinuousFeed(InputStream in) throws IOException {
+        ContinuousFeedInputStream feed = new ContinuousFeedInputStream(in);
+        JsonParser jp = Manager.getObjectMapper().getFactory().createParser(feed);
+        int received = 0;
+        try {
+            // Heartbeats are blank lines, which the parser skips as whitespace:
+            while (running && jp.nextToken() == JsonToken.START_OBJECT) {
+                feed.betweenChanges = false;
+                Map<String, Object> change = Manager.getObjectMapper().readValue(jp, CHANGE_TYPE);
+                if (change.get("seq") == null && change.containsKey("last_seq")) {
+                    // The server is ending the feed (e.g. CouchDB's timeout.)
+                    break;
+                }
+                if (!receivedChange(change)) {
+                    Log.w(Log.TAG_CHANGE_TRACKER, "Received unparseable change line from server: %s", change);
+                } else {
+                    received++;
+                    feed.caughtUp = false;
+                }
+                feed.betweenChanges = true;
+            }
+        } catch (IOException e) {
+            if (running)
+                Log.w(Log.TAG_CHANGE_TRACKER, "%s: Continuous feed interrupted: %s", this, e.toString());
+        } finally {
+            try {
+                jp.close();
+            } catch (IOException e) {
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Notifies the client that it has caught up before the parser blocks waiting for the next
+     * change; since the parser only reads when its buffer is empty, a read between two changes
+     * when the connection has no data available means the server has nothing more to send.
+     */
+    private class ContinuousFeedInputStream extends FilterInputStream {
+        volatile boolean betweenChanges = true;
+        volatile boolean caughtUp = false;
+
+        ContinuousFeedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCaughtUp();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkCaughtUp();
+            return in.read(buffer, offset, count);
+        }
+
+        private void checkCaughtUp() throws IOException {
+            if (betweenChanges && !caughtUp && running && in.available() == 0) {
+                caughtUp = true;
+                ChangeTrackerClient client = ChangeTracker.this.client;
+                if (client != null)
+                    client.changeTrackerCaughtUp();
+            }
+        }
+    }
+
+    /**
+     * A GZIPInputStream whose available() reflects the compressed data received so far, instead
+     * of returning 1 until the end of the stream, so that ContinuousFeedInputStream can tell when
+     * a gzip-encoded feed has been read up to what the server has sent.
+     */
+    private static class FeedGZIPInputStream extends GZIPInputStream {
+        FeedGZIPInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (eos)
+                return 0;
+            // Compressed data that has been read but not inflated yet may hold more changes:
+            if (!inf.needsInput())
+                return 1;
+            return in.available();
+        }
+    }
+
+    /**
+     * Perform BASIC Authentication if needed. The interceptor is added once per HttpClient,
+     * not for every request of the feed.
+     */
+    private void addPreemptiveAuth(HttpClient httpClient) {
+        boolean isUrlBasedUserInfo = false;
+
+        // If the URL contains user info AND if this a DefaultHttpClient then preemptively set the auth credentials
+        String userInfo = databaseURL.getUserInfo();
+        if (userInfo != null) {
+            isUrlBasedUserInfo = true;
+        } else {
+            if (authenticator != null) {
+                AuthenticatorImpl auth = (AuthenticatorImpl) authenticator;
+                userInfo = auth.authUserInfo();
+            }
+        }
+
+        if (userInfo != null) {
+            if (userInfo.contains(":") && !":".equals(userInfo.trim())) {
+                String[] userInfoElements = userInfo.split(":");
+                String username = isUrlBasedUserInfo ? URIUtils.decode(userInfoElements[0]) : userInfoElements[0];
+                String password = isUrlBasedUserInfo ? URIUtils.decode(userInfoElements[1]) : userInfoElements[1];
+                final Credentials credentials = new UsernamePasswordCredentials(username, password);
+
+                if (httpClient instanceof DefaultHttpClient) {
+                    DefaultHttpClient dhc = (DefaultHttpClient) httpClient;
+                    HttpRequestInterceptor preemptiveAuth = new HttpRequestInterceptor() {
+                        @Override
+                        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                            AuthState authState = (AuthState) context.getAttribute(ClientContext.TARGET_AUTH_STATE);
+                            if (authState.getAuthScheme() == null) {
+                                authState.setAuthScheme(new BasicScheme());
+                                authState.setCredentials(credentials);
+                            }
+                        }
+                    };
+                    dhc.addRequestInterceptor(preemptiveAuth, 0);
+                }
+            } else {
+                Log.w(Log.TAG_CHANGE_TRACKER, "RemoteRequest Unable to parse user info, not setting credentials");
+            }
+        }
+    }
+
     public boolean receivedChange(final Map<String, Object> change) {
         // wait if paused flag is on.
         waitIfPaused();
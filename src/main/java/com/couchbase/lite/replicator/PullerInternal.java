@@ -9,6 +9,7 @@ import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.TransactionalTask;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RawRevision;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.support.BatchProcessor;
@@ -65,6 +66,14 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
     private static final int INSERTION_BATCHER_DELAY = 250; // 0.25 Seconds
 
+    // Number of download requests kept in flight when a replication starts; the download window
+    // then adapts to the observed latency and throughput.
+    private static final int INITIAL_DOWNLOAD_WINDOW = 4;
+
+    // Maximum number of downloaded revisions waiting to be inserted. While the insertion queue is
+    // full no new downloads are started, so slow inserts don't hold on to unbounded memory.
+    private static final int MAX_QUEUED_INSERTIONS = 1000;
+
     private ChangeTracker changeTracker;
     protected SequenceMap pendingSequences;
     protected Boolean canBulkGet;  // Does the server support _bulk_get requests?
@@ -76,6 +85,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             new ArrayList<RevisionInternal>(100));
     protected int httpConnectionCount;
     protected Batcher<RevisionInternal> downloadsToInsert;
+    protected RequestWindow downloadWindow;
 
     private String str = null;
 
@@ -99,6 +109,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 if (isRunning()) {
                     Log.v(TAG, "start startReplicating()");
                     initPendingSequences();
+                    initDownloadWindow();
                     initDownloadsToInsert();
                     startChangeTracker();
                 }
@@ -107,6 +118,26 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         });
     }
 
+    private void initDownloadWindow() {
+        if (downloadWindow == null) {
+            int maxRequests = db.getManager().getPullerMaxConcurrentRequests() > 0 ?
+                    db.getManager().getPullerMaxConcurrentRequests() : MAX_OPEN_HTTP_CONNECTIONS;
+            // Requests beyond the number of request threads would only wait in the executor:
+            maxRequests = Math.min(maxRequests, getExecutorThreadPoolSize());
+            downloadWindow = new RequestWindow(INITIAL_DOWNLOAD_WINDOW, 1, maxRequests);
+        }
+    }
+
+    /**
+     * The adaptive limit on concurrent download requests, with the statistics of this puller's
+     * download pipeline (round-trip time, throughput, requests and revisions received.) The
+     * totals of all pullers are in the "replicator.pull.*" metrics.
+     */
+    @InterfaceAudience.Private
+    public RequestWindow getDownloadWindow() {
+        return downloadWindow;
+    }
+
     private void initDownloadsToInsert() {
         if (downloadsToInsert == null) {
             int capacity = 200;
@@ -148,7 +179,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         ChangeTracker.ChangeTrackerMode changeTrackerMode;
 
         // it always starts out as OneShot, but if its a continuous replication
-        // it will switch to longpoll later.
+        // it will switch to the continuous feed later.
         changeTrackerMode = ChangeTracker.ChangeTrackerMode.OneShot;
 
         Log.d(TAG, "%s: starting ChangeTracker with since=%s mode=%s",
@@ -249,10 +280,19 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     public void pullRemoteRevisions() {
         //find the work to be done in a synchronized block
         List<RevisionInternal> workToStartNow = new ArrayList<RevisionInternal>();
-        List<RevisionInternal> bulkWorkToStartNow = new ArrayList<RevisionInternal>();
+        List<List<RevisionInternal>> bulkWorkToStartNow = new ArrayList<List<RevisionInternal>>();
+
+        int maxConnections = downloadWindow != null ?
+                downloadWindow.getSize() : MAX_OPEN_HTTP_CONNECTIONS;
+        if (downloadsToInsert != null && downloadsToInsert.count() >= MAX_QUEUED_INSERTIONS) {
+            // insertDownloads() will call this again once the queue has drained:
+            Log.v(TAG, "%s: insertion queue is full; not starting new downloads", this);
+            return;
+        }
 
         synchronized (bulkRevsToPull) {
-            while (httpConnectionCount + workToStartNow.size() < MAX_OPEN_HTTP_CONNECTIONS) {
+            while (httpConnectionCount + workToStartNow.size() + bulkWorkToStartNow.size()
+                    < maxConnections) {
                 int nBulk = (bulkRevsToPull.size() < MAX_REVS_TO_GET_IN_BULK) ?
                         bulkRevsToPull.size() : MAX_REVS_TO_GET_IN_BULK;
 
@@ -263,7 +303,9 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 }
 
                 if (nBulk > 0) {
-                    bulkWorkToStartNow.addAll(bulkRevsToPull.subList(0, nBulk));
+                    // Each batch is a separate request, so the window keeps several in flight:
+                    bulkWorkToStartNow.add(new ArrayList<RevisionInternal>(
+                            bulkRevsToPull.subList(0, nBulk)));
                     bulkRevsToPull.subList(0, nBulk).clear();
                 } else {
                     // Prefer to pull an existing revision over a deleted one:
@@ -279,8 +321,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         }
 
         //actually run it outside the synchronized block
-        if (bulkWorkToStartNow.size() > 0) {
-            pullBulkRevisions(bulkWorkToStartNow);
+        for (List<RevisionInternal> bulkWork : bulkWorkToStartNow) {
+            pullBulkRevisions(bulkWork);
         }
 
         for (RevisionInternal work : workToStartNow) {
@@ -305,8 +347,10 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         Log.v(TAG, "%s: POST _bulk_get", this);
         final List<RevisionInternal> remainingRevs = new ArrayList<RevisionInternal>(bulkRevs);
+        final int nRevsRequested = nRevs;
 
         ++httpConnectionCount;
+        final long startedAt = downloadRequestStarted();
 
         final BulkDownloader dl;
         try {
@@ -329,13 +373,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                                         (String) props.get("rev"), false);
                             }
 
-                            int pos = remainingRevs.indexOf(rev);
-                            if (pos > -1) {
-                                rev.setSequence(remainingRevs.get(pos).getSequence());
-                                remainingRevs.remove(pos);
-                            } else {
-                                Log.w(TAG, "%s : Received unexpected rev rev", this);
-                            }
+                            bulkRevisionReceived(rev, remainingRevs);
 
                             if (props.get("_id") != null) {
                                 // Add to batcher ... eventually it will be fed to -insertRevisions:.
@@ -346,6 +384,11 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                                 revisionFailed(rev, err);
                             }
                         }
+
+                        public void onRevision(RawRevision rev) {
+                            bulkRevisionReceived(rev, remainingRevs);
+                            queueDownloadedRevision(rev);
+                        }
                     },
                     new RemoteRequestCompletionBlock() {
 
@@ -355,14 +398,20 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                                 setError(e);
                                 completedChangesCount.addAndGet(remainingRevs.size());
                             }
+                            downloadRequestFinished(startedAt,
+                                    nRevsRequested - remainingRevs.size(), e != null);
                             --httpConnectionCount;
                             // Start another task if there are still revisions waiting to be pulled:
                             pullRemoteRevisions();
                         }
                     }
             );
+            // A transformation block works on the revision properties, so they have to be parsed:
+            dl.setRawRevisionsEnabled(revisionBodyTransformationBlock == null);
         } catch (Exception e) {
             Log.e(TAG, "%s: pullBulkRevisions Exception: %s", this, e);
+            downloadRequestFinished(startedAt, 0, true);
+            --httpConnectionCount;
             return;
         }
 
@@ -405,6 +454,19 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         });
     }
 
+    /**
+     * Finds the matching revision in 'remainingRevs', copies its sequence and removes it.
+     */
+    private void bulkRevisionReceived(RevisionInternal rev, List<RevisionInternal> remainingRevs) {
+        int pos = remainingRevs.indexOf(rev);
+        if (pos > -1) {
+            rev.setSequence(remainingRevs.get(pos).getSequence());
+            remainingRevs.remove(pos);
+        } else {
+            Log.w(TAG, "%s : Received unexpected rev rev", this);
+        }
+    }
+
     // This invokes the tranformation block if one is installed and queues the resulting CBL_Revision
     private void queueDownloadedRevision(RevisionInternal rev) {
 
@@ -456,6 +518,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         // http://wiki.apache.org/couchdb/HTTP_Bulk_Document_API
 
         ++httpConnectionCount;
+        final long startedAt = downloadRequestStarted();
         final RevisionList remainingRevs = new RevisionList(bulkRevs);
 
         Collection<String> keys = CollectionUtils.transform(bulkRevs,
@@ -527,6 +590,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                             pullRemoteRevisions();
                         }
 
+                        downloadRequestFinished(startedAt,
+                                bulkRevs.size() - remainingRevs.size(), e != null);
                         --httpConnectionCount;
                         // Start another task if there are still revisions waiting to be pulled:
                         pullRemoteRevisions();
@@ -552,7 +617,9 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 try {
                     for (RevisionInternal rev : downloads) {
                         long fakeSequence = rev.getSequence();
-                        List<String> history = db.parseCouchDBRevisionHistory(rev.getProperties());
+                        List<String> history = (rev instanceof RawRevision) ?
+                                ((RawRevision) rev).getHistory() :
+                                db.parseCouchDBRevisionHistory(rev.getProperties());
                         if (history.isEmpty() && rev.getGeneration() > 1) {
                             Log.w(TAG, "%s: Missing revision history in response for: %s", this, rev);
                             setError(new CouchbaseLiteException(Status.UPSTREAM_ERROR));
@@ -611,6 +678,22 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 }
             }
         });
+
+        // Inserting made room in the insertion queue, so more revisions can be downloaded:
+        pullRemoteRevisions();
+    }
+
+    private long downloadRequestStarted() {
+        return downloadWindow != null ? downloadWindow.requestStarted() : System.nanoTime();
+    }
+
+    /**
+     * Records a finished download request in the download window.
+     */
+    private void downloadRequestFinished(long startedAt, int revisionCount, boolean failed) {
+        if (downloadWindow != null &&
+                downloadWindow.requestFinished(startedAt, revisionCount, failed))
+            Log.d(TAG, "%s: download window adjusted: %s", this, downloadWindow);
     }
 
     @InterfaceAudience.Private
@@ -643,6 +726,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         Log.d(TAG, "%s: pullRemoteRevision with rev: %s", this, rev);
 
         ++httpConnectionCount;
+        final long startedAt = downloadRequestStarted();
 
         // Construct a query. We want the revision history, and the bodies of attachments that have
         // been added since the latest revisions we have locally.
@@ -696,6 +780,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                         }
 
                         // Note that we've finished this task:
+                        downloadRequestFinished(startedAt, e != null ? 0 : 1,
+                                e != null && !Utils.isDocumentError(e));
                         --httpConnectionCount;
 
                         // Start another task if there are still revisions waiting to be pulled:
@@ -1017,7 +1103,18 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
     protected void pauseOrResume() {
         int pending = batcher.count() + pendingSequences.count();
-        changeTracker.setPaused(pending >= MAX_PENDING_DOCS);
+        changeTracker.setPaused(pending >= getMaxPendingDocs());
+    }
+
+    /**
+     * The number of revisions that may be waiting to be downloaded or inserted before the
+     * changes feed is paused: enough to fill the download window and the insertion queue.
+     */
+    private int getMaxPendingDocs() {
+        if (downloadWindow == null)
+            return MAX_PENDING_DOCS;
+        return Math.max(MAX_PENDING_DOCS,
+                downloadWindow.getSize() * MAX_REVS_TO_GET_IN_BULK + MAX_QUEUED_INSERTIONS);
     }
 
     @Override
@@ -353,12 +353,9 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                     if (results.size() != 0) {
                         // Go through the list of local changes again, selecting the ones the destination server
                         // said were missing and mapping them to a JSON dictionary in the form _bulk_docs wants:
-                        List<Object> docsToSend = new ArrayList<Object>();
-                        RevisionList revsToSend = new RevisionList();
-                        long bufferedSize = 0;
+                        RevisionList missingRevs = new RevisionList();
                         for (RevisionInternal rev : changes) {
                             // Is this revision in the server's 'missing' list?
-                            Map<String, Object> properties = null;
                             Map<String, Object> revResults = (Map<String, Object>) results.get(rev.getDocID());
                             if (revResults == null) {
                                 removePending(rev);
@@ -369,19 +366,38 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                                 removePending(rev);
                                 continue;
                             }
+                            missingRevs.add(rev);
+                        }
 
-                            // NOTE: force to load body by Database.loadRevisionBody()
-                            // In SQLiteStore.loadRevisionBody() does not load data from database
-                            // if sequence != 0 && body != null
-                            rev.setSequence(0);
-                            rev.setBody(null);
-
-                            RevisionInternal loadedRev;
-                            try {
-                                loadedRev = db.loadRevisionBody(rev);
-                            } catch (CouchbaseLiteException e1) {
-                                Log.w(Log.TAG_SYNC, "%s Couldn't get local contents of %s", rev, PusherInternal.this);
-                                continue;
+                        // Load the bodies and histories of all the missing revisions together, rather
+                        // than with two queries per revision. (Any body loaded by changesSince() is
+                        // replaced, as loadRevisionBodies() always reads from the database.)
+                        Map<Long, List<RevisionInternal>> histories;
+                        try {
+                            db.loadRevisionBodies(missingRevs);
+                            histories = db.getRevisionHistories(missingRevs);
+                        } catch (CouchbaseLiteException e1) {
+                            Log.w(Log.TAG_SYNC, "%s: Couldn't load local revisions: %s", PusherInternal.this, e1);
+                            histories = new HashMap<Long, List<RevisionInternal>>();
+                        }
+
+                        List<Object> docsToSend = new ArrayList<Object>();
+                        RevisionList revsToSend = new RevisionList();
+                        long bufferedSize = 0;
+                        for (RevisionInternal rev : missingRevs) {
+                            Map<String, Object> properties = null;
+                            Map<String, Object> revResults = (Map<String, Object>) results.get(rev.getDocID());
+
+                            RevisionInternal loadedRev = rev;
+                            if (rev.getBody() == null) {
+                                // Not found by sequence; look it up by docID and revID instead:
+                                rev.setSequence(0);
+                                try {
+                                    loadedRev = db.loadRevisionBody(rev);
+                                } catch (CouchbaseLiteException e1) {
+                                    Log.w(Log.TAG_SYNC, "%s Couldn't get local contents of %s", rev, PusherInternal.this);
+                                    continue;
+                                }
                             }
 
                             RevisionInternal populatedRev = transformRevision(loadedRev);
@@ -389,7 +405,10 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                             List<String> possibleAncestors = (List<String>) revResults.get("possible_ancestors");
 
                             properties = new HashMap<String, Object>(populatedRev.getProperties());
-                            Map<String, Object> revisions = db.getRevisionHistoryDictStartingFromAnyAncestor(populatedRev, possibleAncestors);
+                            List<RevisionInternal> history = histories.get(loadedRev.getSequence());
+                            Map<String, Object> revisions = history != null ?
+                                    RevisionUtils.makeRevisionHistoryDict(history, possibleAncestors) :
+                                    db.getRevisionHistoryDictStartingFromAnyAncestor(populatedRev, possibleAncestors);
                             properties.put("_revisions", revisions);
                             populatedRev.setProperties(properties);
 
@@ -654,7 +654,10 @@ public class Replication implements ReplicationInternal.ChangeListener, NetworkR
                 this.clientFactory = managerClientFactory;
             } else {
                 PersistentCookieStore cookieStore = db.getPersistentCookieStore();
-                this.clientFactory = new CouchbaseLiteHttpClientFactory(cookieStore);
+                CouchbaseLiteHttpClientFactory factory = new CouchbaseLiteHttpClientFactory(cookieStore);
+                if (manager != null)
+                    factory.setConnectionPool(manager.getHttpConnectionPool());
+                this.clientFactory = factory;
             }
         }
     }
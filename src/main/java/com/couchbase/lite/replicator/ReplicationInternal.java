@@ -11,6 +11,8 @@ import com.couchbase.lite.auth.Authenticator;
 import com.couchbase.lite.auth.AuthenticatorImpl;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.support.BatchProcessor;
 import com.couchbase.lite.support.Batcher;
 import com.couchbase.lite.support.BlockingQueueListener;
@@ -42,6 +44,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -65,6 +68,14 @@ abstract class ReplicationInternal implements BlockingQueueListener {
 
     private static final String TAG = Log.TAG_SYNC;
 
+    // Number of transitions into each state, across all replications
+    private static final Map<ReplicationState, Counter> STATE_TRANSITIONS =
+            new EnumMap<ReplicationState, Counter>(ReplicationState.class);
+    static {
+        for (ReplicationState state : ReplicationState.values())
+            STATE_TRANSITIONS.put(state, Metrics.counter("replicator.state." + state));
+    }
+
     // Change listeners can be called back synchronously or asynchronously.
     protected enum ChangeListenerNotifyStyle {
         SYNC, ASYNC
@@ -341,10 +352,17 @@ abstract class ReplicationInternal implements BlockingQueueListener {
 
     public abstract void setCreateTarget(boolean createTarget);
 
+    /**
+     * The number of threads that run this replication's HTTP requests.
+     */
+    protected int getExecutorThreadPoolSize() {
+        return db.getManager().getExecutorThreadPoolSize() <= 0 ?
+                EXECUTOR_THREAD_POOL_SIZE : db.getManager().getExecutorThreadPoolSize();
+    }
+
     protected void initializeRequestWorkers() {
         if (remoteRequestExecutor == null) {
-            int executorThreadPoolSize = db.getManager().getExecutorThreadPoolSize() <= 0 ?
-                    EXECUTOR_THREAD_POOL_SIZE : db.getManager().getExecutorThreadPoolSize();
+            int executorThreadPoolSize = getExecutorThreadPoolSize();
             Log.v(Log.TAG_SYNC, "executorThreadPoolSize=" + executorThreadPoolSize);
             remoteRequestExecutor = Executors.newScheduledThreadPool(executorThreadPoolSize, new ThreadFactory() {
                 private int counter = 0;
@@ -1338,6 +1356,7 @@ abstract class ReplicationInternal implements BlockingQueueListener {
 
     private void notifyChangeListenersStateTransition(Transition<ReplicationState, ReplicationTrigger> transition) {
         logTransition(transition);
+        STATE_TRANSITIONS.get(transition.getDestination()).increment();
         Replication.ChangeEvent changeEvent = new Replication.ChangeEvent(this, new ReplicationStateTransition(transition));
         notifyChangeListeners(changeEvent);
     }
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.replicator;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.Gauge;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
+
+/**
+ * An adaptive limit on the number of download requests the puller keeps in flight, along with
+ * the statistics it's based on.
+ * <p/>
+ * The window is adjusted after every completed request, in the style of TCP Vegas. The shortest
+ * time per revision seen so far approximates how long a request takes when nothing is queued
+ * at the server, so its ratio to the smoothed time per revision is the throughput being
+ * achieved relative to the throughput expected for the current window. While that ratio stays
+ * high the window grows by one request; once requests spend most of their time waiting it
+ * shrinks by one, and a failed request halves it.
+ * <p/>
+ * The windows of all pullers also report to the "replicator.pull.*" metrics.
+ */
+@InterfaceAudience.Private
+public class RequestWindow {
+
+    // Weight of a new sample in the smoothed time per revision (the same as TCP's SRTT)
+    private static final double SMOOTHING = 0.125;
+
+    // Grow the window while actual/expected throughput is above this ratio...
+    private static final double GROW_THRESHOLD = 0.8;
+
+    // ...and shrink it when the ratio falls below this one.
+    private static final double SHRINK_THRESHOLD = 0.5;
+
+    // Download requests in flight, across all pullers:
+    private static final Gauge IN_FLIGHT = Metrics.gauge("replicator.pull.requests.inFlight");
+    private static final Counter COMPLETED = Metrics.counter("replicator.pull.requests.completed");
+    private static final Counter FAILED = Metrics.counter("replicator.pull.requests.failed");
+    private static final Counter REVISIONS = Metrics.counter("replicator.pull.revisions");
+    // Adjustments of the window size:
+    private static final Counter GROWN = Metrics.counter("replicator.pull.window.grown");
+    private static final Counter SHRUNK = Metrics.counter("replicator.pull.window.shrunk");
+    // Round-trip time of successful download requests:
+    private static final LatencyHistogram ROUND_TRIP = Metrics.histogram("replicator.pull.request");
+
+    private final int minSize;
+    private final int maxSize;
+    private int size;
+
+    private double minNanosPerRevision = Double.MAX_VALUE;
+    private double smoothedNanosPerRevision;
+    private double smoothedRoundTripNanos;
+
+    private long startTime;
+    private long requestsCompleted;
+    private long requestsFailed;
+    private long revisionsReceived;
+
+    public RequestWindow(int initialSize, int minSize, int maxSize) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.size = Math.min(this.maxSize, Math.max(this.minSize, initialSize));
+    }
+
+    /**
+     * The number of requests that may currently be in flight.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the timestamp to pass to requestFinished() when the request completes, which must
+     * be called exactly once for it.
+     */
+    public synchronized long requestStarted() {
+        IN_FLIGHT.add(1);
+        long now = System.nanoTime();
+        if (startTime == 0)
+            startTime = now;
+        return now;
+    }
+
+    /**
+     * Records a completed request and adjusts the window.
+     *
+     * @param startedAt     The value returned by requestStarted() for this request.
+     * @param revisionCount The number of revisions the request actually returned, which is
+     *                      less than it asked for if some of them couldn't be fetched.
+     * @param failed        True if the request failed.
+     * @return true if the size of the window changed.
+     */
+    public synchronized boolean requestFinished(long startedAt, int revisionCount, boolean failed) {
+        IN_FLIGHT.add(-1);
+        COMPLETED.increment();
+        int oldSize = size;
+        requestsCompleted++;
+        if (failed) {
+            FAILED.increment();
+            requestsFailed++;
+            size = Math.max(minSize, size / 2);
+            if (size != oldSize)
+                SHRUNK.increment();
+            return size != oldSize;
+        }
+        REVISIONS.add(revisionCount);
+        ROUND_TRIP.recordSince(startedAt);
+        revisionsReceived += revisionCount;
+
+        double roundTrip = System.nanoTime() - startedAt;
+        double perRevision = roundTrip / Math.max(1, revisionCount);
+        if (smoothedNanosPerRevision == 0) {
+            smoothedNanosPerRevision = perRevision;
+            smoothedRoundTripNanos = roundTrip;
+        } else {
+            smoothedNanosPerRevision += SMOOTHING * (perRevision - smoothedNanosPerRevision);
+            smoothedRoundTripNanos += SMOOTHING * (roundTrip - smoothedRoundTripNanos);
+        }
+        minNanosPerRevision = Math.min(minNanosPerRevision, perRevision);
+
+        double ratio = minNanosPerRevision / smoothedNanosPerRevision;
+        if (ratio > GROW_THRESHOLD)
+            size = Math.min(maxSize, size + 1);
+        else if (ratio < SHRINK_THRESHOLD)
+            size = Math.max(minSize, size - 1);
+        if (size > oldSize)
+            GROWN.increment();
+        else if (size < oldSize)
+            SHRUNK.increment();
+        return size != oldSize;
+    }
+
+    public synchronized long getRequestsCompleted() {
+        return requestsCompleted;
+    }
+
+    public synchronized long getRequestsFailed() {
+        return requestsFailed;
+    }
+
+    public synchronized long getRevisionsReceived() {
+        return revisionsReceived;
+    }
+
+    /**
+     * The smoothed round-trip time of a request, in milliseconds.
+     */
+    public synchronized double getRoundTripTime() {
+        return smoothedRoundTripNanos / 1e6;
+    }
+
+    /**
+     * The average number of revisions received per second since the first request started.
+     */
+    public synchronized double getThroughput() {
+        if (startTime == 0)
+            return 0;
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? revisionsReceived / seconds : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RequestWindow{size=%d/%d, rtt=%.1fms, %.1f revs/sec, " +
+                        "requests=%d, failed=%d, revs=%d}",
+                size, maxSize, getRoundTripTime(), getThroughput(),
+                requestsCompleted, requestsFailed, revisionsReceived);
+    }
+}
@@ -1,5 +1,8 @@
 package com.couchbase.lite.router;
 
+import com.couchbase.lite.BlobStoreWriter;
+import com.couchbase.lite.support.security.SymmetricKeyException;
+
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -24,7 +27,7 @@ public class BufferInputStream extends InputStream {
                     // ignore
                 }
             }
-            return (int) buffer.pop();
+            return buffer.pop();
         }
     }
 
@@ -53,4 +56,44 @@ public class BufferInputStream extends InputStream {
             return os.getBuffer().pop(bytes, offset, length);
         }
     }
+
+    @Override
+    public int available() throws IOException {
+        ByteBuffer buffer = os.getBuffer();
+        synchronized (buffer) {
+            return (int) Math.min(buffer.size(), Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Reads the rest of the stream into the writer. The buffer's segments are handed to the
+     * writer as they are, rather than being copied into an intermediate array first, and are
+     * consumed outside the buffer's lock so the writing thread isn't held up.
+     */
+    public long transferTo(BlobStoreWriter writer) throws IOException, SymmetricKeyException {
+        ByteBuffer buffer = os.getBuffer();
+        long total = 0;
+        while (true) {
+            ByteBuffer.Segment segment;
+            synchronized (buffer) {
+                while (buffer.isEmpty()) {
+                    if (os.isClosed()) {
+                        return total;
+                    }
+                    try {
+                        buffer.wait(1000); // 1sec
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                segment = buffer.takeSegment();
+            }
+            try {
+                writer.appendData(segment.data, segment.offset, segment.length);
+            } finally {
+                ByteBuffer.recycle(segment);
+            }
+            total += segment.length;
+        }
+    }
 }
@@ -20,6 +20,18 @@ public class BufferOutputStream extends OutputStream {
         }
     }
 
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if(!isClosed()) {
+            synchronized (buffer) {
+                buffer.push(bytes, offset, length);
+                buffer.notify();
+            }
+        } else {
+            throw new IOException("Can't write to closed stream.");
+        }
+    }
+
     ByteBuffer getBuffer() {
         return buffer;
     }
@@ -1,25 +1,52 @@
 package com.couchbase.lite.router;
 
+import java.util.ArrayDeque;
+
 /**
- * Created by pum on 29.06.2015.
+ * A FIFO byte queue made of fixed-size segments, used by BufferOutputStream/BufferInputStream
+ * to pass a response body between threads. Data is copied in and out with System.arraycopy, and
+ * drained segments are recycled through a small shared pool instead of being reallocated.
+ * Whole segments can also be taken out with takeSegment() and handed to a consumer without
+ * copying them again.
+ * <p/>
+ * Not thread-safe: the streams synchronize on the buffer.
  */
 public class ByteBuffer {
 
-    private static final int CHUNK_SIZE = 2048;
+    static final int SEGMENT_SIZE = 8192;
+    // Free segments kept for reuse, across all buffers (8 KB each, so 512 KB at most):
+    private static final int MAX_POOLED_SEGMENTS = 64;
+    private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+
+    private final ArrayDeque<byte[]> segments = new ArrayDeque<byte[]>();
+    private int readIndex = 0;              // in the first segment
+    private int writeIndex = SEGMENT_SIZE;  // in the last segment; SEGMENT_SIZE if there is none
+    private long size = 0;
 
-    private byte[] buffer = null;
-    private int readIndex = 0;
-    private int writeIndex = 0;
+    /**
+     * A region of a segment taken out of the buffer by takeSegment(). Pass the segment to
+     * recycle() once its data has been consumed.
+     */
+    public static class Segment {
+        public final byte[] data;
+        public final int offset;
+        public final int length;
+
+        Segment(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
 
     public ByteBuffer() {
-        buffer = new byte[CHUNK_SIZE];
     }
 
     public void push(byte data) {
-        if(writeIndex == buffer.length) {
-            resize();
-        }
-        buffer[writeIndex++] = data;
+        if (writeIndex == SEGMENT_SIZE)
+            addSegment();
+        segments.peekLast()[writeIndex++] = data;
+        size++;
     }
 
     public void push(byte[] data) {
@@ -27,25 +54,38 @@ public class ByteBuffer {
     }
 
     public void push(byte[] data, int offset, int length) {
-        if(data == null) {
+        if (data == null) {
             throw new NullPointerException();
         }
-        if(offset + length > data.length) {
+        if (offset + length > data.length) {
             throw new ArrayIndexOutOfBoundsException();
         }
-        if(offset < 0) {
+        if (offset < 0) {
             throw new IllegalArgumentException("offset can not be negative");
         }
-        for(int i = 0; i < length; i++) {
-            push(data[offset + i]);
+        while (length > 0) {
+            if (writeIndex == SEGMENT_SIZE)
+                addSegment();
+            int n = Math.min(length, SEGMENT_SIZE - writeIndex);
+            System.arraycopy(data, offset, segments.peekLast(), writeIndex, n);
+            writeIndex += n;
+            offset += n;
+            length -= n;
+            size += n;
         }
     }
 
-    public Byte pop() {
-        if(!isEmpty()) {
-            return buffer[readIndex++];
-        }
-        return null;
+    /**
+     * Removes and returns the next byte (0-255), or -1 if the buffer is empty.
+     */
+    public int pop() {
+        if (isEmpty())
+            return -1;
+        int b = segments.peekFirst()[readIndex++] & 0xff;
+        size--;
+        if (readIndex == readableEnd())
+            removeFirstSegment();
+        return b;
     }
 
     public int pop(byte[] array) {
@@ -53,37 +93,90 @@ public class ByteBuffer {
     }
 
     public int pop(byte[] array, int offset, int length) {
-        if(array == null) {
+        if (array == null) {
             throw new NullPointerException();
         }
-        if(offset + length > array.length) {
+        if (offset + length > array.length) {
             throw new ArrayIndexOutOfBoundsException();
         }
-        if(offset < 0) {
+        if (offset < 0) {
             throw new IllegalArgumentException("offset can not be negative");
         }
         int count = 0;
-        while(count < length && !isEmpty()) {
-            array[offset + count++] = buffer[readIndex++];
+        while (count < length && !isEmpty()) {
+            int n = Math.min(length - count, readableEnd() - readIndex);
+            System.arraycopy(segments.peekFirst(), readIndex, array, offset + count, n);
+            readIndex += n;
+            count += n;
+            size -= n;
+            if (readIndex == readableEnd())
+                removeFirstSegment();
         }
         return count;
     }
 
+    /**
+     * Removes the data of the first segment from the buffer and returns it without copying it,
+     * or returns null if the buffer is empty.
+     */
+    public Segment takeSegment() {
+        if (isEmpty())
+            return null;
+        byte[] data = segments.peekFirst();
+        Segment segment = new Segment(data, readIndex, readableEnd() - readIndex);
+        size -= segment.length;
+        segments.removeFirst();
+        readIndex = 0;
+        if (segments.isEmpty())
+            writeIndex = SEGMENT_SIZE;
+        return segment;
+    }
+
+    /**
+     * Returns a segment obtained from takeSegment() to the pool.
+     */
+    public static void recycle(Segment segment) {
+        release(segment.data);
+    }
+
     public boolean isEmpty() {
-        return readIndex >= writeIndex;
+        return size == 0;
     }
 
-    private void resize() {
-        byte[] temp = buffer;
-        int count = 0;
-        if(readIndex < (CHUNK_SIZE / 2)) {
-            buffer = new byte[temp.length + CHUNK_SIZE];
-        }
-        for(count = 0; readIndex + count < writeIndex; count++) {
-            buffer[count] = temp[readIndex + count];
-        }
+    public long size() {
+        return size;
+    }
+
+    // The end of the data in the first segment:
+    private int readableEnd() {
+        return segments.size() == 1 ? writeIndex : SEGMENT_SIZE;
+    }
+
+    private void addSegment() {
+        segments.addLast(acquire());
+        writeIndex = 0;
+    }
+
+    private void removeFirstSegment() {
+        release(segments.removeFirst());
         readIndex = 0;
-        writeIndex = count;
+        if (segments.isEmpty())
+            writeIndex = SEGMENT_SIZE;
+    }
+
+    private static byte[] acquire() {
+        synchronized (pool) {
+            byte[] segment = pool.pollLast();
+            if (segment != null)
+                return segment;
+        }
+        return new byte[SEGMENT_SIZE];
     }
 
+    private static void release(byte[] segment) {
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED_SEGMENTS)
+                pool.addLast(segment);
+        }
+    }
 }
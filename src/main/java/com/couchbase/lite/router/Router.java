@@ -23,6 +23,7 @@ import com.couchbase.lite.auth.PersonaAuthorizer;
 import com.couchbase.lite.internal.AttachmentInternal;
 import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.replicator.Replication;
 import com.couchbase.lite.replicator.Replication.ChangeEvent;
 import com.couchbase.lite.replicator.Replication.ChangeListener;
@@ -33,14 +34,12 @@ import com.couchbase.lite.store.Store;
 import com.couchbase.lite.support.RevisionUtils;
 import com.couchbase.lite.support.Version;
 import com.couchbase.lite.util.Log;
-import com.couchbase.lite.util.StreamUtils;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 
 import org.apache.http.client.HttpResponseException;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -48,6 +47,7 @@ import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -63,6 +63,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Router implements Database.ChangeListener, Database.DatabaseListener {
 
@@ -82,6 +84,9 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         TDNoAttachments
     }
 
+    // A single byte range, "bytes=from-to", where either number may be omitted
+    private static final Pattern BYTE_RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
     private Manager manager;
     private Database db;
     private URLConnection connection;
@@ -196,6 +201,46 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         return eTag.equals(requestIfNoneMatch);
     }
 
+    /**
+     * Parses the request's Range header, as in processRequestRanges in CBL_Router.m, for a body of
+     * the given length. Returns the first and last byte positions to send, or null to send the
+     * whole body: if there's no (valid) single byte range, or it covers the whole body, or
+     * If-Range names another version. An unsatisfiable range is returned with first > last.
+     */
+    private long[] getRequestRange(String etag, long length) {
+        String rangeHeader = connection.getRequestProperty("Range");
+        if (rangeHeader == null || length <= 0)
+            return null;
+        String ifRange = connection.getRequestProperty("If-Range");
+        if (ifRange != null && !ifRange.equals(String.format("\"%s\"", etag)))
+            return null;
+
+        Matcher match = BYTE_RANGE_PATTERN.matcher(rangeHeader.trim());
+        if (!match.matches())
+            return null;
+        String fromStr = match.group(1);
+        String toStr = match.group(2);
+        long from, to;
+        try {
+            from = fromStr.length() > 0 ? Long.parseLong(fromStr) : -1;
+            to = toStr.length() > 0 ? Long.parseLong(toStr) : -1;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (from < 0) {
+            if (to < 0)
+                return null; // "-" is invalid
+            // "-n" means the last n bytes
+            from = Math.max(0, length - to);
+            to = length - 1;
+        } else if (to < 0 || to >= length) {
+            to = length - 1;
+        }
+        if (from == 0 && to == length - 1)
+            return null; // the whole body
+        return new long[]{from, to};
+    }
+
     private Map<String, Object> getBodyAsDictionary() throws CouchbaseLiteException {
         InputStream contentStream = connection.getRequestInputStream();
         try {
@@ -544,7 +589,8 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
 
         // If response is ready (nonzero status), tell my client about it:
         if (status.getCode() != 0) {
-            // NOTE: processRequestRanges() is not implemented for CBL Java Core
+            // NOTE: processRequestRanges() is not implemented for CBL Java Core;
+            //       do_GET_Attachment() handles ranges itself (see getRequestRange())
 
             // Configure response headers:
             status = sendResponseHeaders(status);
@@ -785,6 +831,14 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         }
     }
 
+    public Status do_GET_stats(Database _db, String _docID, String _attachmentName) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("enabled", Metrics.isEnabled());
+        result.put("metrics", manager.getMetricsSnapshot());
+        connection.setResponseBody(new Body(result));
+        return new Status(Status.OK);
+    }
+
     public Status do_GET_uuids(Database _db, String _docID, String _attachmentName) {
         int count = Math.min(1000, getIntQuery("count", 1));
         List<String> uuids = new ArrayList<String>(count);
@@ -1905,12 +1959,61 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             if (type != null) {
                 connection.getResHeader().add("Content-Type", type);
             }
-            if (acceptEncoding != null && acceptEncoding.contains("gzip") &&
-                    attachment.getEncoding() == AttachmentInternal.AttachmentEncoding.AttachmentEncodingGZIP) {
+            boolean sendEncoded = acceptEncoding != null && acceptEncoding.contains("gzip") &&
+                    attachment.getEncoding() == AttachmentInternal.AttachmentEncoding.AttachmentEncodingGZIP;
+            if (sendEncoded) {
                 connection.getResHeader().add("Content-Encoding", "gzip");
             }
 
-            connection.setResponseInputStream(attachment.getContentInputStream());
+            // Handle a Range header (which applies to the content as sent, i.e. after encoding):
+            connection.getResHeader().add("Accept-Ranges", "bytes");
+            long length = sendEncoded ? attachment.getEncodedLength() : attachment.getLength();
+            long[] range = getRequestRange(rev.getRevID(), length);
+            if (range != null && range[0] > range[1]) {
+                connection.getResHeader().add("Content-Range", String.format("bytes */%d", length));
+                return new Status(Status.RANGE_NOT_SATISFIABLE);
+            }
+
+            // Send the file itself if possible, so the listener can transfer it to the socket
+            // without copying it through the heap (see URLConnection.transferResponseTo()):
+            FileChannel channel = sendEncoded ?
+                    attachment.getEncodedContentChannel() : attachment.getContentChannel();
+
+            if (range != null) {
+                long count = range[1] - range[0] + 1;
+                if (channel != null) {
+                    try {
+                        connection.setResponseChannel(channel, range[0], count);
+                    } catch (IOException e) {
+                        Log.e(Log.TAG_ROUTER, "Error reading attachment %s", e, _attachmentName);
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                        }
+                        return new Status(Status.ATTACHMENT_ERROR);
+                    }
+                } else {
+                    InputStream content = sendEncoded ?
+                            attachment.getEncodedContentInputStream(range[0], count) :
+                            attachment.getContentInputStream(range[0], count);
+                    if (content == null)
+                        return new Status(Status.INTERNAL_SERVER_ERROR);
+                    connection.setResponseInputStream(content);
+                }
+                connection.getResHeader().add("Content-Range",
+                        String.format("bytes %d-%d/%d", range[0], range[1], length));
+                return new Status(Status.PARTIAL_CONTENT);
+            }
+
+            if (channel != null) {
+                connection.setResponseChannel(channel);
+            } else {
+                InputStream content = sendEncoded ?
+                        attachment.getEncodedContentInputStream() : attachment.getContentInputStream();
+                if (content == null)
+                    return new Status(Status.INTERNAL_SERVER_ERROR);
+                connection.setResponseInputStream(content);
+            }
             return new Status(Status.OK);
 
         } catch (CouchbaseLiteException e) {
@@ -2117,15 +2220,25 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             revID = getRevIDFromIfMatchHeader();
         }
 
-        BlobStoreWriter body = new BlobStoreWriter(db.getAttachmentStore());
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-
-        try {
-            StreamUtils.copyStream(contentStream, dataStream);
-            body.appendData(dataStream.toByteArray());
-            body.finish();
-        } catch (Exception e) {
-            throw new CouchbaseLiteException(e.getCause(), Status.BAD_ATTACHMENT);
+        BlobStoreWriter body = null;
+        if (contentStream != null) {
+            // Stream the body into the blob store rather than collecting it in memory first:
+            body = new BlobStoreWriter(db.getAttachmentStore());
+            try {
+                if (contentStream instanceof BufferInputStream) {
+                    ((BufferInputStream) contentStream).transferTo(body);
+                } else {
+                    byte[] buffer = new byte[ByteBuffer.SEGMENT_SIZE];
+                    int n;
+                    while ((n = contentStream.read(buffer)) > -1)
+                        body.appendData(buffer, 0, n);
+                }
+                contentStream.close();
+                body.finish();
+            } catch (Exception e) {
+                body.cancel();
+                throw new CouchbaseLiteException(e.getCause(), Status.BAD_ATTACHMENT);
+            }
         }
 
         // updateAttachment uses transaction internally, not necessary to be synchronized
@@ -1,6 +1,7 @@
 package com.couchbase.lite.router;
 
 import com.couchbase.lite.internal.Body;
+import com.couchbase.lite.support.RangeInputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -9,6 +10,11 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -36,6 +42,8 @@ public class URLConnection extends HttpURLConnection {
 
     private OutputStream responseOutputStream;
     private InputStream responseInputStream;
+    private FileChannel responseChannel;
+    private long responseChannelEnd;
 
     private InputStream requestInputStream;
 
@@ -214,6 +222,72 @@ public class URLConnection extends HttpURLConnection {
 
     public void setResponseInputStream(InputStream responseInputStream) {
         this.responseInputStream = responseInputStream;
+        this.responseChannel = null;
+    }
+
+    /**
+     * Sets a file as the response body. It's also available as the response input stream, but
+     * transferResponseTo() can send it without copying it through the heap.
+     */
+    public void setResponseChannel(FileChannel responseChannel) {
+        this.responseInputStream = Channels.newInputStream(responseChannel);
+        this.responseChannel = responseChannel;
+        this.responseChannelEnd = Long.MAX_VALUE;
+    }
+
+    /**
+     * Sets 'length' bytes of a file, starting at 'position', as the response body.
+     */
+    public void setResponseChannel(FileChannel responseChannel, long position, long length)
+            throws IOException {
+        responseChannel.position(position);
+        this.responseInputStream =
+                new RangeInputStream(Channels.newInputStream(responseChannel), 0, length);
+        this.responseChannel = responseChannel;
+        this.responseChannelEnd = position + length;
+    }
+
+    /**
+     * The file set as the response body, or null if the body is a stream.
+     */
+    public FileChannel getResponseChannel() {
+        return responseChannel;
+    }
+
+    /**
+     * Writes the rest of the response body to 'target' and closes it (the body, not the target.)
+     * A file body is sent with FileChannel.transferTo(), which the OS can do without copying
+     * it into user space.
+     */
+    public long transferResponseTo(WritableByteChannel target) throws IOException {
+        long total = 0;
+        try {
+            if (responseChannel != null) {
+                long position = responseChannel.position();
+                long size = Math.min(responseChannel.size(), responseChannelEnd);
+                while (position < size) {
+                    long n = responseChannel.transferTo(position, size - position, target);
+                    if (n <= 0)
+                        break;
+                    position += n;
+                    total += n;
+                }
+                responseChannel.position(position);
+            } else if (responseInputStream != null) {
+                ReadableByteChannel source = Channels.newChannel(responseInputStream);
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                while (source.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        total += target.write(buffer);
+                    buffer.clear();
+                }
+            }
+        } finally {
+            if (responseInputStream != null)
+                responseInputStream.close();
+        }
+        return total;
     }
 
     public InputStream getResponseInputStream() {
@@ -19,6 +19,8 @@ package com.couchbase.lite.storage;
 import com.couchbase.lite.internal.database.ContentValues;
 import com.couchbase.lite.support.security.SymmetricKey;
 
+import java.util.Locale;
+
 public interface SQLiteStorageEngine {
     int CONFLICT_NONE = 0;
     int CONFLICT_IGNORE = 4;
@@ -32,6 +34,11 @@ public interface SQLiteStorageEngine {
 
     boolean isOpen();
 
+    /**
+     * The locale the JSON collation of the database's connections compares strings in.
+     */
+    Locale getLocale();
+
     void beginTransaction();
 
     void endTransaction();
@@ -27,6 +27,7 @@ import com.couchbase.lite.internal.database.sqlite.exception.SQLiteDatabaseCorru
 import com.couchbase.lite.support.security.SymmetricKey;
 import com.couchbase.lite.util.Log;
 
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
@@ -39,6 +40,7 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
     private SQLiteDatabase database;
     private AtomicBoolean isSupportEncryption = null;
     private SymmetricKey encryptionKey;
+    private volatile Locale locale;
 
     abstract protected DatabasePlatformSupport getDatabasePlatformSupport();
 
@@ -85,6 +87,7 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
             decrypt(connection, encryptionKey);
 
             // Register JSON Collator:
+            locale = connection.getLocale();
             String icuDataPath = getICUDatabasePath();
             SQLiteJsonCollator.register(connection.getConnectionHandle(),
                     connection.getLocale().toString(), icuDataPath);
@@ -134,6 +137,12 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
         return database != null && database.isOpen();
     }
 
+    @Override
+    public Locale getLocale() {
+        // Connections use the default locale unless it's changed; see SQLiteDatabaseConfiguration
+        return locale != null ? locale : Locale.getDefault();
+    }
+
     @Override
     public void beginTransaction() {
         database.beginTransaction();
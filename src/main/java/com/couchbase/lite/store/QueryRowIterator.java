@@ -0,0 +1,25 @@
+//
+//  QueryRowIterator.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.QueryRow;
+
+/**
+ * A forward-only source of query rows, typically backed by an open database cursor.
+ * Used by streaming queries so that rows are only created when they are consumed.
+ */
+public interface QueryRowIterator {
+    /**
+     * Returns the next row, or null if there are no more rows. The iterator closes itself
+     * after returning the last row.
+     */
+    QueryRow nextRow();
+
+    /**
+     * Releases the underlying cursor. It is safe to call this more than once.
+     */
+    void close();
+}
@@ -0,0 +1,37 @@
+//
+//  QueryRowListIterator.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.QueryRow;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * QueryRowIterator over rows that have already been materialized, for queries (reduced, or by
+ * keys) that can't be streamed from a cursor.
+ */
+public class QueryRowListIterator implements QueryRowIterator {
+    private Iterator<QueryRow> rows;
+
+    public QueryRowListIterator(List<QueryRow> rows) {
+        this.rows = rows.iterator();
+    }
+
+    @Override
+    public QueryRow nextRow() {
+        if (rows == null || !rows.hasNext()) {
+            close();
+            return null;
+        }
+        return rows.next();
+    }
+
+    @Override
+    public void close() {
+        rows = null;
+    }
+}
@@ -34,10 +34,14 @@ import com.couchbase.lite.View;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.internal.database.ContentValues;
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+import com.couchbase.lite.support.LazyJsonObject;
 import com.couchbase.lite.support.RevisionUtils;
 import com.couchbase.lite.support.action.Action;
 import com.couchbase.lite.support.action.ActionBlock;
@@ -51,6 +55,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -66,6 +71,12 @@ public class SQLiteStore implements Store, EncryptableStore {
 
     // Default value for maxRevTreeDepth, the max rev depth to preserve in a prune operation
     private static final int DEFAULT_MAX_REVS = Integer.MAX_VALUE;
+    // Number of revisions read at a time by a filtered changesSince():
+    private static final int CHANGES_FILTER_PAGE_SIZE = 100;
+
+    private static final LatencyHistogram TRANSACTION_TIME = Metrics.histogram("store.transaction");
+    private static final Counter TRANSACTIONS_COMMITTED = Metrics.counter("store.transactions.committed");
+    private static final Counter TRANSACTIONS_ABORTED = Metrics.counter("store.transactions.aborted");
 
     private static final byte[] EMPTY_JSON_OBJECT_CHARS = new byte[] { (byte)0x007B, (byte)0x007D }; // Empty JSON string: "{}"
 
@@ -112,6 +123,17 @@ public class SQLiteStore implements Store, EncryptableStore {
             "        value TEXT);" +
             // version
             "    PRAGMA user_version = 17"; // at the end, update user_version
+    // Rows are added to attachment_refs as revisions with attachments are inserted, and removed
+    // by the cascade when revisions are deleted, or when compaction deletes their JSON.
+    private static final String ATTACHMENT_REFS_SCHEMA = "" +
+            "CREATE TABLE attachment_refs ( " +
+            "        sequence INTEGER NOT NULL REFERENCES revs(sequence) ON DELETE CASCADE, " +
+            "        key TEXT NOT NULL); " +
+            "    CREATE INDEX attachment_refs_by_sequence ON attachment_refs(sequence); " +
+            "    CREATE INDEX attachment_refs_by_key ON attachment_refs(key); " +
+            "    CREATE TABLE attachment_gc ( " +
+            "        key TEXT PRIMARY KEY, " +
+            "        queued INTEGER NOT NULL)";
     //OPT: Would be nice to use partial indexes but that requires SQLite 3.8 and makes the
     // db file only readable by SQLite 3.8+, i.e. the file would not be portable to iOS 8
     // which only has SQLite 3.7 :(
@@ -130,6 +152,13 @@ public class SQLiteStore implements Store, EncryptableStore {
     private Manager manager;
     private SQLiteStorageEngine storageEngine;
     private TransactionLevel transactionLevel;
+    // start time of the outermost transaction on this thread, if metrics are enabled
+    private final ThreadLocal<long[]> transactionStartTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
     private StoreDelegate delegate;
     private int maxRevTreeDepth;
     private SymmetricKey encryptionKey;
@@ -288,6 +317,45 @@ public class SQLiteStore implements Store, EncryptableStore {
                 dbVersion = 101;
             }
 
+            if (dbVersion < 102) {
+                // Version 102: the attachments referred to by each revision, and the queue of
+                // attachments that may no longer be referred to (see findUnreferencedAttachments):
+                try {
+                    initialize(ATTACHMENT_REFS_SCHEMA);
+                    // (Trigger bodies contain semicolons, so they can't go through initialize)
+                    storageEngine.execSQL(
+                            "CREATE TRIGGER attachment_refs_del AFTER DELETE ON attachment_refs " +
+                            "BEGIN INSERT OR REPLACE INTO attachment_gc (key, queued) " +
+                            "VALUES (OLD.key, strftime('%s','now')); END");
+                    storageEngine.execSQL(
+                            "CREATE TRIGGER attachment_refs_ins AFTER INSERT ON attachment_refs " +
+                            "BEGIN DELETE FROM attachment_gc WHERE key=NEW.key; END");
+                    if (!isNew)
+                        buildAttachmentRefs();
+                    initialize("PRAGMA user_version = 102");
+                } catch (SQLException e) {
+                    String message = "Cannot create the attachment_refs table";
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 102;
+            }
+
+            if (dbVersion < 103) {
+                // Version 103: index for reading changes in sequence order (see changesPage):
+                String upgradeSql = "CREATE INDEX IF NOT EXISTS revs_current_sequence " +
+                        "ON revs(current, sequence); " +
+                        "PRAGMA user_version = 103";
+                try {
+                    initialize(upgradeSql);
+                } catch (SQLException e) {
+                    String message = "Cannot create the revs_current_sequence index";
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 103;
+            }
+
             if (isNew)
                 optimizeSQLIndexes(); // runs ANALYZE query
 
@@ -640,6 +708,8 @@ public class SQLiteStore implements Store, EncryptableStore {
                 // Remove the JSON of non-current revisions, which is most of the space.
                 try {
                     Log.v(TAG, "Deleting JSON of old revisions...");
+                    storageEngine.execSQL("DELETE FROM attachment_refs WHERE sequence IN " +
+                            "(SELECT sequence FROM revs WHERE current=0)");
                     ContentValues args = new ContentValues();
                     args.put("json", (String) null);
                     args.put("doc_type", (String) null);
@@ -792,6 +862,39 @@ public class SQLiteStore implements Store, EncryptableStore {
         return rev;
     }
 
+    @Override
+    public void loadRevisionBodies(List<RevisionInternal> revs) throws CouchbaseLiteException {
+        Map<Long, RevisionInternal> revsBySequence = new HashMap<Long, RevisionInternal>();
+        for (RevisionInternal rev : revs) {
+            rev.setBody(null);
+            if (rev.getSequence() > 0)
+                revsBySequence.put(rev.getSequence(), rev);
+        }
+        if (revsBySequence.size() == 0)
+            return;
+
+        // SQLite read operation
+        Cursor cursor = null;
+        try {
+            String sql = String.format("SELECT sequence, revid, json FROM revs WHERE sequence IN (%s)",
+                    TextUtils.join(",", revsBySequence.keySet()));
+            cursor = storageEngine.rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                RevisionInternal rev = revsBySequence.get(cursor.getLong(0));
+                byte[] json = cursor.getBlob(2);
+                if (json != null && rev.getRevID().equals(cursor.getString(1)))
+                    rev.setJSON(json);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error loading revision bodies", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     @Override
     public RevisionInternal getParentRevision(RevisionInternal rev) {
 
@@ -900,6 +1003,73 @@ public class SQLiteStore implements Store, EncryptableStore {
         return result;
     }
 
+    /**
+     * Reads every revision of the revisions' documents in one query, then follows the parent
+     * links of each in memory. (Sequences are unique across documents, so a single map of them
+     * is enough.)
+     */
+    @Override
+    public Map<Long, List<RevisionInternal>> getRevisionHistories(List<RevisionInternal> revs) {
+        Map<Long, List<RevisionInternal>> histories = new HashMap<Long, List<RevisionInternal>>();
+        Set<Long> sequences = new HashSet<Long>();
+        for (RevisionInternal rev : revs) {
+            if (rev.getSequence() > 0)
+                sequences.add(rev.getSequence());
+        }
+        if (sequences.size() == 0)
+            return histories;
+
+        // SQlite read operation
+        String sql = String.format("SELECT sequence, parent, revid, deleted, json isnull FROM revs " +
+                "WHERE doc_id IN (SELECT doc_id FROM revs WHERE sequence IN (%s))",
+                TextUtils.join(",", sequences));
+        Map<Long, HistoryRow> rows = new HashMap<Long, HistoryRow>();
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                HistoryRow row = new HistoryRow();
+                row.parent = cursor.getLong(1);
+                row.revID = cursor.getString(2);
+                row.deleted = cursor.getInt(3) > 0;
+                row.missing = cursor.getInt(4) > 0;
+                rows.put(cursor.getLong(0), row);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error getting revision histories", e);
+            return histories;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        for (RevisionInternal rev : revs) {
+            long sequence = rev.getSequence();
+            HistoryRow row = rows.get(sequence);
+            if (row == null || !row.revID.equals(rev.getRevID()))
+                continue;
+            List<RevisionInternal> history = new ArrayList<RevisionInternal>();
+            while (row != null) {
+                RevisionInternal aRev = new RevisionInternal(rev.getDocID(), row.revID, row.deleted);
+                aRev.setMissing(row.missing);
+                aRev.setSequence(sequence);
+                history.add(aRev);
+                sequence = row.parent;
+                row = sequence > 0 ? rows.get(sequence) : null;
+            }
+            histories.put(rev.getSequence(), history);
+        }
+        return histories;
+    }
+
+    private static class HistoryRow {
+        long parent;
+        String revID;
+        boolean deleted;
+        boolean missing;
+    }
+
     private RevisionList getAllRevisions(String docId, long docNumericID, boolean onlyCurrent) {
         String sql = null;
         if (onlyCurrent)
@@ -1052,6 +1222,80 @@ public class SQLiteStore implements Store, EncryptableStore {
         return allKeys;
     }
 
+    @Override
+    public void queueAttachmentsForGC(Collection<BlobKey> keys) throws CouchbaseLiteException {
+        if (keys.isEmpty())
+            return;
+        boolean shouldCommit = false;
+        beginTransaction();
+        try {
+            String now = Long.toString(System.currentTimeMillis() / 1000);
+            for (BlobKey key : keys) {
+                storageEngine.execSQL("INSERT OR REPLACE INTO attachment_gc (key, queued) " +
+                        "VALUES (?, ?)", new String[]{key.toString(), now});
+            }
+            shouldCommit = true;
+        } catch (SQLException e) {
+            Log.e(TAG, "Error queueing attachments for garbage collection", e);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            endTransaction(shouldCommit);
+        }
+    }
+
+    @Override
+    public List<BlobKey> findUnreferencedAttachments(int limit, long queuedBefore)
+            throws CouchbaseLiteException {
+        List<BlobKey> unreferenced = new ArrayList<BlobKey>();
+        List<String> referenced = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery("SELECT key, " +
+                    "EXISTS (SELECT 1 FROM attachment_refs WHERE attachment_refs.key=attachment_gc.key) " +
+                    "FROM attachment_gc WHERE queued < ? LIMIT ?",
+                    new String[]{Long.toString(queuedBefore), Integer.toString(limit)});
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(1) != 0)
+                    referenced.add(cursor.getString(0));
+                else
+                    unreferenced.add(new BlobKey(BlobKey.convertFromHex(cursor.getString(0))));
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error finding unreferenced attachments", e);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        // Attachments that are referred to again don't need collecting:
+        if (!referenced.isEmpty()) {
+            try {
+                storageEngine.execSQL(String.format("DELETE FROM attachment_gc WHERE key IN (%s)",
+                        TextUtils.joinQuoted(referenced)));
+            } catch (SQLException e) {
+                Log.w(TAG, "Error removing referenced attachments from the queue", e);
+            }
+        }
+        return unreferenced;
+    }
+
+    @Override
+    public void removeAttachmentsFromGCQueue(Collection<BlobKey> keys)
+            throws CouchbaseLiteException {
+        if (keys.isEmpty())
+            return;
+        List<String> hexKeys = new ArrayList<String>(keys.size());
+        for (BlobKey key : keys)
+            hexKeys.add(key.toString());
+        try {
+            storageEngine.execSQL(String.format("DELETE FROM attachment_gc WHERE key IN (%s)",
+                    TextUtils.joinQuoted(hexKeys)));
+        } catch (SQLException e) {
+            Log.e(TAG, "Error removing attachments from the queue", e);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        }
+    }
+
     /**
      * - (CBLQueryIteratorBlock) getAllDocs: (CBLQueryOptions*)options
      * status: (CBLStatus*)outStatus
@@ -1064,14 +1308,113 @@ public class SQLiteStore implements Store, EncryptableStore {
         if (options == null) {
             options = new QueryOptions();
         }
-        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
 
         long updateSeq = 0;
         if (options.isUpdateSeq()) {
             updateSeq = getLastSequence();  // TODO: needs to be atomic with the following SELECT
         }
 
+        if (options.getKeys() != null && options.getKeys().size() == 0) {
+            return result;
+        }
+
         // Generate the SELECT statement, based on the options:
+        List<String> args = new ArrayList<String>();
+        String sql = allDocsQueryStatement(options, args);
+
+        // Now run the database query:
+        Cursor cursor = null;
+        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+        try {
+            cursor = storageEngine.rawQuery(sql, args.toArray(new String[args.size()]));
+
+            cursor.moveToNext(); // Go to first result row
+            while (!cursor.isAfterLast()) {
+                QueryRow change = allDocsRow(cursor, options);
+                if (change == null)
+                    continue;
+                if (options.getKeys() != null)
+                    docs.put(change.getSourceDocumentId(), change);
+                    // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
+                else if (options.getPostFilter() == null || options.getPostFilter().apply(change))
+                    rows.add(change);
+            }
+
+            // If given doc IDs, sort the output into that order, and add entries for missing docs:
+            if (options.getKeys() != null) {
+                for (Object docIdObject : options.getKeys()) {
+                    if (docIdObject instanceof String) {
+                        String docID = (String) docIdObject;
+                        QueryRow change = docs.get(docID);
+                        if (change == null) {
+                            Map<String, Object> value = new HashMap<String, Object>();
+                            long docNumericID = getDocNumericID(docID);
+                            if (docNumericID > 0) {
+                                boolean deleted;
+                                AtomicBoolean outIsDeleted = new AtomicBoolean(false);
+                                String revID = winningRevIDOfDocNumericID(docNumericID, outIsDeleted, null);
+                                if (revID != null) {
+                                    value.put("rev", revID);
+                                    value.put("deleted", true);
+                                }
+                            }
+                            change = new QueryRow((value != null ? docID : null), 0, docID, value, null, null);
+                        }
+                        // TODO add options.filter
+                        rows.add(change);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        result.put("rows", rows);
+        result.put("total_rows", rows.size());
+        result.put("offset", options.getSkip());
+        if (updateSeq != 0) {
+            result.put("update_seq", updateSeq);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the all-docs rows one at a time, reading them from an open cursor. Queries for
+     * given doc IDs are returned in the order of the IDs, so those rows are read up front.
+     */
+    @Override
+    public QueryRowIterator getAllDocsIterator(QueryOptions options) throws CouchbaseLiteException {
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        if (options.getKeys() != null) {
+            List<QueryRow> rows = (List<QueryRow>) getAllDocs(options).get("rows");
+            return new QueryRowListIterator(rows != null ? rows : new ArrayList<QueryRow>());
+        }
+
+        List<String> args = new ArrayList<String>();
+        String sql = allDocsQueryStatement(options, args);
+        try {
+            Cursor cursor = storageEngine.rawQuery(sql, args.toArray(new String[args.size()]));
+            return new AllDocsIterator(cursor, options);
+        } catch (SQLException e) {
+            Log.e(TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    /**
+     * Generates the SQL SELECT statement for an all-docs query, adding its arguments to args.
+     */
+    private String allDocsQueryStatement(QueryOptions options, List<String> args) {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+
         StringBuilder sql = new StringBuilder("SELECT revs.doc_id, docid, revid, sequence");
         if (options.isIncludeDocs()) {
             sql.append(", json, no_attachments");
@@ -1081,9 +1424,6 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
         sql.append(" FROM revs, docs WHERE");
         if (options.getKeys() != null) {
-            if (options.getKeys().size() == 0) {
-                return result;
-            }
             String commaSeperatedIds = TextUtils.joinQuotedObjects(options.getKeys());
             sql.append(String.format(" revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND",
                     commaSeperatedIds));
@@ -1093,7 +1433,6 @@ public class SQLiteStore implements Store, EncryptableStore {
             sql.append(" AND deleted=0");
         }
 
-        List<String> args = new ArrayList<String>();
         Object minKey = options.getStartKey();
         Object maxKey = options.getEndKey();
         boolean inclusiveMin = true;
@@ -1126,113 +1465,100 @@ public class SQLiteStore implements Store, EncryptableStore {
 
         args.add(Integer.toString(options.getLimit()));
         args.add(Integer.toString(options.getSkip()));
+        return sql.toString();
+    }
 
-        // Now run the database query:
-        Cursor cursor = null;
-        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
-        try {
-            // Get row values now, before the code below advances 'cursor':
-            cursor = storageEngine.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
-
-            boolean keepGoing = cursor.moveToNext(); // Go to first result row
-            while (keepGoing) {
-                long docNumericID = cursor.getLong(0);
-                String docID = cursor.getString(1);
-                String revID = cursor.getString(2);
-                long sequence = cursor.getLong(3);
-                boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options)) > 0;
-                RevisionInternal docRevision = null;
-                if (options.isIncludeDocs()) {
-                    //docRevision = revision(docID, revID, deleted, sequence, cursor.getBlob(4));
-                    byte[] json = cursor.getBlob(4);
-                    Map<String, Object> properties = documentPropertiesFromJSON(json, docID, revID,
-                            false, sequence);
-                    docRevision = revision(
-                            docID,    // docID
-                            revID,    // revID
-                            false,    // deleted
-                            sequence, // sequence
-                            properties// properties
-                    );
+    /**
+     * Creates the all-docs row for the document at the cursor's current position, and advances
+     * the cursor past the document's other (conflicting) revisions.
+     *
+     * @return the row, or null if the document is skipped because of the all-docs mode.
+     */
+    private QueryRow allDocsRow(Cursor cursor, QueryOptions options) {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        long docNumericID = cursor.getLong(0);
+        String docID = cursor.getString(1);
+        String revID = cursor.getString(2);
+        long sequence = cursor.getLong(3);
+        boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options)) > 0;
+        RevisionInternal docRevision = null;
+        if (options.isIncludeDocs()) {
+            //docRevision = revision(docID, revID, deleted, sequence, cursor.getBlob(4));
+            byte[] json = cursor.getBlob(4);
+            Map<String, Object> properties = documentPropertiesFromJSON(json, docID, revID,
+                    false, sequence);
+            docRevision = revision(
+                    docID,    // docID
+                    revID,    // revID
+                    false,    // deleted
+                    sequence, // sequence
+                    properties// properties
+            );
+        }
+
+        // Iterate over following rows with the same doc_id -- these are conflicts.
+        // Skip them, but collect their revIDs if the 'conflicts' option is set:
+        List<String> conflicts = new ArrayList<String>();
+        while (cursor.moveToNext() && cursor.getLong(0) == docNumericID) {
+            if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS ||
+                    options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
+                if (conflicts.isEmpty()) {
+                    conflicts.add(revID);
                 }
+                conflicts.add(cursor.getString(2));
+            }
+        }
 
-                // Iterate over following rows with the same doc_id -- these are conflicts.
-                // Skip them, but collect their revIDs if the 'conflicts' option is set:
-                List<String> conflicts = new ArrayList<String>();
-                while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
-                    if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS ||
-                            options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
-                        if (conflicts.isEmpty()) {
-                            conflicts.add(revID);
-                        }
-                        conflicts.add(cursor.getString(2));
-                    }
-                }
+        if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty())
+            return null;
 
-                if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty())
-                    continue;
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("rev", revID);
+        value.put("_conflicts", conflicts);
+        if (includeDeletedDocs) {
+            value.put("deleted", (deleted ? true : null));
+        }
+        return new QueryRow(docID,
+                sequence,
+                docID,
+                value,
+                docRevision,
+                null);
+    }
 
-                Map<String, Object> value = new HashMap<String, Object>();
-                value.put("rev", revID);
-                value.put("_conflicts", conflicts);
-                if (includeDeletedDocs) {
-                    value.put("deleted", (deleted ? true : null));
-                }
-                QueryRow change = new QueryRow(docID,
-                        sequence,
-                        docID,
-                        value,
-                        docRevision,
-                        null);
-                if (options.getKeys() != null)
-                    docs.put(docID, change);
-                    // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
-                else if (options.getPostFilter() == null || options.getPostFilter().apply(change))
-                    rows.add(change);
-            }
+    /**
+     * Iterates over the rows of an all-docs query as they're read from the cursor.
+     */
+    private class AllDocsIterator implements QueryRowIterator {
+        private final QueryOptions options;
+        private Cursor cursor;
 
-            // If given doc IDs, sort the output into that order, and add entries for missing docs:
-            if (options.getKeys() != null) {
-                for (Object docIdObject : options.getKeys()) {
-                    if (docIdObject instanceof String) {
-                        String docID = (String) docIdObject;
-                        QueryRow change = docs.get(docID);
-                        if (change == null) {
-                            Map<String, Object> value = new HashMap<String, Object>();
-                            long docNumericID = getDocNumericID(docID);
-                            if (docNumericID > 0) {
-                                boolean deleted;
-                                AtomicBoolean outIsDeleted = new AtomicBoolean(false);
-                                String revID = winningRevIDOfDocNumericID(docNumericID, outIsDeleted, null);
-                                if (revID != null) {
-                                    value.put("rev", revID);
-                                    value.put("deleted", true);
-                                }
-                            }
-                            change = new QueryRow((value != null ? docID : null), 0, docID, value, null, null);
-                        }
-                        // TODO add options.filter
-                        rows.add(change);
-                    }
-                }
+        AllDocsIterator(Cursor cursor, QueryOptions options) {
+            this.cursor = cursor;
+            this.options = options;
+            cursor.moveToNext(); // Go to first result row
+        }
+
+        @Override
+        public synchronized QueryRow nextRow() {
+            while (cursor != null && !cursor.isAfterLast()) {
+                QueryRow change = allDocsRow(cursor, options);
+                // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
+                if (change != null &&
+                        (options.getPostFilter() == null || options.getPostFilter().apply(change)))
+                    return change;
             }
-        } catch (SQLException e) {
-            Log.e(TAG, "Error getting all docs", e);
-            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
-        } finally {
+            close();
+            return null;
+        }
+
+        @Override
+        public synchronized void close() {
             if (cursor != null) {
                 cursor.close();
+                cursor = null;
             }
         }
-
-        result.put("rows", rows);
-        result.put("total_rows", rows.size());
-        result.put("offset", options.getSkip());
-        if (updateSeq != 0) {
-            result.put("update_seq", updateSeq);
-        }
-
-        return result;
     }
 
     @Override
@@ -1246,41 +1572,81 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
 
         RevisionList changes = new RevisionList();
+        int limit = options.getLimit();
+        if (limit <= 0)
+            return changes;
 
         boolean includeDocs = options.isIncludeDocs() || (filter != null);
-        String additionalSelectColumns = "";
-        if (includeDocs) {
-            additionalSelectColumns = ", json";
+        boolean bySequence = options.isSortBySequence();
+
+        // The rows come in the order they're returned, with LIMIT applied by SQLite. When a filter
+        // is given, rows are read a page at a time until enough of them pass it. (Pages only
+        // work in sequence order, so unsorted filtered changes are read in one go.)
+        int pageSize = limit;
+        if (filter != null)
+            pageSize = bySequence ? Math.max(limit, CHANGES_FILTER_PAGE_SIZE) : Integer.MAX_VALUE;
+        long since = lastSequence;
+        while (true) {
+            List<RevisionInternal> page = changesPage(lastSequence, since, pageSize,
+                    includeDocs, options.isIncludeConflicts(), bySequence);
+            for (RevisionInternal rev : page) {
+                // Note: To minimize holding SQLite connection, executing filter out-of SQLite query.
+                if (filter == null || delegate.runFilter(filter, filterParams, rev)) {
+                    changes.add(rev);
+                    if (changes.size() >= limit)
+                        return changes;
+                }
+            }
+            if (filter == null || page.size() < pageSize)
+                return changes;
+            since = page.get(page.size() - 1).getSequence();
         }
+    }
 
-        String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" + additionalSelectColumns
-                + " FROM revs, docs "
-                + "WHERE sequence > ? AND current=1 "
-                + "AND revs.doc_id = docs.doc_id "
-                + "ORDER BY revs.doc_id, revid DESC";
-        String[] args = {Long.toString(lastSequence)};
-        Cursor cursor = storageEngine.rawQuery(sql, args);
-        cursor.moveToNext();
-        long lastDocId = 0;
-        try {
-            while (!cursor.isAfterLast()) {
-                if (!options.isIncludeConflicts()) {
-                    // Only count the first rev for a given doc (the rest will be losing conflicts):
-                    long docNumericId = cursor.getLong(1);
-                    if (docNumericId == lastDocId) {
-                        cursor.moveToNext();
-                        continue;
-                    }
-                    lastDocId = docNumericId;
-                }
+    /**
+     * Reads up to 'limit' current revisions with sequences greater than 'since', ordered by
+     * sequence or by document. Unless conflicts are included, only the winning revision of each
+     * document among those changed after 'lastSequence' is returned: it's selected by a
+     * subquery per row, so that the rows can be read in sequence order (using the
+     * revs_current_sequence index) and SQLite can stop after 'limit' of them.
+     */
+    private List<RevisionInternal> changesPage(long lastSequence,
+                                               long since,
+                                               int limit,
+                                               boolean includeDocs,
+                                               boolean includeConflicts,
+                                               boolean bySequence) {
+        List<RevisionInternal> revs = new ArrayList<RevisionInternal>();
+        StringBuilder sql = new StringBuilder("SELECT sequence, revs.doc_id, docid, revid, deleted");
+        if (includeDocs)
+            sql.append(", json");
+        sql.append(" FROM revs, docs WHERE sequence > ? AND current=1 AND revs.doc_id = docs.doc_id");
+        List<String> args = new ArrayList<String>();
+        args.add(Long.toString(since));
+        if (!includeConflicts) {
+            // The unary '+'s keep SQLite from using revs_current_sequence for the subquery;
+            // it walks the document's revisions in revs_by_docid_revid instead.
+            sql.append(" AND revid = (SELECT revid FROM revs AS winner" +
+                    " WHERE winner.doc_id = revs.doc_id AND +winner.current=1 AND +winner.sequence > ?" +
+                    " ORDER BY winner.revid DESC LIMIT 1)");
+            args.add(Long.toString(lastSequence));
+        }
+        sql.append(bySequence ? " ORDER BY sequence" : " ORDER BY revs.doc_id, revid DESC");
+        if (limit < Integer.MAX_VALUE) {
+            sql.append(" LIMIT ?");
+            args.add(Integer.toString(limit));
+        }
 
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+            while (cursor.moveToNext()) {
                 RevisionInternal rev = new RevisionInternal(
                         cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0));
                 rev.setSequence(cursor.getLong(0));
                 if (includeDocs)
                     rev.setJSON(cursor.getBlob(5));
-                changes.add(rev);
-                cursor.moveToNext();
+                revs.add(rev);
             }
         } catch (SQLException e) {
             Log.e(TAG, "Error looking for changes", e);
@@ -1289,21 +1655,7 @@ public class SQLiteStore implements Store, EncryptableStore {
                 cursor.close();
             }
         }
-
-        // Note: To minimize holding SQLite connection, executing filter out-of SQLite query.
-        if (filter != null) {
-            // to avoid to create another list, filter from end to front.
-            for (int i = changes.size() - 1; i >= 0; i--) {
-                if (!delegate.runFilter(filter, filterParams, changes.get(i)))
-                    changes.remove(i);
-            }
-        }
-
-        if (options.isSortBySequence()) {
-            changes.sortBySequence();
-        }
-        changes.limit(options.getLimit());
-        return changes;
+        return revs;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -1971,6 +2323,10 @@ public class SQLiteStore implements Store, EncryptableStore {
     // Internal (PROTECTED & PRIVATE) METHODS
     ///////////////////////////////////////////////////////////////////////////
 
+    protected Manager getManager() {
+        return manager;
+    }
+
     protected SQLiteStorageEngine getStorageEngine() {
         return storageEngine;
     }
@@ -2100,6 +2456,8 @@ public class SQLiteStore implements Store, EncryptableStore {
         try {
             // Outer (level 0)  transaction. Use SQLiteDatabase.beginTransaction()
             if (tLevel == 0) {
+                if (Metrics.isEnabled())
+                    transactionStartTime.get()[0] = Metrics.startTimer();
                 storageEngine.beginTransaction();
             }
             // Inner (level 1 or higher) transaction. Use SQLite's SAVEPOINT
@@ -2167,6 +2525,16 @@ public class SQLiteStore implements Store, EncryptableStore {
             }
         }
 
+        if (tLevel == 0 && Metrics.isEnabled()) {
+            long[] startTime = transactionStartTime.get();
+            TRANSACTION_TIME.recordSince(startTime[0]);
+            startTime[0] = 0;
+            if (commit)
+                TRANSACTIONS_COMMITTED.increment();
+            else
+                TRANSACTIONS_ABORTED.increment();
+        }
+
         if (delegate != null)
             delegate.storageExitedTransaction(commit);
 
@@ -2183,6 +2551,16 @@ public class SQLiteStore implements Store, EncryptableStore {
         Map<String, Object> docProperties = null;
         if (json == null || json.length == 0 || (json.length == 2 && java.util.Arrays.equals(json, EMPTY_JSON_OBJECT_CHARS))) {
             docProperties = new HashMap<String, Object>();
+        } else if (json[0] == '{') {
+            // Only the properties that are read get decoded (e.g. by a map function that just
+            // looks at "type"). The JSON is tokenized here to make sure it's well-formed.
+            LazyJsonObject<String, Object> lazyProperties = new LazyJsonObject<String, Object>(json);
+            if (lazyProperties.isValid()) {
+                docProperties = lazyProperties;
+            } else {
+                Log.e(TAG, String.format("Unparseable JSON for doc=%s, rev=%s: %s", docID, revID, new String(json)));
+                docProperties = new HashMap<String, Object>();
+            }
         } else {
             try {
                 docProperties = Manager.getObjectMapper().readValue(json, Map.class);
@@ -2370,10 +2748,69 @@ public class SQLiteStore implements Store, EncryptableStore {
         args.put("doc_type", docType);
         rowId = storageEngine.insertOrThrow("revs", null, args);
         rev.setSequence(rowId);
+        if (hasAttachments)
+            insertAttachmentRefs(rowId, rev.getAttachments(), json);
 
         return rowId;
     }
 
+    private void insertAttachmentRefs(long sequence, Map<String, Object> attachments, byte[] json)
+            throws SQLException {
+        if (attachments == null && json != null && json.length > 0) {
+            try {
+                Map<String, Object> properties = Manager.getObjectMapper().readValue(json, Map.class);
+                attachments = (Map<String, Object>) properties.get("_attachments");
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot parse the JSON of sequence %d", e, sequence);
+            }
+        }
+        if (attachments == null)
+            return;
+        for (BlobKey key : attachmentKeys(attachments)) {
+            ContentValues args = new ContentValues();
+            args.put("sequence", sequence);
+            args.put("key", key.toString());
+            storageEngine.insertOrThrow("attachment_refs", null, args);
+        }
+    }
+
+    private static Set<BlobKey> attachmentKeys(Map<String, Object> attachments) {
+        Set<BlobKey> keys = new HashSet<BlobKey>();
+        for (Object value : attachments.values()) {
+            if (!(value instanceof Map))
+                continue;
+            Object digest = ((Map<String, Object>) value).get("digest");
+            if (digest instanceof String) {
+                BlobKey key = new BlobKey((String) digest);
+                if (key.hasBlobKey())
+                    keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Fills in attachment_refs for the revisions of a database created before it existed.
+     */
+    private void buildAttachmentRefs() throws SQLException {
+        Log.i(TAG, "Indexing the attachments of %s...", path);
+        int count = 0;
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(
+                    "SELECT sequence, json FROM revs WHERE no_attachments != 1 AND json IS NOT NULL",
+                    null);
+            while (cursor.moveToNext()) {
+                insertAttachmentRefs(cursor.getLong(0), null, cursor.getBlob(1));
+                count++;
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        Log.i(TAG, "...indexed the attachments of %d revisions", count);
+    }
+
     private long getSequenceOfDocument(long docNumericID, String revID, boolean onlyCurrent) {
         String sql = String.format(
                 "SELECT sequence FROM revs WHERE doc_id=? AND revid=? %s LIMIT 1",
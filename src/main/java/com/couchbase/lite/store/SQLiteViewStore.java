@@ -33,17 +33,25 @@ import com.couchbase.lite.internal.database.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.support.JsonCollator;
 import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.CountDown;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.SQLiteUtils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class SQLiteViewStore implements ViewStore, QueryRowStore {
@@ -57,8 +65,238 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         }
     }
 
+    /**
+     * Emitter used by the parallel indexer. It collects the JSON-encoded rows emitted by one
+     * view's map block for one revision, so the writer can insert them later in input order.
+     */
+    private static class CollectingEmitBlock implements Emitter {
+        private final JsonCollator collator;
+        private final List<String> keys = new ArrayList<String>();
+        private final List<String> values = new ArrayList<String>();
+        private final List<byte[]> sortKeys = new ArrayList<byte[]>();
+
+        CollectingEmitBlock(JsonCollator collator) {
+            this.collator = collator;
+        }
+
+        @Override
+        public void emit(Object key, Object value) {
+            if (key == null) {
+                Log.w(Log.TAG_VIEW, "emit() called with nil key; ignoring");
+                return;
+            }
+            try {
+                keys.add(Manager.getObjectMapper().writeValueAsString(key));
+                values.add(value == null ? null :
+                        Manager.getObjectMapper().writeValueAsString(value));
+                sortKeys.add(collator.sortKey(key));
+            } catch (Exception e) {
+                Log.e(Log.TAG_VIEW, "Error emitting", e);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Runs the map blocks of all views being indexed against a single revision. Executed on the
+     * Manager's view indexer pool; the JSON body is parsed on the worker thread too.
+     */
+    private class MapTask implements Callable<MapTask> {
+        private final List<SQLiteViewStore> views;
+        private final List<Mapper> mapBlocks;
+        private final long[] viewLastSequence;
+        private final Map<String, String> viewDocTypes;
+        private final byte[] json;
+        private final String docID;
+        private final String revID;
+        private final String docType;
+        private final long sequence;
+        private final long realSequence;
+        private final List<String> conflicts;
+        private CollectingEmitBlock[] results;
+
+        MapTask(List<SQLiteViewStore> views, List<Mapper> mapBlocks, long[] viewLastSequence,
+                Map<String, String> viewDocTypes, byte[] json, String docID, String revID,
+                String docType, long sequence, long realSequence, List<String> conflicts) {
+            this.views = views;
+            this.mapBlocks = mapBlocks;
+            this.viewLastSequence = viewLastSequence;
+            this.viewDocTypes = viewDocTypes;
+            this.json = json;
+            this.docID = docID;
+            this.revID = revID;
+            this.docType = docType;
+            this.sequence = sequence;
+            this.realSequence = realSequence;
+            this.conflicts = conflicts;
+        }
+
+        @Override
+        public MapTask call() throws CouchbaseLiteException {
+            results = new CollectingEmitBlock[views.size()];
+            Map<String, Object> curDoc = store.documentPropertiesFromJSON(
+                    json, docID, revID, false, sequence);
+            if (curDoc == null) {
+                Log.w(Log.TAG_VIEW, "Failed to parse JSON of doc %s rev %s", docID, revID);
+                return this;
+            }
+            curDoc.put("_local_seq", sequence);
+            if (conflicts != null)
+                curDoc.put("_conflicts", conflicts);
+
+            for (int i = 0; i < views.size(); i++) {
+                SQLiteViewStore view = views.get(i);
+                if (viewLastSequence[i] >= realSequence)
+                    continue;
+                if (viewDocTypes != null) {
+                    String viewDocType = viewDocTypes.get(view.getName());
+                    if (viewDocType != null && !viewDocType.equals(docType))
+                        continue; // skip; view's documentType doesn't match this doc
+                }
+                Log.v(Log.TAG_VIEW, "#%d: map '%s' for view %s...",
+                        sequence, docID, view.getName());
+                CollectingEmitBlock emitBlock = new CollectingEmitBlock(view.getKeyCollator());
+                try {
+                    mapBlocks.get(i).map(curDoc, emitBlock);
+                } catch (Throwable e) {
+                    String msg = String.format("Error when calling map block of view '%s'",
+                            view.getName());
+                    Log.e(Log.TAG_VIEW, msg, e);
+                    throw new CouchbaseLiteException(msg, e, new Status(Status.CALLBACK_ERROR));
+                }
+                results[i] = emitBlock;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A leaf of the persisted reduce tree: the cached reduction of all map rows whose keys fall
+     * in [minKey, next block's minKey).
+     * <p/>
+     * The tree has only two levels, a root and about n/REDUCE_BLOCK_SIZE leaves, so finding and
+     * combining blocks is linear in the number of blocks rather than logarithmic in the number of
+     * rows. A clean, ungrouped query reads only the root; otherwise every block is read, plus the
+     * map rows of each dirty block and, when grouping, of each block that spans more than one
+     * group. A grouped query over many distinct keys therefore reads nearly every map row, as it
+     * would without the tree.
+     */
+    private static class ReduceBlock {
+        long blockID;
+        String minKey;   // lower bound of the block; null for the first block
+        String firstKey; // actual first and last keys of the rows, as of the last refresh
+        String lastKey;
+        int rowCount;
+        String value;
+        boolean dirty;
+    }
+
+    /**
+     * Accumulates one output group of a reduce query from raw map rows and cached partial
+     * reductions.
+     */
+    private static class ReduceGroup {
+        final List<Object> keys = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        final List<Object> values = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        final List<Object> partials = new ArrayList<Object>();
+        Object key;
+        boolean empty = true;
+
+        Object reduce(Reducer reduce) {
+            if (partials.isEmpty())
+                return reduce.reduce(keys, values, false);
+            List<Object> rereduceValues = new ArrayList<Object>(partials);
+            if (!keys.isEmpty())
+                rereduceValues.add(reduce.reduce(keys, values, false));
+            return reduce.reduce(null, rereduceValues, true);
+        }
+
+        void reset(Object key) {
+            this.key = key;
+            keys.clear();
+            values.clear();
+            partials.clear();
+            empty = false;
+        }
+    }
+
+    /**
+     * Iterates over the rows of a regular query, creating each row as it is read from the open
+     * cursor. Applies a post-filter's skip and limit the same way regularQuery() does.
+     */
+    private class CursorQueryRowIterator implements QueryRowIterator {
+        private final QueryOptions options;
+        private final Predicate<QueryRow> postFilter;
+        private int skip = 0;
+        private int limit = QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT;
+        private Cursor cursor;
+
+        CursorQueryRowIterator(QueryOptions options) {
+            this.options = options;
+            this.postFilter = options.getPostFilter();
+            if (postFilter != null) {
+                // #574: skip/limit apply to the filtered rows, not to the underlying query:
+                limit = options.getLimit();
+                skip = options.getSkip();
+                if (limit == 0)
+                    return; // empty result set
+                options.setLimit(QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT);
+                options.setSkip(0);
+            }
+            List<String> argsList = new ArrayList<String>();
+            String sql = queryStatement(options, argsList);
+            Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
+            cursor = store.getStorageEngine().rawQuery(sql,
+                    argsList.toArray(new String[argsList.size()]));
+        }
+
+        @Override
+        public synchronized QueryRow nextRow() {
+            while (cursor != null && cursor.moveToNext()) {
+                QueryRow row = createRow(cursor.getBlob(0), cursor.getBlob(1),
+                        cursor.getString(2), cursor, options);
+                if (postFilter != null) {
+                    if (!postFilter.apply(row))
+                        continue;
+                    if (skip > 0) {
+                        skip--;
+                        continue;
+                    }
+                }
+                if (--limit == 0)
+                    close();
+                return row;
+            }
+            close();
+            return null;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+
     private static final int REDUCE_BATCH_SIZE = 100;
 
+    // Approximate number of map rows summarized by one block of the reduce tree. A block never
+    // splits rows with equal keys, and the tree is rebuilt once any block grows past
+    // REDUCE_BLOCK_SIZE * REDUCE_BLOCK_MAX_GROWTH rows.
+    private static final int REDUCE_BLOCK_SIZE = 1000;
+    private static final int REDUCE_BLOCK_MAX_GROWTH = 4;
+
+    // Maximum number of map rows inserted by a single INSERT statement in the parallel indexer.
+    // Each row binds 4 arguments and SQLite defaults to at most 999 bound arguments and 500 terms
+    // in a compound SELECT.
+    private static final int INSERT_BATCH_SIZE = 100;
+
+    // Number of revisions that may be queued for mapping per indexer thread before the writer
+    // has to catch up.
+    private static final int MAP_TASKS_PER_THREAD = 8;
+
     // public
     private String name;
     private ViewStoreDelegate delegate;
@@ -69,6 +307,15 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
     private View.TDViewCollation collation;
     private String _mapTableName;
     private SQLiteViewStore curView; // Current view used when update index
+    private boolean hasSortKeys;     // 'maps_#' has a populated, up-to-date sort_key column
+    private JsonCollator keyCollator;
+    private boolean reduceCacheEnabled;
+    private boolean mayHaveReduceTree = true; // false once 'reduce_#' is known not to exist
+
+    // State of the parallel indexer while updateIndexes() is running (see MapTask):
+    private Deque<Future<MapTask>> pendingMapTasks;
+    private List<List<Object>> mapRowBuffers;
+    private int maxPendingMapTasks;
 
     ///////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -102,6 +349,23 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         this.delegate = delegate;
     }
 
+    @Override
+    public Comparator<Object> getKeyComparator() {
+        if (collation != View.TDViewCollation.TDViewCollationUnicode)
+            return null;
+        return getKeyCollator();
+    }
+
+    /**
+     * The collator of the sort_key column, which compares strings in the locale of the
+     * connection's COLLATE JSON.
+     */
+    private JsonCollator getKeyCollator() {
+        if (keyCollator == null)
+            keyCollator = JsonCollator.getInstance(store.getStorageEngine().getLocale());
+        return keyCollator;
+    }
+
     @Override
     public void setCollation(View.TDViewCollation collation) {
         this.collation = collation;
@@ -111,6 +375,8 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
     public void close() {
         store = null;
         viewID = -1;
+        hasSortKeys = false;
+        keyCollator = null;
     }
 
     @Override
@@ -118,7 +384,9 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         if (getViewID() <= 0) {
             return;
         }
+        hasSortKeys = false;
         String sql = "DROP TABLE IF EXISTS 'maps_#'; " +
+                "DROP TABLE IF EXISTS 'reduce_#'; " +
                 "UPDATE views SET lastSequence=0, total_docs=0 WHERE view_id=#";
         if (!runStatements(sql))
             Log.w(TAG, "Couldn't delete view _index `%s`", name);
@@ -130,6 +398,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             @Override
             public boolean run() {
                 deleteIndex();
+                store.getStorageEngine().delete("info", "key=?", new String[]{sortKeysInfoKey()});
                 String[] whereArgs = {name};
                 int rowsAffected = store.getStorageEngine().delete("views", "name=?", whereArgs);
                 return rowsAffected > 0 ? true : false;
@@ -306,6 +575,10 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
 
                 int totalRows = view.getTotalRows();
                 viewTotalRows.put(viewID, totalRows);
+                view.ensureSortKeys();
+                // The triggers of a reduce tree the view doesn't use would only slow indexing:
+                if (!view.usesReduceTree())
+                    view.deleteUnusedReduceTree();
 
                 long last = view == this ? forViewLastSequence : view.getLastSequenceIndexed();
                 viewLastSequence[i++] = last;
@@ -330,6 +603,9 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
 
                     int changes = 0;
                     if (last == 0) {
+                        // Rebuilding from scratch; drop the reduce tree rather than letting its
+                        // triggers run for every deleted row:
+                        view.deleteReduceTree();
                         changes = store.getStorageEngine().delete(queryString("maps_#"), null, null);
                     } else {
                         store.optimizeSQLIndexes();
@@ -412,6 +688,19 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             String[] selectArgs = {Long.toString(minLastSequence)};
             cursor = store.getStorageEngine().rawQuery(sql.toString(), selectArgs);
 
+            // If the Manager has a view indexer pool, this thread only reads revisions and writes
+            // the emitted rows; the map blocks run on the pool. Results are written back in the
+            // order the revisions were read, so the emit order per view stays deterministic.
+            ExecutorService executor = store.getManager().getViewIndexerExecutor();
+            if (executor != null) {
+                pendingMapTasks = new ArrayDeque<Future<MapTask>>();
+                mapRowBuffers = new ArrayList<List<Object>>(views.size());
+                for (int v = 0; v < views.size(); v++)
+                    mapRowBuffers.add(new ArrayList<Object>(INSERT_BATCH_SIZE * 4));
+                maxPendingMapTasks = store.getManager().getViewIndexerThreadPoolSize() *
+                        MAP_TASKS_PER_THREAD;
+            }
+
             boolean keepGoing = cursor.moveToNext(); // Go to first result row
             while (keepGoing) {
                 // NOTE: skip row if 1st column is null
@@ -511,6 +800,16 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                 byte[] json = SQLiteUtils.byteArrayResultForQuery(store.getStorageEngine(),
                         "SELECT json FROM revs WHERE sequence=?", selectArgs3);
 
+                if (pendingMapTasks != null) {
+                    MapTask task = new MapTask(views, mapBlocks, viewLastSequence,
+                            checkDocTypes ? viewDocTypes : null, json, docId, revID, docType,
+                            sequence, realSequence, conflicts);
+                    pendingMapTasks.add(executor.submit(task));
+                    if (pendingMapTasks.size() >= maxPendingMapTasks)
+                        writeMapResults(pendingMapTasks.poll(), views, viewTotalRows, insertedCount);
+                    continue;
+                }
+
                 // Get the document properties, to pass to the map function:
                 Map<String, Object> curDoc = store.documentPropertiesFromJSON(
                         json,
@@ -555,6 +854,13 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                 }
             }
 
+            if (pendingMapTasks != null) {
+                while (!pendingMapTasks.isEmpty())
+                    writeMapResults(pendingMapTasks.poll(), views, viewTotalRows, insertedCount);
+                for (int v = 0; v < views.size(); v++)
+                    views.get(v).flushMapRows(mapRowBuffers.get(v));
+            }
+
             // Finally, record the last revision sequence number that was indexed and update #rows:
             for (SQLiteViewStore view : views) {
                 view.finishCreatingIndex();
@@ -574,6 +880,12 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             throw new CouchbaseLiteException(ex, new Status(Status.DB_ERROR));
         } finally {
             curView = null;
+            if (pendingMapTasks != null) {
+                for (Future<MapTask> future : pendingMapTasks)
+                    future.cancel(false);
+                pendingMapTasks = null;
+                mapRowBuffers = null;
+            }
             if (cursor != null)
                 cursor.close();
             if (store != null)
@@ -581,6 +893,65 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         }
     }
 
+    /**
+     * Waits for a map task of the parallel indexer and buffers the rows it emitted for insertion.
+     * Buffers are flushed to the 'maps_#' tables in batches of INSERT_BATCH_SIZE rows.
+     */
+    private void writeMapResults(Future<MapTask> future,
+                                 List<SQLiteViewStore> views,
+                                 Map<Integer, Integer> viewTotalRows,
+                                 AtomicInteger insertedCount) throws CouchbaseLiteException {
+        MapTask task;
+        try {
+            task = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CouchbaseLiteException(e, new Status(Status.INTERNAL_SERVER_ERROR));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CouchbaseLiteException)
+                throw (CouchbaseLiteException) e.getCause();
+            throw new CouchbaseLiteException(e.getCause(), new Status(Status.CALLBACK_ERROR));
+        }
+
+        for (int i = 0; i < views.size(); i++) {
+            CollectingEmitBlock emitted = task.results[i];
+            if (emitted == null || emitted.keys.isEmpty())
+                continue;
+            SQLiteViewStore view = views.get(i);
+            List<Object> buffer = mapRowBuffers.get(i);
+            for (int j = 0; j < emitted.keys.size(); j++) {
+                buffer.add(task.sequence);
+                buffer.add(emitted.keys.get(j));
+                buffer.add(emitted.values.get(j));
+                buffer.add(emitted.sortKeys.get(j));
+                if (buffer.size() >= INSERT_BATCH_SIZE * 4)
+                    view.flushMapRows(buffer);
+            }
+            int rows = emitted.keys.size();
+            int viewID = view.getViewID();
+            viewTotalRows.put(viewID, viewTotalRows.get(viewID) + rows);
+            insertedCount.addAndGet(rows);
+        }
+    }
+
+    /**
+     * Inserts buffered (sequence, key, value, sort_key) rows into this view's 'maps_#' table using
+     * a single statement, then clears the buffer.
+     */
+    private void flushMapRows(List<Object> buffer) {
+        if (buffer.isEmpty())
+            return;
+        StringBuilder sql = new StringBuilder(queryString(
+                "INSERT INTO 'maps_#' (sequence, key, value, sort_key) "));
+        for (int i = 0; i < buffer.size(); i += 4) {
+            if (i > 0)
+                sql.append(" UNION ALL ");
+            sql.append("SELECT ?,?,?,?");
+        }
+        store.getStorageEngine().execSQL(sql.toString(), buffer.toArray());
+        buffer.clear();
+    }
+
     protected void emit(Object key, Object value, long sequence) throws JsonProcessingException {
         String valueJson;
         String keyJson = Manager.getObjectMapper().writeValueAsString(key);
@@ -591,9 +962,9 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         }
 
         // NOTE: execSQL() is little faster than insert()
-        String[] args = {Long.toString(sequence), keyJson, valueJson};
+        Object[] args = {sequence, keyJson, valueJson, getKeyCollator().sortKey(key)};
         store.getStorageEngine().execSQL(queryString(
-                "INSERT INTO 'maps_#' (sequence, key, value) VALUES(?,?,?)"), args);
+                "INSERT INTO 'maps_#' (sequence, key, value, sort_key) VALUES(?,?,?,?)"), args);
     }
 
     /**
@@ -625,41 +996,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         Status status = runQuery(options, new QueryRowBlock() {
             @Override
             public Status onRow(byte[] keyData, byte[] valueData, String docID, Cursor cursor) {
-                JsonDocument keyDoc = new JsonDocument(keyData);
-                JsonDocument valueDoc = new JsonDocument(valueData);
-                long sequence = Long.parseLong(cursor.getString(3));
-                RevisionInternal docRevision = null;
-                if (options.isIncludeDocs()) {
-                    Object valueObject = valueDoc.jsonObject();
-                    String linkedID = null;
-                    if (valueObject instanceof Map)
-                        linkedID = (String) ((Map) valueObject).get("_id");
-                    if (linkedID != null) {
-                        // Linked document: http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
-                        String linkedRev = (String) ((Map) valueObject).get("_rev");
-                        docRevision = store.getDocument(linkedID, linkedRev, true);
-                        sequence = docRevision.getSequence();
-                    } else {
-                        String revID = cursor.getString(4);
-                        byte[] json = cursor.getBlob(5);
-                        Map<String, Object> properties = store.documentPropertiesFromJSON(
-                                json,
-                                docID,
-                                revID,
-                                false,
-                                sequence);
-                        docRevision = SQLiteStore.revision(
-                                docID,    // docID
-                                revID,    // revID
-                                false,    // deleted
-                                sequence, // sequence
-                                properties// properties
-                        );
-                    }
-                }
-                QueryRow row = new QueryRow(docID, sequence,
-                        keyDoc.jsonObject(), valueDoc.jsonObject(),
-                        docRevision, SQLiteViewStore.this);
+                QueryRow row = createRow(keyData, valueData, docID, cursor, options);
                 if (postFilter != null) {
                     if (!postFilter.apply(row)) {
                         return new Status(Status.OK);
@@ -712,6 +1049,62 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         return rows;
     }
 
+    /**
+     * Queries the view without performing any reducing or grouping, returning an iterator that
+     * creates the rows as they're read from the database cursor instead of a complete list.
+     * The iterator keeps a database connection busy until it is exhausted or closed.
+     */
+    @Override
+    public QueryRowIterator regularQueryIterator(QueryOptions options)
+            throws CouchbaseLiteException {
+        // Rows for explicit keys are returned in the order of the keys, which needs all of them:
+        if (options.getKeys() != null && options.getKeys().size() > 0)
+            return new QueryRowListIterator(regularQuery(options));
+        return new CursorQueryRowIterator(options);
+    }
+
+    /**
+     * Creates the QueryRow for the current row of a regular (non-reduced) query's cursor,
+     * loading the document if the options include docs.
+     */
+    private QueryRow createRow(byte[] keyData, byte[] valueData, String docID, Cursor cursor,
+                               QueryOptions options) {
+        JsonDocument keyDoc = new JsonDocument(keyData);
+        JsonDocument valueDoc = new JsonDocument(valueData);
+        long sequence = Long.parseLong(cursor.getString(3));
+        RevisionInternal docRevision = null;
+        if (options.isIncludeDocs()) {
+            Object valueObject = valueDoc.jsonObject();
+            String linkedID = null;
+            if (valueObject instanceof Map)
+                linkedID = (String) ((Map) valueObject).get("_id");
+            if (linkedID != null) {
+                // Linked document: http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
+                String linkedRev = (String) ((Map) valueObject).get("_rev");
+                docRevision = store.getDocument(linkedID, linkedRev, true);
+                sequence = docRevision.getSequence();
+            } else {
+                String revID = cursor.getString(4);
+                byte[] json = cursor.getBlob(5);
+                Map<String, Object> properties = store.documentPropertiesFromJSON(
+                        json,
+                        docID,
+                        revID,
+                        false,
+                        sequence);
+                docRevision = SQLiteStore.revision(
+                        docID,    // docID
+                        revID,    // revID
+                        false,    // deleted
+                        sequence, // sequence
+                        properties// properties
+                );
+            }
+        }
+        // The key and value are only parsed if the row's getKey()/getValue() are called:
+        return new QueryRow(docID, sequence, keyDoc, valueDoc, docRevision, this);
+    }
+
     /**
      * Queries the view, with reducing or grouping as per the options.
      * in CBL_SQLiteViewStorage.m
@@ -733,6 +1126,12 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             }
         }
 
+        if (canUseReduceTree(options, reduce, group)) {
+            List<QueryRow> rows = reducedQueryFromTree(reduce, group, groupLevel, postFilter);
+            if (rows != null)
+                return rows;
+        }
+
         final List<Object> keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
         final List<Object> valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
         final Object[] lastKeys = new Object[1];
@@ -800,6 +1199,20 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         return rows;
     }
 
+    /**
+     * Enables or disables the persisted reduce tree. When enabled, reduce queries over the whole
+     * key range (grouped or not) combine cached per-block reductions through the reduce block's
+     * rereduce path instead of re-reading every map row; see ReduceBlock for what that costs.
+     * Disabling drops the tree, and so does indexing the view while it's disabled or the view
+     * has no reduce block.
+     */
+    @Override
+    public void setReduceCacheEnabled(boolean enabled) {
+        reduceCacheEnabled = enabled;
+        if (!enabled && getViewID() > 0)
+            deleteReduceTree();
+    }
+
     @Override
     public List<Map<String, Object>> dump() {
         if (getViewID() < 0)
@@ -915,6 +1328,20 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
     private Status runQuery(QueryOptions options, QueryRowBlock block) {
         if (options == null)
             options = new QueryOptions();
+        List<String> argsList = new ArrayList<String>();
+        String sql = queryStatement(options, argsList);
+        return runQuery(sql, argsList, block);
+    }
+
+    /**
+     * Generates the SQL SELECT statement for a view query, adding its arguments to argsList.
+     */
+    private String queryStatement(QueryOptions options, List<String> argsList) {
+        // Unicode-collated views are ordered by the binary sort_key column, which needs no
+        // custom collation. Prefix matching needs the JSON collator's string handling.
+        if (collation == View.TDViewCollation.TDViewCollationUnicode &&
+                options.getPrefixMatchLevel() == 0 && ensureSortKeys())
+            return sortKeyQueryStatement(options, argsList);
 
         // OPT: It would be faster to use separate tables for raw-or ascii-collated views so that
         // they could be indexed with the right collation, instead of having to specify it here.
@@ -932,8 +1359,6 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         sql.append(String.format(" FROM 'maps_%s', revs, docs", mapTableName()));
         sql.append(" WHERE 1");
 
-        List<String> argsList = new ArrayList<String>();
-
         if (options.getKeys() != null && options.getKeys().size() > 0) {
             sql.append(" AND key in (");
             String item = "?";
@@ -991,6 +1416,8 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             }
         }
 
+        appendDocIDsRestriction(options, sql, argsList);
+
         sql.append(String.format(
                 " AND revs.sequence = 'maps_%s'.sequence AND docs.doc_id = revs.doc_id ORDER BY key",
                 mapTableName()));
@@ -1004,12 +1431,113 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         argsList.add(Integer.toString(options.getLimit()));
         argsList.add(Integer.toString(options.getSkip()));
 
-        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql.toString(), argsList);
+        return sql.toString();
+    }
+
+    /**
+     * Same as queryStatement(QueryOptions, List), but compares and orders keys using their
+     * precomputed binary sort keys. Sort keys are inlined as BLOB literals because query
+     * arguments can only be bound as strings.
+     */
+    private String sortKeyQueryStatement(QueryOptions options, List<String> argsList) {
+        StringBuilder sql = new StringBuilder("SELECT key, value, docid, revs.sequence");
+        if (options.isIncludeDocs()) {
+            sql.append(", revid, json");
+        }
+        sql.append(String.format(" FROM 'maps_%s', revs, docs", mapTableName()));
+        sql.append(" WHERE 1");
+
+        if (options.getKeys() != null && options.getKeys().size() > 0) {
+            sql.append(" AND sort_key in (");
+            String item = "";
+            for (Object key : options.getKeys()) {
+                // null key should be ignored
+                if (key != null) {
+                    sql.append(item).append(JsonCollator.toSQLLiteral(getKeyCollator().sortKey(key)));
+                    item = ", ";
+                }
+            }
+            sql.append(')');
+        }
+
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        String minKeyDocId = options.getStartKeyDocId();
+        String maxKeyDocId = options.getEndKeyDocId();
+
+        boolean inclusiveMin = options.isInclusiveStart();
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            Object min = minKey;
+            minKey = maxKey;
+            maxKey = min;
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+            minKeyDocId = options.getEndKeyDocId();
+            maxKeyDocId = options.getStartKeyDocId();
+        }
+
+        if (minKey != null) {
+            String minSortKey = JsonCollator.toSQLLiteral(getKeyCollator().sortKey(minKey));
+            sql.append(inclusiveMin ? " AND sort_key >= " : " AND sort_key > ");
+            sql.append(minSortKey);
+            if (minKeyDocId != null && inclusiveMin) {
+                sql.append(String.format(" AND (sort_key > %s OR docid >= ?)", minSortKey));
+                argsList.add(minKeyDocId);
+            }
+        }
+
+        if (maxKey != null) {
+            String maxSortKey = JsonCollator.toSQLLiteral(getKeyCollator().sortKey(maxKey));
+            sql.append(inclusiveMax ? " AND sort_key <= " : " AND sort_key < ");
+            sql.append(maxSortKey);
+            if (maxKeyDocId != null && inclusiveMax) {
+                sql.append(String.format(" AND (sort_key < %s OR docid <= ?)", maxSortKey));
+                argsList.add(maxKeyDocId);
+            }
+        }
+
+        appendDocIDsRestriction(options, sql, argsList);
+
+        sql.append(String.format(
+                " AND revs.sequence = 'maps_%s'.sequence AND docs.doc_id = revs.doc_id " +
+                        "ORDER BY sort_key", mapTableName()));
+        if (options.isDescending()) {
+            sql.append(" DESC");
+        }
+        sql.append(options.isDescending() ? ", docid DESC" : ", docid");
+
+        sql.append(" LIMIT ? OFFSET ?");
+        argsList.add(Integer.toString(options.getLimit()));
+        argsList.add(Integer.toString(options.getSkip()));
+
+        return sql.toString();
+    }
+
+    // Restricts the query to the rows emitted by the documents in options.getDocIDs(), if any:
+    private static void appendDocIDsRestriction(QueryOptions options, StringBuilder sql,
+                                                List<String> argsList) {
+        if (options.getDocIDs() == null)
+            return;
+        sql.append(" AND docid IN (");
+        String item = "?";
+        for (String docID : options.getDocIDs()) {
+            sql.append(item);
+            item = ", ?";
+            argsList.add(docID);
+        }
+        if (options.getDocIDs().isEmpty())
+            sql.append("NULL");
+        sql.append(')');
+    }
+
+    private Status runQuery(String sql, List<String> argsList, QueryRowBlock block) {
+        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
 
         Status status = new Status(Status.OK);
         Cursor cursor = null;
         try {
-            cursor = store.getStorageEngine().rawQuery(sql.toString(),
+            cursor = store.getStorageEngine().rawQuery(sql,
                     argsList.toArray(new String[argsList.size()]));
             // regular query
             cursor.moveToNext();
@@ -1084,15 +1612,447 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         });
     }
 
+    /**
+     * Makes sure every row of 'maps_#' has a sort_key, adding and populating the column in
+     * indexes created before it existed, and rebuilding the sort keys if they were made by a
+     * different version of the collator (e.g. in another locale). Returns false if the map table
+     * doesn't exist yet or couldn't be migrated, in which case queries fall back to the JSON
+     * collator.
+     */
+    private boolean ensureSortKeys() {
+        if (hasSortKeys)
+            return true;
+
+        final SQLiteStorageEngine storage = store.getStorageEngine();
+        boolean tableExists = false;
+        boolean columnExists = false;
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery(queryString("PRAGMA table_info('maps_#')"), null);
+            while (cursor.moveToNext()) {
+                tableExists = true;
+                if ("sort_key".equals(cursor.getString(1)))
+                    columnExists = true;
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error reading the schema of view _index `%s`", e, name);
+            return false;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (!tableExists)
+            return false;
+
+        final boolean addColumn = !columnExists;
+        final String version = getKeyCollator().getVersion();
+        final boolean rebuild = columnExists && !version.equals(store.getInfo(sortKeysInfoKey()));
+        hasSortKeys = store.runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                try {
+                    if (addColumn) {
+                        Log.v(TAG, "Adding sort keys to view _index `%s`", name);
+                        storage.execSQL(queryString("ALTER TABLE 'maps_#' ADD COLUMN sort_key BLOB"));
+                    } else if (rebuild) {
+                        Log.i(TAG, "Rebuilding the sort keys of view _index `%s` for collator %s",
+                                name, version);
+                        storage.execSQL(queryString("UPDATE 'maps_#' SET sort_key=NULL"));
+                    }
+                    migrateSortKeys();
+                    storage.execSQL(queryString(
+                            "CREATE INDEX IF NOT EXISTS 'maps_#_sort_keys' ON 'maps_#'(sort_key)"));
+                    if (store.setInfo(sortKeysInfoKey(), version) != Status.OK)
+                        return false;
+                } catch (SQLException e) {
+                    Log.e(TAG, "Couldn't add sort keys to view _index `%s`", e, name);
+                    return false;
+                }
+                return true;
+            }
+        });
+        return hasSortKeys;
+    }
+
+    /**
+     * Computes the sort_key of every row that doesn't have one yet, in batches.
+     */
+    private void migrateSortKeys() {
+        SQLiteStorageEngine storage = store.getStorageEngine();
+        String selectSql = queryString(
+                "SELECT rowid, key FROM 'maps_#' WHERE sort_key IS NULL LIMIT 1000");
+        String updateSql = queryString("UPDATE 'maps_#' SET sort_key=? WHERE rowid=?");
+        while (true) {
+            List<Object[]> updates = new ArrayList<Object[]>();
+            Cursor cursor = null;
+            try {
+                cursor = storage.rawQuery(selectSql, null);
+                while (cursor.moveToNext()) {
+                    byte[] sortKey = getKeyCollator().sortKeyFromJSON(cursor.getBlob(1));
+                    if (sortKey == null)
+                        sortKey = getKeyCollator().sortKey(null);
+                    updates.add(new Object[]{sortKey, cursor.getLong(0)});
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+            if (updates.isEmpty())
+                break;
+            for (Object[] args : updates)
+                storage.execSQL(updateSql, args);
+        }
+    }
+
     private void createIndex() {
         String sql = "CREATE TABLE IF NOT EXISTS 'maps_#' (" +
                 "sequence INTEGER NOT NULL REFERENCES revs(sequence) ON DELETE CASCADE," +
                 "key TEXT NOT NULL COLLATE JSON," +
-                "value TEXT)";
-        if (!runStatements(sql))
+                "value TEXT," +
+                "sort_key BLOB)";
+        if (!runStatements(sql)) {
             Log.w(TAG, "Couldn't create view _index `%s`", name);
+            return;
+        }
+        // Rows will get their sort keys from the current collator as they're inserted. (A table
+        // that already has rows keeps its recorded version, if any, for ensureSortKeys().)
+        SQLiteStorageEngine storage = store.getStorageEngine();
+        if (SQLiteUtils.longForQuery(storage,
+                queryString("SELECT EXISTS (SELECT 1 FROM 'maps_#')"), null) == 0 &&
+                store.setInfo(sortKeysInfoKey(), getKeyCollator().getVersion()) != Status.OK)
+            Log.w(TAG, "Couldn't record the sort key version of view _index `%s`", name);
+    }
+
+    // Key of the 'info' row holding the version of the collator that made the sort keys:
+    private String sortKeysInfoKey() {
+        return "sort_keys_" + name;
+    }
+
+
+    // pragma mark - REDUCE TREE:
+
+    /**
+     * The reduce tree only covers the whole index in JSON (unicode) collation order, so it can
+     * serve queries without key ranges, paging or descending groups.
+     */
+    private boolean canUseReduceTree(QueryOptions options, Reducer reduce, boolean group) {
+        return usesReduceTree() &&
+                collation == View.TDViewCollation.TDViewCollationUnicode &&
+                (options.getKeys() == null || options.getKeys().size() == 0) &&
+                options.getStartKey() == null && options.getEndKey() == null &&
+                options.getSkip() == 0 &&
+                options.getLimit() == QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT &&
+                !(group && options.isDescending());
+    }
+
+    private boolean usesReduceTree() {
+        return reduceCacheEnabled && delegate != null && delegate.getReduce() != null;
+    }
+
+    /**
+     * Runs a reduce query using the cached block reductions. Dirty blocks are re-reduced from
+     * their map rows first. Returns null if the tree is unavailable.
+     */
+    private List<QueryRow> reducedQueryFromTree(Reducer reduce, boolean group, int groupLevel,
+                                                Predicate<QueryRow> postFilter) {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        store.beginTransaction();
+        boolean success = false;
+        try {
+            if (!ensureReduceTree())
+                return null;
+
+            // Block 0 is the root: the reduction of the whole index.
+            List<ReduceBlock> blocks = loadReduceBlocks();
+            ReduceBlock root = blocks.remove(0);
+            if (!group && !root.dirty) {
+                if (root.rowCount > 0)
+                    addReducedRow(rows, root.value, postFilter);
+                success = true;
+                return rows;
+            }
+
+            for (int i = 0; i < blocks.size(); i++) {
+                ReduceBlock block = blocks.get(i);
+                if (block.dirty) {
+                    String upperBound = i + 1 < blocks.size() ? blocks.get(i + 1).minKey : null;
+                    refreshReduceBlock(block, upperBound, reduce);
+                }
+            }
+
+            ReduceGroup current = new ReduceGroup();
+            for (int i = 0; i < blocks.size(); i++) {
+                ReduceBlock block = blocks.get(i);
+                if (block.rowCount == 0)
+                    continue;
+                Object firstKey = parseJSON(block.firstKey);
+                if (!group) {
+                    if (current.empty)
+                        current.reset(null);
+                    current.partials.add(parseJSON(block.value));
+                } else if (groupTogether(firstKey, parseJSON(block.lastKey), groupLevel)) {
+                    // The whole block belongs to one group, so its cached value can be used:
+                    if (current.empty || !groupTogether(firstKey, current.key, groupLevel)) {
+                        addReducedRow(rows, current, reduce, groupLevel, postFilter);
+                        current.reset(firstKey);
+                    }
+                    current.partials.add(parseJSON(block.value));
+                } else {
+                    String upperBound = i + 1 < blocks.size() ? blocks.get(i + 1).minKey : null;
+                    Cursor cursor = null;
+                    try {
+                        cursor = queryReduceBlockRows(block.minKey, upperBound);
+                        while (cursor.moveToNext()) {
+                            Object key = new JsonDocument(cursor.getBlob(0)).jsonObject();
+                            if (current.empty || !groupTogether(key, current.key, groupLevel)) {
+                                addReducedRow(rows, current, reduce, groupLevel, postFilter);
+                                current.reset(key);
+                            }
+                            current.keys.add(key);
+                            current.values.add(new JsonDocument(cursor.getBlob(1)).jsonObject());
+                        }
+                    } finally {
+                        if (cursor != null)
+                            cursor.close();
+                    }
+                }
+            }
+            if (group) {
+                addReducedRow(rows, current, reduce, groupLevel, postFilter);
+            } else {
+                root.rowCount = 0;
+                for (ReduceBlock block : blocks)
+                    root.rowCount += block.rowCount;
+                root.value = current.empty ? null : toJSONString(current.reduce(reduce));
+                root.dirty = false;
+                updateReduceBlock(root);
+                if (root.rowCount > 0)
+                    addReducedRow(rows, root.value, postFilter);
+            }
+            success = true;
+        } catch (SQLException e) {
+            Log.w(TAG, "Couldn't use reduce tree of view `%s`", e, name);
+            return null;
+        } finally {
+            store.endTransaction(success);
+        }
+        return rows;
+    }
+
+    private void addReducedRow(List<QueryRow> rows, ReduceGroup group, Reducer reduce,
+                               int groupLevel, Predicate<QueryRow> postFilter) {
+        if (group.empty)
+            return;
+        QueryRow row = new QueryRow(null, 0, groupKey(group.key, groupLevel),
+                group.reduce(reduce), null, this);
+        if (postFilter == null || postFilter.apply(row))
+            rows.add(row);
+    }
+
+    private void addReducedRow(List<QueryRow> rows, String valueJSON,
+                               Predicate<QueryRow> postFilter) {
+        QueryRow row = new QueryRow(null, 0, null, parseJSON(valueJSON), null, this);
+        if (postFilter == null || postFilter.apply(row))
+            rows.add(row);
+    }
+
+    /**
+     * Creates the reduce tree if it doesn't exist, or rebuilds it if a block has grown too large.
+     * Returns false if the map table doesn't exist yet.
+     */
+    private boolean ensureReduceTree() {
+        SQLiteStorageEngine storage = store.getStorageEngine();
+        String[] args = {queryString("maps_#")};
+        if (SQLiteUtils.intForQuery(storage,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", args) <= 0)
+            return false;
+
+        String[] reduceArgs = {queryString("reduce_#")};
+        if (SQLiteUtils.intForQuery(storage,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", reduceArgs) > 0) {
+            int largest = SQLiteUtils.intForQuery(storage,
+                    queryString("SELECT MAX(row_count) FROM 'reduce_#' WHERE block_id>0"), null);
+            if (largest <= REDUCE_BLOCK_SIZE * REDUCE_BLOCK_MAX_GROWTH)
+                return true;
+            deleteReduceTree();
+        }
+
+        mayHaveReduceTree = true;
+        runStatements("CREATE TABLE IF NOT EXISTS 'reduce_#' (" +
+                "block_id INTEGER PRIMARY KEY, " +
+                "min_key TEXT COLLATE JSON, " +
+                "first_key TEXT, " +
+                "last_key TEXT, " +
+                "row_count INTEGER DEFAULT 0, " +
+                "value TEXT, " +
+                "dirty BOOLEAN DEFAULT 1); " +
+                "CREATE INDEX IF NOT EXISTS 'reduce_#_min_key' ON 'reduce_#'(min_key)");
+
+        ContentValues rootValues = new ContentValues();
+        rootValues.put("block_id", 0);
+        rootValues.put("dirty", 1);
+        storage.insert(queryString("reduce_#"), null, rootValues);
+
+        // Cut the rows into blocks of about REDUCE_BLOCK_SIZE rows. GROUP BY uses the JSON
+        // collation of the key column, so rows with equal keys always share a block.
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery(
+                    queryString("SELECT key, COUNT(*) FROM 'maps_#' GROUP BY key ORDER BY key"), null);
+            int count = 0;
+            boolean first = true;
+            while (cursor.moveToNext()) {
+                if (first || count >= REDUCE_BLOCK_SIZE) {
+                    insertReduceBlock(first ? null : cursor.getString(0));
+                    count = 0;
+                    first = false;
+                }
+                count += cursor.getInt(1);
+            }
+            if (first)
+                insertReduceBlock(null);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        // Every insert into or delete from the map table marks the root and the block containing
+        // the key dirty:
+        String findBlock = "(SELECT block_id FROM 'reduce_#' WHERE block_id>0 AND " +
+                "(min_key IS NULL OR min_key <= %s.key) ORDER BY min_key DESC LIMIT 1)";
+        storage.execSQL(queryString(
+                "CREATE TRIGGER IF NOT EXISTS 'maps_#_reduce_ins' AFTER INSERT ON 'maps_#' BEGIN " +
+                        "UPDATE 'reduce_#' SET dirty=1 WHERE block_id=0 OR block_id=" +
+                        String.format(findBlock, "NEW") + "; END"));
+        storage.execSQL(queryString(
+                "CREATE TRIGGER IF NOT EXISTS 'maps_#_reduce_del' AFTER DELETE ON 'maps_#' BEGIN " +
+                        "UPDATE 'reduce_#' SET dirty=1 WHERE block_id=0 OR block_id=" +
+                        String.format(findBlock, "OLD") + "; END"));
+        return true;
+    }
+
+    private void insertReduceBlock(String minKey) {
+        ContentValues values = new ContentValues();
+        values.put("min_key", minKey);
+        values.put("dirty", 1);
+        store.getStorageEngine().insert(queryString("reduce_#"), null, values);
+    }
+
+    private List<ReduceBlock> loadReduceBlocks() {
+        List<ReduceBlock> blocks = new ArrayList<ReduceBlock>();
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(queryString(
+                    "SELECT block_id, min_key, first_key, last_key, row_count, value, dirty " +
+                            "FROM 'reduce_#' ORDER BY block_id>0, min_key"), null);
+            while (cursor.moveToNext()) {
+                ReduceBlock block = new ReduceBlock();
+                block.blockID = cursor.getLong(0);
+                block.minKey = cursor.isNull(1) ? null : cursor.getString(1);
+                block.firstKey = cursor.getString(2);
+                block.lastKey = cursor.getString(3);
+                block.rowCount = cursor.getInt(4);
+                block.value = cursor.getString(5);
+                block.dirty = cursor.getInt(6) != 0;
+                blocks.add(block);
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return blocks;
     }
 
+    private Cursor queryReduceBlockRows(String minKey, String upperBound) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder sql = new StringBuilder("SELECT key, value FROM 'maps_#' WHERE 1");
+        if (minKey != null) {
+            sql.append(" AND key >= ?");
+            args.add(minKey);
+        }
+        if (upperBound != null) {
+            sql.append(" AND key < ?");
+            args.add(upperBound);
+        }
+        sql.append(" ORDER BY key");
+        return store.getStorageEngine().rawQuery(queryString(sql.toString()),
+                args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Re-reduces the map rows of a dirty block and stores the result.
+     */
+    private void refreshReduceBlock(ReduceBlock block, String upperBound, Reducer reduce) {
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        String firstKey = null;
+        String lastKey = null;
+        Cursor cursor = null;
+        try {
+            cursor = queryReduceBlockRows(block.minKey, upperBound);
+            while (cursor.moveToNext()) {
+                byte[] keyData = cursor.getBlob(0);
+                lastKey = cursor.getString(0);
+                if (firstKey == null)
+                    firstKey = lastKey;
+                keys.add(new JsonDocument(keyData).jsonObject());
+                values.add(new JsonDocument(cursor.getBlob(1)).jsonObject());
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        block.firstKey = firstKey;
+        block.lastKey = lastKey;
+        block.rowCount = keys.size();
+        block.value = keys.isEmpty() ? null : toJSONString(reduce.reduce(keys, values, false));
+        block.dirty = false;
+        updateReduceBlock(block);
+    }
+
+    private void updateReduceBlock(ReduceBlock block) {
+        ContentValues updateValues = new ContentValues();
+        updateValues.put("first_key", block.firstKey);
+        updateValues.put("last_key", block.lastKey);
+        updateValues.put("row_count", block.rowCount);
+        updateValues.put("value", block.value);
+        updateValues.put("dirty", block.dirty ? 1 : 0);
+        String[] whereArgs = {Long.toString(block.blockID)};
+        store.getStorageEngine().update(queryString("reduce_#"), updateValues,
+                "block_id=?", whereArgs);
+    }
+
+    private void deleteReduceTree() {
+        String sql = "DROP TRIGGER IF EXISTS 'maps_#_reduce_ins'; " +
+                "DROP TRIGGER IF EXISTS 'maps_#_reduce_del'; " +
+                "DROP TABLE IF EXISTS 'reduce_#'";
+        if (runStatements(sql))
+            mayHaveReduceTree = false;
+        else
+            Log.w(TAG, "Couldn't delete reduce tree of view `%s`", name);
+    }
+
+    /**
+     * Drops the reduce tree left by an earlier session, or by a reduce block that has since
+     * been removed, once the view is known not to use it.
+     */
+    private void deleteUnusedReduceTree() {
+        if (!mayHaveReduceTree)
+            return;
+        String[] args = {queryString("reduce_#")};
+        if (SQLiteUtils.intForQuery(store.getStorageEngine(),
+                "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", args) > 0)
+            deleteReduceTree();
+        else
+            mayHaveReduceTree = false;
+    }
+
+    private static Object parseJSON(String json) {
+        if (json == null)
+            return null;
+        return new JsonDocument(json.getBytes()).jsonObject();
+    }
 
     ///////////////////////////////////////////////////////////////////////////
     // Internal (Private) Static Methods
@@ -1143,6 +2103,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
      */
     private void finishCreatingIndex(){
         String sql = "CREATE INDEX IF NOT EXISTS 'maps_#_keys' on 'maps_#'(key COLLATE JSON);"
+                + "CREATE INDEX IF NOT EXISTS 'maps_#_sort_keys' ON 'maps_#'(sort_key);"
                 + "CREATE INDEX IF NOT EXISTS 'maps_#_sequence' ON 'maps_#'(sequence)";
         if (!runStatements(sql))
             Log.w(TAG, "Couldn't create view SQL index `%s`", name);
@@ -17,6 +17,7 @@ import com.couchbase.lite.TransactionalTask;
 import com.couchbase.lite.internal.RevisionInternal;
 
 import java.net.URL;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -139,6 +140,13 @@ public interface Store {
      */
     RevisionInternal loadRevisionBody(RevisionInternal rev) throws CouchbaseLiteException;
 
+    /**
+     * Loads the bodies of many revisions at once.
+     * On entry, each rev.sequence must be valid. On return, each rev.body is valid, or null if
+     * the revision wasn't found or its body has been compacted away.
+     */
+    void loadRevisionBodies(List<RevisionInternal> revs) throws CouchbaseLiteException;
+
     /**
      * Looks up the sequence number of a revision.
      * Will only be called on revisions whose .sequence property is not already set.
@@ -157,6 +165,13 @@ public interface Store {
      */
     List<RevisionInternal> getRevisionHistory(RevisionInternal rev);
 
+    /**
+     * Returns the histories of many revisions at once, as getRevisionHistory() would, keyed by
+     * the sequence of the revision each starts with. Revisions whose .sequence isn't set, or
+     * that aren't found, have no entry.
+     */
+    Map<Long, List<RevisionInternal>> getRevisionHistories(List<RevisionInternal> revs);
+
     /**
      * Returns the revision history as a _revisions dictionary, as returned
      * by the REST API's ?revs=true option. If 'ancestorRevIDs' is present,
@@ -198,12 +213,37 @@ public interface Store {
      */
     Set<BlobKey> findAllAttachmentKeys() throws CouchbaseLiteException;
 
+    /**
+     * Adds attachments to the garbage collection queue, which otherwise receives each attachment
+     * when the last revision referring to it is purged, pruned or compacted away.
+     */
+    void queueAttachmentsForGC(Collection<BlobKey> keys) throws CouchbaseLiteException;
+
+    /**
+     * Returns up to 'limit' attachments, queued before the given time (in seconds since the
+     * epoch), that no revision refers to. Queued attachments that are referred to again are
+     * removed from the queue.
+     */
+    List<BlobKey> findUnreferencedAttachments(int limit, long queuedBefore)
+            throws CouchbaseLiteException;
+
+    /**
+     * Removes attachments from the garbage collection queue, once their blobs are deleted.
+     */
+    void removeAttachmentsFromGCQueue(Collection<BlobKey> keys) throws CouchbaseLiteException;
+
     /**
      * Iterates over all documents in the database, according to the given query options.
      */
     //List<QueryRow> getAllDocs(QueryOptions options) throws CouchbaseLiteException;
     Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException;
 
+    /**
+     * Same as getAllDocs(), but returns the rows one at a time as they're read from the
+     * database. The caller must close the iterator if it doesn't read all of the rows.
+     */
+    QueryRowIterator getAllDocsIterator(QueryOptions options) throws CouchbaseLiteException;
+
     /**
      * Returns all database changes with sequences greater than `lastSequence`.
      *
@@ -8,6 +8,7 @@ package com.couchbase.lite.store;
 
 import com.couchbase.lite.*;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
@@ -78,15 +79,33 @@ public interface ViewStore {
      */
     List<QueryRow> regularQuery(QueryOptions options) throws CouchbaseLiteException;
 
+    /**
+     * Same as regularQuery(), but returns the rows one at a time as they're read from the
+     * _index. The caller must close the iterator if it doesn't read all of the rows.
+     */
+    QueryRowIterator regularQueryIterator(QueryOptions options) throws CouchbaseLiteException;
+
     /**
      * Queries the view, with reducing or grouping as per the options.
      */
     List<QueryRow> reducedQuery(QueryOptions options) throws CouchbaseLiteException;
 
+    /**
+     * Enables or disables caching of partial reductions, so that reduce queries don't have to
+     * re-read every row of the _index. The view's reduce block must support rereduce.
+     */
+    void setReduceCacheEnabled(boolean enabled);
+
     /**
      * Methods for debugging
      */
     List<Map<String, Object>> dump();
 
+    /**
+     * Returns a comparator that orders emitted keys the way queries order their rows (before
+     * ordering rows with equal keys by doc ID), or null if the store can't compare keys that way.
+     */
+    Comparator<Object> getKeyComparator();
+
     void setCollation(View.TDViewCollation collation);
 }
@@ -1,5 +1,7 @@
 package com.couchbase.lite.support;
 
+import com.couchbase.lite.metrics.Gauge;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
@@ -20,6 +22,9 @@ public class Batcher<T> {
 
     private static long SMALL_DELAY_AFTER_LONG_PAUSE = 500; // in Milliseconds
 
+    // Objects waiting in the inboxes of all batchers
+    private static final Gauge QUEUED = Metrics.gauge("batcher.queued");
+
     ///////////////////////////////////////////////////////////////////////////
     // Instance Variables
     ///////////////////////////////////////////////////////////////////////////
@@ -124,6 +129,7 @@ public class Batcher<T> {
             Log.v(Log.TAG_BATCHER, "%s: queueObjects called with %d objects (current inbox size = %d)",
                     this, objects.size(), inbox.size());
             inbox.addAll(objects);
+            QUEUED.add(objects.size());
             mutex.notifyAll();
 
             if (isFlushing) {
@@ -173,6 +179,7 @@ public class Batcher<T> {
 
                 final List<T> toProcess = new ArrayList<T>(inbox);
                 inbox.clear();
+                QUEUED.add(-toProcess.size());
                 mutex.notifyAll();
 
                 future = workExecutor.schedule(new Runnable() {
@@ -209,6 +216,7 @@ public class Batcher<T> {
     public void clear() {
         synchronized (mutex) {
             unschedule();
+            QUEUED.add(-inbox.size());
             inbox.clear();
             mutex.notifyAll();
         }
@@ -373,6 +381,7 @@ public class Batcher<T> {
                     inbox.remove(0);
                 scheduleNextBatchImmediately = true;
             }
+            QUEUED.add(-toProcess.size());
             mutex.notifyAll();
         }
 
@@ -41,7 +41,9 @@ public class CouchbaseLiteHttpClientFactory implements HttpClientFactory {
     private SSLSocketFactory sslSocketFactory;
 
     private BasicHttpParams basicHttpParams;
-    
+
+    private HttpConnectionPool connectionPool;
+
     public static int DEFAULT_CONNECTION_TIMEOUT_SECONDS = 60;
     public static int DEFAULT_SO_TIMEOUT_SECONDS = 60 * 5;
 
@@ -69,6 +71,15 @@ public class CouchbaseLiteHttpClientFactory implements HttpClientFactory {
         this.basicHttpParams = basicHttpParams;
     }
 
+    /**
+     * Makes the HttpClients share the given pool's keep-alive connections, instead of each
+     * opening its own. Set by Replication to the Manager's pool.
+     */
+    @InterfaceAudience.Private
+    public void setConnectionPool(HttpConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
     @Override
     @InterfaceAudience.Private
     public HttpClient getHttpClient() {
@@ -85,11 +96,16 @@ public class CouchbaseLiteHttpClientFactory implements HttpClientFactory {
             HttpConnectionParams.setSoTimeout(basicHttpParams, DEFAULT_SO_TIMEOUT_SECONDS * 1000);
         }
 
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        final SSLSocketFactory sslSocketFactory = SSLSocketFactory.getSocketFactory();
-        schemeRegistry.register(new Scheme("https", this.sslSocketFactory == null ? sslSocketFactory : this.sslSocketFactory, 443));
-        ClientConnectionManager cm = new ThreadSafeClientConnManager(basicHttpParams, schemeRegistry);
+        ClientConnectionManager cm;
+        if (connectionPool != null) {
+            cm = connectionPool.getConnectionManager(this.sslSocketFactory);
+        } else {
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            final SSLSocketFactory sslSocketFactory = SSLSocketFactory.getSocketFactory();
+            schemeRegistry.register(new Scheme("https", this.sslSocketFactory == null ? sslSocketFactory : this.sslSocketFactory, 443));
+            cm = new ThreadSafeClientConnManager(basicHttpParams, schemeRegistry);
+        }
 
         DefaultHttpClient client = new DefaultHttpClient(cm, basicHttpParams);
 
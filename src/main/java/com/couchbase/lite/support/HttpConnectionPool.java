@@ -0,0 +1,218 @@
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.Gauge;
+import com.couchbase.lite.metrics.Metrics;
+import com.couchbase.lite.util.Log;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of keep-alive HTTP connections shared by all the HttpClients that
+ * CouchbaseLiteHttpClientFactory creates for a Manager's replications, so that requests to the
+ * same server reuse connections instead of making a new TCP connection and TLS handshake for
+ * each one. Connections are pooled by route (scheme, host and port), up to a number per route
+ * and in total, and are closed once idle for longer than the idle timeout.
+ * <p/>
+ * A separate pool is kept for each SSLSocketFactory, since a connection opened with one can't be
+ * handed to a client configured with another.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class HttpConnectionPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+    public static final int DEFAULT_MAX_CONNECTIONS = 128;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+
+    private static final Counter OPENED = Metrics.counter("http.connections.opened");
+    private static final Counter REUSED = Metrics.counter("http.connections.reused");
+    private static final Gauge POOLED = Metrics.gauge("http.connections.pooled");
+
+    private final BasicHttpParams poolParams;
+    private final long idleTimeoutMs;
+    // keyed by SSLSocketFactory identity; null for the default one
+    private final Map<SSLSocketFactory, ThreadSafeClientConnManager> pools =
+            new IdentityHashMap<SSLSocketFactory, ThreadSafeClientConnManager>();
+    private boolean shutdown = false;
+
+    public HttpConnectionPool(int maxConnectionsPerHost, int maxConnections, long idleTimeoutMs) {
+        this.poolParams = new BasicHttpParams();
+        ConnManagerParams.setMaxConnectionsPerRoute(poolParams, new ConnPerRouteBean(maxConnectionsPerHost));
+        ConnManagerParams.setMaxTotalConnections(poolParams, maxConnections);
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * Returns a connection manager for one HttpClient, backed by the shared pool for the given
+     * SSLSocketFactory (or the default one if null.) Shutting it down, as the callers of
+     * HttpClientFactory.getHttpClient() do when they're done, doesn't close the pooled
+     * connections; it only aborts any connection the client still holds, so that an unconsumed
+     * response can't keep a connection out of the pool.
+     */
+    public ClientConnectionManager getConnectionManager(SSLSocketFactory sslSocketFactory) {
+        ThreadSafeClientConnManager pool;
+        synchronized (pools) {
+            if (shutdown)
+                throw new IllegalStateException("HttpConnectionPool is shut down");
+            pool = pools.get(sslSocketFactory);
+            if (pool == null) {
+                SchemeRegistry schemeRegistry = new SchemeRegistry();
+                schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+                schemeRegistry.register(new Scheme("https", sslSocketFactory == null ?
+                        SSLSocketFactory.getSocketFactory() : sslSocketFactory, 443));
+                pool = new ThreadSafeClientConnManager(poolParams, schemeRegistry);
+                pools.put(sslSocketFactory, pool);
+            }
+        }
+        return new SharedConnectionManager(pool);
+    }
+
+    /**
+     * Closes connections that have been idle for longer than the idle timeout, or that the
+     * server said not to keep alive any longer. Called periodically by the Manager.
+     */
+    public void evictIdleConnections() {
+        List<ThreadSafeClientConnManager> managers;
+        synchronized (pools) {
+            managers = new ArrayList<ThreadSafeClientConnManager>(pools.values());
+        }
+        int pooled = 0;
+        for (ThreadSafeClientConnManager manager : managers) {
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+            pooled += manager.getConnectionsInPool();
+        }
+        POOLED.set(pooled);
+    }
+
+    /**
+     * Closes all the pooled connections. Called when the Manager is closed.
+     */
+    public void shutdown() {
+        List<ThreadSafeClientConnManager> managers;
+        synchronized (pools) {
+            shutdown = true;
+            managers = new ArrayList<ThreadSafeClientConnManager>(pools.values());
+            pools.clear();
+        }
+        for (ThreadSafeClientConnManager manager : managers) {
+            try {
+                manager.shutdown();
+            } catch (Exception e) {
+                Log.w(Log.TAG_SYNC, "Error shutting down HTTP connection pool", e);
+            }
+        }
+        POOLED.set(0);
+    }
+
+    /**
+     * The connection manager of one HttpClient. Connections released through the response
+     * entity go straight back to the pool, so the ones still held are found by checking
+     * whether they're still open; aborting one that was already released does nothing.
+     */
+    private static class SharedConnectionManager implements ClientConnectionManager {
+        private final ThreadSafeClientConnManager pool;
+        private final Set<ManagedClientConnection> leased = new HashSet<ManagedClientConnection>();
+
+        SharedConnectionManager(ThreadSafeClientConnManager pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public SchemeRegistry getSchemeRegistry() {
+            return pool.getSchemeRegistry();
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = pool.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection connection = request.getConnection(timeout, unit);
+                    if (connection.isOpen())
+                        REUSED.increment();
+                    else
+                        OPENED.increment();
+                    synchronized (leased) {
+                        // forget the ones that went back to the pool, to keep this bounded:
+                        for (Iterator<ManagedClientConnection> i = leased.iterator(); i.hasNext(); ) {
+                            if (!i.next().isOpen())
+                                i.remove();
+                        }
+                        leased.add(connection);
+                    }
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit timeUnit) {
+            synchronized (leased) {
+                leased.remove(connection);
+            }
+            pool.releaseConnection(connection, validDuration, timeUnit);
+        }
+
+        @Override
+        public void closeIdleConnections(long idleTime, TimeUnit timeUnit) {
+            pool.closeIdleConnections(idleTime, timeUnit);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            pool.closeExpiredConnections();
+        }
+
+        @Override
+        public void shutdown() {
+            List<ManagedClientConnection> connections;
+            synchronized (leased) {
+                connections = new ArrayList<ManagedClientConnection>(leased);
+                leased.clear();
+            }
+            for (ManagedClientConnection connection : connections) {
+                try {
+                    connection.abortConnection();
+                } catch (Exception e) {
+                    Log.v(Log.TAG_SYNC, "Error aborting HTTP connection: %s", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.text.Collator;
+import java.text.RuleBasedCollator;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pure Java implementation of the JSON (unicode) collation used by view indexes.
+ * <p/>
+ * Instead of comparing two JSON values directly, a value is encoded into a binary sort key whose
+ * unsigned byte-wise (memcmp) order is the collation order:
+ * null &lt; false &lt; true &lt; numbers &lt; strings &lt; arrays &lt; objects.
+ * Numbers compare by value, strings with the java.text.Collator of the collator's locale, arrays
+ * element by element, and objects key by key (in the order of their keys) and then value by
+ * value. A sort key can therefore be stored in an ordinary SQLite BLOB column and indexed,
+ * range-scanned and sorted without any custom collation function.
+ * <p/>
+ * Strings are compared the way the native COLLATE JSON compares them on a connection with the
+ * same locale: it calls back into java.text.Collator on the Java platform, and uses ICU, which
+ * also backs java.text.Collator, on Android. Strings the collator considers equal get equal sort
+ * keys, as they're equal keys for COLLATE JSON.
+ */
+public final class JsonCollator implements Comparator<Object> {
+
+    // Type tags; must all be greater than END.
+    private static final int END = 0x00;
+    private static final int TAG_NULL = 0x02;
+    private static final int TAG_FALSE = 0x03;
+    private static final int TAG_TRUE = 0x04;
+    private static final int TAG_NUMBER = 0x05;
+    private static final int TAG_STRING = 0x06;
+    private static final int TAG_ARRAY = 0x07;
+    private static final int TAG_OBJECT = 0x08;
+    // Marks each key/value pair of an object.
+    private static final int TAG_ENTRY = 0x02;
+    // Bytes up to ESCAPE inside a string are written as ESCAPE followed by the byte plus one.
+    private static final int ESCAPE = 0x01;
+
+    // Changes whenever the encoding does, so that stored sort keys get rebuilt:
+    private static final int FORMAT_VERSION = 2;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final ConcurrentMap<Locale, JsonCollator> instances =
+            new ConcurrentHashMap<Locale, JsonCollator>();
+
+    private final Locale locale;
+    private volatile String version;
+
+    // java.text.Collator instances are not thread-safe:
+    private final ThreadLocal<Collator> collator = new ThreadLocal<Collator>() {
+        @Override
+        protected Collator initialValue() {
+            return Collator.getInstance(locale);
+        }
+    };
+
+    private JsonCollator(Locale locale) {
+        this.locale = locale;
+    }
+
+    /**
+     * Returns the collator that compares strings in the given locale, which should be the locale
+     * of the SQLite connection whose COLLATE JSON order the sort keys have to match.
+     */
+    public static JsonCollator getInstance(Locale locale) {
+        JsonCollator instance = instances.get(locale);
+        if (instance == null) {
+            JsonCollator created = new JsonCollator(locale);
+            instance = instances.putIfAbsent(locale, created);
+            if (instance == null)
+                instance = created;
+        }
+        return instance;
+    }
+
+    public Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     * Identifies the encoding, the locale and the collation rules of the sort keys. Sort keys
+     * stored with a different version have to be rebuilt, e.g. after the device's locale has
+     * changed, as COLLATE JSON already orders by the new one.
+     */
+    public String getVersion() {
+        if (version == null) {
+            Collator c = collator.get();
+            String rules = (c instanceof RuleBasedCollator) ? ((RuleBasedCollator) c).getRules() : "";
+            version = FORMAT_VERSION + ":" + locale + ":" + Integer.toHexString(rules.hashCode());
+        }
+        return version;
+    }
+
+    /**
+     * Returns the binary sort key of a JSON-compatible value (Map, List, String, Number, Boolean
+     * or null).
+     */
+    public byte[] sortKey(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        encode(value, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the binary sort key of a value given as JSON data, or null if it can't be parsed.
+     */
+    public byte[] sortKeyFromJSON(byte[] json) {
+        if (json == null)
+            return null;
+        // Blobs read back from SQLite may be terminated by '\0', which Jackson rejects:
+        int length = json.length;
+        if (length > 0 && json[length - 1] == 0)
+            length--;
+        Object value;
+        try {
+            value = Manager.getObjectMapper().readValue(json, 0, length, Object.class);
+        } catch (Exception e) {
+            Log.w(Log.TAG_VIEW, "Unable to parse JSON for sort key: %s", e, new String(json));
+            return null;
+        }
+        return sortKey(value);
+    }
+
+    /**
+     * Compares two JSON-compatible values in JSON collation order.
+     */
+    @Override
+    public int compare(Object value1, Object value2) {
+        return compareSortKeys(sortKey(value1), sortKey(value2));
+    }
+
+    /**
+     * Compares two sort keys as unsigned bytes, the same way SQLite compares BLOBs.
+     */
+    public static int compareSortKeys(byte[] key1, byte[] key2) {
+        int n = Math.min(key1.length, key2.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        return key1.length - key2.length;
+    }
+
+    /**
+     * Returns a SQL BLOB literal (X'...') for a sort key, for use in queries whose arguments can
+     * only be bound as strings.
+     */
+    public static String toSQLLiteral(byte[] key) {
+        StringBuilder sb = new StringBuilder(key.length * 2 + 3);
+        sb.append("X'");
+        for (byte b : key) {
+            sb.append(HEX[(b >> 4) & 0x0F]);
+            sb.append(HEX[b & 0x0F]);
+        }
+        sb.append('\'');
+        return sb.toString();
+    }
+
+    private void encode(Object value, ByteArrayOutputStream out) {
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Number) {
+            out.write(TAG_NUMBER);
+            encodeNumber(((Number) value).doubleValue(), out);
+        } else if (value instanceof String) {
+            out.write(TAG_STRING);
+            encodeString((String) value, out);
+        } else if (value instanceof List) {
+            out.write(TAG_ARRAY);
+            for (Object item : (List<?>) value)
+                encode(item, out);
+            out.write(END);
+        } else if (value instanceof Map) {
+            out.write(TAG_OBJECT);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                out.write(TAG_ENTRY);
+                encodeString(String.valueOf(entry.getKey()), out);
+                encode(entry.getValue(), out);
+            }
+            out.write(END);
+        } else if (value instanceof Object[]) {
+            out.write(TAG_ARRAY);
+            for (Object item : (Object[]) value)
+                encode(item, out);
+            out.write(END);
+        } else {
+            // Anything else (e.g. a POJO) collates as whatever Jackson serializes it to:
+            encode(Manager.getObjectMapper().convertValue(value, Object.class), out);
+        }
+    }
+
+    /**
+     * Maps a double onto 8 bytes that sort in numeric order: the sign bit is flipped for positive
+     * numbers, and all bits are flipped for negative ones.
+     */
+    private static void encodeNumber(double d, ByteArrayOutputStream out) {
+        if (d == 0.0)
+            d = 0.0; // -0.0 == 0.0
+        long bits = Double.doubleToLongBits(d);
+        bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+        for (int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (bits >>> shift) & 0xFF);
+    }
+
+    /**
+     * Writes the collation key of a string. Collation keys are equal for strings that differ
+     * only in ignorable characters (e.g. "ab" and "a\u0001b"), which COLLATE JSON considers
+     * equal too. Bytes up to ESCAPE are escaped so that END stays unambiguous and shorter strings
+     * sort before their extensions.
+     */
+    private void encodeString(String s, ByteArrayOutputStream out) {
+        writeEscaped(collator.get().getCollationKey(s).toByteArray(), out);
+        out.write(END);
+    }
+
+    private static void writeEscaped(byte[] bytes, ByteArrayOutputStream out) {
+        for (byte b : bytes) {
+            int v = b & 0xFF;
+            if (v <= ESCAPE) {
+                out.write(ESCAPE);
+                out.write(v + 1);
+            } else {
+                out.write(v);
+            }
+        }
+    }
+}
@@ -3,74 +3,120 @@ package com.couchbase.lite.support;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.util.Log;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
+import java.io.IOException;
 import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 /*
  * A wrapper object for data representing a JSON object, parsing of the JSON
- * data is delayed until it is accessed via one of the Map methods
+ * data is delayed until it is accessed via one of the Map methods.
+ *
+ * get(), containsKey() and remove() don't parse the whole object: the top-level keys are found
+ * with a streaming parser, which skips over the values without decoding them and remembers
+ * where each one is, and only the requested value is decoded. As in a full parse, the last of
+ * duplicate keys wins, so the first lookup scans all the keys. Methods that need every entry
+ * (size(), keySet(), entrySet(), values(), containsValue()) parse it all.
+ * Since reading changes its state, access is synchronized, so that document properties can
+ * be read from several threads as with a parsed Map.
  * */
 public class LazyJsonObject<K, V> extends AbstractMap<K, V> {
 
     private boolean parsed = false;
     private byte[] json;
+    private int jsonLength;
     private Map<K, V> cache = new HashMap<K, V>();
 
+    // Keys that were removed before the JSON was parsed:
+    private Set<Object> removed;
+    // Start and end offsets in 'json' of the values of the top-level keys scanned so far:
+    private Map<String, int[]> valueRanges;
+    // The range of the last key scanned, whose end is found when the next token is read:
+    private int[] pendingRange;
+    private JsonParser scanner;
+    private boolean scanned = false;
+    private boolean scanFailed = false;
+
     public LazyJsonObject(byte[] json) {
         if (json[0] != '{') {
             throw new IllegalArgumentException("data must represent a JSON Object");
         }
         this.json = json;
+        // JSON read from the database may be followed by a '\0':
+        this.jsonLength = json[json.length - 1] == 0 ? json.length - 1 : json.length;
+    }
+
+    /**
+     * Scans the top-level keys of the JSON, which tokenizes all of it without decoding the
+     * values, and returns false if it's malformed.
+     */
+    public synchronized boolean isValid() {
+        if (parsed)
+            return true;
+        scanAll();
+        return !scanFailed;
     }
 
     @Override
-    public V put(K key, V value) {
+    public synchronized V put(K key, V value) {
         //value for key takes priority over json properties even if
         //json has not been parsed yet
+        if (removed != null)
+            removed.remove(key);
         return cache.put(key, value);
     }
 
     @Override
-    public V get(Object key) {
-        if (cache.containsKey(key)) {
-            return cache.get(key);
-        } else {
-            parseJson();
+    public synchronized V get(Object key) {
+        if (cache.containsKey(key) || parsed) {
             return cache.get(key);
         }
+        int[] range = findValue(key);
+        if (range == null)
+            return null;
+        V value = decodeValue(range);
+        cache.put((K) key, value);
+        return value;
     }
 
     @Override
-    public V remove(Object key) {
-        if (cache.containsKey(key)) {
-            return cache.remove(key);
-        } else {
-            parseJson();
-            return cache.remove(key);
+    public synchronized V remove(Object key) {
+        if (cache.containsKey(key) || parsed) {
+            V value = cache.remove(key);
+            if (!parsed && findValue(key) != null)
+                markRemoved(key);
+            return value;
         }
+        int[] range = findValue(key);
+        if (range == null)
+            return null;
+        markRemoved(key);
+        return decodeValue(range);
     }
 
     @Override
-    public void clear() {
+    public synchronized void clear() {
         cache.clear();
+        discardJson();
     }
 
     @Override
-    public boolean containsKey(Object key) {
-        if (cache.containsKey(key)) {
-            return cache.containsKey(key);
-        } else {
-            parseJson();
+    public synchronized boolean containsKey(Object key) {
+        if (cache.containsKey(key) || parsed) {
             return cache.containsKey(key);
         }
+        return findValue(key) != null;
     }
 
     @Override
-    public boolean containsValue(Object value) {
+    public synchronized boolean containsValue(Object value) {
         if (cache.containsValue(value)) {
             return cache.containsValue(value);
         } else {
@@ -80,24 +126,24 @@ public class LazyJsonObject<K, V> extends AbstractMap<K, V> {
     }
 
     @Override
-    public Set<K> keySet() {
+    public synchronized Set<K> keySet() {
         parseJson();
         return cache.keySet();
     }
 
     @Override
-    public int size() {
+    public synchronized int size() {
         parseJson();
         return cache.size();
     }
 
     @Override
-    public Set<Entry<K, V>> entrySet() {
+    public synchronized Set<Entry<K, V>> entrySet() {
         parseJson();
         return cache.entrySet();
     }
 
-    public Collection<V> values() {
+    public synchronized Collection<V> values() {
         parseJson();
         return cache.values();
     }
@@ -108,15 +154,155 @@ public class LazyJsonObject<K, V> extends AbstractMap<K, V> {
         }
 
         try {
-            Map<K, V> parsedprops = (Map<K, V>) Manager.getObjectMapper().readValue(json, Object.class);
+            Map<K, V> parsedprops = (Map<K, V>) Manager.getObjectMapper().readValue(json, 0, jsonLength, Object.class);
+            if (removed != null)
+                parsedprops.keySet().removeAll(removed);
             //Merge parsed properties into map, overwriting the values for duplicate keys
             parsedprops.putAll(cache);
             cache = parsedprops;
         } catch (Exception e) {
             Log.e(Database.TAG, this.getClass().getName() + ": Failed to parse Json data: ", e);
         } finally {
-            parsed = true;
-            json = null;
+            discardJson();
+        }
+    }
+
+    private void discardJson() {
+        parsed = true;
+        json = null;
+        removed = null;
+        valueRanges = null;
+        pendingRange = null;
+        closeScanner();
+    }
+
+    private void markRemoved(Object key) {
+        if (removed == null)
+            removed = new HashSet<Object>();
+        removed.add(key);
+    }
+
+    /**
+     * Returns the range of the value of a top-level key that's in the JSON and hasn't been
+     * removed. The whole object is scanned first, since the key may appear again later.
+     */
+    private int[] findValue(Object key) {
+        if (!(key instanceof String) || (removed != null && removed.contains(key)))
+            return null;
+        scanAll();
+        return valueRanges.get(key);
+    }
+
+    private void scanAll() {
+        if (valueRanges == null)
+            valueRanges = new HashMap<String, int[]>();
+        while (!scanned)
+            scanNextKey();
+    }
+
+    /**
+     * Reads the next top-level key and skips its value, recording where the value starts; the
+     * value ends before the next key (or the end of the object), so its end is recorded by the
+     * next call.
+     */
+    private void scanNextKey() {
+        try {
+            if (scanner == null) {
+                scanner = Manager.getObjectMapper().getFactory().createParser(json, 0, jsonLength);
+                if (scanner.nextToken() != JsonToken.START_OBJECT)
+                    throw new IOException("JSON data is not an object");
+            }
+            JsonToken token = scanner.nextToken();
+            int tokenOffset = tokenOffset();
+            if (pendingRange != null) {
+                pendingRange[1] = valueEnd(pendingRange[0], tokenOffset);
+                pendingRange = null;
+            }
+            if (token != JsonToken.FIELD_NAME) {
+                scanned = true;
+                closeScanner();
+                return;
+            }
+            String name = scanner.getCurrentName();
+            token = scanner.nextToken();
+            // A later duplicate of the key replaces it, as in the Map Jackson would build:
+            pendingRange = new int[]{valueStart(tokenOffset), -1};
+            valueRanges.put(name, pendingRange);
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)
+                scanner.skipChildren();
+        } catch (IOException e) {
+            Log.e(Database.TAG, this.getClass().getName() + ": Failed to scan Json data: ", e);
+            scanned = true;
+            scanFailed = true;
+            pendingRange = null;
+            closeScanner();
+        }
+    }
+
+    // The offset in 'json' of the current token. Jackson 2.5 reports offsets into byte input as
+    // character offsets, and later versions as byte offsets. It may also place a field name at
+    // the comma before it, and the value after a field name at the name, which is why value
+    // starts are found with valueStart().
+    private int tokenOffset() {
+        JsonLocation location = scanner.getTokenLocation();
+        long offset = location.getByteOffset();
+        return (int) (offset >= 0 ? offset : location.getCharOffset());
+    }
+
+    // Skips from the start of a field name (or the comma before it) to the start of its value:
+    private int valueStart(int nameOffset) {
+        int i = skipWhitespace(nameOffset);
+        if (json[i] == ',')
+            i = skipWhitespace(i + 1);
+        // The name's quotes, and any escaped characters in it:
+        for (i++; json[i] != '"'; i++) {
+            if (json[i] == '\\')
+                i++;
+        }
+        i = skipWhitespace(i + 1); // ':'
+        return skipWhitespace(i + 1);
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < jsonLength && isWhitespace(json[i]))
+            i++;
+        return i;
+    }
+
+    // Backs up from the start of the token after a value over the separating comma and spaces:
+    private int valueEnd(int start, int nextToken) {
+        int end = nextToken;
+        while (end > start && isWhitespace(json[end - 1]))
+            end--;
+        if (end > start && json[end - 1] == ',')
+            end--;
+        while (end > start && isWhitespace(json[end - 1]))
+            end--;
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private V decodeValue(int[] range) {
+        if (range[1] < 0)
+            return null; // the scan failed before the end of the value was found
+        try {
+            return (V) Manager.getObjectMapper().readValue(json, range[0], range[1] - range[0], Object.class);
+        } catch (IOException e) {
+            Log.e(Database.TAG, this.getClass().getName() + ": Failed to parse Json value: ", e);
+            return null;
+        }
+    }
+
+    private void closeScanner() {
+        if (scanner != null) {
+            try {
+                scanner.close();
+            } catch (IOException e) {
+            }
+            scanner = null;
         }
     }
-}
\ No newline at end of file
+}
@@ -4,12 +4,14 @@ import com.couchbase.lite.BlobStoreWriter;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.Misc;
+import com.couchbase.lite.internal.RawRevision;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
 
 import org.apache.http.util.ByteArrayBuffer;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -22,6 +24,8 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
     private ByteArrayBuffer jsonBuffer;
     private boolean jsonCompressed;
     private Map<String, Object> document;
+    private boolean rawRevisionsEnabled;
+    private RawRevision rawRevision;
     private Database database;
     private Map<String, BlobStoreWriter> attachmentsByName;
     private Map<String, BlobStoreWriter> attachmentsByMd5Digest;
@@ -34,7 +38,24 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
         return document;
     }
 
+    /**
+     * If enabled, a document without attachments is not parsed into properties; it's scanned into
+     * a RawRevision instead, which is returned by getRawRevision() (getDocumentProperties()
+     * returns null.)
+     */
+    public void setRawRevisionsEnabled(boolean rawRevisionsEnabled) {
+        this.rawRevisionsEnabled = rawRevisionsEnabled;
+    }
+
+    public RawRevision getRawRevision() {
+        return rawRevision;
+    }
+
     public void parseJsonBuffer() {
+        if (rawRevisionsEnabled) {
+            scanJsonBuffer();
+            return;
+        }
         ByteArrayInputStream inputStream = null;
         try {
             inputStream = new ByteArrayInputStream(jsonBuffer.buffer(), 0, jsonBuffer.length());
@@ -71,6 +92,39 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
         }
     }
 
+    private void scanJsonBuffer() {
+        try {
+            byte[] json = jsonBuffer.buffer();
+            int length = jsonBuffer.length();
+            if (jsonCompressed) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+                GZIPInputStream gzipStream = new GZIPInputStream(
+                        new ByteArrayInputStream(json, 0, length));
+                try {
+                    byte[] buffer = new byte[4096];
+                    int n;
+                    while ((n = gzipStream.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                } finally {
+                    try {
+                        gzipStream.close();
+                    } catch (IOException e) {
+                    }
+                }
+                json = out.toByteArray();
+                length = json.length;
+            }
+            rawRevision = RawRevision.fromJSON(json, 0, length);
+            if (rawRevision == null)
+                document = Manager.getObjectMapper().readValue(json, 0, length, Map.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to parse json buffer", e);
+        } finally {
+            jsonBuffer.clear();
+            jsonBuffer = null;
+        }
+    }
+
     public void setHeaders(Map<String, String> headers) {
         String contentType = headers.get("Content-Type");
         if (contentType != null && contentType.startsWith("multipart/")) {
@@ -127,6 +181,11 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
 
         int numAttachmentsInDoc = 0;
 
+        // A document scanned into a RawRevision has no attachments:
+        if (document == null) {
+            return;
+        }
+
         Map<String, Object> attachments = (Map<String, Object>) document.get("_attachments");
         if (attachments == null) {
             return;
@@ -209,7 +268,7 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
     @Override
     public void startedPart(Map<String, String> headers) {
 
-        if (document == null) {
+        if (document == null && rawRevision == null) {
             startJSONBufferWithHeaders(headers);
         } else {
             curAttachment = database.getAttachmentWriter();
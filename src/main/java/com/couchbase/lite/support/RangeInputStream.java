@@ -0,0 +1,67 @@
+package com.couchbase.lite.support;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that reads a range of bytes of another stream: it skips 'offset' bytes of the
+ * underlying stream, then returns at most 'length' bytes.
+ */
+public class RangeInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    public RangeInputStream(InputStream in, long offset, long length) throws IOException {
+        super(in);
+        while (offset > 0) {
+            long skipped = in.skip(offset);
+            if (skipped <= 0) {
+                // skip() may stop early, e.g. at the end of a CipherInputStream's buffer:
+                if (in.read() < 0)
+                    break;
+                skipped = 1;
+            }
+            offset -= skipped;
+        }
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int b = in.read();
+        if (b >= 0)
+            remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int n = in.read(buffer, offset, (int) Math.min(count, remaining));
+        if (n > 0)
+            remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        if (skipped > 0)
+            remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -2,6 +2,7 @@ package com.couchbase.lite.support;
 
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
 
@@ -52,6 +53,7 @@ public class RemoteMultipartDownloaderRequest extends RemoteRequest {
 
     private static final int BUF_LEN = 1024;
     protected void executeRequest(HttpClient httpClient, HttpUriRequest request) {
+        long start = Metrics.startTimer();
         Object fullBody = null;
         Throwable error = null;
         HttpResponse response = null;
@@ -63,6 +65,7 @@ public class RemoteMultipartDownloaderRequest extends RemoteRequest {
             }
 
             response = httpClient.execute(request);
+            REQUEST_TIME.recordSince(start);
 
             try {
                 // add in cookies to global store
@@ -144,6 +147,7 @@ public class RemoteMultipartDownloaderRequest extends RemoteRequest {
             }
         } catch (Exception e) {
             Log.e(Log.TAG_REMOTE_REQUEST, "%s: executeRequest() Exception: ", e, this);
+            REQUEST_ERRORS.increment();
             respondWithResult(fullBody, e, response);
         } finally {
             Log.v(Log.TAG_REMOTE_REQUEST, "%s: executeRequest() finally", this);
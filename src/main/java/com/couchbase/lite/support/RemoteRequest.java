@@ -4,6 +4,9 @@ import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.auth.Authenticator;
 import com.couchbase.lite.auth.AuthenticatorImpl;
+import com.couchbase.lite.metrics.Counter;
+import com.couchbase.lite.metrics.LatencyHistogram;
+import com.couchbase.lite.metrics.Metrics;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.URIUtils;
 import com.couchbase.lite.util.Utils;
@@ -45,6 +48,10 @@ public class RemoteRequest implements Runnable {
     // Don't compress data shorter than this (not worth the CPU time, plus it might not shrink)
     public static final int MIN_JSON_LENGTH_TO_COMPRESS = 100;
 
+    // Time until the response headers arrive, and requests that failed without a response
+    protected static final LatencyHistogram REQUEST_TIME = Metrics.histogram("remote.request");
+    protected static final Counter REQUEST_ERRORS = Metrics.counter("remote.errors");
+
     protected ScheduledExecutorService workExecutor;
     protected final HttpClientFactory clientFactory;
     protected String method;
@@ -157,6 +164,7 @@ public class RemoteRequest implements Runnable {
     }
 
     protected void executeRequest(HttpClient httpClient, HttpUriRequest requestParam) {
+        long start = Metrics.startTimer();
         Object fullBody = null;
         Throwable error = null;
         HttpResponse response = null;
@@ -172,6 +180,7 @@ public class RemoteRequest implements Runnable {
             Log.v(Log.TAG_SYNC, "%s: RemoteRequest calling httpClient.execute, client: %s url: %s", this, httpClient, url);
 
             response = httpClient.execute(requestParam);
+            REQUEST_TIME.recordSince(start);
 
             Log.v(Log.TAG_SYNC, "%s: RemoteRequest called httpClient.execute, url: %s", this, url);
 
@@ -237,6 +246,7 @@ public class RemoteRequest implements Runnable {
             }
         } catch (Exception e) {
             Log.e(Log.TAG_REMOTE_REQUEST, "%s: executeRequest() Exception: %s.  url: %s", this, e, url);
+            REQUEST_ERRORS.increment();
             error = e;
         }
         finally {
@@ -3,6 +3,7 @@ package com.couchbase.lite.support;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RawRevision;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
@@ -21,6 +22,38 @@ import java.util.Map;
  */
 public class RevisionUtils {
 
+    // MessageDigest.getInstance() is comparatively expensive, and generateRevID() is called for
+    // every saved revision, so each thread keeps its own (non-thread-safe) digest:
+    private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * Returns the history as a _revisions dictionary, going back only as far as the first of
+     * 'ancestorRevIDs' it contains, if any.
+     */
+    public static Map<String, Object> makeRevisionHistoryDict(List<RevisionInternal> history,
+                                                              List<String> ancestorRevIDs) {
+        // (history is in reverse order, newest..oldest)
+        if (history != null && ancestorRevIDs != null && ancestorRevIDs.size() > 0) {
+            int n = history.size();
+            for (int i = 0; i < n; ++i) {
+                if (ancestorRevIDs.contains(history.get(i).getRevID())) {
+                    history = history.subList(0, i + 1);
+                    break;
+                }
+            }
+        }
+        return makeRevisionHistoryDict(history);
+    }
+
     public static Map<String, Object> makeRevisionHistoryDict(List<RevisionInternal> history) {
         if (history == null) {
             return null;
@@ -96,6 +129,9 @@ public class RevisionUtils {
      */
     @InterfaceAudience.Private
     public static byte[] asCanonicalJSON(RevisionInternal rev) {
+        // A revision pulled from a remote database may carry its JSON from the wire:
+        if (rev instanceof RawRevision)
+            return ((RawRevision) rev).getCanonicalJSON();
         return asCanonicalJSON(rev.getProperties());
     }
 
@@ -175,11 +211,8 @@ public class RevisionUtils {
         // Generate a getDigest for this revision based on the previous revision ID, document JSON,
         // and attachment digests. This doesn't need to be secure; we just need to ensure that this
         // code consistently generates the same ID given equivalent revisions.
-        try {
-            md5Digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        md5Digest = md5.get();
+        md5Digest.reset();
 
         // single byte - length of previous revision id
         // +
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support.security;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Incrementally encrypts data in the chunked, authenticated format, which unlike the single
+ * AES-CBC stream written by SymmetricKey.Encryptor can be decrypted starting at any chunk
+ * (see SeekableDecryptingInputStream.) Like an Encryptor, call encrypt() with null data to
+ * finish the encryption.
+ * <p/>
+ * The format is a header followed by the chunks:
+ * <pre>
+ *   header: MAGIC (8 bytes), chunk size (4 bytes, big-endian), nonce prefix (8 random bytes)
+ *   chunk:  AES-CTR ciphertext of 'chunk size' bytes of data (fewer for the last chunk),
+ *           followed by a 16-byte tag
+ * </pre>
+ * Chunk i is encrypted starting from the counter block (nonce prefix, i as 4 bytes big-endian,
+ * 4 zero bytes). Its tag is the first 16 bytes of an HMAC-SHA256 over the header, i, a byte
+ * that is 1 for the last chunk and 0 otherwise, and the ciphertext, so that chunks can't be
+ * modified, reordered, moved between blobs, or truncated at a chunk boundary without being
+ * detected. The AES and HMAC keys are both derived from the SymmetricKey. There is always at
+ * least one chunk, which is empty if the data is.
+ */
+public class ChunkedEncryptor {
+
+    public static final byte[] MAGIC = {'C', 'B', 'L', 'C', 'T', 'R', '0', '1'};
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    // Largest chunk size a reader accepts, so that a damaged header can't make it allocate a
+    // huge buffer:
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    static final int HEADER_SIZE = MAGIC.length + 4 + 8;
+    static final int TAG_SIZE = 16;
+    static final int IV_SIZE = 16;
+
+    private final SymmetricKey key;
+    private final int chunkSize;
+    private final byte[] header;
+    private final byte[] buffer;
+    private int buffered = 0;
+    private int chunkIndex = 0;
+    private boolean wroteHeader = false;
+
+    ChunkedEncryptor(SymmetricKey key, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[chunkSize];
+        byte[] noncePrefix = new byte[8];
+        new SecureRandom().nextBytes(noncePrefix);
+        this.header = ByteBuffer.allocate(HEADER_SIZE)
+                .put(MAGIC).putInt(chunkSize).put(noncePrefix).array();
+    }
+
+    /**
+     * Returns true if the data starts with the header of the chunked format.
+     */
+    public static boolean isChunked(byte[] data, int length) {
+        if (length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Incrementally encrypt the data. To finalize the encryption, specify null value data.
+     * @param data Input data to be encrypted
+     * @return Encrypted data
+     * @throws SymmetricKeyException
+     */
+    public byte[] encrypt(byte[] data) throws SymmetricKeyException {
+        return encrypt(data, 0, (data != null ? data.length : 0));
+    }
+
+    /**
+     * Incrementally encrypt a subset of the data with given offset and length information.
+     * To finalize the encryption, specify null value data. Output is produced a chunk at a time,
+     * so the result is often empty.
+     * @param data Input data to be encrypted
+     * @param offset Start offset of the data to be encrypted
+     * @param len Number of bytes from the start offset of the data to be encrypted
+     * @return Encrypted data
+     * @throws SymmetricKeyException
+     */
+    public byte[] encrypt(byte[] data, int offset, int len) throws SymmetricKeyException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!wroteHeader) {
+            out.write(header, 0, header.length);
+            wroteHeader = true;
+        }
+        if (data == null) {
+            sealChunk(true, out);
+        } else {
+            while (len > 0) {
+                // A full chunk is only sealed once more data arrives, since only then is it
+                // known not to be the last one:
+                if (buffered == chunkSize)
+                    sealChunk(false, out);
+                int n = Math.min(len, chunkSize - buffered);
+                System.arraycopy(data, offset, buffer, buffered, n);
+                buffered += n;
+                offset += n;
+                len -= n;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void sealChunk(boolean last, ByteArrayOutputStream out) throws SymmetricKeyException {
+        try {
+            Cipher cipher = key.getChunkCipher(Cipher.ENCRYPT_MODE, iv(header, chunkIndex));
+            byte[] sealed = cipher.doFinal(buffer, 0, buffered);
+            out.write(sealed, 0, sealed.length);
+            out.write(tag(key.getChunkMac(), header, chunkIndex, last, sealed, sealed.length),
+                    0, TAG_SIZE);
+        } catch (SymmetricKeyException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SymmetricKeyException(e);
+        }
+        Arrays.fill(buffer, 0, buffered, (byte) 0);
+        buffered = 0;
+        chunkIndex++;
+    }
+
+    static byte[] iv(byte[] header, int chunkIndex) {
+        return ByteBuffer.allocate(IV_SIZE)
+                .put(header, MAGIC.length + 4, 8).putInt(chunkIndex).putInt(0).array();
+    }
+
+    /**
+     * Computes the tag of a chunk from its first 'length' bytes of ciphertext.
+     */
+    static byte[] tag(Mac mac, byte[] header, int chunkIndex, boolean last,
+                      byte[] ciphertext, int length) {
+        mac.update(header);
+        mac.update(ByteBuffer.allocate(5).putInt(chunkIndex).put((byte) (last ? 1 : 0)).array());
+        mac.update(ciphertext, 0, length);
+        return Arrays.copyOf(mac.doFinal(), TAG_SIZE);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+
+/**
+ * Decrypts a file in the format written by ChunkedEncryptor. Only the chunks that are read are
+ * decrypted, so skip() and seek() are cheap, and each chunk is authenticated as it's read: a
+ * corrupt or truncated file makes read() throw an IOException rather than return bad data.
+ */
+public class SeekableDecryptingInputStream extends InputStream {
+
+    private final SymmetricKey key;
+    private final FileChannel channel;
+    private final byte[] header = new byte[ChunkedEncryptor.HEADER_SIZE];
+    private final int chunkSize;
+    private final long chunkCount;
+    private final long length;
+
+    private long position = 0;
+    private long currentChunk = -1;
+    private byte[] plaintext;
+    private ByteBuffer ciphertext;
+
+    /**
+     * Opens the encrypted file, which the stream reads with positional reads and closes when it's
+     * closed.
+     */
+    public SeekableDecryptingInputStream(SymmetricKey key, FileChannel channel)
+            throws IOException, SymmetricKeyException {
+        this.key = key;
+        this.channel = channel;
+        readFully(ByteBuffer.wrap(header), 0);
+        if (!ChunkedEncryptor.isChunked(header, header.length))
+            throw new SymmetricKeyException("Invalid encrypted data, not in the chunked format");
+        chunkSize = ByteBuffer.wrap(header, ChunkedEncryptor.MAGIC.length, 4).getInt();
+        if (chunkSize <= 0 || chunkSize > ChunkedEncryptor.MAX_CHUNK_SIZE)
+            throw new SymmetricKeyException("Invalid encrypted data, bad chunk size");
+
+        long sealedChunkSize = (long) chunkSize + ChunkedEncryptor.TAG_SIZE;
+        long dataSize = channel.size() - header.length;
+        chunkCount = (dataSize + sealedChunkSize - 1) / sealedChunkSize;
+        length = dataSize - chunkCount * ChunkedEncryptor.TAG_SIZE;
+        long lastChunkSize = dataSize - (chunkCount - 1) * sealedChunkSize;
+        if (chunkCount == 0 || lastChunkSize < ChunkedEncryptor.TAG_SIZE)
+            throw new SymmetricKeyException("Invalid encrypted data, truncated");
+    }
+
+    /**
+     * The length of the decrypted data.
+     */
+    public long length() {
+        return length;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Moves to the given position in the decrypted data.
+     */
+    public void seek(long newPosition) {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("Position cannot be negative.");
+        position = Math.min(newPosition, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) > 0 ? (b[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0)
+            return 0;
+        if (position >= length)
+            return -1;
+        long chunk = position / chunkSize;
+        loadChunk(chunk);
+        int start = (int) (position - chunk * chunkSize);
+        int n = Math.min(count, plaintext.length - start);
+        System.arraycopy(plaintext, start, buffer, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        long skipped = Math.min(n, length - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (currentChunk < 0 || position >= length || position / chunkSize != currentChunk)
+            return 0;
+        return (int) (plaintext.length - (position - currentChunk * chunkSize));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void loadChunk(long chunk) throws IOException {
+        if (chunk == currentChunk)
+            return;
+        long sealedChunkSize = (long) chunkSize + ChunkedEncryptor.TAG_SIZE;
+        long filePosition = header.length + chunk * sealedChunkSize;
+        int size = (int) Math.min(sealedChunkSize, channel.size() - filePosition);
+        if (ciphertext == null)
+            ciphertext = ByteBuffer.allocate((int) sealedChunkSize);
+        ciphertext.clear();
+        ciphertext.limit(size);
+        readFully(ciphertext, filePosition);
+
+        boolean last = chunk == chunkCount - 1;
+        int ciphertextSize = size - ChunkedEncryptor.TAG_SIZE;
+        try {
+            byte[] expectedTag = ChunkedEncryptor.tag(key.getChunkMac(), header, (int) chunk, last,
+                    ciphertext.array(), ciphertextSize);
+            byte[] tag = new byte[ChunkedEncryptor.TAG_SIZE];
+            System.arraycopy(ciphertext.array(), ciphertextSize, tag, 0, tag.length);
+            if (!MessageDigest.isEqual(tag, expectedTag))
+                throw new IOException("Encrypted data is corrupt at chunk " + chunk);
+            Cipher cipher = key.getChunkCipher(Cipher.DECRYPT_MODE,
+                    ChunkedEncryptor.iv(header, (int) chunk));
+            plaintext = cipher.doFinal(ciphertext.array(), 0, ciphertextSize);
+        } catch (IOException e) {
+            currentChunk = -1;
+            throw e;
+        } catch (Exception e) {
+            currentChunk = -1;
+            throw new IOException("Encrypted data is corrupt at chunk " + chunk, e);
+        }
+        currentChunk = chunk;
+    }
+
+    private void readFully(ByteBuffer buffer, long filePosition) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, filePosition);
+            if (n < 0)
+                throw new IOException("Encrypted data is truncated");
+            filePosition += n;
+        }
+    }
+}
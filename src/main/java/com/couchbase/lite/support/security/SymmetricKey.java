@@ -24,12 +24,14 @@ import com.couchbase.lite.util.Utils;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.security.*;
 import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -43,9 +45,18 @@ public class SymmetricKey {
     private static final int BLOCK_SIZE = 16; // AES use a 128-bit block
     private static final int IV_SIZE = BLOCK_SIZE;
 
+    // Chunked format (see ChunkedEncryptor); its AES-CTR and HMAC keys are derived from the
+    // raw key so that the two algorithms never share a key:
+    private static final String CHUNK_CIPHER_KEY_LABEL = "CBL chunk cipher";
+    private static final String CHUNK_MAC_KEY_LABEL = "CBL chunk MAC";
+
     // Raw key data:
     private byte[] keyData = null;
 
+    // Derived keys of the chunked format:
+    private SecretKey chunkCipherKey = null;
+    private SecretKey chunkMacKey = null;
+
     // Remember when using BC provider:
     private boolean useBCProvider = false;
 
@@ -222,6 +233,76 @@ public class SymmetricKey {
         return cipher;
     }
 
+    /**
+     * Get an AES-CTR cipher for one chunk of the chunked format (see ChunkedEncryptor.)
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param iv The chunk's 16-byte initial counter block
+     * @return A cipher object
+     * @throws SymmetricKeyException
+     */
+    Cipher getChunkCipher(int mode, byte[] iv) throws SymmetricKeyException {
+        Cipher cipher = getCipherInstance("AES/CTR/NoPadding");
+        if (cipher == null)
+            throw new SymmetricKeyException("Cannot get a cipher instance for AES/CTR/NoPadding algorithm");
+        try {
+            cipher.init(mode, getChunkCipherKey(), new IvParameterSpec(iv));
+        } catch (InvalidKeyException e) {
+            throw new SymmetricKeyException("Couchbase Lite uses the AES 256-bit key to provide data encryption. " +
+                    "Please make sure you have installed 'Java Cryptography Extension (JCE) " +
+                    "Unlimited Strength Jurisdiction' Policy provided by Oracle.", e);
+        } catch (SymmetricKeyException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SymmetricKeyException(e);
+        }
+        return cipher;
+    }
+
+    /**
+     * Get an HMAC-SHA256 instance that authenticates the chunks of the chunked format.
+     * @return A Mac object
+     * @throws SymmetricKeyException
+     */
+    Mac getChunkMac() throws SymmetricKeyException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(getChunkMacKey());
+            return mac;
+        } catch (SymmetricKeyException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SymmetricKeyException(e);
+        }
+    }
+
+    private synchronized SecretKey getChunkCipherKey() throws SymmetricKeyException {
+        if (chunkCipherKey == null)
+            chunkCipherKey = new SecretKeySpec(deriveKey(CHUNK_CIPHER_KEY_LABEL), "AES");
+        return chunkCipherKey;
+    }
+
+    private synchronized SecretKey getChunkMacKey() throws SymmetricKeyException {
+        if (chunkMacKey == null)
+            chunkMacKey = new SecretKeySpec(deriveKey(CHUNK_MAC_KEY_LABEL), "HmacSHA256");
+        return chunkMacKey;
+    }
+
+    /**
+     * Derive a 32-byte subkey for one purpose from the raw key, as HMAC-SHA256(key, label).
+     * @param label Name of the purpose
+     * @return The subkey
+     * @throws SymmetricKeyException
+     */
+    private byte[] deriveKey(String label) throws SymmetricKeyException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(getKey(), "HmacSHA256"));
+            return mac.doFinal(label.getBytes("UTF-8"));
+        } catch (Exception e) {
+            throw new SymmetricKeyException(e);
+        }
+    }
+
     /**
      * Get a cipher instance for the algorithm. It will try to use the Cipher from the default
      * security provider by the platform. If it couldn't find the cipher, it will try to
@@ -273,6 +354,42 @@ public class SymmetricKey {
         return new Encryptor();
     }
 
+    /**
+     * Create a ChunkedEncryptor object, which encrypts in the seekable, authenticated chunked
+     * format instead of as a single AES-CBC stream.
+     * @return A ChunkedEncryptor object
+     */
+    public ChunkedEncryptor createChunkedEncryptor() {
+        return new ChunkedEncryptor(this, ChunkedEncryptor.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Decrypt a file written by a ChunkedEncryptor. The returned stream can seek, decrypting
+     * only the chunks it reads.
+     * @param channel The encrypted file, which the stream closes when it's closed, or which is
+     *                closed right away if it isn't in the chunked format
+     * @return A seekable InputStream of the decrypted data
+     * @throws SymmetricKeyException
+     */
+    public SeekableDecryptingInputStream decryptChunkedStream(FileChannel channel)
+            throws SymmetricKeyException {
+        boolean opened = false;
+        try {
+            SeekableDecryptingInputStream stream = new SeekableDecryptingInputStream(this, channel);
+            opened = true;
+            return stream;
+        } catch (IOException e) {
+            throw new SymmetricKeyException(e);
+        } finally {
+            if (!opened) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
     /**
      * An Encryptor class used for incrementally encrypting data. To finalize the encryption,
      * call the encrypt() method will null data.
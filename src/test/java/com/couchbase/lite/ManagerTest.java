@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ManagerTest {
+
+    private TestContext context;
+    private Manager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        context = TestContext.createTemporary("manager-test");
+        manager = new Manager(context, null);
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    @Test
+    public void testPoolsAreNotRecreatedAfterClose() {
+        assertNotNull(manager.getLiveQueryExecutor());
+        assertNotNull(manager.getHttpConnectionPool());
+        manager.close();
+
+        try {
+            manager.getLiveQueryExecutor();
+            fail("the LiveQuery executor was re-created after close");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertNull(manager.getHttpConnectionPool());
+        assertNull(manager.getViewIndexerExecutor());
+    }
+
+    @Test
+    public void testPoolsAreNotCreatedAfterClose() {
+        manager.close();
+        try {
+            manager.getLiveQueryExecutor().shutdown();
+            fail("a LiveQuery executor was created after close");
+        } catch (RejectedExecutionException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+        assertNull(manager.getHttpConnectionPool());
+    }
+}
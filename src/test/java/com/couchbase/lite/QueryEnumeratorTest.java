@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.store.QueryRowIterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streaming enumerators hold a database cursor; these check that it's released, and that the
+ * database stops tracking the enumerator, however the enumerator is finished with.
+ */
+public class QueryEnumeratorTest {
+
+    private static final int ROW_COUNT = 1000;
+
+    private TestContext context;
+    private Manager manager;
+    private Database database;
+    private final List<FakeCursor> cursors = new ArrayList<FakeCursor>();
+
+    // A cursor over ROW_COUNT rows that records whether it's been closed
+    private class FakeCursor implements QueryRowIterator {
+        int position;
+        boolean closed;
+
+        @Override
+        public QueryRow nextRow() {
+            if (closed || position >= ROW_COUNT) {
+                close();
+                return null;
+            }
+            position++;
+            return new QueryRow(String.format("doc-%04d", position), position, position, null,
+                    null, null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final QueryEnumerator.RowSource rowSource = new QueryEnumerator.RowSource() {
+        @Override
+        public QueryRowIterator open() {
+            FakeCursor cursor = new FakeCursor();
+            cursors.add(cursor);
+            return cursor;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        context = TestContext.createTemporary("query-enumerator-test");
+        manager = new Manager(context, null);
+        database = new Database(new File(context.getFilesDir(), "db.cblite2").getPath(), "db",
+                manager, false);
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        context.delete();
+    }
+
+    private QueryEnumerator open() throws CouchbaseLiteException {
+        return new QueryEnumerator(database, rowSource, rowSource.open(), 1);
+    }
+
+    @Test
+    public void testExhaustedEnumeratorReleasesCursor() throws Exception {
+        QueryEnumerator enumerator = open();
+        assertEquals(1, database.getDatabaseListenerCount());
+        int n = 0;
+        for (QueryRow row : enumerator)
+            n++;
+        assertEquals(ROW_COUNT, n);
+        assertTrue(cursors.get(0).closed);
+        assertEquals(0, database.getDatabaseListenerCount());
+    }
+
+    @Test
+    public void testClosedEnumeratorReleasesCursor() throws Exception {
+        QueryEnumerator enumerator = open();
+        enumerator.next();
+        enumerator.close();
+        assertTrue(cursors.get(0).closed);
+        assertEquals(0, database.getDatabaseListenerCount());
+
+        // It only returns the rows it had already read:
+        int remaining = 0;
+        while (enumerator.next() != null)
+            remaining++;
+        assertTrue(remaining < ROW_COUNT - 1);
+        assertEquals(1, cursors.size());
+    }
+
+    @Test
+    public void testAbandonedEnumeratorsAreReleased() throws Exception {
+        List<WeakReference<QueryEnumerator>> abandoned =
+                new ArrayList<WeakReference<QueryEnumerator>>();
+        for (int i = 0; i < 20; i++)
+            abandoned.add(openHalfRead());
+        assertEquals(20, database.getDatabaseListenerCount());
+
+        for (int i = 0; i < 50 && !allCleared(abandoned); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue("abandoned enumerators weren't collected", allCleared(abandoned));
+
+        // Abandoned cursors are swept when the next streaming query starts:
+        QueryEnumerator enumerator = open();
+        enumerator.next();
+        assertEquals(1, database.getDatabaseListenerCount());
+        for (int i = 0; i < 20; i++)
+            assertTrue(cursors.get(i).closed);
+        assertFalse(cursors.get(20).closed);
+        enumerator.close();
+    }
+
+    // In its own method so that no local variable keeps the enumerator reachable:
+    private WeakReference<QueryEnumerator> openHalfRead() throws CouchbaseLiteException {
+        QueryEnumerator enumerator = open();
+        for (int i = 0; i < ROW_COUNT / 2; i++)
+            enumerator.next();
+        return new WeakReference<QueryEnumerator>(enumerator);
+    }
+
+    private static boolean allCleared(List<WeakReference<QueryEnumerator>> references) {
+        for (WeakReference<QueryEnumerator> reference : references) {
+            if (reference.get() != null)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.database.DatabasePlatformSupport;
+import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.storage.SQLiteStorageEngineBase;
+import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+import com.couchbase.lite.support.FileDirUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Minimal desktop Context for tests. Tests that open a database need the native SQLite JNI
+ * library on the test classpath, or its path given with the
+ * com.couchbase.lite.lib.&lt;name&gt;.path system property.
+ */
+public class TestContext implements Context {
+
+    private final File rootDirectory;
+
+    private TestContext(File rootDirectory) {
+        this.rootDirectory = rootDirectory;
+    }
+
+    /**
+     * Creates a context whose files live in a new, empty temporary directory.
+     */
+    public static TestContext createTemporary(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs())
+            throw new IOException("Unable to create directory " + directory);
+        return new TestContext(directory);
+    }
+
+    /**
+     * Deletes the context's directory and everything in it.
+     */
+    public void delete() {
+        FileDirUtils.deleteRecursive(rootDirectory);
+    }
+
+    @Override
+    public File getFilesDir() {
+        return rootDirectory;
+    }
+
+    @Override
+    public File getTempDir() {
+        File tempDirectory = new File(rootDirectory, "temp");
+        tempDirectory.mkdirs();
+        return tempDirectory;
+    }
+
+    @Override
+    public void setNetworkReachabilityManager(NetworkReachabilityManager networkReachabilityManager) {
+    }
+
+    @Override
+    public NetworkReachabilityManager getNetworkReachabilityManager() {
+        return new NetworkReachabilityManager() {
+            @Override
+            public void startListening() {
+            }
+
+            @Override
+            public void stopListening() {
+            }
+
+            @Override
+            public boolean isOnline() {
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public SQLiteStorageEngineFactory getSQLiteStorageEngineFactory() {
+        return new SQLiteStorageEngineFactory() {
+            @Override
+            public SQLiteStorageEngine createStorageEngine() {
+                return new SQLiteStorageEngineBase() {
+                    @Override
+                    protected DatabasePlatformSupport getDatabasePlatformSupport() {
+                        return new DatabasePlatformSupport() {
+                            @Override
+                            public boolean isMainThread() {
+                                return false;
+                            }
+                        };
+                    }
+
+                    @Override
+                    protected String getICUDatabasePath() {
+                        return null;
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public String getUserAgent() {
+        return "CouchbaseLite/test";
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Map-only queries are ordered by the binary sort_key column, while grouped queries and the
+ * reduce tree use the native COLLATE JSON. These check that both agree, and follow the locale of
+ * the database connection, for non-ASCII and mixed-case keys.
+ */
+public class ViewCollationTest {
+
+    private static final String[] NAMES = {
+            "apple", "Apple", "\u00e4pple", "\u00c4pple", "banana", "Banana", "zebra", "Zebra",
+            "\u00e5ngstr\u00f6m", "\u00c5ngstr\u00f6m", "\u00f6l", "\u00d6l",
+            "\u00e9clair", "\u00c9clair", "eclair", "\u00eele", "\u00cele",
+            "\u0131spanak", "Ispanak", "istanbul", "\u0130stanbul",
+            "stra\u00dfe", "strasse", "STRASSE", "\u4e2d\u6587", "a b", "a-b", "ab"
+    };
+
+    // Ranges to query, as (startKey, endKey) pairs:
+    private static final String[][] RANGES = {
+            {"a", "b"}, {"Apple", "banana"}, {"b", "\u00f6"}, {"z", "\u00d6"},
+            {"\u00e9", "\u00ef"}, {"I", "j"}, {"s", "t"}, {"\u00e4", "\u00e4"}
+    };
+
+    private Locale defaultLocale;
+    private TestContext context;
+    private Manager manager;
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        defaultLocale = Locale.getDefault();
+        context = TestContext.createTemporary("view-collation-test");
+        open(new Locale("sv", "SE"));
+        // Several documents per name, created out of doc ID order, so equal keys have to be
+        // ordered by doc ID:
+        for (int copy = 2; copy >= 0; copy--) {
+            for (int i = 0; i < NAMES.length; i++) {
+                if (copy > 0 && i % 3 != 0)
+                    continue;
+                Map<String, Object> properties = new HashMap<String, Object>();
+                properties.put("name", NAMES[i]);
+                String docID = String.format("doc-%02d-%d", i, copy);
+                database.getDocument(docID).putProperties(properties);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (manager != null)
+            manager.close();
+        context.delete();
+        Locale.setDefault(defaultLocale);
+    }
+
+    // SQLite connections take the default locale when they're opened:
+    private void open(Locale locale) throws Exception {
+        if (manager != null)
+            manager.close();
+        Locale.setDefault(locale);
+        manager = new Manager(context, null);
+        database = manager.getDatabase("collation");
+        View view = database.getView("names");
+        view.setMapReduce(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("name"), 1);
+            }
+        }, new Reducer() {
+            @Override
+            public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+                return View.totalValues(values);
+            }
+        }, "1");
+    }
+
+    @Test
+    public void testMapQueryFollowsLocale() throws Exception {
+        assertOrdered(mapRows(null, null, false), Collator.getInstance(new Locale("sv", "SE")));
+    }
+
+    @Test
+    public void testGroupedQueryMatchesMapQuery() throws Exception {
+        List<QueryRow> rows = mapRows(null, null, false);
+        assertGroupsMatch(rows, groupRows(null, null, false));
+        assertGroupsMatch(reversed(rows), groupRows(null, null, true));
+
+        database.getView("names").setReduceCacheEnabled(true);
+        assertGroupsMatch(rows, groupRows(null, null, false));
+    }
+
+    @Test
+    public void testRangeQueriesMatchFullQuery() throws Exception {
+        Collator collator = Collator.getInstance(new Locale("sv", "SE"));
+        List<QueryRow> all = mapRows(null, null, false);
+        for (String[] range : RANGES) {
+            List<QueryRow> expected = new ArrayList<QueryRow>();
+            for (QueryRow row : all) {
+                String key = (String) row.getKey();
+                if (collator.compare(key, range[0]) >= 0 && collator.compare(key, range[1]) <= 0)
+                    expected.add(row);
+            }
+            String message = range[0] + ".." + range[1];
+            List<QueryRow> rows = mapRows(range[0], range[1], false);
+            assertEquals(message, docIDs(expected), docIDs(rows));
+            assertEquals(message, docIDs(reversed(expected)),
+                    docIDs(mapRows(range[1], range[0], true)));
+            assertGroupsMatch(rows, groupRows(range[0], range[1], false));
+        }
+    }
+
+    @Test
+    public void testSortKeysFollowLocaleChange() throws Exception {
+        mapRows(null, null, false); // builds the sort keys in sv_SE
+
+        Locale turkish = new Locale("tr", "TR");
+        open(turkish);
+        List<QueryRow> rows = mapRows(null, null, false);
+        assertOrdered(rows, Collator.getInstance(turkish));
+        assertGroupsMatch(rows, groupRows(null, null, false));
+    }
+
+    private List<QueryRow> mapRows(Object startKey, Object endKey, boolean descending)
+            throws CouchbaseLiteException {
+        Query query = database.getView("names").createQuery();
+        query.setMapOnly(true);
+        query.setStartKey(startKey);
+        query.setEndKey(endKey);
+        query.setDescending(descending);
+        return toList(query.run());
+    }
+
+    private List<QueryRow> groupRows(Object startKey, Object endKey, boolean descending)
+            throws CouchbaseLiteException {
+        Query query = database.getView("names").createQuery();
+        query.setGroupLevel(1);
+        query.setStartKey(startKey);
+        query.setEndKey(endKey);
+        query.setDescending(descending);
+        return toList(query.run());
+    }
+
+    private static List<QueryRow> toList(QueryEnumerator enumerator) {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        for (QueryRow row : enumerator)
+            rows.add(row);
+        return rows;
+    }
+
+    private static List<QueryRow> reversed(List<QueryRow> rows) {
+        List<QueryRow> reversed = new ArrayList<QueryRow>(rows);
+        Collections.reverse(reversed);
+        return reversed;
+    }
+
+    private static List<String> docIDs(List<QueryRow> rows) {
+        List<String> docIDs = new ArrayList<String>();
+        for (QueryRow row : rows)
+            docIDs.add(row.getSourceDocumentId());
+        return docIDs;
+    }
+
+    // Keys ascend in the collator's order, and equal keys by doc ID:
+    private static void assertOrdered(List<QueryRow> rows, Collator collator) {
+        assertTrue(rows.size() > NAMES.length);
+        for (int i = 1; i < rows.size(); i++) {
+            QueryRow previous = rows.get(i - 1), row = rows.get(i);
+            int cmp = collator.compare((String) previous.getKey(), (String) row.getKey());
+            if (cmp == 0)
+                cmp = previous.getSourceDocumentId().compareTo(row.getSourceDocumentId());
+            assertTrue(previous.getKey() + " / " + row.getKey(), cmp < 0);
+        }
+    }
+
+    // The grouped rows are the runs of equal keys of the map rows, in the same order:
+    private static void assertGroupsMatch(List<QueryRow> mapRows, List<QueryRow> groupRows) {
+        List<Object> keys = new ArrayList<Object>();
+        List<Integer> counts = new ArrayList<Integer>();
+        for (QueryRow row : mapRows) {
+            int last = keys.size() - 1;
+            if (last >= 0 && keys.get(last).equals(row.getKey())) {
+                counts.set(last, counts.get(last) + 1);
+            } else {
+                keys.add(row.getKey());
+                counts.add(1);
+            }
+        }
+        List<Object> groupKeys = new ArrayList<Object>();
+        List<Integer> groupCounts = new ArrayList<Integer>();
+        for (QueryRow row : groupRows) {
+            groupKeys.add(row.getKey());
+            groupCounts.add(((Number) row.getValue()).intValue());
+        }
+        assertEquals(keys, groupKeys);
+        assertEquals(counts, groupCounts);
+    }
+}
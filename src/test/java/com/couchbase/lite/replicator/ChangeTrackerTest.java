@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.replicator;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeTrackerTest {
+
+    private static final int CHANGE_COUNT = 100000;
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final List<String> requestLines =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        if (serverThread != null)
+            serverThread.join(10000);
+    }
+
+    /**
+     * A stand-in for Sync Gateway's continuous _changes feed: it sends CHANGE_COUNT changes over
+     * the first connection, with a heartbeat now and then, and then keeps the connection open
+     * until the client closes it, as a server waiting for new changes would.
+     */
+    private void startServer() {
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            serve(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // The server socket was closed
+                }
+            }
+        }, "ChangeTrackerTest-server");
+        serverThread.start();
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        String line = reader.readLine();
+        requestLines.add(line);
+        while (line != null && line.length() > 0)
+            line = reader.readLine();
+
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        writer.write("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Connection: close\r\n\r\n");
+        if (requestLines.size() == 1) {
+            for (int seq = 1; seq <= CHANGE_COUNT; seq++) {
+                writer.write(String.format("{\"seq\":%d,\"id\":\"doc-%d\"," +
+                        "\"changes\":[{\"rev\":\"1-%x\"}]}\n", seq, seq, seq));
+                if (seq % 10000 == 0)
+                    writer.write("\n"); // heartbeat
+            }
+        }
+        writer.flush();
+        // Wait for the client to hang up:
+        while (reader.read() >= 0) {
+        }
+    }
+
+    @Test
+    public void testContinuousFeedDeliversEveryChangeInOrder() throws Exception {
+        startServer();
+        final List<Object> sequences = new ArrayList<Object>(CHANGE_COUNT);
+        final CountDownLatch caughtUp = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        ChangeTrackerClient client = new ChangeTrackerClient() {
+            @Override
+            public HttpClient getHttpClient() {
+                return new DefaultHttpClient();
+            }
+
+            @Override
+            public void changeTrackerReceivedChange(Map<String, Object> change) {
+                sequences.add(change.get("seq"));
+            }
+
+            @Override
+            public void changeTrackerStopped(ChangeTracker tracker) {
+                stopped.countDown();
+            }
+
+            @Override
+            public void changeTrackerFinished(ChangeTracker tracker) {
+            }
+
+            @Override
+            public void changeTrackerCaughtUp() {
+                if (sequences.size() == CHANGE_COUNT)
+                    caughtUp.countDown();
+            }
+        };
+
+        URL url = new URL("http://localhost:" + serverSocket.getLocalPort() + "/db");
+        ChangeTracker tracker = new ChangeTracker(url, ChangeTracker.ChangeTrackerMode.Continuous,
+                false, null, client);
+        tracker.start();
+        try {
+            assertTrue("didn't catch up", caughtUp.await(120, TimeUnit.SECONDS));
+        } finally {
+            tracker.stop();
+        }
+        assertTrue("didn't stop", stopped.await(10, TimeUnit.SECONDS));
+
+        assertEquals(CHANGE_COUNT, sequences.size());
+        for (int i = 0; i < CHANGE_COUNT; i++)
+            assertEquals(i + 1, ((Number) sequences.get(i)).intValue());
+        // All of them arrived through one request:
+        assertEquals(1, requestLines.size());
+        assertTrue(requestLines.get(0), requestLines.get(0).contains("feed=continuous"));
+        assertNull(tracker.getLastError());
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.replicator;
+
+import com.couchbase.lite.metrics.Metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestWindowTest {
+
+    private boolean metricsEnabled;
+
+    @Before
+    public void setUp() {
+        metricsEnabled = Metrics.isEnabled();
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(metricsEnabled);
+    }
+
+    @Test
+    public void testRequestsAreReportedToMetrics() {
+        RequestWindow window = new RequestWindow(2, 1, 8);
+        long first = window.requestStarted();
+        long second = window.requestStarted();
+        long third = window.requestStarted();
+        assertEquals(3L, metric("replicator.pull.requests.inFlight"));
+
+        window.requestFinished(first, 50, false);
+        window.requestFinished(second, 40, false);
+        int size = window.getSize();
+        assertTrue(size > 2);
+        window.requestFinished(third, 0, true);
+        assertEquals(size / 2, window.getSize());
+
+        assertEquals(0L, metric("replicator.pull.requests.inFlight"));
+        assertEquals(3L, metric("replicator.pull.requests.completed"));
+        assertEquals(1L, metric("replicator.pull.requests.failed"));
+        assertEquals(90L, metric("replicator.pull.revisions"));
+        assertTrue(metric("replicator.pull.window.grown") >= 1);
+        assertEquals(1L, metric("replicator.pull.window.shrunk"));
+        Map<?, ?> roundTrip = (Map<?, ?>) Metrics.snapshot().get("replicator.pull.request");
+        assertEquals(2L, ((Number) roundTrip.get("count")).longValue());
+    }
+
+    private static long metric(String name) {
+        return ((Number) Metrics.snapshot().get(name)).longValue();
+    }
+}